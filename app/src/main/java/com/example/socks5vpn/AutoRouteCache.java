@@ -0,0 +1,151 @@
+package com.example.socks5vpn;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Память для действия AUTO: какой путь к назначению (хосту или IP) победил в гонке
+ * соединений, с задержкой и отказами по каждому пути. Пока запись свежая, новые
+ * соединения идут сразу по запомненному пути; после истечения срока (или отказа
+ * запомненного пути) снова устраивается гонка, и прошлый победитель получает фору.
+ *
+ * LRU ограниченного размера на LinkedHashMap: записей немного, обращение - раз на
+ * соединение, так что одной блокировки достаточно.
+ */
+public class AutoRouteCache {
+    private static final int MAX_ENTRIES = 1024;
+    // Через столько запомненный путь перепроверяется гонкой
+    private static final long TTL_MS = 10 * 60 * 1000;
+    
+    private static AutoRouteCache instance;
+    
+    /**
+     * Статистика пути к одному назначению
+     */
+    public static class PathStats {
+        private long avgConnectMs = -1;
+        private int successes;
+        private int failures;
+        
+        void recordSuccess(long connectMs) {
+            // Скользящее среднее: последние соединения важнее старых
+            avgConnectMs = avgConnectMs < 0 ? connectMs : (avgConnectMs * 3 + connectMs) / 4;
+            successes++;
+        }
+        
+        void recordFailure() {
+            failures++;
+        }
+        
+        public long getAvgConnectMs() { return avgConnectMs; }
+        public int getSuccesses() { return successes; }
+        public int getFailures() { return failures; }
+    }
+    
+    private static class Destination {
+        final PathStats direct = new PathStats();
+        final PathStats proxy = new PathStats();
+        RouteManager.RouteAction winner;
+        long expiresAt;
+        
+        PathStats stats(RouteManager.RouteAction path) {
+            return path == RouteManager.RouteAction.PROXY ? proxy : direct;
+        }
+    }
+    
+    private final Map<String, Destination> entries = new LinkedHashMap<String, Destination>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Destination> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+    
+    public static synchronized AutoRouteCache getInstance() {
+        if (instance == null) {
+            instance = new AutoRouteCache();
+        }
+        return instance;
+    }
+    
+    /**
+     * Запомненный путь (DIRECT или PROXY) или null, если его нет или он устарел
+     */
+    public synchronized RouteManager.RouteAction get(String destination) {
+        Destination entry = entries.get(destination);
+        if (entry == null || entry.winner == null || System.currentTimeMillis() > entry.expiresAt) {
+            return null;
+        }
+        return entry.winner;
+    }
+    
+    /**
+     * Путь, который в гонке стартует первым: прошлый победитель, даже устаревший.
+     * Без истории - DIRECT: он не нагружает прокси.
+     */
+    public synchronized RouteManager.RouteAction getPreferred(String destination) {
+        Destination entry = entries.get(destination);
+        return entry != null && entry.winner != null ? entry.winner : RouteManager.RouteAction.DIRECT;
+    }
+    
+    /**
+     * Путь соединился за connectMs
+     */
+    public synchronized void recordSuccess(String destination, RouteManager.RouteAction path, long connectMs) {
+        getOrCreate(destination).stats(path).recordSuccess(connectMs);
+    }
+    
+    /**
+     * Запоминает победителя гонки на TTL. Соединения по запомненному пути срок не
+     * продлевают - иначе гонка не повторится, даже если другой путь стал быстрее.
+     */
+    public synchronized void remember(String destination, RouteManager.RouteAction path) {
+        Destination entry = getOrCreate(destination);
+        entry.winner = path;
+        entry.expiresAt = System.currentTimeMillis() + TTL_MS;
+    }
+    
+    /**
+     * Путь не соединился; если это был запомненный путь, он забывается
+     */
+    public synchronized void recordFailure(String destination, RouteManager.RouteAction path) {
+        Destination entry = getOrCreate(destination);
+        entry.stats(path).recordFailure();
+        if (entry.winner == path) {
+            entry.expiresAt = 0;
+        }
+    }
+    
+    private Destination getOrCreate(String destination) {
+        Destination entry = entries.get(destination);
+        if (entry == null) {
+            entry = new Destination();
+            entries.put(destination, entry);
+        }
+        return entry;
+    }
+    
+    /**
+     * Статистика пути к назначению или null, если соединений к нему не было
+     */
+    public synchronized PathStats getStats(String destination, RouteManager.RouteAction path) {
+        Destination entry = entries.get(destination);
+        return entry == null ? null : entry.stats(path);
+    }
+    
+    public synchronized String getSummary() {
+        int direct = 0;
+        int proxy = 0;
+        for (Destination entry : entries.values()) {
+            if (entry.winner == RouteManager.RouteAction.PROXY) {
+                proxy++;
+            } else if (entry.winner == RouteManager.RouteAction.DIRECT) {
+                direct++;
+            }
+        }
+        return entries.size() + " destinations, direct won " + direct + ", proxy won " + proxy;
+    }
+    
+    public synchronized void clear() {
+        entries.clear();
+    }
+}
@@ -0,0 +1,602 @@
+package com.example.socks5vpn;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Большой список блокировки (миллионы доменов и адресов) в одном файле, который
+ * отображается в память и не занимает кучу.
+ *
+ * Два уровня: блочный фильтр Блума (все биты ключа в одной 64-байтной строке кэша)
+ * отвечает "точно нет" почти на все запросы за одно чтение памяти; только возможные
+ * совпадения доходят до отсортированного массива 64-битных хешей, где ищутся двоичным
+ * поиском. Точность второго уровня ограничена лишь коллизией 64-битного хеша.
+ *
+ * Домен блокирует себя и все поддомены, как обычные правила. Адреса и подсети IPv4
+ * хранятся ключами (префикс, длина); при поиске перебираются только длины префиксов,
+ * которые встречаются в списке.
+ *
+ * Формат файла: заголовок, слова фильтра Блума, отсортированные хеши (big-endian).
+ */
+public class BlocklistFilter {
+    private static final int MAGIC = 0x53424C46; // "SBLF"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+    
+    // Блок фильтра - строка кэша из 8 слов (512 бит), в блоке K бит по 9 бит хеша на каждый
+    private static final int BLOCK_WORDS = 8;
+    private static final int K = 7;
+    private static final int BITS_PER_ENTRY = 12;
+    
+    private static final long FNV_OFFSET = 0xCBF29CE484222325L;
+    private static final long FNV_PRIME = 0x100000001B3L;
+    private static final long IP_SEED = 0x5BD1E9955BD1E995L;
+    private static final int MAX_HOST_LENGTH = 253;
+    private static final int TIMING_SAMPLE = 64;
+    
+    private final File file;
+    private final int count;
+    private final long prefixMask;
+    private final int blockMask;
+    private final LongBuffer bloom;
+    private final LongBuffer hashes;
+    
+    private final AtomicLong lookups = new AtomicLong();
+    // Проверки отдельных ключей: имя с тремя метками - до трёх проверок
+    private final AtomicLong probes = new AtomicLong();
+    private final AtomicLong bloomPasses = new AtomicLong();
+    private final AtomicLong matches = new AtomicLong();
+    private final AtomicLong timedLookups = new AtomicLong();
+    private final AtomicLong lookupNanos = new AtomicLong();
+    
+    private BlocklistFilter(File file, MappedByteBuffer buffer) throws IOException {
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            throw new IOException("Not a blocklist file: " + file);
+        }
+        this.file = file;
+        this.count = buffer.getInt(8);
+        int bloomWords = buffer.getInt(12);
+        this.prefixMask = buffer.getLong(16);
+        this.blockMask = bloomWords / BLOCK_WORDS - 1;
+        
+        if (HEADER_SIZE + 8L * (bloomWords + (long) count) != buffer.capacity()) {
+            throw new IOException("Truncated blocklist file: " + file);
+        }
+        
+        this.bloom = slice(buffer, HEADER_SIZE, bloomWords);
+        this.hashes = slice(buffer, HEADER_SIZE + 8 * bloomWords, count);
+    }
+    
+    private static LongBuffer slice(ByteBuffer buffer, int offset, int words) {
+        ByteBuffer copy = buffer.duplicate();
+        copy.position(offset);
+        copy.limit(offset + 8 * words);
+        return copy.slice().asLongBuffer();
+    }
+    
+    /**
+     * Отображает скомпилированный файл в память
+     */
+    public static BlocklistFilter open(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            // Отображение остаётся действительным после закрытия канала
+            return new BlocklistFilter(file, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } finally {
+            raf.close();
+        }
+    }
+    
+    /**
+     * Компилирует текстовый список (по записи в строке; понимает формат hosts,
+     * "||domain^" и CIDR) в файл. Пишет во временный файл и переименовывает,
+     * так что открытое отображение старого файла не портится.
+     *
+     * @return число уникальных записей
+     */
+    public static int compile(InputStream input, File output) throws IOException {
+        KeySet keys = readKeys(input);
+        write(output, keys);
+        return keys.count;
+    }
+    
+    /**
+     * Отсортированные уникальные ключи записей списка и маска встреченных длин префиксов
+     */
+    static final class KeySet {
+        final long[] keys;
+        final int count;
+        final long prefixMask;
+        
+        KeySet(long[] keys, int count, long prefixMask) {
+            this.keys = keys;
+            this.count = count;
+            this.prefixMask = prefixMask;
+        }
+    }
+    
+    /**
+     * Читает список построчно: в памяти только 8-байтные ключи записей, не текст
+     */
+    static KeySet readKeys(InputStream input) throws IOException {
+        long[] keys = new long[1 << 16];
+        int n = 0;
+        long prefixMask = 0;
+        
+        BufferedReader reader = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8), 1 << 16);
+        String line;
+        while ((line = reader.readLine()) != null) {
+            String entry = parseEntry(line);
+            if (entry == null) continue;
+            
+            long key;
+            int slash = entry.indexOf('/');
+            String address = slash < 0 ? entry : entry.substring(0, slash);
+            int ip = parseIpv4(address);
+            if (ip != 0 || address.equals("0.0.0.0")) {
+                int prefix = 32;
+                if (slash >= 0) {
+                    try {
+                        prefix = Integer.parseInt(entry.substring(slash + 1));
+                    } catch (NumberFormatException e) {
+                        continue;
+                    }
+                    if (prefix < 0 || prefix > 32) continue;
+                }
+                key = ipKey(ip, prefix);
+                prefixMask |= 1L << prefix;
+            } else {
+                if (slash >= 0 || entry.length() > MAX_HOST_LENGTH || entry.indexOf('.') < 0) continue;
+                key = hostKey(entry, 0, entry.length());
+            }
+            
+            if (n == keys.length) {
+                keys = Arrays.copyOf(keys, n * 2);
+            }
+            keys[n++] = key;
+        }
+        
+        Arrays.sort(keys, 0, n);
+        int unique = 0;
+        for (int i = 0; i < n; i++) {
+            if (unique == 0 || keys[i] != keys[unique - 1]) {
+                keys[unique++] = keys[i];
+            }
+        }
+        return new KeySet(keys, unique, prefixMask);
+    }
+    
+    static void write(File output, KeySet keys) throws IOException {
+        long[] bloom = newBloom(keys.count);
+        for (int i = 0; i < keys.count; i++) {
+            addToBloom(bloom, keys.keys[i]);
+        }
+        
+        File temp = new File(output.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 1 << 16));
+        try {
+            writeHeader(out, keys.count, bloom, keys.prefixMask);
+            for (int i = 0; i < keys.count; i++) {
+                out.writeLong(keys.keys[i]);
+            }
+        } finally {
+            out.close();
+        }
+        replace(temp, output);
+    }
+    
+    /**
+     * Объединение нескольких скомпилированных списков в один файл. Хеши источников уже
+     * отсортированы, поэтому слияние идёт потоком в два прохода (фильтр Блума, затем
+     * хеши) - в куче только биты фильтра нового файла.
+     *
+     * @return число уникальных записей
+     */
+    static int merge(List<BlocklistFilter> sources, File output) throws IOException {
+        long total = 0;
+        long prefixMask = 0;
+        for (BlocklistFilter source : sources) {
+            total += source.count;
+            prefixMask |= source.prefixMask;
+        }
+        if (total > Integer.MAX_VALUE) {
+            throw new IOException("Too many entries: " + total);
+        }
+        
+        // Размер по сумме источников: пересечения лишь немного снижают заполнение фильтра
+        long[] bloom = newBloom((int) total);
+        int unique = 0;
+        Merger merger = new Merger(sources);
+        while (merger.hasNext()) {
+            addToBloom(bloom, merger.next());
+            unique++;
+        }
+        
+        File temp = new File(output.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 1 << 16));
+        try {
+            writeHeader(out, unique, bloom, prefixMask);
+            merger = new Merger(sources);
+            while (merger.hasNext()) {
+                out.writeLong(merger.next());
+            }
+        } finally {
+            out.close();
+        }
+        replace(temp, output);
+        return unique;
+    }
+    
+    /**
+     * Слияние отсортированных массивов хешей без повторов
+     */
+    private static final class Merger {
+        private final LongBuffer[] sources;
+        private final int[] positions;
+        // Источник с наименьшим следующим ключом (-1 - все исчерпаны)
+        private int current;
+        private boolean started;
+        private long last;
+        
+        Merger(List<BlocklistFilter> filters) {
+            sources = new LongBuffer[filters.size()];
+            positions = new int[filters.size()];
+            for (int i = 0; i < sources.length; i++) {
+                sources[i] = filters.get(i).hashes;
+            }
+            advance();
+        }
+        
+        private void advance() {
+            current = -1;
+            for (int i = 0; i < sources.length; i++) {
+                // Повторы предыдущего ключа пропускаем
+                while (started && positions[i] < sources[i].capacity() && sources[i].get(positions[i]) == last) {
+                    positions[i]++;
+                }
+                if (positions[i] < sources[i].capacity() &&
+                    (current < 0 || sources[i].get(positions[i]) < sources[current].get(positions[current]))) {
+                    current = i;
+                }
+            }
+        }
+        
+        boolean hasNext() {
+            return current >= 0;
+        }
+        
+        long next() {
+            last = sources[current].get(positions[current]++);
+            started = true;
+            advance();
+            return last;
+        }
+    }
+    
+    /**
+     * Сколько ключей добавилось и сколько пропало по сравнению с этим файлом:
+     * {added, removed}. Оба массива отсортированы - один проход.
+     */
+    int[] diff(KeySet keys) {
+        int added = 0;
+        int removed = 0;
+        int i = 0;
+        int j = 0;
+        while (i < keys.count || j < count) {
+            if (j == count || (i < keys.count && keys.keys[i] < hashes.get(j))) {
+                added++;
+                i++;
+            } else if (i == keys.count || keys.keys[i] > hashes.get(j)) {
+                removed++;
+                j++;
+            } else {
+                i++;
+                j++;
+            }
+        }
+        return new int[] { added, removed };
+    }
+    
+    private static long[] newBloom(int entries) {
+        int blocks = 1;
+        while ((long) blocks * BLOCK_WORDS * 64 < (long) entries * BITS_PER_ENTRY) {
+            blocks <<= 1;
+        }
+        return new long[blocks * BLOCK_WORDS];
+    }
+    
+    private static void addToBloom(long[] bloom, long key) {
+        int blocks = bloom.length / BLOCK_WORDS;
+        int base = (int) (key & (blocks - 1)) * BLOCK_WORDS;
+        long bits = probeBits(key);
+        for (int j = 0; j < K; j++) {
+            int bit = (int) (bits >>> (9 * j)) & 511;
+            bloom[base + (bit >>> 6)] |= 1L << bit;
+        }
+    }
+    
+    private static void writeHeader(DataOutputStream out, int count, long[] bloom, long prefixMask) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(count);
+        out.writeInt(bloom.length);
+        out.writeLong(prefixMask);
+        out.writeLong(0);
+        for (long word : bloom) {
+            out.writeLong(word);
+        }
+    }
+    
+    private static void replace(File temp, File output) throws IOException {
+        if (!temp.renameTo(output)) {
+            temp.delete();
+            throw new IOException("Cannot replace " + output);
+        }
+    }
+    
+    /**
+     * Запись из строки списка в нижнем регистре или null для комментариев и мусора
+     */
+    static String parseEntry(String line) {
+        String s = line.trim();
+        if (s.isEmpty() || s.charAt(0) == '#' || s.charAt(0) == '!') {
+            return null;
+        }
+        int comment = s.indexOf('#');
+        if (comment > 0) {
+            s = s.substring(0, comment).trim();
+        }
+        
+        // hosts: "0.0.0.0 ads.example.com"
+        int space = s.indexOf(' ');
+        if (space < 0) space = s.indexOf('\t');
+        if (space > 0) {
+            s = s.substring(space + 1).trim();
+            int end = s.indexOf(' ');
+            if (end > 0) s = s.substring(0, end);
+        }
+        
+        // adblock: "||ads.example.com^"
+        if (s.startsWith("||")) {
+            s = s.substring(2);
+            if (s.endsWith("^")) s = s.substring(0, s.length() - 1);
+        }
+        if (s.startsWith("*.")) {
+            s = s.substring(2);
+        }
+        if (s.endsWith(".")) {
+            s = s.substring(0, s.length() - 1);
+        }
+        
+        s = s.toLowerCase();
+        // "0.0.0.0" вторым полем hosts - не запись, а сам адрес-заглушка
+        if (s.isEmpty() || s.equals("localhost") || (s.equals("0.0.0.0") && space > 0)) {
+            return null;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            boolean valid = (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') ||
+                            c == '-' || c == '.' || c == '_' || c == '/';
+            if (!valid) {
+                return null;
+            }
+        }
+        return s;
+    }
+    
+    /**
+     * Заблокирован ли хост (в нижнем регистре) или один из его родительских доменов
+     */
+    public boolean containsHost(String host) {
+        long start = startTiming();
+        boolean found = false;
+        int checked = 0;
+        
+        // Хеш считается справа налево, так что на каждой точке готов хеш суффикса:
+        // все родительские домены проверяются за один проход по имени
+        long h = FNV_OFFSET;
+        for (int i = host.length() - 1; i >= 0; i--) {
+            h = (h ^ (host.charAt(i) & 0xFF)) * FNV_PRIME;
+            if (i == 0 || host.charAt(i - 1) == '.') {
+                checked++;
+                if (contains(mix(h))) {
+                    found = true;
+                    break;
+                }
+            }
+        }
+        
+        record(found, checked, start);
+        return found;
+    }
+    
+    /**
+     * Заблокирован ли IPv4 адрес: перебираются длины префиксов, встречающиеся в списке
+     */
+    public boolean containsIp(int ip) {
+        if (prefixMask == 0) {
+            return false;
+        }
+        long start = startTiming();
+        boolean found = false;
+        int checked = 0;
+        long mask = prefixMask;
+        
+        while (mask != 0) {
+            int prefix = 63 - Long.numberOfLeadingZeros(mask);
+            mask &= ~(1L << prefix);
+            checked++;
+            if (contains(ipKey(ip, prefix))) {
+                found = true;
+                break;
+            }
+        }
+        
+        record(found, checked, start);
+        return found;
+    }
+    
+    private boolean contains(long key) {
+        int base = (int) (key & blockMask) * BLOCK_WORDS;
+        long bits = probeBits(key);
+        for (int j = 0; j < K; j++) {
+            int bit = (int) (bits >>> (9 * j)) & 511;
+            if ((bloom.get(base + (bit >>> 6)) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        
+        bloomPasses.incrementAndGet();
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long value = hashes.get(mid);
+            if (value < key) {
+                low = mid + 1;
+            } else if (value > key) {
+                high = mid - 1;
+            } else {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Время меряется у каждого TIMING_SAMPLE-го поиска: nanoTime дороже самой проверки фильтра
+     */
+    private long startTiming() {
+        return (lookups.incrementAndGet() & (TIMING_SAMPLE - 1)) == 0 ? System.nanoTime() : 0;
+    }
+    
+    private void record(boolean found, int checked, long start) {
+        probes.addAndGet(checked);
+        if (found) {
+            matches.incrementAndGet();
+        }
+        if (start != 0) {
+            timedLookups.incrementAndGet();
+            lookupNanos.addAndGet(System.nanoTime() - start);
+        }
+    }
+    
+    static long hostKey(String host, int start, int end) {
+        // FNV-1a 64 с конца имени + перемешивание, чтобы младшие биты (номер блока) были равномерны
+        long h = FNV_OFFSET;
+        for (int i = end - 1; i >= start; i--) {
+            h = (h ^ (host.charAt(i) & 0xFF)) * FNV_PRIME;
+        }
+        return mix(h);
+    }
+    
+    static long ipKey(int ip, int prefix) {
+        int network = prefix == 0 ? 0 : ip & (-1 << (32 - prefix));
+        return mix((((long) prefix << 32) | (network & 0xFFFFFFFFL)) ^ IP_SEED);
+    }
+    
+    /**
+     * Биты позиций в блоке берутся из отдельного перемешивания, а не из тех же
+     * младших битов, что выбирают блок
+     */
+    private static long probeBits(long key) {
+        return mix(key ^ 0x9E3779B97F4A7C15L) >>> 1;
+    }
+    
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        return h ^ (h >>> 33);
+    }
+    
+    private static int parseIpv4(String s) {
+        int result = 0;
+        int parts = 0;
+        int value = -1;
+        for (int i = 0; i <= s.length(); i++) {
+            char c = i < s.length() ? s.charAt(i) : '.';
+            if (c >= '0' && c <= '9') {
+                value = (value < 0 ? 0 : value * 10) + (c - '0');
+                if (value > 255) return 0;
+            } else if (c == '.' && value >= 0) {
+                result = (result << 8) | value;
+                value = -1;
+                parts++;
+            } else {
+                return 0;
+            }
+        }
+        return parts == 4 ? result : 0;
+    }
+    
+    public int getEntryCount() {
+        return count;
+    }
+    
+    /**
+     * Размер отображённого файла; в куче фильтр почти ничего не занимает
+     */
+    public long getMappedBytes() {
+        return HEADER_SIZE + 8L * (bloom.capacity() + (long) count);
+    }
+    
+    public long getBloomBytes() {
+        return 8L * bloom.capacity();
+    }
+    
+    /**
+     * Расчётная доля ложных срабатываний фильтра Блума, в процентах
+     */
+    public double getExpectedFalsePositivePercent() {
+        if (count == 0) {
+            return 0;
+        }
+        double bits = 64.0 * bloom.capacity();
+        return Math.pow(1 - Math.exp(-K * count / bits), K) * 100;
+    }
+    
+    /**
+     * Измеренная доля ложных срабатываний: прошли фильтр, но не нашлись в массиве хешей
+     */
+    public double getMeasuredFalsePositivePercent() {
+        long negatives = probes.get() - matches.get();
+        long falsePositives = bloomPasses.get() - matches.get();
+        return negatives <= 0 ? 0 : Math.max(0, falsePositives) * 100.0 / negatives;
+    }
+    
+    public long getLookups() { return lookups.get(); }
+    public long getMatches() { return matches.get(); }
+    
+    public long getAvgLookupNanos() {
+        long n = timedLookups.get();
+        return n == 0 ? 0 : lookupNanos.get() / n;
+    }
+    
+    public File getFile() {
+        return file;
+    }
+    
+    public String getSummary() {
+        return count + " entries, " + TrafficStats.formatBytes(getMappedBytes()) + " mapped (" +
+               TrafficStats.formatBytes(getBloomBytes()) + " filter), expected FPR " +
+               String.format("%.2f", getExpectedFalsePositivePercent()) + "%";
+    }
+}
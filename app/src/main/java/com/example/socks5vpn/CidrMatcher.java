@@ -0,0 +1,209 @@
+package com.example.socks5vpn;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Неизменяемая таблица IPv4 правил: адресное пространство разбито на непересекающиеся
+ * интервалы, у каждого интервала одно действие. Интервалы хранятся массивом начал,
+ * поиск - двоичный, но только внутри участка, который выбирает таблица по старшим
+ * 16 битам адреса. Так поиск укладывается в несколько чтений памяти при любом
+ * числе правил.
+ *
+ * Приоритет как в исходной проверке: BLOCK перекрывает PROXY независимо от длины
+ * префикса, всё остальное - DIRECT.
+ *
+ * Массивы хранятся в буферах: собранная таблица лежит в куче, таблица из
+ * RuleDatabase - прямо в отображённом файле.
+ */
+public final class CidrMatcher {
+    private static final int INDEX_BITS = 16;
+    private static final int INDEX_SIZE = 1 << INDEX_BITS;
+    private static final long ADDRESS_SPACE = 1L << 32;
+    
+    private static final byte DIRECT = 0;
+    private static final byte PROXY = 1;
+    private static final byte BLOCK = 2;
+    
+    private static final RouteManager.RouteAction[] ACTIONS = {
+        RouteManager.RouteAction.DIRECT, RouteManager.RouteAction.PROXY, RouteManager.RouteAction.BLOCK
+    };
+    
+    public static final CidrMatcher EMPTY = new CidrMatcher(new int[] { Integer.MIN_VALUE }, new byte[] { DIRECT });
+    
+    // Начала интервалов со сдвигом знака (ip ^ MIN_VALUE), чтобы сравнивать как unsigned
+    private final IntBuffer starts;
+    private final ByteBuffer actions;
+    // index[h] - интервал, содержащий адрес h << 16
+    private final IntBuffer index;
+    
+    private CidrMatcher(int[] starts, byte[] actions) {
+        int[] index = new int[INDEX_SIZE + 1];
+        int pos = 0;
+        for (int h = 0; h < INDEX_SIZE; h++) {
+            int key = (h << INDEX_BITS) ^ Integer.MIN_VALUE;
+            while (pos + 1 < starts.length && starts[pos + 1] <= key) {
+                pos++;
+            }
+            index[h] = pos;
+        }
+        index[INDEX_SIZE] = starts.length - 1;
+        
+        this.starts = IntBuffer.wrap(starts);
+        this.actions = ByteBuffer.wrap(actions);
+        this.index = IntBuffer.wrap(index);
+    }
+    
+    private CidrMatcher(IntBuffer starts, ByteBuffer actions, IntBuffer index) {
+        this.starts = starts;
+        this.actions = actions;
+        this.index = index;
+    }
+    
+    static CidrMatcher read(RuleDatabase.Reader reader) throws IOException {
+        IntBuffer starts = reader.ints();
+        ByteBuffer actions = reader.bytes();
+        IntBuffer index = reader.ints();
+        if (starts.capacity() == 0 || actions.capacity() != starts.capacity() || index.capacity() != INDEX_SIZE + 1) {
+            throw new IOException("Corrupted IP table");
+        }
+        return new CidrMatcher(starts, actions, index);
+    }
+    
+    void write(RuleDatabase.Writer writer) throws IOException {
+        writer.ints(starts);
+        writer.bytes(actions);
+        writer.ints(index);
+    }
+    
+    /**
+     * Собирает таблицу из списков подсетей. Подсети не IPv4 пропускаются.
+     */
+    public static CidrMatcher build(List<RouteManager.IpRange> proxyRanges,
+                                    List<RouteManager.IpRange> blockRanges) {
+        long[] proxy = merge(proxyRanges);
+        long[] block = merge(blockRanges);
+        if (proxy.length == 0 && block.length == 0) {
+            return EMPTY;
+        }
+        
+        // Границы всех интервалов; между соседними границами действие постоянно
+        long[] bounds = new long[proxy.length + block.length + 1];
+        int n = 0;
+        bounds[n++] = 0;
+        for (int i = 0; i < proxy.length; i += 2) {
+            bounds[n++] = proxy[i];
+            bounds[n++] = proxy[i + 1];
+        }
+        for (int i = 0; i < block.length; i += 2) {
+            bounds[n++] = block[i];
+            bounds[n++] = block[i + 1];
+        }
+        Arrays.sort(bounds, 0, n);
+        
+        int[] starts = new int[n];
+        byte[] actions = new byte[n];
+        int count = 0;
+        int p = 0;
+        int b = 0;
+        
+        for (int i = 0; i < n; i++) {
+            long start = bounds[i];
+            if (start >= ADDRESS_SPACE || (i > 0 && start == bounds[i - 1])) continue;
+            
+            // Интервалы отсортированы - указатели только двигаются вперёд
+            while (p < proxy.length && proxy[p + 1] <= start) p += 2;
+            while (b < block.length && block[b + 1] <= start) b += 2;
+            
+            byte action = DIRECT;
+            if (b < block.length && block[b] <= start) {
+                action = BLOCK;
+            } else if (p < proxy.length && proxy[p] <= start) {
+                action = PROXY;
+            }
+            
+            if (count > 0 && actions[count - 1] == action) continue;
+            starts[count] = (int) start ^ Integer.MIN_VALUE;
+            actions[count] = action;
+            count++;
+        }
+        
+        return new CidrMatcher(Arrays.copyOf(starts, count), Arrays.copyOf(actions, count));
+    }
+    
+    /**
+     * Объединяет подсети в отсортированные непересекающиеся интервалы [start, end)
+     */
+    private static long[] merge(List<RouteManager.IpRange> ranges) {
+        long[] packed = new long[ranges.size()];
+        int n = 0;
+        for (RouteManager.IpRange range : ranges) {
+            if (!range.isIpv4()) continue;
+            long size = 1L << (32 - range.getPrefixLength());
+            long start = (range.getNetworkInt() & 0xFFFFFFFFL) & ~(size - 1);
+            // start и размер в одном long: сортировка по началу
+            packed[n++] = (start << 6) | (32 - range.getPrefixLength());
+        }
+        Arrays.sort(packed, 0, n);
+        
+        long[] result = new long[n * 2];
+        int count = 0;
+        for (int i = 0; i < n; i++) {
+            long start = packed[i] >>> 6;
+            long end = start + (1L << (packed[i] & 0x3F));
+            if (count > 0 && start <= result[count - 1]) {
+                result[count - 1] = Math.max(result[count - 1], end);
+            } else {
+                result[count++] = start;
+                result[count++] = end;
+            }
+        }
+        return Arrays.copyOf(result, count);
+    }
+    
+    public RouteManager.RouteAction lookup(int ip) {
+        int h = ip >>> (32 - INDEX_BITS);
+        int low = index.get(h);
+        int high = index.get(h + 1);
+        int key = ip ^ Integer.MIN_VALUE;
+        
+        // Последний интервал с началом <= key
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (starts.get(mid) <= key) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return ACTIONS[actions.get(low)];
+    }
+    
+    /**
+     * Интервалы [start, end) с действием PROXY или BLOCK, соседние слиты
+     */
+    long[] getTunnelIntervals() {
+        int n = starts.capacity();
+        long[] result = new long[n * 2];
+        int count = 0;
+        for (int i = 0; i < n; i++) {
+            if (actions.get(i) == DIRECT) continue;
+            long start = (starts.get(i) ^ Integer.MIN_VALUE) & 0xFFFFFFFFL;
+            long end = i + 1 < n ? (starts.get(i + 1) ^ Integer.MIN_VALUE) & 0xFFFFFFFFL : ADDRESS_SPACE;
+            if (count > 0 && result[count - 1] == start) {
+                result[count - 1] = end;
+            } else {
+                result[count++] = start;
+                result[count++] = end;
+            }
+        }
+        return Arrays.copyOf(result, count);
+    }
+    
+    public int getIntervalCount() {
+        return starts.capacity();
+    }
+}
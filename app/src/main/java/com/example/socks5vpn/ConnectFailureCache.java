@@ -0,0 +1,147 @@
+package com.example.socks5vpn;
+
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Недавние неудачные соединения по назначению и маршруту. Приложения повторяют
+ * соединение к недоступному адресу раз за разом, и каждый SYN ждал бы полный
+ * таймаут; пока запись свежая, SYN сразу получает RST.
+ *
+ * Срок записи растёт с каждым отказом подряд (2 с, 4 с, ... до минуты), удачное
+ * соединение запись снимает. Кэшируются только отказы назначения: отказ
+ * соединения, недоступность, таймаут, неизвестное имя и коды SOCKS5 02-06.
+ * Недоступность самого прокси сервера сюда не попадает - она не зависит от адреса.
+ */
+public class ConnectFailureCache {
+    private static final int MAX_ENTRIES = 1024;
+    private static final long BASE_TTL_MS = 2000;
+    private static final long MAX_TTL_MS = 60000;
+    
+    private static ConnectFailureCache instance;
+    
+    /**
+     * Отказ, который действует до expiresAt
+     */
+    public static class Failure {
+        private final String reason;
+        private final int consecutive;
+        private final long expiresAt;
+        private long hits;
+        
+        Failure(String reason, int consecutive, long expiresAt) {
+            this.reason = reason;
+            this.consecutive = consecutive;
+            this.expiresAt = expiresAt;
+        }
+        
+        public String getReason() { return reason; }
+        public int getConsecutive() { return consecutive; }
+        public long getExpiresAt() { return expiresAt; }
+        public long getHits() { return hits; }
+    }
+    
+    private final Map<String, Failure> failures = new LinkedHashMap<String, Failure>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Failure> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+    private final TrafficStats trafficStats = TrafficStats.getInstance();
+    
+    public static synchronized ConnectFailureCache getInstance() {
+        if (instance == null) {
+            instance = new ConnectFailureCache();
+        }
+        return instance;
+    }
+    
+    /**
+     * Ключ назначения: хост или IP, порт и маршрут
+     */
+    public static String key(String destination, RouteManager.RouteAction action) {
+        return destination + "/" + action.name();
+    }
+    
+    /**
+     * Ключ с именем сервера: отказ через один сервер не мешает правилу с другим
+     */
+    public static String key(String destination, RouteManager.RouteAction action, String upstream) {
+        return upstream == null ? key(destination, action) : key(destination, action) + ":" + upstream;
+    }
+    
+    /**
+     * Причина, если отказ относится к назначению (path - каким путём соединялись), иначе null
+     */
+    public static String classify(Exception e, RouteManager.RouteAction path) {
+        if (e instanceof Socks5Exception) {
+            return ((Socks5Exception) e).isDestinationFailure() ? e.getMessage() : null;
+        }
+        // Через прокси остальные ошибки - это ошибки связи с самим сервером
+        if (path == RouteManager.RouteAction.PROXY) {
+            return null;
+        }
+        if (e instanceof ConnectException) {
+            return "refused";
+        }
+        if (e instanceof NoRouteToHostException) {
+            return "unreachable";
+        }
+        if (e instanceof SocketTimeoutException) {
+            return "timeout";
+        }
+        if (e instanceof UnknownHostException) {
+            return "unknown host";
+        }
+        return null;
+    }
+    
+    /**
+     * Действующий отказ для ключа или null. Попадание учитывается.
+     */
+    public synchronized Failure check(String key) {
+        if (failures.isEmpty()) {
+            return null;
+        }
+        Failure failure = failures.get(key);
+        if (failure == null || System.currentTimeMillis() >= failure.expiresAt) {
+            return null;
+        }
+        failure.hits++;
+        trafficStats.addConnectFailureCacheHit();
+        return failure;
+    }
+    
+    /**
+     * Запоминает отказ; срок удваивается с каждым отказом подряд
+     */
+    public synchronized Failure record(String key, String reason) {
+        Failure previous = failures.get(key);
+        int consecutive = previous == null ? 1 : previous.consecutive + 1;
+        long ttl = Math.min(BASE_TTL_MS << Math.min(consecutive - 1, 16), MAX_TTL_MS);
+        Failure failure = new Failure(reason, consecutive, System.currentTimeMillis() + ttl);
+        if (previous != null) {
+            failure.hits = previous.hits;
+        }
+        failures.put(key, failure);
+        return failure;
+    }
+    
+    public synchronized void recordSuccess(String key) {
+        if (!failures.isEmpty()) {
+            failures.remove(key);
+        }
+    }
+    
+    public synchronized int size() {
+        return failures.size();
+    }
+    
+    public synchronized void clear() {
+        failures.clear();
+    }
+}
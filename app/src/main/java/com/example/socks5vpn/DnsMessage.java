@@ -0,0 +1,278 @@
+package com.example.socks5vpn;
+
+/**
+ * Разбор и правка DNS сообщений (RFC 1035) прямо в байтовом массиве
+ */
+public final class DnsMessage {
+    public static final int HEADER_SIZE = 12;
+    
+    public static final int TYPE_A = 1;
+    public static final int TYPE_SOA = 6;
+    public static final int TYPE_AAAA = 28;
+    public static final int TYPE_OPT = 41;
+    public static final int TYPE_HTTPS = 65;
+    
+    public static final int CLASS_IN = 1;
+    
+    public static final int RCODE_NOERROR = 0;
+    public static final int RCODE_SERVFAIL = 2;
+    public static final int RCODE_NXDOMAIN = 3;
+    
+    private static final int MAX_POINTER_JUMPS = 16;
+    
+    private DnsMessage() {}
+    
+    public static class Question {
+        public final String name;
+        public final int type;
+        public final int qclass;
+        // Смещение сразу после секции вопроса
+        public final int end;
+        
+        Question(String name, int type, int qclass, int end) {
+            this.name = name;
+            this.type = type;
+            this.qclass = qclass;
+            this.end = end;
+        }
+        
+        public String cacheKey() {
+            return name + "/" + type + "/" + qclass;
+        }
+    }
+    
+    public static int getId(byte[] m) {
+        return ((m[0] & 0xFF) << 8) | (m[1] & 0xFF);
+    }
+    
+    public static void setId(byte[] m, int id) {
+        m[0] = (byte) (id >> 8);
+        m[1] = (byte) id;
+    }
+    
+    public static boolean isResponse(byte[] m) {
+        return (m[2] & 0x80) != 0;
+    }
+    
+    public static boolean isTruncated(byte[] m) {
+        return (m[2] & 0x02) != 0;
+    }
+    
+    public static int getRcode(byte[] m) {
+        return m[3] & 0x0F;
+    }
+    
+    private static int getCount(byte[] m, int offset) {
+        return ((m[offset] & 0xFF) << 8) | (m[offset + 1] & 0xFF);
+    }
+    
+    public static int getAnswerCount(byte[] m) {
+        return getCount(m, 6);
+    }
+    
+    /**
+     * Разбирает единственный вопрос сообщения. Возвращает null, если сообщение
+     * не похоже на обычный запрос с одним вопросом.
+     */
+    public static Question parseQuestion(byte[] m, int length) {
+        if (length < HEADER_SIZE || getCount(m, 4) != 1) {
+            return null;
+        }
+        
+        String name = readName(m, HEADER_SIZE, length);
+        int offset = skipName(m, HEADER_SIZE, length);
+        if (name == null || offset < 0 || offset + 4 > length) {
+            return null;
+        }
+        
+        int type = getCount(m, offset);
+        int qclass = getCount(m, offset + 2);
+        return new Question(name, type, qclass, offset + 4);
+    }
+    
+    /**
+     * Возвращает смещение после имени или -1, если имя повреждено
+     */
+    public static int skipName(byte[] m, int offset, int length) {
+        while (offset < length) {
+            int len = m[offset] & 0xFF;
+            if (len == 0) {
+                return offset + 1;
+            }
+            if ((len & 0xC0) == 0xC0) {
+                return offset + 2 <= length ? offset + 2 : -1;
+            }
+            offset += len + 1;
+        }
+        return -1;
+    }
+    
+    /**
+     * Читает имя (с учётом сжатия) в нижнем регистре без завершающей точки
+     */
+    public static String readName(byte[] m, int offset, int length) {
+        StringBuilder sb = new StringBuilder(64);
+        int jumps = 0;
+        
+        while (offset < length) {
+            int len = m[offset] & 0xFF;
+            if (len == 0) {
+                return sb.toString();
+            }
+            if ((len & 0xC0) == 0xC0) {
+                if (offset + 1 >= length || ++jumps > MAX_POINTER_JUMPS) {
+                    return null;
+                }
+                offset = ((len & 0x3F) << 8) | (m[offset + 1] & 0xFF);
+                continue;
+            }
+            if (offset + 1 + len > length) {
+                return null;
+            }
+            if (sb.length() > 0) {
+                sb.append('.');
+            }
+            for (int i = 0; i < len; i++) {
+                char c = (char) (m[offset + 1 + i] & 0xFF);
+                sb.append(c >= 'A' && c <= 'Z' ? (char) (c + 32) : c);
+            }
+            offset += len + 1;
+        }
+        return null;
+    }
+    
+    /**
+     * TTL ответа для кэша. Для положительного ответа - минимальный TTL записей
+     * секции ответов, для NXDOMAIN/NODATA - по SOA из секции полномочий (RFC 2308).
+     * Возвращает -1, если TTL определить нельзя.
+     */
+    public static long cacheTtl(byte[] m, int length) {
+        Question question = parseQuestion(m, length);
+        if (question == null) {
+            return -1;
+        }
+        
+        int answers = getCount(m, 6);
+        int authority = getCount(m, 8);
+        boolean negative = answers == 0 || getRcode(m) == RCODE_NXDOMAIN;
+        
+        long minTtl = -1;
+        int offset = question.end;
+        
+        for (int i = 0; i < answers + authority; i++) {
+            offset = skipName(m, offset, length);
+            if (offset < 0 || offset + 10 > length) {
+                return -1;
+            }
+            int type = getCount(m, offset);
+            long ttl = readUInt32(m, offset + 4);
+            int rdLength = getCount(m, offset + 8);
+            int rdata = offset + 10;
+            offset = rdata + rdLength;
+            if (offset > length) {
+                return -1;
+            }
+            
+            boolean isAnswer = i < answers;
+            if (!negative && isAnswer) {
+                minTtl = minTtl < 0 ? ttl : Math.min(minTtl, ttl);
+            } else if (negative && !isAnswer && type == TYPE_SOA && rdLength >= 4) {
+                long soaMinimum = readUInt32(m, offset - 4);
+                minTtl = Math.min(ttl, soaMinimum);
+            }
+        }
+        
+        return minTtl;
+    }
+    
+    /**
+     * Уменьшает TTL всех записей на elapsed секунд (не ниже нуля)
+     */
+    public static boolean decrementTtls(byte[] m, int length, long elapsed) {
+        Question question = parseQuestion(m, length);
+        if (question == null) {
+            return false;
+        }
+        
+        int records = getCount(m, 6) + getCount(m, 8) + getCount(m, 10);
+        int offset = question.end;
+        
+        for (int i = 0; i < records; i++) {
+            offset = skipName(m, offset, length);
+            if (offset < 0 || offset + 10 > length) {
+                return false;
+            }
+            int type = getCount(m, offset);
+            int rdLength = getCount(m, offset + 8);
+            
+            // В OPT записи поле TTL - это флаги EDNS
+            if (type != TYPE_OPT) {
+                long ttl = Math.max(0, readUInt32(m, offset + 4) - elapsed);
+                writeUInt32(m, offset + 4, ttl);
+            }
+            offset += 10 + rdLength;
+        }
+        return offset <= length;
+    }
+    
+    /**
+     * Ответ без записей (NODATA при NOERROR или NXDOMAIN) на запрос: заголовок и вопрос
+     * берутся из запроса, EDNS и прочие дополнительные записи отбрасываются.
+     */
+    public static byte[] buildEmptyResponse(byte[] query, Question question, int rcode) {
+        byte[] response = new byte[question.end];
+        writeResponseHeader(response, query, question, rcode, 0);
+        return response;
+    }
+    
+    /**
+     * Ответ с одной записью A (4 байта адреса) или AAAA (16 байт)
+     */
+    public static byte[] buildAddressResponse(byte[] query, Question question, byte[] address, long ttl) {
+        byte[] response = new byte[question.end + 12 + address.length];
+        writeResponseHeader(response, query, question, RCODE_NOERROR, 1);
+        
+        int offset = question.end;
+        // Имя - указатель на вопрос сразу после заголовка
+        response[offset] = (byte) 0xC0;
+        response[offset + 1] = (byte) HEADER_SIZE;
+        int type = address.length == 4 ? TYPE_A : TYPE_AAAA;
+        response[offset + 2] = (byte) (type >> 8);
+        response[offset + 3] = (byte) type;
+        response[offset + 4] = 0;
+        response[offset + 5] = (byte) CLASS_IN;
+        writeUInt32(response, offset + 6, ttl);
+        response[offset + 10] = 0;
+        response[offset + 11] = (byte) address.length;
+        System.arraycopy(address, 0, response, offset + 12, address.length);
+        return response;
+    }
+    
+    private static void writeResponseHeader(byte[] response, byte[] query, Question question,
+                                            int rcode, int answers) {
+        System.arraycopy(query, 0, response, 0, question.end);
+        // QR=1, opcode и RD из запроса; RA=1
+        response[2] = (byte) (0x80 | (query[2] & 0x79));
+        response[3] = (byte) (0x80 | (rcode & 0x0F));
+        response[4] = 0;
+        response[5] = 1;
+        response[6] = 0;
+        response[7] = (byte) answers;
+        response[8] = 0;
+        response[9] = 0;
+        response[10] = 0;
+        response[11] = 0;
+    }
+    
+    private static long readUInt32(byte[] m, int offset) {
+        return ((long) (m[offset] & 0xFF) << 24) | ((m[offset + 1] & 0xFF) << 16) |
+               ((m[offset + 2] & 0xFF) << 8) | (m[offset + 3] & 0xFF);
+    }
+    
+    private static void writeUInt32(byte[] m, int offset, long value) {
+        m[offset] = (byte) (value >> 24);
+        m[offset + 1] = (byte) (value >> 16);
+        m[offset + 2] = (byte) (value >> 8);
+        m[offset + 3] = (byte) value;
+    }
+}
@@ -0,0 +1,469 @@
+package com.example.socks5vpn;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * DNS внутри туннеля: кэш с учётом TTL записей, негативное кэширование
+ * NXDOMAIN/NODATA, объединение одинаковых запросов "в полёте" в один
+ * запрос к upstream и упреждающее обновление популярных имён.
+ */
+public class DnsResolver implements DnsUpstream.Callback {
+    private static final String TAG = "DNS";
+    
+    private static final int MAX_ENTRIES = 4096;
+    private static final long MIN_TTL = 5;
+    private static final long MAX_TTL = 3600;
+    private static final long MAX_NEGATIVE_TTL = 300;
+    private static final long QUERY_TIMEOUT = 5000;
+    // Новый запрос клиента к имени без ответа дольше этого отправляется upstream повторно
+    private static final long RESEND_INTERVAL = 1000;
+    // Обновляем запись заранее, если до истечения осталось меньше 10% TTL
+    private static final int PREFETCH_PERCENT = 10;
+    private static final int PREFETCH_MIN_HITS = 3;
+    // Фиктивные адреса живут в пуле долго, короткий TTL лишь ограничивает кэш приложений
+    private static final long FAKE_IP_TTL = 60;
+    private static final long BLOCKED_TTL = 300;
+    private static final byte[] ZERO_IPV4 = new byte[4];
+    private static final byte[] ZERO_IPV6 = new byte[16];
+    
+    public interface Responder {
+        /**
+         * Отправить DNS ответ клиенту (from - адрес DNS сервера, которому клиент слал запрос)
+         */
+        void sendDnsResponse(InetAddress fromAddr, int fromPort, InetAddress toAddr, int toPort,
+                             byte[] data, int length);
+    }
+    
+    private final Responder responder;
+    private final TrafficStats trafficStats;
+    private final RouteManager routeManager;
+    private FakeIpPool fakeIpPool;
+    // Заблокированным именам отвечаем 0.0.0.0 вместо NXDOMAIN
+    private boolean blockWithZeroIp;
+    private DnsUpstream upstream;
+    private DnsUpstream proxyUpstream;
+    
+    private final Object lock = new Object();
+    private final LinkedHashMap<String, CacheEntry> cache = new LinkedHashMap<String, CacheEntry>(256, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+    private final Map<String, PendingQuery> pendingByKey = new HashMap<>();
+    private final Map<Integer, PendingQuery> pendingById = new HashMap<>();
+    // ID каждого запроса к upstream случаен: последовательные ID легко угадать для подмены ответа
+    private final SecureRandom random = new SecureRandom();
+    private long lastPurge;
+    
+    public DnsResolver(Responder responder) {
+        this.responder = responder;
+        this.trafficStats = TrafficStats.getInstance();
+        this.routeManager = RouteManager.getInstance();
+    }
+    
+    /**
+     * Включает fake-IP режим: имена с правилами маршрутизации получают адрес из пула
+     */
+    public void setFakeIpPool(FakeIpPool fakeIpPool) {
+        this.fakeIpPool = fakeIpPool;
+    }
+    
+    public void setBlockWithZeroIp(boolean blockWithZeroIp) {
+        this.blockWithZeroIp = blockWithZeroIp;
+    }
+    
+    public void setUpstream(DnsUpstream upstream) {
+        this.upstream = upstream;
+    }
+    
+    /**
+     * Транспорт для запросов к DNS серверам, маршрутизируемым через прокси
+     */
+    public void setProxyUpstream(DnsUpstream proxyUpstream) {
+        this.proxyUpstream = proxyUpstream;
+    }
+    
+    /**
+     * Обрабатывает DNS запрос клиента. Возвращает false, если запрос не удалось
+     * разобрать - тогда его нужно переслать как обычный UDP.
+     */
+    public boolean handleQuery(InetAddress clientAddr, int clientPort,
+                               InetAddress serverAddr, int serverPort,
+                               byte[] query, int length, boolean viaProxy) {
+        if (viaProxy && proxyUpstream == null) {
+            return false;
+        }
+        if (length < DnsMessage.HEADER_SIZE || DnsMessage.isResponse(query)) {
+            return false;
+        }
+        DnsMessage.Question question = DnsMessage.parseQuestion(query, length);
+        if (question == null) {
+            return false;
+        }
+        
+        trafficStats.addDnsQuery();
+        
+        byte[] localResponse = answerLocally(query, question);
+        if (localResponse != null) {
+            responder.sendDnsResponse(serverAddr, serverPort, clientAddr, clientPort,
+                                      localResponse, localResponse.length);
+            return true;
+        }
+        
+        String key = question.cacheKey();
+        int clientQueryId = DnsMessage.getId(query);
+        long now = System.currentTimeMillis();
+        
+        byte[] cachedResponse = null;
+        boolean prefetch = false;
+        CacheEntry entry;
+        
+        synchronized (lock) {
+            purgeStalePending(now);
+            
+            entry = cache.get(key);
+            if (entry != null) {
+                long elapsed = (now - entry.storedAt) / 1000;
+                if (elapsed >= entry.ttl) {
+                    cache.remove(key);
+                    entry = null;
+                } else {
+                    entry.hits++;
+                    cachedResponse = entry.response.clone();
+                    DnsMessage.decrementTtls(cachedResponse, cachedResponse.length, elapsed);
+                    
+                    long remaining = entry.ttl - elapsed;
+                    prefetch = entry.hits >= PREFETCH_MIN_HITS &&
+                               remaining * 100 <= entry.ttl * PREFETCH_PERCENT &&
+                               !isInFlight(key, now);
+                }
+            }
+        }
+        
+        if (cachedResponse != null) {
+            trafficStats.addDnsCacheHit(entry.upstreamLatency);
+            DnsMessage.setId(cachedResponse, clientQueryId);
+            responder.sendDnsResponse(serverAddr, serverPort, clientAddr, clientPort,
+                                      cachedResponse, cachedResponse.length);
+            
+            if (prefetch) {
+                trafficStats.addDnsPrefetch();
+                Log.d(TAG, "Prefetch " + question.name);
+                sendUpstream(key, entry.server, entry.viaProxy, query, length, null);
+            }
+            return true;
+        }
+        
+        sendUpstream(key, serverAddr, viaProxy, query, length,
+                     new Waiter(clientAddr, clientPort, serverAddr, serverPort, clientQueryId));
+        return true;
+    }
+    
+    /**
+     * Ответ без обращения к upstream или null, если запрос нужно разрешать по-настоящему
+     */
+    private byte[] answerLocally(byte[] query, DnsMessage.Question question) {
+        // Заблокированные имена не уходят upstream и не получают соединений
+        if (routeManager.matchBlockHost(question.name) != null) {
+            trafficStats.addDnsBlocked();
+            return blockedResponse(query, question);
+        }
+        
+        if (fakeIpPool == null || question.qclass != DnsMessage.CLASS_IN) {
+            return null;
+        }
+        if (question.type != DnsMessage.TYPE_A && question.type != DnsMessage.TYPE_AAAA &&
+            question.type != DnsMessage.TYPE_HTTPS) {
+            return null;
+        }
+        
+        // Имена без правил разрешаем как обычно, чтобы работали правила по IP.
+        // Именам с правилами по порту нужен фиктивный адрес и при DIRECT: само действие
+        // по имени и порту считается при SYN
+        RouteManager.RouteAction action = routeManager.getActionForHost(question.name);
+        if (action == RouteManager.RouteAction.DIRECT && !routeManager.hasPortRules(question.name)) {
+            return null;
+        }
+        
+        trafficStats.addDnsFakeIpAnswer();
+        if (question.type == DnsMessage.TYPE_A) {
+            byte[] address = fakeIpPool.allocate(question.name);
+            return DnsMessage.buildAddressResponse(query, question, address, FAKE_IP_TTL);
+        }
+        // Без AAAA и HTTPS (с его ipv4hint/ipv6hint) приложение пойдёт по фиктивному IPv4
+        return DnsMessage.buildEmptyResponse(query, question, DnsMessage.RCODE_NOERROR);
+    }
+    
+    private byte[] blockedResponse(byte[] query, DnsMessage.Question question) {
+        if (!blockWithZeroIp) {
+            return DnsMessage.buildEmptyResponse(query, question, DnsMessage.RCODE_NXDOMAIN);
+        }
+        if (question.type == DnsMessage.TYPE_A) {
+            return DnsMessage.buildAddressResponse(query, question, ZERO_IPV4, BLOCKED_TTL);
+        }
+        if (question.type == DnsMessage.TYPE_AAAA) {
+            return DnsMessage.buildAddressResponse(query, question, ZERO_IPV6, BLOCKED_TTL);
+        }
+        return DnsMessage.buildEmptyResponse(query, question, DnsMessage.RCODE_NOERROR);
+    }
+    
+    /**
+     * Отправляет запрос upstream или присоединяет waiter к уже летящему запросу.
+     * Если летящий запрос ждёт ответа дольше RESEND_INTERVAL, он отправляется
+     * повторно: клиент переспрашивает, значит, запрос или ответ, скорее всего, потерян.
+     */
+    private void sendUpstream(String key, InetAddress server, boolean viaProxy,
+                              byte[] query, int length, Waiter waiter) {
+        PendingQuery pending;
+        boolean resend = false;
+        long now = System.currentTimeMillis();
+        
+        synchronized (lock) {
+            pending = pendingByKey.get(key);
+            if (pending != null && now >= pending.deadline) {
+                // Ответа так и не было - начинаем заново, не дожидаясь очистки
+                pendingByKey.remove(key);
+                pendingById.remove(pending.upstreamId);
+                pending = null;
+            }
+            if (pending != null) {
+                if (waiter == null) {
+                    return;
+                }
+                if (!pending.hasWaiter(waiter)) {
+                    pending.waiters.add(waiter);
+                    trafficStats.addDnsCoalesced();
+                }
+                if (now - pending.lastSent < RESEND_INTERVAL) {
+                    return;
+                }
+                pending.lastSent = now;
+                pending.deadline = now + QUERY_TIMEOUT;
+                resend = true;
+            } else {
+                pending = addPending(key, server, viaProxy, query, length, now);
+                if (waiter != null) {
+                    pending.waiters.add(waiter);
+                }
+            }
+        }
+        
+        try {
+            // Повтор уходит с тем же ID: ответ на любую из попыток закроет запрос
+            (pending.viaProxy ? proxyUpstream : upstream).send(pending.server, pending.query, pending.query.length);
+        } catch (IOException e) {
+            Log.w(TAG, "Upstream send failed: " + e.getMessage());
+            if (!resend) {
+                synchronized (lock) {
+                    pendingByKey.remove(key, pending);
+                    pendingById.remove(pending.upstreamId, pending);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Новый запрос к upstream со случайным ID. Только под lock.
+     */
+    private PendingQuery addPending(String key, InetAddress server, boolean viaProxy,
+                                    byte[] query, int length, long now) {
+        int queryId;
+        do {
+            queryId = random.nextInt(0x10000);
+        } while (pendingById.containsKey(queryId));
+        
+        byte[] upstreamQuery = new byte[length];
+        System.arraycopy(query, 0, upstreamQuery, 0, length);
+        DnsMessage.setId(upstreamQuery, queryId);
+        
+        PendingQuery pending = new PendingQuery(key, queryId, server, viaProxy, upstreamQuery, now);
+        pendingByKey.put(key, pending);
+        pendingById.put(queryId, pending);
+        return pending;
+    }
+    
+    private boolean isInFlight(String key, long now) {
+        PendingQuery pending = pendingByKey.get(key);
+        return pending != null && now < pending.deadline;
+    }
+    
+    @Override
+    public void onUpstreamResponse(InetAddress server, byte[] data, int length) {
+        if (length < DnsMessage.HEADER_SIZE || !DnsMessage.isResponse(data)) {
+            return;
+        }
+        
+        DnsMessage.Question question = DnsMessage.parseQuestion(data, length);
+        if (question == null) {
+            return;
+        }
+        
+        byte[] response = new byte[length];
+        System.arraycopy(data, 0, response, 0, length);
+        
+        long now = System.currentTimeMillis();
+        PendingQuery pending;
+        
+        synchronized (lock) {
+            pending = pendingById.get(DnsMessage.getId(response));
+            // Ответ должен прийти от того сервера и на тот вопрос, иначе это чужой или поддельный пакет
+            if (pending == null || !pending.server.equals(server) || !pending.key.equals(question.cacheKey())) {
+                return;
+            }
+            pendingById.remove(pending.upstreamId);
+            pendingByKey.remove(pending.key);
+            
+            long ttl = cacheableTtl(response, length);
+            if (ttl > 0) {
+                CacheEntry entry = new CacheEntry(response.clone(), now, ttl,
+                                                  now - pending.startTime, pending.server,
+                                                  pending.viaProxy);
+                CacheEntry previous = cache.put(pending.key, entry);
+                if (previous != null) {
+                    // После prefetch популярность имени сохраняется
+                    entry.hits = previous.hits;
+                }
+            }
+        }
+        
+        for (Waiter waiter : pending.waiters) {
+            byte[] copy = pending.waiters.size() == 1 ? response : response.clone();
+            DnsMessage.setId(copy, waiter.queryId);
+            responder.sendDnsResponse(waiter.serverAddr, waiter.serverPort,
+                                      waiter.clientAddr, waiter.clientPort, copy, length);
+        }
+    }
+    
+    private long cacheableTtl(byte[] response, int length) {
+        int rcode = DnsMessage.getRcode(response);
+        if (DnsMessage.isTruncated(response) ||
+            (rcode != DnsMessage.RCODE_NOERROR && rcode != DnsMessage.RCODE_NXDOMAIN)) {
+            return 0;
+        }
+        
+        long ttl = DnsMessage.cacheTtl(response, length);
+        if (ttl < 0) {
+            return 0;
+        }
+        
+        boolean negative = rcode == DnsMessage.RCODE_NXDOMAIN || DnsMessage.getAnswerCount(response) == 0;
+        long max = negative ? MAX_NEGATIVE_TTL : MAX_TTL;
+        return Math.max(MIN_TTL, Math.min(ttl, max));
+    }
+    
+    private void purgeStalePending(long now) {
+        if (now - lastPurge < QUERY_TIMEOUT) {
+            return;
+        }
+        lastPurge = now;
+        
+        Iterator<PendingQuery> it = pendingById.values().iterator();
+        while (it.hasNext()) {
+            PendingQuery pending = it.next();
+            if (now >= pending.deadline) {
+                it.remove();
+                pendingByKey.remove(pending.key);
+            }
+        }
+    }
+    
+    public void close() {
+        if (upstream != null) {
+            upstream.close();
+        }
+        if (proxyUpstream != null) {
+            proxyUpstream.close();
+        }
+        synchronized (lock) {
+            cache.clear();
+            pendingByKey.clear();
+            pendingById.clear();
+        }
+    }
+    
+    private static class CacheEntry {
+        final byte[] response;
+        final long storedAt;
+        final long ttl;
+        // Сколько стоил запрос к upstream - столько экономит каждое попадание
+        final long upstreamLatency;
+        final InetAddress server;
+        final boolean viaProxy;
+        int hits;
+        
+        CacheEntry(byte[] response, long storedAt, long ttl, long upstreamLatency,
+                   InetAddress server, boolean viaProxy) {
+            this.response = response;
+            this.storedAt = storedAt;
+            this.ttl = ttl;
+            this.upstreamLatency = upstreamLatency;
+            this.server = server;
+            this.viaProxy = viaProxy;
+        }
+    }
+    
+    private static class PendingQuery {
+        final String key;
+        final int upstreamId;
+        final InetAddress server;
+        final boolean viaProxy;
+        // Запрос с upstream ID - для повторов
+        final byte[] query;
+        final long startTime;
+        final List<Waiter> waiters = new ArrayList<>(1);
+        // Оба поля только под lock
+        long lastSent;
+        long deadline;
+        
+        PendingQuery(String key, int upstreamId, InetAddress server, boolean viaProxy, byte[] query, long now) {
+            this.key = key;
+            this.upstreamId = upstreamId;
+            this.server = server;
+            this.viaProxy = viaProxy;
+            this.query = query;
+            this.startTime = now;
+            this.lastSent = now;
+            this.deadline = now + QUERY_TIMEOUT;
+        }
+        
+        /**
+         * Повтор того же запроса клиентом не должен получить два ответа
+         */
+        boolean hasWaiter(Waiter waiter) {
+            for (Waiter existing : waiters) {
+                if (existing.clientPort == waiter.clientPort && existing.queryId == waiter.queryId &&
+                    existing.clientAddr.equals(waiter.clientAddr)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+    
+    private static class Waiter {
+        final InetAddress clientAddr;
+        final int clientPort;
+        final InetAddress serverAddr;
+        final int serverPort;
+        final int queryId;
+        
+        Waiter(InetAddress clientAddr, int clientPort, InetAddress serverAddr, int serverPort, int queryId) {
+            this.clientAddr = clientAddr;
+            this.clientPort = clientPort;
+            this.serverAddr = serverAddr;
+            this.serverPort = serverPort;
+            this.queryId = queryId;
+        }
+    }
+}
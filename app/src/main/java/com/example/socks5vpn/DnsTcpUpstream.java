@@ -0,0 +1,316 @@
+package com.example.socks5vpn;
+
+import android.net.VpnService;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * DNS поверх TCP (RFC 7766) через SOCKS5 прокси. Держит несколько постоянных
+ * соединений к DNS серверу, запросы конвейеризуются: в одном соединении может
+ * висеть много запросов, ответы сопоставляются по ID (ID уникальны, их выдаёт DnsResolver).
+ * Запрос, который не удалось отправить, получает SERVFAIL, чтобы клиент не ждал таймаута.
+ */
+public class DnsTcpUpstream implements DnsUpstream {
+    private static final String TAG = "DNS";
+    private static final int DNS_PORT = 53;
+    private static final int CONNECT_TIMEOUT = 10000;
+    // Соединение без запросов дольше этого закрываем сами, не дожидаясь сервера
+    private static final int IDLE_TIMEOUT = 30000;
+    private static final int MAX_CONNECTIONS_PER_SERVER = 2;
+    // Второе соединение открываем, только если в первом столько запросов без ответа
+    private static final int PIPELINE_DEPTH = 64;
+    private static final int MAX_BACKLOG = 512;
+    private static final int MAX_ATTEMPTS = 2;
+    
+    private final VpnConfig config;
+    private final VpnService vpnService;
+    private final Callback callback;
+    private final LogManager logManager;
+    private final List<Connection> connections = new ArrayList<>();
+    // Запросы, ожидающие установки соединения
+    private final ArrayDeque<Query> backlog = new ArrayDeque<>();
+    private final ExecutorService connectExecutor;
+    private boolean connecting;
+    private volatile boolean closed;
+    
+    public DnsTcpUpstream(VpnConfig config, VpnService vpnService, Callback callback) {
+        this.config = config;
+        this.vpnService = vpnService;
+        this.callback = callback;
+        this.logManager = LogManager.getInstance();
+        this.connectExecutor = Executors.newSingleThreadExecutor();
+    }
+    
+    @Override
+    public void send(InetAddress server, byte[] query, int length) throws IOException {
+        if (closed) {
+            throw new IOException("DNS upstream closed");
+        }
+        
+        // Кадр DNS over TCP: двухбайтовая длина + сообщение
+        byte[] frame = new byte[length + 2];
+        frame[0] = (byte) (length >> 8);
+        frame[1] = (byte) length;
+        System.arraycopy(query, 0, frame, 2, length);
+        
+        dispatch(new Query(server, DnsMessage.getId(query), frame));
+    }
+    
+    private void dispatch(Query query) {
+        Connection connection;
+        synchronized (this) {
+            connection = pickConnection(query.server);
+            if (connection == null) {
+                if (backlog.size() < MAX_BACKLOG) {
+                    backlog.add(query);
+                    if (!connecting) {
+                        connecting = true;
+                        connectExecutor.submit(this::connectBacklog);
+                    }
+                    return;
+                }
+            }
+        }
+        
+        if (connection == null) {
+            Log.w(TAG, "DNS over TCP backlog full");
+            fail(query);
+            return;
+        }
+        connection.write(query);
+    }
+    
+    /**
+     * Ответ SERVFAIL на запрос, который не удалось доставить серверу
+     */
+    private void fail(Query query) {
+        int length = query.frame.length - 2;
+        byte[] message = new byte[length];
+        System.arraycopy(query.frame, 2, message, 0, length);
+        DnsMessage.Question question = DnsMessage.parseQuestion(message, length);
+        if (question == null) {
+            return;
+        }
+        byte[] response = DnsMessage.buildEmptyResponse(message, question, DnsMessage.RCODE_SERVFAIL);
+        callback.onUpstreamResponse(query.server, response, response.length);
+    }
+    
+    /**
+     * Наименее загруженное соединение к серверу или null, если стоит открыть новое
+     */
+    private Connection pickConnection(InetAddress server) {
+        Connection best = null;
+        int count = 0;
+        for (Connection connection : connections) {
+            if (!connection.server.equals(server)) continue;
+            count++;
+            if (best == null || connection.outstanding.size() < best.outstanding.size()) {
+                best = connection;
+            }
+        }
+        
+        if (best != null && best.outstanding.size() >= PIPELINE_DEPTH && count < MAX_CONNECTIONS_PER_SERVER) {
+            return null;
+        }
+        return best;
+    }
+    
+    private void connectBacklog() {
+        while (!closed) {
+            Query head;
+            synchronized (this) {
+                head = backlog.peek();
+                if (head == null) {
+                    connecting = false;
+                    return;
+                }
+            }
+            
+            Connection connection;
+            try {
+                connection = new Connection(head.server);
+            } catch (IOException e) {
+                logManager.w(TAG, "DNS over TCP to " + head.server.getHostAddress() + " failed: " + e.getMessage());
+                // Сервер недоступен - его запросы сразу получают SERVFAIL
+                List<Query> failed = new ArrayList<>();
+                synchronized (this) {
+                    backlog.removeIf(q -> q.server.equals(head.server) && failed.add(q));
+                }
+                for (Query query : failed) {
+                    fail(query);
+                }
+                continue;
+            }
+            
+            List<Query> ready = new ArrayList<>();
+            synchronized (this) {
+                connections.add(connection);
+                backlog.removeIf(q -> q.server.equals(head.server) && ready.add(q));
+            }
+            logManager.i(TAG, "DNS over TCP connection to " + head.server.getHostAddress() + " via proxy");
+            
+            for (Query query : ready) {
+                connection.write(query);
+            }
+        }
+    }
+    
+    private void onConnectionClosed(Connection connection) {
+        synchronized (this) {
+            if (!connections.remove(connection)) return;
+        }
+        
+        // Запросы без ответа повторяем в другом соединении
+        for (Query query : connection.outstanding.values()) {
+            if (closed) break;
+            if (++query.attempts < MAX_ATTEMPTS) {
+                dispatch(query);
+            } else {
+                fail(query);
+            }
+        }
+        connection.outstanding.clear();
+    }
+    
+    @Override
+    public void close() {
+        List<Connection> snapshot;
+        synchronized (this) {
+            closed = true;
+            backlog.clear();
+            snapshot = new ArrayList<>(connections);
+            connections.clear();
+        }
+        connectExecutor.shutdownNow();
+        for (Connection connection : snapshot) {
+            connection.close();
+        }
+    }
+    
+    private static class Query {
+        final InetAddress server;
+        final int id;
+        final byte[] frame;
+        int attempts;
+        
+        Query(InetAddress server, int id, byte[] frame) {
+            this.server = server;
+            this.id = id;
+            this.frame = frame;
+        }
+    }
+    
+    /**
+     * Соединение с двумя потоками: чтение ответов и запись запросов. Запись идёт из
+     * своей очереди, так что вызывающий (поток обработки пакетов) не ждёт сокет,
+     * а накопившиеся запросы уходят одним сегментом.
+     */
+    private class Connection implements Runnable {
+        final InetAddress server;
+        final Map<Integer, Query> outstanding = new ConcurrentHashMap<>();
+        private final Socks5Proxy proxy;
+        private final Socket socket;
+        private final OutputStream out;
+        private final LinkedBlockingQueue<Query> writeQueue = new LinkedBlockingQueue<>();
+        private final Thread writer;
+        private volatile boolean connectionClosed;
+        
+        Connection(InetAddress server) throws IOException {
+            this.server = server;
+            this.proxy = new Socks5Proxy(config, vpnService);
+            try {
+                socket = proxy.connect(server, DNS_PORT, CONNECT_TIMEOUT);
+                socket.setSoTimeout(IDLE_TIMEOUT);
+                out = new BufferedOutputStream(proxy.getOutputStream());
+            } catch (IOException e) {
+                proxy.close();
+                throw e;
+            }
+            
+            writer = new Thread(this::writeLoop, "dns-tcp-tx");
+            writer.setDaemon(true);
+            writer.start();
+            
+            Thread reader = new Thread(this, "dns-tcp-rx");
+            reader.setDaemon(true);
+            reader.start();
+        }
+        
+        void write(Query query) {
+            outstanding.put(query.id, query);
+            writeQueue.add(query);
+        }
+        
+        private void writeLoop() {
+            try {
+                while (!connectionClosed) {
+                    Query query = writeQueue.take();
+                    do {
+                        out.write(query.frame);
+                    } while ((query = writeQueue.poll()) != null);
+                    out.flush();
+                }
+            } catch (InterruptedException e) {
+                // Соединение закрыто
+            } catch (IOException e) {
+                if (!connectionClosed) {
+                    Log.w(TAG, "DNS over TCP write failed: " + e.getMessage());
+                }
+            }
+            close();
+        }
+        
+        @Override
+        public void run() {
+            byte[] buffer = new byte[65535];
+            try {
+                DataInputStream in = new DataInputStream(proxy.getInputStream());
+                while (!connectionClosed) {
+                    int length;
+                    try {
+                        length = in.readUnsignedShort();
+                    } catch (SocketTimeoutException e) {
+                        if (outstanding.isEmpty()) {
+                            break;
+                        }
+                        continue;
+                    }
+                    in.readFully(buffer, 0, length);
+                    
+                    if (length < DnsMessage.HEADER_SIZE) continue;
+                    if (outstanding.remove(DnsMessage.getId(buffer)) != null) {
+                        callback.onUpstreamResponse(server, buffer, length);
+                    }
+                }
+            } catch (IOException e) {
+                if (!connectionClosed && !closed) {
+                    Log.d(TAG, "DNS over TCP connection closed: " + e.getMessage());
+                }
+            }
+            close();
+        }
+        
+        synchronized void close() {
+            if (connectionClosed) return;
+            connectionClosed = true;
+            writer.interrupt();
+            proxy.close();
+            onConnectionClosed(this);
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package com.example.socks5vpn;
+
+import android.net.VpnService;
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.security.SecureRandom;
+import java.util.Iterator;
+
+/**
+ * DNS запросы напрямую по UDP. Запросы расходятся по нескольким защищённым сокетам
+ * со случайными портами: вместе со случайным ID это усложняет подмену ответа.
+ * Все сокеты читает один selector поток.
+ */
+public class DnsUdpUpstream implements DnsUpstream {
+    private static final String TAG = "DNS";
+    private static final int DNS_PORT = 53;
+    private static final int SOCKET_COUNT = 8;
+    private static final int RECEIVE_TIMEOUT = 1000;
+    private static final int MAX_RESPONSE = 4096;
+    
+    private final DatagramChannel[] channels = new DatagramChannel[SOCKET_COUNT];
+    private final Selector selector;
+    private final SecureRandom random = new SecureRandom();
+    private final Callback callback;
+    private volatile boolean closed;
+    
+    public DnsUdpUpstream(VpnService vpnService, Callback callback) throws IOException {
+        this.callback = callback;
+        this.selector = Selector.open();
+        try {
+            for (int i = 0; i < SOCKET_COUNT; i++) {
+                DatagramChannel channel = DatagramChannel.open();
+                channels[i] = channel;
+                if (vpnService != null) {
+                    vpnService.protect(channel.socket());
+                }
+                channel.bind(null);
+                channel.configureBlocking(false);
+                channel.register(selector, SelectionKey.OP_READ);
+            }
+        } catch (IOException e) {
+            close();
+            selector.close();
+            throw e;
+        }
+        
+        Thread receiver = new Thread(this::receiveLoop, "dns-udp-rx");
+        receiver.setDaemon(true);
+        receiver.start();
+    }
+    
+    @Override
+    public void send(InetAddress server, byte[] query, int length) throws IOException {
+        DatagramChannel channel = channels[random.nextInt(SOCKET_COUNT)];
+        if (channel.send(ByteBuffer.wrap(query, 0, length), new InetSocketAddress(server, DNS_PORT)) == 0) {
+            throw new IOException("DNS socket buffer full");
+        }
+    }
+    
+    private void receiveLoop() {
+        ByteBuffer buffer = ByteBuffer.allocate(MAX_RESPONSE);
+        
+        while (!closed) {
+            try {
+                selector.select(RECEIVE_TIMEOUT);
+                
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid() || !key.isReadable()) continue;
+                    
+                    DatagramChannel channel = (DatagramChannel) key.channel();
+                    while (true) {
+                        buffer.clear();
+                        SocketAddress from = channel.receive(buffer);
+                        if (from == null) break;
+                        
+                        // Ответ DNS сервера приходит только с порта 53
+                        InetSocketAddress source = (InetSocketAddress) from;
+                        if (source.getPort() != DNS_PORT) continue;
+                        callback.onUpstreamResponse(source.getAddress(), buffer.array(), buffer.position());
+                    }
+                }
+            } catch (IOException e) {
+                if (closed) {
+                    break;
+                }
+                Log.e(TAG, "Upstream receive error: " + e.getMessage());
+            }
+        }
+        
+        try {
+            selector.close();
+        } catch (IOException ignored) {}
+    }
+    
+    @Override
+    public void close() {
+        closed = true;
+        for (DatagramChannel channel : channels) {
+            if (channel == null) continue;
+            try {
+                channel.close();
+            } catch (IOException ignored) {}
+        }
+        selector.wakeup();
+    }
+}
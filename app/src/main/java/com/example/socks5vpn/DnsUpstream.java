@@ -0,0 +1,21 @@
+package com.example.socks5vpn;
+
+import java.io.IOException;
+import java.net.InetAddress;
+
+/**
+ * Транспорт до upstream DNS сервера. Ответы приходят в Callback асинхронно.
+ */
+public interface DnsUpstream {
+    
+    interface Callback {
+        /**
+         * Ответ сервера server в data[0..length). Массив действителен только во время вызова.
+         */
+        void onUpstreamResponse(InetAddress server, byte[] data, int length);
+    }
+    
+    void send(InetAddress server, byte[] query, int length) throws IOException;
+    
+    void close();
+}
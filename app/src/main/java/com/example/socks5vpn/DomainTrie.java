@@ -0,0 +1,418 @@
+package com.example.socks5vpn;
+
+import java.io.IOException;
+import java.net.IDN;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Неизменяемое дерево доменных правил по меткам справа налево (com -> example -> www).
+ * Поиск идёт от последней метки к первой и занимает время, пропорциональное числу
+ * меток в имени, без выделения памяти.
+ *
+ * Раскладка - только массивы: метки хранятся один раз в общем пуле байт и ищутся
+ * через открытую адресацию, переходы (узел, метка) -> узел - вторая таблица с
+ * открытой адресацией, значения узлов - два int массива. Массивы лежат в буферах,
+ * так что дерево из RuleDatabase работает прямо в отображённом файле.
+ *
+ * Правило "example.com" совпадает с самим доменом и всеми поддоменами,
+ * "*.example.com" - только с поддоменами. Из нескольких совпавших правил
+ * побеждает самое глубокое. Метки хранятся в ASCII: правила с национальными
+ * именами переводятся в punycode, как имена в DNS; пустые метки ("a..com",
+ * точка в конце) пропускаются и в правилах, и в поиске. Поиск по 500 тысячам правил стоит около микросекунды
+ * (несколько промахов кэша на метку) вместо перебора всего списка; массивы дерева
+ * занимают порядка 100 байт на правило.
+ */
+public final class DomainTrie {
+    public static final int NONE = -1;
+    
+    private static final int ROOT = 0;
+    private static final long EMPTY_EDGE = -1L;
+    
+    public static final DomainTrie EMPTY = new Builder().build();
+    
+    // Тексты правил (UTF-8) подряд, правило i - [ruleOffsets[i], ruleOffsets[i + 1])
+    private final ByteBuffer ruleBytes;
+    private final IntBuffer ruleOffsets;
+    
+    private final ByteBuffer labelPool;
+    // Метка id занимает [labelStart[id], labelStart[id + 1]) в пуле
+    private final IntBuffer labelStart;
+    // id метки + 1, 0 - пустая ячейка
+    private final IntBuffer labelSlots;
+    
+    // (родитель << 32) | метка
+    private final LongBuffer edgeKeys;
+    private final IntBuffer edgeChildren;
+    
+    // Правило для самого узла и для его поддоменов
+    private final IntBuffer selfRule;
+    private final IntBuffer subRule;
+    
+    private DomainTrie(Builder builder) {
+        int ruleSize = 0;
+        byte[][] encoded = new byte[builder.rules.size()][];
+        for (int i = 0; i < encoded.length; i++) {
+            encoded[i] = builder.rules.get(i).getBytes(StandardCharsets.UTF_8);
+            ruleSize += encoded[i].length;
+        }
+        byte[] rules = new byte[ruleSize];
+        int[] offsets = new int[encoded.length + 1];
+        for (int i = 0; i < encoded.length; i++) {
+            System.arraycopy(encoded[i], 0, rules, offsets[i], encoded[i].length);
+            offsets[i + 1] = offsets[i] + encoded[i].length;
+        }
+        ruleBytes = ByteBuffer.wrap(rules);
+        ruleOffsets = IntBuffer.wrap(offsets);
+        
+        int labelCount = builder.labels.size();
+        int poolSize = 0;
+        for (String label : builder.labels) {
+            poolSize += label.length();
+        }
+        byte[] pool = new byte[poolSize];
+        int[] starts = new int[labelCount + 1];
+        int[] slots = new int[tableSize(labelCount)];
+        
+        int offset = 0;
+        for (int id = 0; id < labelCount; id++) {
+            String label = builder.labels.get(id);
+            starts[id] = offset;
+            for (int i = 0; i < label.length(); i++) {
+                pool[offset++] = (byte) label.charAt(i);
+            }
+            
+            int mask = slots.length - 1;
+            int slot = hash(label, 0, label.length()) & mask;
+            while (slots[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = id + 1;
+        }
+        starts[labelCount] = offset;
+        labelPool = ByteBuffer.wrap(pool);
+        labelStart = IntBuffer.wrap(starts);
+        labelSlots = IntBuffer.wrap(slots);
+        
+        long[] keys = new long[tableSize(builder.edges.size())];
+        int[] children = new int[keys.length];
+        Arrays.fill(keys, EMPTY_EDGE);
+        for (Map.Entry<Long, Integer> edge : builder.edges.entrySet()) {
+            long key = edge.getKey();
+            int mask = keys.length - 1;
+            int slot = mix(key) & mask;
+            while (keys[slot] != EMPTY_EDGE) {
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = key;
+            children[slot] = edge.getValue();
+        }
+        edgeKeys = LongBuffer.wrap(keys);
+        edgeChildren = IntBuffer.wrap(children);
+        
+        selfRule = IntBuffer.wrap(Arrays.copyOf(builder.selfRule, builder.nodeCount));
+        subRule = IntBuffer.wrap(Arrays.copyOf(builder.subRule, builder.nodeCount));
+    }
+    
+    private DomainTrie(RuleDatabase.Reader reader) throws IOException {
+        ruleBytes = reader.bytes();
+        ruleOffsets = reader.ints();
+        labelPool = reader.bytes();
+        labelStart = reader.ints();
+        labelSlots = reader.ints();
+        edgeKeys = reader.longs();
+        edgeChildren = reader.ints();
+        selfRule = reader.ints();
+        subRule = reader.ints();
+        
+        // Размеры таблиц - степени двойки, иначе маски в поиске дадут выход за границы
+        if (Integer.bitCount(labelSlots.capacity()) != 1 || Integer.bitCount(edgeKeys.capacity()) != 1 ||
+            edgeChildren.capacity() != edgeKeys.capacity() || selfRule.capacity() != subRule.capacity() ||
+            selfRule.capacity() == 0 || ruleOffsets.capacity() == 0) {
+            throw new IOException("Corrupted domain trie");
+        }
+    }
+    
+    static DomainTrie read(RuleDatabase.Reader reader) throws IOException {
+        return new DomainTrie(reader);
+    }
+    
+    void write(RuleDatabase.Writer writer) throws IOException {
+        writer.bytes(ruleBytes);
+        writer.ints(ruleOffsets);
+        writer.bytes(labelPool);
+        writer.ints(labelStart);
+        writer.ints(labelSlots);
+        writer.longs(edgeKeys);
+        writer.ints(edgeChildren);
+        writer.ints(selfRule);
+        writer.ints(subRule);
+    }
+    
+    public static DomainTrie build(Collection<String> patterns) {
+        Builder builder = new Builder();
+        for (String pattern : patterns) {
+            builder.add(pattern);
+        }
+        return builder.build();
+    }
+    
+    /**
+     * Индекс совпавшего правила для имени в нижнем регистре или NONE
+     */
+    public int match(String host) {
+        int node = ROOT;
+        int result = NONE;
+        int end = host.length();
+        // Точки в начале имени не дают меток
+        int first = 0;
+        while (first < end && host.charAt(first) == '.') {
+            first++;
+        }
+        
+        while (end > first) {
+            int dot = host.lastIndexOf('.', end - 1);
+            if (dot + 1 < end) {
+                int label = findLabel(host, dot + 1, end);
+                if (label < 0) break;
+                int child = findChild(node, label);
+                if (child < 0) break;
+                node = child;
+                
+                if (dot < first) {
+                    if (selfRule.get(node) != NONE) result = selfRule.get(node);
+                    break;
+                }
+                // Остались метки слева - имя является поддоменом узла
+                if (subRule.get(node) != NONE) result = subRule.get(node);
+            }
+            end = dot;
+        }
+        return result;
+    }
+    
+    public String matchRule(String host) {
+        int rule = match(host);
+        return rule == NONE ? null : getRule(rule);
+    }
+    
+    /**
+     * Текст правила; строка создаётся при каждом вызове
+     */
+    public String getRule(int rule) {
+        int start = ruleOffsets.get(rule);
+        byte[] bytes = new byte[ruleOffsets.get(rule + 1) - start];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = ruleBytes.get(start + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+    
+    public int getRuleCount() {
+        return ruleOffsets.capacity() - 1;
+    }
+    
+    /**
+     * Оценка памяти под массивы дерева (без текстов правил)
+     */
+    public long getMemoryBytes() {
+        return labelPool.capacity() + 4L * (labelStart.capacity() + labelSlots.capacity()) +
+               12L * edgeKeys.capacity() + 4L * (selfRule.capacity() + subRule.capacity());
+    }
+    
+    private int findLabel(String host, int start, int end) {
+        if (start == end) {
+            return NONE;
+        }
+        int mask = labelSlots.capacity() - 1;
+        int slot = hash(host, start, end) & mask;
+        int length = end - start;
+        
+        while (true) {
+            int id = labelSlots.get(slot) - 1;
+            if (id < 0) {
+                return NONE;
+            }
+            int labelOffset = labelStart.get(id);
+            if (labelStart.get(id + 1) - labelOffset == length && regionEquals(host, start, labelOffset, length)) {
+                return id;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+    
+    private boolean regionEquals(String host, int start, int poolOffset, int length) {
+        for (int i = 0; i < length; i++) {
+            // Метки в пуле - ASCII; символ вне ASCII не совпадёт ни с одной
+            if (host.charAt(start + i) != (char) (labelPool.get(poolOffset + i) & 0xFF)) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    private int findChild(int parent, int label) {
+        long key = ((long) parent << 32) | label;
+        int mask = edgeKeys.capacity() - 1;
+        int slot = mix(key) & mask;
+        
+        while (true) {
+            long existing = edgeKeys.get(slot);
+            if (existing == key) {
+                return edgeChildren.get(slot);
+            }
+            if (existing == EMPTY_EDGE) {
+                return NONE;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+    
+    private static int hash(String s, int start, int end) {
+        int h = 0x811C9DC5;
+        for (int i = start; i < end; i++) {
+            h = (h ^ (s.charAt(i) & 0xFF)) * 0x01000193;
+        }
+        return h ^ (h >>> 16);
+    }
+    
+    private static int mix(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+    
+    // Заполнение не больше половины
+    private static int tableSize(int count) {
+        int size = 4;
+        while (size < count * 2) {
+            size <<= 1;
+        }
+        return size;
+    }
+    
+    public static class Builder {
+        private final List<String> rules = new ArrayList<>();
+        private final Map<String, Integer> labelIds = new HashMap<>();
+        private final List<String> labels = new ArrayList<>();
+        private final Map<Long, Integer> edges = new HashMap<>();
+        private int[] selfRule = new int[] { NONE };
+        private int[] subRule = new int[] { NONE };
+        private int nodeCount = 1;
+        
+        /**
+         * Добавляет правило ("example.com" или "*.example.com"). Пустые правила и
+         * национальные имена, которые не переводятся в punycode, пропускаются.
+         */
+        public Builder add(String pattern) {
+            String domain = pattern.trim().toLowerCase();
+            boolean wildcard = domain.startsWith("*.");
+            if (wildcard) {
+                domain = domain.substring(2);
+            }
+            domain = toAscii(domain);
+            if (domain == null || !hasLabel(domain)) {
+                return this;
+            }
+            
+            int ruleIndex = rules.size();
+            rules.add(pattern);
+            
+            int node = ROOT;
+            int end = domain.length();
+            while (end > 0) {
+                int dot = domain.lastIndexOf('.', end - 1);
+                if (dot + 1 < end) {
+                    node = child(node, internLabel(domain.substring(dot + 1, end)));
+                }
+                end = dot < 0 ? 0 : dot;
+            }
+            
+            if (!wildcard && selfRule[node] == NONE) {
+                selfRule[node] = ruleIndex;
+            }
+            if (subRule[node] == NONE) {
+                subRule[node] = ruleIndex;
+            }
+            return this;
+        }
+        
+        /**
+         * Имя с метками в punycode (как их отдаёт DNS) или null, если метка не переводится
+         */
+        private static String toAscii(String domain) {
+            int i = 0;
+            while (i < domain.length() && domain.charAt(i) < 0x80) {
+                i++;
+            }
+            if (i == domain.length()) {
+                return domain;
+            }
+            
+            // По меткам: IDN.toASCII не принимает пустые, а их пропускает add()
+            String[] labels = domain.split("\\.", -1);
+            StringBuilder ascii = new StringBuilder(domain.length() * 2);
+            for (int j = 0; j < labels.length; j++) {
+                if (j > 0) {
+                    ascii.append('.');
+                }
+                if (labels[j].isEmpty()) continue;
+                try {
+                    ascii.append(IDN.toASCII(labels[j], IDN.ALLOW_UNASSIGNED).toLowerCase());
+                } catch (IllegalArgumentException e) {
+                    return null;
+                }
+            }
+            return ascii.toString();
+        }
+        
+        private static boolean hasLabel(String domain) {
+            for (int i = 0; i < domain.length(); i++) {
+                if (domain.charAt(i) != '.') {
+                    return true;
+                }
+            }
+            return false;
+        }
+        
+        private int internLabel(String label) {
+            Integer id = labelIds.get(label);
+            if (id == null) {
+                id = labels.size();
+                labels.add(label);
+                labelIds.put(label, id);
+            }
+            return id;
+        }
+        
+        private int child(int parent, int label) {
+            long key = ((long) parent << 32) | label;
+            Integer existing = edges.get(key);
+            if (existing != null) {
+                return existing;
+            }
+            
+            if (nodeCount == selfRule.length) {
+                int capacity = selfRule.length * 2;
+                selfRule = Arrays.copyOf(selfRule, capacity);
+                subRule = Arrays.copyOf(subRule, capacity);
+            }
+            int node = nodeCount++;
+            selfRule[node] = NONE;
+            subRule[node] = NONE;
+            edges.put(key, node);
+            return node;
+        }
+        
+        public DomainTrie build() {
+            return new DomainTrie(this);
+        }
+    }
+}
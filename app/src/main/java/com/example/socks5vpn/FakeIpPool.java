@@ -0,0 +1,134 @@
+package com.example.socks5vpn;
+
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Пул фиктивных адресов 198.18.0.0/15 (RFC 2544, в интернете не маршрутизируется).
+ * DNS отвечает на A запрос адресом из пула, и по SYN на этот адрес мы узнаём имя
+ * хоста одним обращением к массиву. Действие пул не хранит: правила могли смениться
+ * с ответа на DNS запрос, поэтому его считают заново по имени при каждом SYN.
+ *
+ * Имя -> индекс хранится в HashMap, индекс -> имя в массивах; индексы связаны в
+ * двусвязный LRU список на int массивах. Когда пул заполнен, адрес самого давно
+ * не использованного имени отдаётся новому.
+ */
+public class FakeIpPool {
+    // 198.18.0.0
+    private static final int BASE = (198 << 24) | (18 << 16);
+    private static final int PREFIX_LENGTH = 15;
+    // Первый и последний адреса подсети не выдаём
+    private static final int CAPACITY = (1 << (32 - PREFIX_LENGTH)) - 2;
+    private static final int NONE = -1;
+    
+    private static FakeIpPool instance;
+    
+    private final Map<String, Integer> hostToIndex = new HashMap<>();
+    private final String[] hosts;
+    // LRU список: head - самый свежий, tail - кандидат на вытеснение
+    private final int[] prev;
+    private final int[] next;
+    private int head = NONE;
+    private int tail = NONE;
+    private int allocated;
+    
+    public static synchronized FakeIpPool getInstance() {
+        if (instance == null) {
+            instance = new FakeIpPool(CAPACITY);
+        }
+        return instance;
+    }
+    
+    FakeIpPool(int capacity) {
+        hosts = new String[capacity];
+        prev = new int[capacity];
+        next = new int[capacity];
+    }
+    
+    public static String getCidr() {
+        return "198.18.0.0/" + PREFIX_LENGTH;
+    }
+    
+    public static boolean contains(InetAddress address) {
+        byte[] addr = address.getAddress();
+        return addr.length == 4 && (toInt(addr) >>> (32 - PREFIX_LENGTH)) == (BASE >>> (32 - PREFIX_LENGTH));
+    }
+    
+    /**
+     * Выдаёт (или освежает) фиктивный адрес для имени
+     */
+    public synchronized byte[] allocate(String host) {
+        Integer existing = hostToIndex.get(host);
+        int index;
+        
+        if (existing != null) {
+            index = existing;
+            unlink(index);
+        } else if (allocated < hosts.length) {
+            index = allocated++;
+        } else {
+            // Пул заполнен - забираем адрес у самого давнего имени
+            index = tail;
+            unlink(index);
+            hostToIndex.remove(hosts[index]);
+        }
+        
+        if (existing == null) {
+            hosts[index] = host;
+            hostToIndex.put(host, index);
+        }
+        pushFront(index);
+        
+        return toBytes(BASE + 1 + index);
+    }
+    
+    /**
+     * Имя хоста для фиктивного адреса или null, если адрес не выдавался или уже переиспользован
+     */
+    public synchronized String getHost(InetAddress address) {
+        int index = indexOf(address);
+        if (index == NONE) {
+            return null;
+        }
+        unlink(index);
+        pushFront(index);
+        return hosts[index];
+    }
+    
+    public synchronized int size() {
+        return hostToIndex.size();
+    }
+    
+    private int indexOf(InetAddress address) {
+        if (!contains(address)) {
+            return NONE;
+        }
+        int index = toInt(address.getAddress()) - BASE - 1;
+        return index >= 0 && index < allocated ? index : NONE;
+    }
+    
+    private void unlink(int index) {
+        int p = prev[index];
+        int n = next[index];
+        if (p != NONE) next[p] = n; else head = n;
+        if (n != NONE) prev[n] = p; else tail = p;
+    }
+    
+    private void pushFront(int index) {
+        prev[index] = NONE;
+        next[index] = head;
+        if (head != NONE) prev[head] = index;
+        head = index;
+        if (tail == NONE) tail = index;
+    }
+    
+    private static int toInt(byte[] addr) {
+        return ((addr[0] & 0xFF) << 24) | ((addr[1] & 0xFF) << 16) |
+               ((addr[2] & 0xFF) << 8) | (addr[3] & 0xFF);
+    }
+    
+    private static byte[] toBytes(int ip) {
+        return new byte[] { (byte) (ip >> 24), (byte) (ip >> 16), (byte) (ip >> 8), (byte) ip };
+    }
+}
@@ -0,0 +1,297 @@
+package com.example.socks5vpn;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * Учёт трафика по соединениям и назначениям. У каждого TCP соединения и UDP сессии
+ * свои счётчики (Flow): их пишут только потоки этого соединения, так что общих
+ * кэш-линий на пути пакетов нет.
+ *
+ * Назначения (имя хоста, если известно, иначе IP) сводятся в таблицу ограниченного
+ * размера по алгоритму space-saving: при переполнении самое лёгкое назначение
+ * вытесняется, а новое наследует его вес как погрешность. Тяжёлые назначения так
+ * не теряются, сколько бы разных адресов ни прошло. Сводка делается не на каждом
+ * пакете, а при закрытии соединения и при запросе top-N - под одной блокировкой,
+ * которую путь пакетов не берёт.
+ */
+public class FlowStats {
+    private static final int CAPACITY = 256;
+    
+    private static FlowStats instance;
+    
+    private final Set<Flow> active = Collections.newSetFromMap(new ConcurrentHashMap<Flow, Boolean>());
+    // Только под lock
+    private final Object lock = new Object();
+    private final Map<String, Entry> table = new HashMap<>();
+    
+    public static synchronized FlowStats getInstance() {
+        if (instance == null) {
+            instance = new FlowStats();
+        }
+        return instance;
+    }
+    
+    private FlowStats() {}
+    
+    /**
+     * Счётчики одного соединения. Поток каждого направления пишет свои поля;
+     * getAndAdd нужен только на случай, когда направление пишут два потока
+     * (TCP: пакеты из TUN и сброс буфера после определения хоста).
+     */
+    public static final class Flow {
+        private static final AtomicLongFieldUpdater<Flow> BYTES_IN =
+            AtomicLongFieldUpdater.newUpdater(Flow.class, "bytesIn");
+        private static final AtomicLongFieldUpdater<Flow> BYTES_OUT =
+            AtomicLongFieldUpdater.newUpdater(Flow.class, "bytesOut");
+        private static final AtomicLongFieldUpdater<Flow> PACKETS_IN =
+            AtomicLongFieldUpdater.newUpdater(Flow.class, "packetsIn");
+        private static final AtomicLongFieldUpdater<Flow> PACKETS_OUT =
+            AtomicLongFieldUpdater.newUpdater(Flow.class, "packetsOut");
+        
+        private final int protocol;
+        private final int port;
+        private final long startedAt;
+        private volatile String destination;
+        private volatile long bytesIn;
+        private volatile long bytesOut;
+        private volatile long packetsIn;
+        private volatile long packetsOut;
+        
+        // Сколько уже сведено в таблицу назначений (только под lock FlowStats)
+        private long reportedBytesIn;
+        private long reportedBytesOut;
+        private long reportedPackets;
+        private long reportedAt;
+        private boolean reported;
+        
+        Flow(String destination, int port, int protocol) {
+            this.destination = destination;
+            this.port = port;
+            this.protocol = protocol;
+            this.startedAt = System.currentTimeMillis();
+            this.reportedAt = startedAt;
+        }
+        
+        public void addIn(long bytes) {
+            BYTES_IN.getAndAdd(this, bytes);
+            PACKETS_IN.getAndIncrement(this);
+        }
+        
+        public void addOut(long bytes) {
+            BYTES_OUT.getAndAdd(this, bytes);
+            PACKETS_OUT.getAndIncrement(this);
+        }
+        
+        /**
+         * Имя хоста стало известно (например, из SNI); дальнейший трафик идёт на него
+         */
+        public void setDestination(String destination) {
+            this.destination = destination;
+        }
+        
+        public String getDestination() { return destination; }
+        public int getPort() { return port; }
+        public int getProtocol() { return protocol; }
+        public long getStartedAt() { return startedAt; }
+        public long getBytesIn() { return bytesIn; }
+        public long getBytesOut() { return bytesOut; }
+        public long getPackets() { return packetsIn + packetsOut; }
+        
+        public long getDurationMillis() {
+            return System.currentTimeMillis() - startedAt;
+        }
+        
+        @Override
+        public String toString() {
+            return (protocol == PortRange.UDP ? "udp " : "tcp ") + destination + ":" + port + " " +
+                   TrafficStats.formatBytes(bytesIn) + " in / " + TrafficStats.formatBytes(bytesOut) + " out, " +
+                   getDurationMillis() / 1000 + " s";
+        }
+    }
+    
+    /**
+     * Итог по назначению. Байты - с момента попадания в таблицу; error - вес,
+     * унаследованный от вытесненного назначения, то есть верхняя граница того,
+     * сколько из getTotalBytes() на самом деле принадлежит другим.
+     */
+    public static final class Destination {
+        private final String name;
+        private final long bytesIn;
+        private final long bytesOut;
+        private final long packets;
+        private final int flows;
+        private final long durationMillis;
+        private final long error;
+        
+        Destination(Entry entry) {
+            this.name = entry.name;
+            this.bytesIn = entry.bytesIn;
+            this.bytesOut = entry.bytesOut;
+            this.packets = entry.packets;
+            this.flows = entry.flows;
+            this.durationMillis = entry.durationMillis;
+            this.error = entry.error;
+        }
+        
+        public String getName() { return name; }
+        public long getBytesIn() { return bytesIn; }
+        public long getBytesOut() { return bytesOut; }
+        public long getPackets() { return packets; }
+        public int getFlows() { return flows; }
+        // Суммарное время соединений с назначением
+        public long getDurationMillis() { return durationMillis; }
+        public long getError() { return error; }
+        
+        public long getTotalBytes() {
+            return bytesIn + bytesOut + error;
+        }
+        
+        @Override
+        public String toString() {
+            return name + " " + TrafficStats.formatBytes(bytesIn + bytesOut) +
+                   (error > 0 ? " (±" + TrafficStats.formatBytes(error) + ")" : "") +
+                   ", " + flows + " flows";
+        }
+    }
+    
+    private static final class Entry {
+        final String name;
+        long bytesIn;
+        long bytesOut;
+        long packets;
+        int flows;
+        long durationMillis;
+        long error;
+        
+        Entry(String name, long error) {
+            this.name = name;
+            this.error = error;
+        }
+        
+        long weight() {
+            return bytesIn + bytesOut + error;
+        }
+    }
+    
+    /**
+     * Новые счётчики соединения с назначением (имя хоста или IP)
+     */
+    public Flow open(String destination, int port, int protocol) {
+        Flow flow = new Flow(destination, port, protocol);
+        active.add(flow);
+        return flow;
+    }
+    
+    /**
+     * Соединение закрыто: остаток его трафика сводится в таблицу назначений
+     */
+    public void close(Flow flow) {
+        if (flow == null || !active.remove(flow)) {
+            return;
+        }
+        synchronized (lock) {
+            report(flow, System.currentTimeMillis());
+        }
+    }
+    
+    /**
+     * n назначений с наибольшим трафиком, включая ещё открытые соединения
+     */
+    public List<Destination> getTopDestinations(int n) {
+        List<Entry> entries;
+        synchronized (lock) {
+            long now = System.currentTimeMillis();
+            for (Flow flow : active) {
+                report(flow, now);
+            }
+            entries = new ArrayList<>(table.values());
+        }
+        Collections.sort(entries, (a, b) -> Long.compare(b.weight(), a.weight()));
+        
+        List<Destination> result = new ArrayList<>();
+        for (int i = 0; i < Math.min(n, entries.size()); i++) {
+            result.add(new Destination(entries.get(i)));
+        }
+        return result;
+    }
+    
+    /**
+     * n открытых соединений с наибольшим трафиком
+     */
+    public List<Flow> getTopFlows(int n) {
+        List<Flow> flows = new ArrayList<>(active);
+        Collections.sort(flows, (a, b) -> Long.compare(b.getBytesIn() + b.getBytesOut(),
+                                                       a.getBytesIn() + a.getBytesOut()));
+        return flows.size() > n ? new ArrayList<>(flows.subList(0, n)) : flows;
+    }
+    
+    public int getActiveFlowCount() {
+        return active.size();
+    }
+    
+    public void reset() {
+        synchronized (lock) {
+            table.clear();
+        }
+    }
+    
+    /**
+     * Сводит в таблицу прирост счётчиков соединения с прошлой сводки. Только под lock.
+     */
+    private void report(Flow flow, long now) {
+        long bytesIn = flow.bytesIn;
+        long bytesOut = flow.bytesOut;
+        long packets = flow.getPackets();
+        long deltaIn = bytesIn - flow.reportedBytesIn;
+        long deltaOut = bytesOut - flow.reportedBytesOut;
+        if (deltaIn + deltaOut == 0) {
+            // Пустые соединения не вытесняют назначения с трафиком
+            return;
+        }
+        
+        String name = flow.destination;
+        Entry entry = table.get(name);
+        if (entry == null) {
+            entry = insert(name);
+        }
+        entry.bytesIn += deltaIn;
+        entry.bytesOut += deltaOut;
+        entry.packets += packets - flow.reportedPackets;
+        entry.durationMillis += now - flow.reportedAt;
+        if (!flow.reported) {
+            entry.flows++;
+            flow.reported = true;
+        }
+        
+        flow.reportedBytesIn = bytesIn;
+        flow.reportedBytesOut = bytesOut;
+        flow.reportedPackets = packets;
+        flow.reportedAt = now;
+    }
+    
+    private Entry insert(String name) {
+        Entry entry;
+        if (table.size() < CAPACITY) {
+            entry = new Entry(name, 0);
+        } else {
+            // Space-saving: вытесняем самое лёгкое, новое наследует его вес
+            Entry min = null;
+            for (Entry e : table.values()) {
+                if (min == null || e.weight() < min.weight()) {
+                    min = e;
+                }
+            }
+            table.remove(min.name);
+            entry = new Entry(name, min.weight());
+        }
+        table.put(name, entry);
+        return entry;
+    }
+}
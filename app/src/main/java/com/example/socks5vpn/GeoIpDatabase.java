@@ -0,0 +1,421 @@
+package com.example.socks5vpn;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Страны IPv4 адресов в компактном файле: адресное пространство разбито на
+ * непересекающиеся интервалы, у каждого интервала номер страны (0 - неизвестно).
+ * Файл отображается в память; поиск - как в CidrMatcher: небольшая таблица по
+ * старшим битам адреса выбирает участок, внутри него двоичный поиск.
+ *
+ * Правила "geoip:cn" не ищут страну на каждое соединение: при компиляции правил
+ * страна разворачивается в подсети (getRanges) и попадает в обычную таблицу
+ * CidrMatcher, так что поиск по адресу не становится дороже.
+ *
+ * Исходные данные - CSV со строками "начало,конец,страна" (адреса точками или
+ * числом, как в db-ip и IP2Location LITE) или "подсеть,страна". Строки IPv6 и
+ * без двухбуквенного кода пропускаются.
+ *
+ * Формат файла: заголовок (magic, версия, время компиляции, число интервалов,
+ * число стран), затем секции RuleDatabase: начала интервалов, номера стран,
+ * коды стран по два байта, таблица участков.
+ */
+public final class GeoIpDatabase {
+    private static final int MAGIC = 0x4F454753; // "SGEO"
+    private static final int VERSION = 1;
+    private static final long ADDRESS_SPACE = 1L << 32;
+    // 4096 участков: таблица 16 КБ, остальное читается из файла по мере поиска
+    private static final int INDEX_BITS = 12;
+    private static final int INDEX_SIZE = 1 << INDEX_BITS;
+    private static final int MAX_COUNTRIES = 255;
+    
+    private final File file;
+    // Начала интервалов со сдвигом знака (ip ^ MIN_VALUE), чтобы сравнивать как unsigned
+    private final IntBuffer starts;
+    private final ByteBuffer codes;
+    private final String[] countries;
+    private final IntBuffer index;
+    private final long compiledAt;
+    private final long size;
+    
+    private GeoIpDatabase(File file, MappedByteBuffer buffer) throws IOException {
+        RuleDatabase.Reader reader = new RuleDatabase.Reader(buffer);
+        if (buffer.capacity() < 24 || reader.getInt() != MAGIC) {
+            throw new IOException("Not a GeoIP database: " + file);
+        }
+        int version = reader.getInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported GeoIP database version " + version);
+        }
+        compiledAt = reader.getLong();
+        int rangeCount = reader.getInt();
+        int countryCount = reader.getInt();
+        
+        starts = reader.ints();
+        codes = reader.bytes();
+        ByteBuffer names = reader.bytes();
+        index = reader.ints();
+        if (starts.capacity() != rangeCount || codes.capacity() != rangeCount || rangeCount == 0 ||
+            names.capacity() != countryCount * 2 || index.capacity() != INDEX_SIZE + 1) {
+            throw new IOException("Corrupted GeoIP database: " + file);
+        }
+        
+        countries = new String[countryCount + 1];
+        for (int i = 0; i < countryCount; i++) {
+            countries[i + 1] = new String(new char[] { (char) names.get(i * 2), (char) names.get(i * 2 + 1) });
+        }
+        this.file = file;
+        this.size = buffer.capacity();
+    }
+    
+    /**
+     * Отображает скомпилированный файл в память
+     */
+    public static GeoIpDatabase open(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            return new GeoIpDatabase(file, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } catch (RuntimeException e) {
+            throw new IOException("Corrupted GeoIP database: " + file, e);
+        } finally {
+            raf.close();
+        }
+    }
+    
+    /**
+     * Компилирует CSV в файл. Пишет во временный файл и переименовывает, так что
+     * открытое отображение старого файла не портится.
+     *
+     * @return число интервалов
+     */
+    public static int compile(InputStream input, File output) throws IOException {
+        long[] keys = new long[1 << 16];
+        long[] ends = new long[1 << 16];
+        byte[] rangeCodes = new byte[1 << 16];
+        int n = 0;
+        Map<String, Integer> countryIds = new LinkedHashMap<>();
+        
+        BufferedReader reader = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8), 1 << 16);
+        String line;
+        long[] range = new long[2];
+        while ((line = reader.readLine()) != null) {
+            String country = parseLine(line, range);
+            if (country == null) continue;
+            
+            Integer id = countryIds.get(country);
+            if (id == null) {
+                if (countryIds.size() == MAX_COUNTRIES) {
+                    throw new IOException("Too many country codes");
+                }
+                id = countryIds.size() + 1;
+                countryIds.put(country, id);
+            }
+            if (n == keys.length) {
+                keys = Arrays.copyOf(keys, n * 2);
+                ends = Arrays.copyOf(ends, n * 2);
+                rangeCodes = Arrays.copyOf(rangeCodes, n * 2);
+            }
+            // Начало в старших битах, номер строки в младших; сдвиг знака - сортировка как unsigned
+            keys[n] = ((range[0] << 32) | n) ^ Long.MIN_VALUE;
+            ends[n] = range[1];
+            rangeCodes[n] = (byte) (int) id;
+            n++;
+        }
+        if (n == 0) {
+            throw new IOException("No IPv4 ranges with country codes found");
+        }
+        Arrays.sort(keys, 0, n);
+        
+        // Интервалы без пропусков: промежутки между строками - страна 0.
+        // Перекрытия обрезаются: адрес принадлежит первой строке с меньшим началом.
+        int[] starts = new int[n * 2 + 1];
+        byte[] codes = new byte[n * 2 + 1];
+        int count = 0;
+        long cursor = 0;
+        for (int i = 0; i < n; i++) {
+            long key = keys[i] ^ Long.MIN_VALUE;
+            int row = (int) (key & 0xFFFFFFFFL);
+            long start = Math.max(key >>> 32, cursor);
+            long end = ends[row] + 1;
+            if (end <= start) continue;
+            if (start > cursor) {
+                count = append(starts, codes, count, cursor, (byte) 0);
+            }
+            count = append(starts, codes, count, start, rangeCodes[row]);
+            cursor = end;
+        }
+        if (cursor < ADDRESS_SPACE) {
+            count = append(starts, codes, count, cursor, (byte) 0);
+        }
+        
+        int[] index = new int[INDEX_SIZE + 1];
+        int pos = 0;
+        for (int h = 0; h < INDEX_SIZE; h++) {
+            int key = (h << (32 - INDEX_BITS)) ^ Integer.MIN_VALUE;
+            while (pos + 1 < count && starts[pos + 1] <= key) {
+                pos++;
+            }
+            index[h] = pos;
+        }
+        index[INDEX_SIZE] = count - 1;
+        
+        byte[] names = new byte[countryIds.size() * 2];
+        int i = 0;
+        for (String country : countryIds.keySet()) {
+            names[i++] = (byte) country.charAt(0);
+            names[i++] = (byte) country.charAt(1);
+        }
+        
+        File temp = new File(output.getPath() + ".tmp");
+        RuleDatabase.Writer writer = new RuleDatabase.Writer(new FileOutputStream(temp).getChannel());
+        try {
+            writer.putInt(MAGIC);
+            writer.putInt(VERSION);
+            writer.putLong(System.currentTimeMillis());
+            writer.putInt(count);
+            writer.putInt(countryIds.size());
+            writer.ints(IntBuffer.wrap(starts, 0, count).slice());
+            writer.bytes(ByteBuffer.wrap(codes, 0, count).slice());
+            writer.bytes(ByteBuffer.wrap(names));
+            writer.ints(IntBuffer.wrap(index));
+        } finally {
+            writer.close();
+        }
+        if (!temp.renameTo(output)) {
+            temp.delete();
+            throw new IOException("Cannot replace " + output);
+        }
+        return count;
+    }
+    
+    /**
+     * Добавляет интервал, сливая его с предыдущим той же страны
+     */
+    private static int append(int[] starts, byte[] codes, int count, long start, byte code) {
+        if (count > 0 && codes[count - 1] == code) {
+            return count;
+        }
+        starts[count] = (int) start ^ Integer.MIN_VALUE;
+        codes[count] = code;
+        return count + 1;
+    }
+    
+    /**
+     * Разбирает строку CSV в [начало, конец] (включительно); возвращает код страны
+     * в нижнем регистре или null, если строка не подходит
+     */
+    static String parseLine(String line, long[] range) {
+        String trimmed = line.trim();
+        if (trimmed.isEmpty() || trimmed.charAt(0) == '#') {
+            return null;
+        }
+        String[] fields = trimmed.split(",");
+        if (fields.length < 2) {
+            return null;
+        }
+        for (int i = 0; i < fields.length; i++) {
+            fields[i] = unquote(fields[i]);
+        }
+        
+        int countryField;
+        int slash = fields[0].indexOf('/');
+        if (slash >= 0) {
+            long network = parseAddress(fields[0].substring(0, slash));
+            int prefix;
+            try {
+                prefix = Integer.parseInt(fields[0].substring(slash + 1));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            if (network < 0 || prefix < 0 || prefix > 32) {
+                return null;
+            }
+            long blockSize = 1L << (32 - prefix);
+            range[0] = network & ~(blockSize - 1);
+            range[1] = range[0] + blockSize - 1;
+            countryField = 1;
+        } else {
+            if (fields.length < 3) {
+                return null;
+            }
+            range[0] = parseAddress(fields[0]);
+            range[1] = parseAddress(fields[1]);
+            if (range[0] < 0 || range[1] < range[0]) {
+                return null;
+            }
+            countryField = 2;
+        }
+        
+        String country = fields[countryField].toLowerCase();
+        // "-" и "zz" в базах означают "не назначено"
+        return isCountryCode(country) && !country.equals("zz") ? country : null;
+    }
+    
+    private static String unquote(String field) {
+        String s = field.trim();
+        if (s.length() >= 2 && s.charAt(0) == '"' && s.charAt(s.length() - 1) == '"') {
+            s = s.substring(1, s.length() - 1);
+        }
+        return s;
+    }
+    
+    /**
+     * IPv4 точками или числом; -1, если это не IPv4 адрес
+     */
+    private static long parseAddress(String s) {
+        if (s.isEmpty() || s.indexOf(':') >= 0) {
+            return -1;
+        }
+        if (s.indexOf('.') < 0) {
+            try {
+                long value = Long.parseLong(s);
+                return value >= 0 && value < ADDRESS_SPACE ? value : -1;
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+        String[] octets = s.split("\\.", -1);
+        if (octets.length != 4) {
+            return -1;
+        }
+        long result = 0;
+        for (String octet : octets) {
+            if (octet.isEmpty() || octet.length() > 3) {
+                return -1;
+            }
+            int value = 0;
+            for (int i = 0; i < octet.length(); i++) {
+                char c = octet.charAt(i);
+                if (c < '0' || c > '9') {
+                    return -1;
+                }
+                value = value * 10 + (c - '0');
+            }
+            if (value > 255) {
+                return -1;
+            }
+            result = (result << 8) | value;
+        }
+        return result;
+    }
+    
+    /**
+     * Две латинские буквы в нижнем регистре
+     */
+    public static boolean isCountryCode(String code) {
+        return code.length() == 2 &&
+               code.charAt(0) >= 'a' && code.charAt(0) <= 'z' &&
+               code.charAt(1) >= 'a' && code.charAt(1) <= 'z';
+    }
+    
+    private int find(int ip) {
+        int h = ip >>> (32 - INDEX_BITS);
+        int low = index.get(h);
+        int high = index.get(h + 1);
+        int key = ip ^ Integer.MIN_VALUE;
+        
+        // Последний интервал с началом <= key
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (starts.get(mid) <= key) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+    
+    /**
+     * Код страны адреса в нижнем регистре; null, если страна неизвестна
+     */
+    public String lookup(int ip) {
+        return countries[codes.get(find(ip)) & 0xFF];
+    }
+    
+    /**
+     * Подсети страны (или всех известных стран, кроме неё, если negate) с уточнением
+     * ports. Пустой список, если страны в базе нет.
+     */
+    public List<RouteManager.IpRange> getRanges(String country, boolean negate, PortRange ports) {
+        int id = 0;
+        for (int i = 1; i < countries.length; i++) {
+            if (countries[i].equals(country)) {
+                id = i;
+                break;
+            }
+        }
+        if (id == 0 && !negate) {
+            return new ArrayList<>();
+        }
+        
+        int n = starts.capacity();
+        long[] intervals = new long[n * 2];
+        int count = 0;
+        for (int i = 0; i < n; i++) {
+            int code = codes.get(i) & 0xFF;
+            // Неизвестные адреса (локальные сети, не назначенные) не входят ни в одну страну
+            boolean selected = negate ? code != 0 && code != id : code == id;
+            if (!selected) continue;
+            long start = (starts.get(i) ^ Integer.MIN_VALUE) & 0xFFFFFFFFL;
+            long end = i + 1 < n ? (starts.get(i + 1) ^ Integer.MIN_VALUE) & 0xFFFFFFFFL : ADDRESS_SPACE;
+            if (count > 0 && intervals[count - 1] == start) {
+                intervals[count - 1] = end;
+            } else {
+                intervals[count++] = start;
+                intervals[count++] = end;
+            }
+        }
+        return RouteManager.IpRange.fromIntervals(intervals, count, ports);
+    }
+    
+    public boolean hasCountry(String country) {
+        for (int i = 1; i < countries.length; i++) {
+            if (countries[i].equals(country)) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    public int getRangeCount() {
+        return starts.capacity();
+    }
+    
+    public int getCountryCount() {
+        return countries.length - 1;
+    }
+    
+    public long getCompiledAt() {
+        return compiledAt;
+    }
+    
+    public long getSize() {
+        return size;
+    }
+    
+    public File getFile() {
+        return file;
+    }
+    
+    public String getSummary() {
+        return getCountryCount() + " countries, " + getRangeCount() + " ranges, " + TrafficStats.formatBytes(size);
+    }
+}
@@ -0,0 +1,207 @@
+package com.example.socks5vpn;
+
+/**
+ * Извлекает имя хоста из первых байт TCP потока клиента: SNI из TLS ClientHello
+ * или заголовок Host из HTTP запроса. Разбор идёт прямо по буферу без копирования,
+ * строка создаётся только для найденного имени.
+ */
+public class HostSniffer {
+    public static final int FOUND = 0;
+    // В потоке нет имени (не TLS/HTTP или нет SNI) - ждать дальше бессмысленно
+    public static final int NOT_FOUND = 1;
+    // Имя может быть дальше - нужны ещё данные
+    public static final int INCOMPLETE = 2;
+    
+    // Дальше этого размера не ищем
+    public static final int MAX_SNIFF_BYTES = 16384;
+    
+    private static final int TLS_HANDSHAKE = 0x16;
+    private static final int TLS_CLIENT_HELLO = 0x01;
+    private static final int TLS_EXT_SERVER_NAME = 0x0000;
+    private static final int MAX_HOST_LENGTH = 253;
+    
+    private static final byte[][] HTTP_METHODS = {
+        ascii("GET "), ascii("POST "), ascii("HEAD "), ascii("PUT "), ascii("DELETE "),
+        ascii("OPTIONS "), ascii("PATCH "), ascii("CONNECT ")
+    };
+    private static final byte[] HOST_HEADER = ascii("\r\nhost:");
+    
+    private int hostOffset;
+    private int hostLength;
+    
+    /**
+     * Разбирает data[0..length). Возвращает FOUND, NOT_FOUND или INCOMPLETE.
+     */
+    public int parse(byte[] data, int length) {
+        if (length <= 0) {
+            return INCOMPLETE;
+        }
+        if ((data[0] & 0xFF) == TLS_HANDSHAKE) {
+            return parseTls(data, length);
+        }
+        return parseHttp(data, length);
+    }
+    
+    /**
+     * Найденное имя в нижнем регистре без порта
+     */
+    public String getHost(byte[] data) {
+        char[] chars = new char[hostLength];
+        for (int i = 0; i < hostLength; i++) {
+            int c = data[hostOffset + i] & 0xFF;
+            chars[i] = (char) (c >= 'A' && c <= 'Z' ? c + 32 : c);
+        }
+        return new String(chars);
+    }
+    
+    private int parseTls(byte[] data, int length) {
+        if (length < 5) {
+            return INCOMPLETE;
+        }
+        // Запись: тип(1) версия(2) длина(2)
+        if (data[1] != 0x03) {
+            return NOT_FOUND;
+        }
+        int end = Math.min(length, 5 + readUInt16(data, 3));
+        
+        // Handshake: тип(1) длина(3), ClientHello: версия(2) random(32)
+        int pos = 5;
+        if (pos + 4 > end) return incomplete(end, length);
+        if ((data[pos] & 0xFF) != TLS_CLIENT_HELLO) {
+            return NOT_FOUND;
+        }
+        pos += 4 + 2 + 32;
+        
+        // session_id
+        if (pos + 1 > end) return incomplete(end, length);
+        pos += 1 + (data[pos] & 0xFF);
+        // cipher_suites
+        if (pos + 2 > end) return incomplete(end, length);
+        pos += 2 + readUInt16(data, pos);
+        // compression_methods
+        if (pos + 1 > end) return incomplete(end, length);
+        pos += 1 + (data[pos] & 0xFF);
+        
+        if (pos + 2 > end) return incomplete(end, length);
+        int extensionsEnd = pos + 2 + readUInt16(data, pos);
+        pos += 2;
+        
+        while (pos + 4 <= Math.min(end, extensionsEnd)) {
+            int type = readUInt16(data, pos);
+            int extLength = readUInt16(data, pos + 2);
+            pos += 4;
+            
+            if (type == TLS_EXT_SERVER_NAME) {
+                // server_name_list: длина(2), тип имени(1), длина имени(2), имя
+                if (pos + 5 > end) return incomplete(end, length);
+                int nameLength = readUInt16(data, pos + 3);
+                if (data[pos + 2] != 0 || nameLength == 0 || nameLength > MAX_HOST_LENGTH) {
+                    return NOT_FOUND;
+                }
+                if (pos + 5 + nameLength > end) return incomplete(end, length);
+                return found(data, pos + 5, nameLength);
+            }
+            pos += extLength;
+        }
+        
+        return pos < extensionsEnd ? incomplete(end, length) : NOT_FOUND;
+    }
+    
+    /**
+     * Данных не хватило: если запись обрезана концом буфера - ждём ещё
+     */
+    private int incomplete(int end, int length) {
+        return end == length && length < MAX_SNIFF_BYTES ? INCOMPLETE : NOT_FOUND;
+    }
+    
+    private int parseHttp(byte[] data, int length) {
+        boolean method = false;
+        for (byte[] prefix : HTTP_METHODS) {
+            int match = matchPrefix(data, length, prefix);
+            if (match == FOUND) {
+                method = true;
+                break;
+            }
+            if (match == INCOMPLETE) {
+                return INCOMPLETE;
+            }
+        }
+        if (!method) {
+            return NOT_FOUND;
+        }
+        
+        int limit = Math.min(length, MAX_SNIFF_BYTES);
+        for (int i = 0; i + HOST_HEADER.length <= limit; i++) {
+            if (data[i] == '\r' && i + 3 < limit && data[i + 1] == '\n' &&
+                data[i + 2] == '\r' && data[i + 3] == '\n') {
+                // Конец заголовков, Host не встретился
+                return NOT_FOUND;
+            }
+            if (!regionMatchesIgnoreCase(data, i, HOST_HEADER)) {
+                continue;
+            }
+            
+            int start = i + HOST_HEADER.length;
+            while (start < limit && (data[start] == ' ' || data[start] == '\t')) start++;
+            int end = start;
+            while (end < limit && data[end] != '\r' && data[end] != ':') end++;
+            if (end == limit) {
+                return length < MAX_SNIFF_BYTES ? INCOMPLETE : NOT_FOUND;
+            }
+            while (end > start && (data[end - 1] == ' ' || data[end - 1] == '\t')) end--;
+            if (end == start || end - start > MAX_HOST_LENGTH || data[start] == '[') {
+                return NOT_FOUND;
+            }
+            return found(data, start, end - start);
+        }
+        
+        return length < MAX_SNIFF_BYTES ? INCOMPLETE : NOT_FOUND;
+    }
+    
+    private int found(byte[] data, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            int c = data[i] & 0xFF;
+            boolean valid = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') ||
+                            (c >= '0' && c <= '9') || c == '-' || c == '.' || c == '_';
+            if (!valid) {
+                return NOT_FOUND;
+            }
+        }
+        hostOffset = offset;
+        hostLength = length;
+        return FOUND;
+    }
+    
+    private static int matchPrefix(byte[] data, int length, byte[] prefix) {
+        int n = Math.min(length, prefix.length);
+        for (int i = 0; i < n; i++) {
+            if (data[i] != prefix[i]) {
+                return NOT_FOUND;
+            }
+        }
+        return length >= prefix.length ? FOUND : INCOMPLETE;
+    }
+    
+    private static boolean regionMatchesIgnoreCase(byte[] data, int offset, byte[] lowerCase) {
+        for (int i = 0; i < lowerCase.length; i++) {
+            int c = data[offset + i];
+            if (c >= 'A' && c <= 'Z') c += 32;
+            if (c != lowerCase[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    private static int readUInt16(byte[] data, int offset) {
+        return ((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF);
+    }
+    
+    private static byte[] ascii(String s) {
+        byte[] bytes = new byte[s.length()];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) s.charAt(i);
+        }
+        return bytes;
+    }
+}
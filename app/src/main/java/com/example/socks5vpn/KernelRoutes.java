@@ -0,0 +1,105 @@
+package com.example.socks5vpn;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Маршруты VPN интерфейса для режима, в котором DIRECT трафик не заходит в туннель:
+ * в ядро уходят только подсети с правилами PROXY/BLOCK и обязательные адреса
+ * (DNS серверы, пул fake-IP), остальное приложения отправляют мимо нас.
+ *
+ * Набор считается двумя способами: включаемые подсети (addRoute) и исключаемые из
+ * 0.0.0.0/0 (excludeRoute, API 33+). Соседние интервалы сливаются до разбиения, и
+ * каждый интервал режется на наибольшие выровненные блоки, так что подсетей
+ * получается минимум для данного набора интервалов.
+ */
+public final class KernelRoutes {
+    private static final long ADDRESS_SPACE = 1L << 32;
+    
+    private final List<RouteManager.IpRange> included;
+    private final List<RouteManager.IpRange> excluded;
+    
+    private KernelRoutes(List<RouteManager.IpRange> included, List<RouteManager.IpRange> excluded) {
+        this.included = included;
+        this.excluded = excluded;
+    }
+    
+    /**
+     * Маршруты для таблицы правил и подсетей, которые должны идти в туннель всегда
+     */
+    public static KernelRoutes compute(CidrMatcher matcher, List<RouteManager.IpRange> required) {
+        long[] tunnel = matcher.getTunnelIntervals();
+        
+        long[] pairs = Arrays.copyOf(tunnel, tunnel.length + required.size() * 2);
+        int n = tunnel.length;
+        for (RouteManager.IpRange range : required) {
+            if (!range.isIpv4()) continue;
+            long size = 1L << (32 - range.getPrefixLength());
+            long start = (range.getNetworkInt() & 0xFFFFFFFFL) & ~(size - 1);
+            pairs[n++] = start;
+            pairs[n++] = start + size;
+        }
+        long[] merged = merge(pairs, n);
+        
+        // Дополнение: промежутки между интервалами туннеля
+        long[] gaps = new long[merged.length + 2];
+        int count = 0;
+        long position = 0;
+        for (int i = 0; i < merged.length; i += 2) {
+            if (merged[i] > position) {
+                gaps[count++] = position;
+                gaps[count++] = merged[i];
+            }
+            position = merged[i + 1];
+        }
+        if (position < ADDRESS_SPACE) {
+            gaps[count++] = position;
+            gaps[count++] = ADDRESS_SPACE;
+        }
+        
+        return new KernelRoutes(RouteManager.IpRange.fromIntervals(merged, merged.length, PortRange.ANY),
+                                RouteManager.IpRange.fromIntervals(gaps, count, PortRange.ANY));
+    }
+    
+    /**
+     * Сортирует пары [start, end) по началу и сливает пересекающиеся и соседние
+     */
+    private static long[] merge(long[] pairs, int length) {
+        // Начало и последний адрес в одном long, чтобы отсортировать пары одним sort;
+        // знаковый бит инвертирован, чтобы сравнение шло как unsigned
+        long[] packed = new long[length / 2];
+        for (int i = 0; i < packed.length; i++) {
+            packed[i] = ((pairs[i * 2] << 32) | (pairs[i * 2 + 1] - 1)) ^ Long.MIN_VALUE;
+        }
+        Arrays.sort(packed);
+        
+        long[] result = new long[length];
+        int count = 0;
+        for (long p : packed) {
+            p ^= Long.MIN_VALUE;
+            long start = p >>> 32;
+            long end = (p & 0xFFFFFFFFL) + 1;
+            if (count > 0 && start <= result[count - 1]) {
+                result[count - 1] = Math.max(result[count - 1], end);
+            } else {
+                result[count++] = start;
+                result[count++] = end;
+            }
+        }
+        return Arrays.copyOf(result, count);
+    }
+    
+    /**
+     * Подсети для addRoute
+     */
+    public List<RouteManager.IpRange> getIncluded() {
+        return included;
+    }
+    
+    /**
+     * Подсети для excludeRoute поверх 0.0.0.0/0
+     */
+    public List<RouteManager.IpRange> getExcluded() {
+        return excluded;
+    }
+}
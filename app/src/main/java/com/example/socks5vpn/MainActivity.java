@@ -34,6 +34,15 @@ public class MainActivity extends AppCompatActivity implements Socks5VpnService.
     private TextInputEditText username;
     private TextInputEditText password;
     private SwitchMaterial blockUdpSwitch;
+    private SwitchMaterial muxSwitch;
+    private SwitchMaterial dnsOverProxySwitch;
+    private SwitchMaterial fakeIpSwitch;
+    private SwitchMaterial sniffSwitch;
+    private TextInputEditText sniffTimeoutEdit;
+    private TextInputEditText sniffPortsEdit;
+    private SwitchMaterial dnsBlockZeroIpSwitch;
+    private SwitchMaterial kernelRoutingSwitch;
+    private TextInputEditText upstreamsEdit;
     private MaterialButton connectButton;
     private MaterialButton routesButton;
     private ImageView statusIcon;
@@ -91,6 +100,15 @@ public class MainActivity extends AppCompatActivity implements Socks5VpnService.
         username = findViewById(R.id.username);
         password = findViewById(R.id.password);
         blockUdpSwitch = findViewById(R.id.blockUdpSwitch);
+        muxSwitch = findViewById(R.id.muxSwitch);
+        dnsOverProxySwitch = findViewById(R.id.dnsOverProxySwitch);
+        fakeIpSwitch = findViewById(R.id.fakeIpSwitch);
+        sniffSwitch = findViewById(R.id.sniffSwitch);
+        sniffTimeoutEdit = findViewById(R.id.sniffTimeoutEdit);
+        sniffPortsEdit = findViewById(R.id.sniffPortsEdit);
+        dnsBlockZeroIpSwitch = findViewById(R.id.dnsBlockZeroIpSwitch);
+        kernelRoutingSwitch = findViewById(R.id.kernelRoutingSwitch);
+        upstreamsEdit = findViewById(R.id.upstreamsEdit);
         connectButton = findViewById(R.id.connectButton);
         routesButton = findViewById(R.id.routesButton);
         statusIcon = findViewById(R.id.statusIcon);
@@ -135,6 +153,15 @@ public class MainActivity extends AppCompatActivity implements Socks5VpnService.
         username.setText(config.getUsername());
         password.setText(config.getPassword());
         blockUdpSwitch.setChecked(config.isBlockUdp());
+        muxSwitch.setChecked(config.isMuxEnabled());
+        dnsOverProxySwitch.setChecked(config.isDnsOverProxy());
+        fakeIpSwitch.setChecked(config.isFakeIpEnabled());
+        sniffSwitch.setChecked(config.isSniffEnabled());
+        sniffTimeoutEdit.setText(String.valueOf(config.getSniffTimeout()));
+        sniffPortsEdit.setText(VpnConfig.formatPorts(config.getSniffPorts()));
+        dnsBlockZeroIpSwitch.setChecked(config.isDnsBlockZeroIp());
+        kernelRoutingSwitch.setChecked(config.isKernelRouting());
+        upstreamsEdit.setText(UpstreamProfile.formatAll(config.getUpstreams()));
     }
     
     private void saveConfig() {
@@ -146,12 +173,29 @@ public class MainActivity extends AppCompatActivity implements Socks5VpnService.
             
             VpnConfig config = new VpnConfig(server, port, user, pass);
             config.setBlockUdp(blockUdpSwitch.isChecked());
+            config.setMuxEnabled(muxSwitch.isChecked());
+            config.setDnsOverProxy(dnsOverProxySwitch.isChecked());
+            config.setFakeIpEnabled(fakeIpSwitch.isChecked());
+            config.setSniffEnabled(sniffSwitch.isChecked());
+            config.setSniffTimeout(getSniffTimeout());
+            config.setSniffPorts(VpnConfig.parsePorts(sniffPortsEdit.getText().toString()));
+            config.setDnsBlockZeroIp(dnsBlockZeroIpSwitch.isChecked());
+            config.setKernelRouting(kernelRoutingSwitch.isChecked());
+            config.setUpstreams(UpstreamProfile.parseAll(upstreamsEdit.getText().toString()));
             config.save(this);
         } catch (Exception e) {
             Toast.makeText(this, "Invalid configuration", Toast.LENGTH_SHORT).show();
         }
     }
     
+    private int getSniffTimeout() {
+        try {
+            return Integer.parseInt(sniffTimeoutEdit.getText().toString().trim());
+        } catch (NumberFormatException e) {
+            return VpnConfig.DEFAULT_SNIFF_TIMEOUT;
+        }
+    }
+    
     private void requestNotificationPermission() {
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
             if (ContextCompat.checkSelfPermission(this, Manifest.permission.POST_NOTIFICATIONS) 
@@ -205,6 +249,15 @@ public class MainActivity extends AppCompatActivity implements Socks5VpnService.
         intent.putExtra(Socks5VpnService.EXTRA_USERNAME, username.getText().toString().trim());
         intent.putExtra(Socks5VpnService.EXTRA_PASSWORD, password.getText().toString());
         intent.putExtra(Socks5VpnService.EXTRA_BLOCK_UDP, blockUdpSwitch.isChecked());
+        intent.putExtra(Socks5VpnService.EXTRA_MUX, muxSwitch.isChecked());
+        intent.putExtra(Socks5VpnService.EXTRA_DNS_OVER_PROXY, dnsOverProxySwitch.isChecked());
+        intent.putExtra(Socks5VpnService.EXTRA_FAKE_IP, fakeIpSwitch.isChecked());
+        intent.putExtra(Socks5VpnService.EXTRA_SNIFF, sniffSwitch.isChecked());
+        intent.putExtra(Socks5VpnService.EXTRA_SNIFF_TIMEOUT, getSniffTimeout());
+        intent.putExtra(Socks5VpnService.EXTRA_SNIFF_PORTS, sniffPortsEdit.getText().toString());
+        intent.putExtra(Socks5VpnService.EXTRA_DNS_BLOCK_ZERO_IP, dnsBlockZeroIpSwitch.isChecked());
+        intent.putExtra(Socks5VpnService.EXTRA_KERNEL_ROUTING, kernelRoutingSwitch.isChecked());
+        intent.putExtra(Socks5VpnService.EXTRA_UPSTREAMS, upstreamsEdit.getText().toString());
         
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
             startForegroundService(intent);
@@ -257,7 +310,16 @@ public class MainActivity extends AppCompatActivity implements Socks5VpnService.
         serverPort.setEnabled(enabled);
         username.setEnabled(enabled);
         password.setEnabled(enabled);
+        upstreamsEdit.setEnabled(enabled);
         blockUdpSwitch.setEnabled(enabled);
+        muxSwitch.setEnabled(enabled);
+        dnsOverProxySwitch.setEnabled(enabled);
+        fakeIpSwitch.setEnabled(enabled);
+        sniffSwitch.setEnabled(enabled);
+        sniffTimeoutEdit.setEnabled(enabled);
+        sniffPortsEdit.setEnabled(enabled);
+        dnsBlockZeroIpSwitch.setEnabled(enabled);
+        kernelRoutingSwitch.setEnabled(enabled);
         routesButton.setEnabled(enabled);
     }
     
@@ -0,0 +1,107 @@
+package com.example.socks5vpn;
+
+import android.net.VpnService;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Небольшой пул долгоживущих mux сессий к одному upstream серверу.
+ * Новый поток открывается в наименее загруженной живой сессии.
+ */
+public class MuxPool {
+    private static final String TAG = "Mux";
+    private static final int MAX_SESSIONS = 2;
+    // Пока в сессиях меньше потоков, новую сессию не открываем
+    private static final int STREAMS_PER_SESSION = 64;
+    private static final long KEEPALIVE_CHECK_INTERVAL = 10000;
+    
+    private final VpnConfig config;
+    private final VpnService vpnService;
+    private final List<MuxSession> sessions = new ArrayList<>();
+    private final LogManager logManager;
+    private final Thread keepAliveThread;
+    private volatile boolean closed;
+    
+    public MuxPool(VpnConfig config, VpnService vpnService) {
+        this.config = config;
+        this.vpnService = vpnService;
+        this.logManager = LogManager.getInstance();
+        
+        keepAliveThread = new Thread(this::keepAliveLoop, "mux-keepalive");
+        keepAliveThread.setDaemon(true);
+        keepAliveThread.start();
+    }
+    
+    public MuxSession.Stream openStream(int timeout) throws IOException {
+        MuxSession session = pickSession(timeout);
+        return session.openStream();
+    }
+    
+    private synchronized MuxSession pickSession(int timeout) throws IOException {
+        if (closed) {
+            throw new IOException("Mux pool closed");
+        }
+        
+        MuxSession best = null;
+        for (int i = sessions.size() - 1; i >= 0; i--) {
+            MuxSession session = sessions.get(i);
+            if (!session.isUsable()) {
+                sessions.remove(i);
+                session.close();
+                continue;
+            }
+            if (best == null || session.getStreamCount() < best.getStreamCount()) {
+                best = session;
+            }
+        }
+        
+        if (best == null || (best.getStreamCount() >= STREAMS_PER_SESSION && sessions.size() < MAX_SESSIONS)) {
+            try {
+                MuxSession session = new MuxSession(config, vpnService, timeout);
+                sessions.add(session);
+                logManager.i(TAG, "Mux session opened (" + sessions.size() + " active)");
+                return session;
+            } catch (IOException e) {
+                if (best == null) {
+                    throw e;
+                }
+                logManager.w(TAG, "Extra mux session failed: " + e.getMessage());
+            }
+        }
+        
+        return best;
+    }
+    
+    private void keepAliveLoop() {
+        while (!closed) {
+            try {
+                Thread.sleep(KEEPALIVE_CHECK_INTERVAL);
+            } catch (InterruptedException e) {
+                break;
+            }
+            
+            List<MuxSession> snapshot;
+            synchronized (this) {
+                snapshot = new ArrayList<>(sessions);
+            }
+            for (MuxSession session : snapshot) {
+                session.keepAlive();
+            }
+        }
+    }
+    
+    public void close() {
+        List<MuxSession> snapshot;
+        synchronized (this) {
+            closed = true;
+            snapshot = new ArrayList<>(sessions);
+            sessions.clear();
+        }
+        keepAliveThread.interrupt();
+        for (MuxSession session : snapshot) {
+            session.close();
+        }
+    }
+}
@@ -0,0 +1,473 @@
+package com.example.socks5vpn;
+
+import android.net.VpnService;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Клиент мультиплексирования по протоколу yamux: много логических потоков
+ * поверх одного TCP соединения к upstream серверу. Каждый поток на стороне
+ * сервера обслуживается как отдельный SOCKS5 клиент.
+ *
+ * Формат кадра (big-endian): Version(1) Type(1) Flags(2) StreamID(4) Length(4)
+ */
+public class MuxSession {
+    private static final String TAG = "Mux";
+    
+    private static final byte PROTO_VERSION = 0;
+    
+    private static final byte TYPE_DATA = 0;
+    private static final byte TYPE_WINDOW_UPDATE = 1;
+    private static final byte TYPE_PING = 2;
+    private static final byte TYPE_GO_AWAY = 3;
+    
+    private static final int FLAG_SYN = 0x1;
+    private static final int FLAG_ACK = 0x2;
+    private static final int FLAG_FIN = 0x4;
+    private static final int FLAG_RST = 0x8;
+    
+    private static final int HEADER_SIZE = 12;
+    // Начальное окно потока по спецификации yamux
+    private static final int INITIAL_WINDOW = 256 * 1024;
+    private static final int MAX_FRAME_PAYLOAD = 16384;
+    private static final long KEEPALIVE_INTERVAL = 30000;
+    
+    private final Socket socket;
+    private final DataInputStream input;
+    private final OutputStream output;
+    private final Map<Integer, Stream> streams = new ConcurrentHashMap<>();
+    private final Object writeLock = new Object();
+    private final LogManager logManager;
+    
+    private int nextStreamId = 1; // Клиент использует нечётные ID
+    private volatile boolean closed;
+    private volatile boolean goAway;
+    private volatile long lastPingSent;
+    private volatile long lastPongReceived;
+    
+    public MuxSession(VpnConfig config, VpnService vpnService, int timeout) throws IOException {
+        this.logManager = LogManager.getInstance();
+        
+        socket = new Socket();
+        socket.setTcpNoDelay(true);
+        if (vpnService != null) {
+            vpnService.protect(socket);
+        }
+        socket.connect(new InetSocketAddress(config.getServerAddress(), config.getServerPort()), timeout);
+        
+        input = new DataInputStream(socket.getInputStream());
+        output = new BufferedOutputStream(socket.getOutputStream(), MAX_FRAME_PAYLOAD + HEADER_SIZE);
+        lastPongReceived = System.currentTimeMillis();
+        
+        Thread reader = new Thread(this::readLoop, "mux-reader");
+        reader.setDaemon(true);
+        reader.start();
+        
+        Log.d(TAG, "Mux session connected to " + config.getServerAddress() + ":" + config.getServerPort());
+    }
+    
+    /**
+     * Открывает новый поток. Сетевых round-trip не требуется: SYN уходит
+     * вместе с первыми данными, писать можно сразу.
+     */
+    public Stream openStream() throws IOException {
+        int id;
+        synchronized (this) {
+            if (!isUsable()) {
+                throw new IOException("Mux session is closed");
+            }
+            id = nextStreamId;
+            nextStreamId += 2;
+        }
+        
+        Stream stream = new Stream(id);
+        streams.put(id, stream);
+        return stream;
+    }
+    
+    public boolean isUsable() {
+        return !closed && !goAway && nextStreamId > 0;
+    }
+    
+    public int getStreamCount() {
+        return streams.size();
+    }
+    
+    /**
+     * Отправляет keepalive ping. Возвращает false, если сервер не ответил на предыдущий.
+     */
+    public boolean keepAlive() {
+        long now = System.currentTimeMillis();
+        if (lastPingSent > lastPongReceived && now - lastPingSent > KEEPALIVE_INTERVAL) {
+            logManager.w(TAG, "Mux keepalive timeout");
+            close();
+            return false;
+        }
+        if (now - lastPingSent >= KEEPALIVE_INTERVAL) {
+            lastPingSent = now;
+            try {
+                writeFrame(TYPE_PING, FLAG_SYN, 0, (int) now, null, 0, 0);
+            } catch (IOException e) {
+                close();
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    private void writeFrame(byte type, int flags, int streamId, int length,
+                            byte[] data, int offset, int dataLength) throws IOException {
+        byte[] header = new byte[HEADER_SIZE];
+        header[0] = PROTO_VERSION;
+        header[1] = type;
+        header[2] = (byte) (flags >> 8);
+        header[3] = (byte) flags;
+        header[4] = (byte) (streamId >> 24);
+        header[5] = (byte) (streamId >> 16);
+        header[6] = (byte) (streamId >> 8);
+        header[7] = (byte) streamId;
+        header[8] = (byte) (length >> 24);
+        header[9] = (byte) (length >> 16);
+        header[10] = (byte) (length >> 8);
+        header[11] = (byte) length;
+        
+        synchronized (writeLock) {
+            if (closed) {
+                throw new IOException("Mux session is closed");
+            }
+            try {
+                output.write(header);
+                if (dataLength > 0) {
+                    output.write(data, offset, dataLength);
+                }
+                output.flush();
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+        }
+    }
+    
+    private void readLoop() {
+        byte[] header = new byte[HEADER_SIZE];
+        
+        try {
+            while (!closed) {
+                input.readFully(header);
+                
+                if (header[0] != PROTO_VERSION) {
+                    throw new IOException("Invalid yamux version: " + header[0]);
+                }
+                
+                byte type = header[1];
+                int flags = ((header[2] & 0xFF) << 8) | (header[3] & 0xFF);
+                int streamId = readInt(header, 4);
+                int length = readInt(header, 8);
+                
+                switch (type) {
+                    case TYPE_DATA:
+                        handleData(streamId, flags, length);
+                        break;
+                    case TYPE_WINDOW_UPDATE:
+                        handleWindowUpdate(streamId, flags, length);
+                        break;
+                    case TYPE_PING:
+                        if ((flags & FLAG_SYN) != 0) {
+                            writeFrame(TYPE_PING, FLAG_ACK, 0, length, null, 0, 0);
+                        } else {
+                            lastPongReceived = System.currentTimeMillis();
+                        }
+                        break;
+                    case TYPE_GO_AWAY:
+                        logManager.w(TAG, "Mux server sent GoAway (code " + length + ")");
+                        goAway = true;
+                        break;
+                    default:
+                        throw new IOException("Invalid yamux frame type: " + type);
+                }
+            }
+        } catch (IOException e) {
+            if (!closed) {
+                logManager.w(TAG, "Mux session lost: " + e.getMessage());
+            }
+        } finally {
+            close();
+        }
+    }
+    
+    private void handleData(int streamId, int flags, int length) throws IOException {
+        if (length < 0 || length > INITIAL_WINDOW) {
+            throw new IOException("Invalid yamux data length: " + length);
+        }
+        
+        byte[] data = null;
+        if (length > 0) {
+            data = new byte[length];
+            input.readFully(data);
+        }
+        
+        Stream stream = streams.get(streamId);
+        if (stream == null) {
+            // Поток уже закрыт локально - данные отбрасываем
+            return;
+        }
+        
+        if (data != null) {
+            stream.onData(data);
+        }
+        stream.onFlags(flags);
+    }
+    
+    private void handleWindowUpdate(int streamId, int flags, int delta) throws IOException {
+        Stream stream = streams.get(streamId);
+        if (stream == null) {
+            if ((flags & FLAG_SYN) != 0) {
+                // Входящие потоки от сервера не поддерживаем
+                writeFrame(TYPE_WINDOW_UPDATE, FLAG_RST, streamId, 0, null, 0, 0);
+            }
+            return;
+        }
+        
+        stream.addSendWindow(delta);
+        stream.onFlags(flags);
+    }
+    
+    private static int readInt(byte[] data, int offset) {
+        return ((data[offset] & 0xFF) << 24) | ((data[offset + 1] & 0xFF) << 16) |
+               ((data[offset + 2] & 0xFF) << 8) | (data[offset + 3] & 0xFF);
+    }
+    
+    public void close() {
+        if (closed) return;
+        closed = true;
+        
+        for (Stream stream : streams.values()) {
+            stream.onReset();
+        }
+        streams.clear();
+        
+        try {
+            socket.close();
+        } catch (IOException ignored) {}
+        
+        Log.d(TAG, "Mux session closed");
+    }
+    
+    /**
+     * Логический поток внутри сессии с собственным окном управления потоком
+     */
+    public class Stream {
+        private final int id;
+        private final ArrayDeque<byte[]> receiveQueue = new ArrayDeque<>();
+        private final StreamInputStream inputStream = new StreamInputStream();
+        private final StreamOutputStream outputStream = new StreamOutputStream();
+        
+        private byte[] currentChunk;
+        private int currentOffset;
+        // Сколько прочитано приложением с последнего WindowUpdate
+        private int consumedSinceUpdate;
+        private long sendWindow = INITIAL_WINDOW;
+        private boolean synSent;
+        private boolean remoteClosed;
+        private boolean reset;
+        private volatile boolean localClosed;
+        private volatile int readTimeout;
+        
+        Stream(int id) {
+            this.id = id;
+        }
+        
+        public InputStream getInputStream() {
+            return inputStream;
+        }
+        
+        public OutputStream getOutputStream() {
+            return outputStream;
+        }
+        
+        /**
+         * Таймаут чтения как у Socket.setSoTimeout(): 0 - ждать бесконечно
+         */
+        public void setReadTimeout(int timeout) {
+            this.readTimeout = timeout;
+        }
+        
+        synchronized void onData(byte[] data) {
+            receiveQueue.add(data);
+            notifyAll();
+        }
+        
+        synchronized void onFlags(int flags) {
+            if ((flags & FLAG_RST) != 0) {
+                reset = true;
+                streams.remove(id);
+                notifyAll();
+            } else if ((flags & FLAG_FIN) != 0) {
+                remoteClosed = true;
+                notifyAll();
+            }
+        }
+        
+        synchronized void onReset() {
+            reset = true;
+            notifyAll();
+        }
+        
+        synchronized void addSendWindow(int delta) {
+            sendWindow += delta & 0xFFFFFFFFL;
+            notifyAll();
+        }
+        
+        private int read(byte[] buffer, int offset, int length) throws IOException {
+            int windowUpdate = 0;
+            int read;
+            
+            synchronized (this) {
+                long deadline = readTimeout > 0 ? System.currentTimeMillis() + readTimeout : 0;
+                
+                while (currentChunk == null) {
+                    currentChunk = receiveQueue.poll();
+                    currentOffset = 0;
+                    if (currentChunk != null) break;
+                    
+                    if (reset || localClosed) {
+                        throw new IOException("Mux stream reset");
+                    }
+                    if (remoteClosed) {
+                        return -1;
+                    }
+                    waitUntil(deadline);
+                }
+                
+                read = Math.min(length, currentChunk.length - currentOffset);
+                System.arraycopy(currentChunk, currentOffset, buffer, offset, read);
+                currentOffset += read;
+                if (currentOffset == currentChunk.length) {
+                    currentChunk = null;
+                }
+                
+                // Возвращаем окно, когда приложение прочитало половину
+                consumedSinceUpdate += read;
+                if (consumedSinceUpdate >= INITIAL_WINDOW / 2) {
+                    windowUpdate = consumedSinceUpdate;
+                    consumedSinceUpdate = 0;
+                }
+            }
+            
+            if (windowUpdate > 0 && !remoteClosed) {
+                writeFrame(TYPE_WINDOW_UPDATE, 0, id, windowUpdate, null, 0, 0);
+            }
+            return read;
+        }
+        
+        private void write(byte[] data, int offset, int length) throws IOException {
+            while (length > 0) {
+                int chunk;
+                int flags = 0;
+                
+                synchronized (this) {
+                    while (sendWindow == 0 && !reset && !localClosed) {
+                        waitUntil(0);
+                    }
+                    if (reset || localClosed) {
+                        throw new IOException("Mux stream closed");
+                    }
+                    chunk = (int) Math.min(Math.min(length, MAX_FRAME_PAYLOAD), sendWindow);
+                    sendWindow -= chunk;
+                    if (!synSent) {
+                        synSent = true;
+                        flags = FLAG_SYN;
+                    }
+                }
+                
+                writeFrame(TYPE_DATA, flags, id, chunk, data, offset, chunk);
+                offset += chunk;
+                length -= chunk;
+            }
+        }
+        
+        private void waitUntil(long deadline) throws IOException {
+            try {
+                if (deadline == 0) {
+                    wait();
+                } else {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        throw new SocketTimeoutException("Mux stream read timed out");
+                    }
+                    wait(remaining);
+                }
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted");
+            }
+        }
+        
+        public void close() {
+            boolean sendFin;
+            synchronized (this) {
+                if (localClosed) return;
+                localClosed = true;
+                // Поток без SYN сервер ещё не видел - ничего отправлять не нужно
+                sendFin = synSent && !reset;
+                notifyAll();
+            }
+            
+            streams.remove(id);
+            
+            if (sendFin) {
+                try {
+                    writeFrame(TYPE_WINDOW_UPDATE, FLAG_FIN, id, 0, null, 0, 0);
+                } catch (IOException ignored) {}
+            }
+        }
+        
+        private class StreamInputStream extends InputStream {
+            @Override
+            public int read() throws IOException {
+                byte[] single = new byte[1];
+                int n = Stream.this.read(single, 0, 1);
+                return n == -1 ? -1 : single[0] & 0xFF;
+            }
+            
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                if (length == 0) return 0;
+                return Stream.this.read(buffer, offset, length);
+            }
+            
+            @Override
+            public void close() {
+                Stream.this.close();
+            }
+        }
+        
+        private class StreamOutputStream extends OutputStream {
+            @Override
+            public void write(int b) throws IOException {
+                Stream.this.write(new byte[] { (byte) b }, 0, 1);
+            }
+            
+            @Override
+            public void write(byte[] buffer, int offset, int length) throws IOException {
+                Stream.this.write(buffer, offset, length);
+            }
+            
+            @Override
+            public void close() {
+                Stream.this.close();
+            }
+        }
+    }
+}
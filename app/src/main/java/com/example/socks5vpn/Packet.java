@@ -167,6 +167,9 @@ public class Packet {
         public int headerChecksum;
         public InetAddress sourceAddress;
         public InetAddress destinationAddress;
+        // Те же адреса в виде int для поиска по правилам без объектов
+        public int sourceIp;
+        public int destinationIp;
         
         public enum TransportProtocol {
             TCP(6),
@@ -208,6 +211,9 @@ public class Packet {
             this.protocol = TransportProtocol.fromNumber(buffer.get() & 0xFF);
             this.headerChecksum = buffer.getShort() & 0xFFFF;
             
+            this.sourceIp = buffer.getInt(buffer.position());
+            this.destinationIp = buffer.getInt(buffer.position() + 4);
+            
             byte[] addressBytes = new byte[4];
             buffer.get(addressBytes);
             this.sourceAddress = InetAddress.getByAddress(addressBytes);
@@ -0,0 +1,208 @@
+package com.example.socks5vpn;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Уточнение правила по порту назначения и протоколу. В списках правил пишется
+ * после цели через пробел: "8.8.8.0/24 443 tcp", "example.com 8000-8080",
+ * "0.0.0.0/0 443 udp". Без уточнения правило действует на все порты и протоколы.
+ *
+ * Слово "auto" в правиле прокси делает его правилом AUTO: путь (напрямую или через
+ * прокси) выбирается гонкой соединений, см. AutoRouteCache.
+ *
+ * Слово "proxy:имя" в правиле прокси выбирает сервер из UpstreamProfile вместо
+ * основного: "netflix.com proxy:us", "1.2.0.0/16 443 tcp proxy:asia".
+ */
+public final class PortRange {
+    // Биты протоколов
+    public static final int TCP = 1;
+    public static final int UDP = 2;
+    
+    public static final PortRange ANY = new PortRange(0, 65535, TCP | UDP, false, null);
+    
+    private static final String UPSTREAM_PREFIX = "proxy:";
+    
+    private final int low;
+    private final int high;
+    private final int protocols;
+    private final boolean auto;
+    // Имя UpstreamProfile (null - основной сервер)
+    private final String upstream;
+    
+    public PortRange(int low, int high, int protocols, boolean auto, String upstream) {
+        this.low = low;
+        this.high = high;
+        this.protocols = protocols;
+        this.auto = auto;
+        this.upstream = upstream;
+    }
+    
+    static PortRange read(RuleDatabase.Reader reader) throws IOException {
+        int low = reader.getInt();
+        int high = reader.getInt();
+        int protocols = reader.getInt();
+        boolean auto = reader.getInt() != 0;
+        ByteBuffer name = reader.bytes();
+        if (low < 0 || high > 65535 || low > high || protocols == 0 || (protocols & ~(TCP | UDP)) != 0) {
+            throw new IOException("Corrupted port range");
+        }
+        String upstream = null;
+        if (name.capacity() > 0) {
+            byte[] bytes = new byte[name.capacity()];
+            name.get(bytes);
+            upstream = new String(bytes, StandardCharsets.UTF_8);
+        }
+        return new PortRange(low, high, protocols, auto, upstream);
+    }
+    
+    void write(RuleDatabase.Writer writer) throws IOException {
+        writer.putInt(low);
+        writer.putInt(high);
+        writer.putInt(protocols);
+        writer.putInt(auto ? 1 : 0);
+        byte[] name = upstream == null ? new byte[0] : upstream.getBytes(StandardCharsets.UTF_8);
+        writer.bytes(ByteBuffer.wrap(name));
+    }
+    
+    /**
+     * Уточнение из слов правила начиная с from; null, если слова не разбираются
+     */
+    public static PortRange parse(String[] tokens, int from) {
+        int low = 0;
+        int high = 65535;
+        int protocols = 0;
+        boolean ports = false;
+        boolean auto = false;
+        String upstream = null;
+        
+        for (int i = from; i < tokens.length; i++) {
+            String token = tokens[i].toLowerCase();
+            if (token.equals("tcp")) {
+                protocols |= TCP;
+            } else if (token.equals("udp")) {
+                protocols |= UDP;
+            } else if (token.equals("auto")) {
+                auto = true;
+            } else if (token.startsWith(UPSTREAM_PREFIX) && upstream == null) {
+                upstream = token.substring(UPSTREAM_PREFIX.length());
+                if (!UpstreamProfile.isValidName(upstream)) {
+                    return null;
+                }
+            } else if (!ports && !token.isEmpty()) {
+                int dash = token.indexOf('-');
+                try {
+                    low = Integer.parseInt(dash < 0 ? token : token.substring(0, dash));
+                    high = dash < 0 ? low : Integer.parseInt(token.substring(dash + 1));
+                } catch (NumberFormatException e) {
+                    return null;
+                }
+                if (low < 0 || high > 65535 || low > high) {
+                    return null;
+                }
+                ports = true;
+            } else {
+                return null;
+            }
+        }
+        
+        PortRange range = new PortRange(low, high, protocols == 0 ? TCP | UDP : protocols, auto, upstream);
+        return range.equals(ANY) ? ANY : range;
+    }
+    
+    /**
+     * Уточнение правила из списка хостов; ANY, если его нет, null, если оно неверное
+     */
+    public static PortRange of(String rule) {
+        String[] tokens = rule.trim().split("\\s+");
+        return parse(tokens, 1);
+    }
+    
+    /**
+     * Цель правила без уточнения
+     */
+    public static String target(String rule) {
+        String trimmed = rule.trim();
+        int space = indexOfSpace(trimmed);
+        return space < 0 ? trimmed : trimmed.substring(0, space);
+    }
+    
+    /**
+     * Есть ли в правиле уточнение (без разбора)
+     */
+    public static boolean isQualified(String rule) {
+        return indexOfSpace(rule.trim()) >= 0;
+    }
+    
+    private static int indexOfSpace(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            if (Character.isWhitespace(s.charAt(i))) {
+                return i;
+            }
+        }
+        return -1;
+    }
+    
+    public boolean matches(int port, int protocol) {
+        return (protocols & protocol) != 0 && port >= low && port <= high;
+    }
+    
+    public boolean isAny() {
+        return this == ANY;
+    }
+    
+    public boolean isAuto() {
+        return auto;
+    }
+    
+    public String getUpstream() {
+        return upstream;
+    }
+    
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof PortRange)) {
+            return false;
+        }
+        PortRange other = (PortRange) o;
+        return low == other.low && high == other.high && protocols == other.protocols && auto == other.auto
+            && (upstream == null ? other.upstream == null : upstream.equals(other.upstream));
+    }
+    
+    @Override
+    public int hashCode() {
+        int hash = ((low * 31 + high) * 4 + protocols) * 2 + (auto ? 1 : 0);
+        return upstream == null ? hash : hash * 31 + upstream.hashCode();
+    }
+    
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        if (low != 0 || high != 65535) {
+            sb.append(low);
+            if (high != low) {
+                sb.append('-').append(high);
+            }
+        }
+        if (protocols != (TCP | UDP)) {
+            if (sb.length() > 0) {
+                sb.append(' ');
+            }
+            sb.append(protocols == TCP ? "tcp" : "udp");
+        }
+        if (auto) {
+            if (sb.length() > 0) {
+                sb.append(' ');
+            }
+            sb.append("auto");
+        }
+        if (upstream != null) {
+            if (sb.length() > 0) {
+                sb.append(' ');
+            }
+            sb.append(UPSTREAM_PREFIX).append(upstream);
+        }
+        return sb.toString();
+    }
+}
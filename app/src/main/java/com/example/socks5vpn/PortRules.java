@@ -0,0 +1,381 @@
+package com.example.socks5vpn;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Правила с уточнением по порту и протоколу (см. PortRange). Правила группируются
+ * по уточнению, и у каждой группы свои скомпилированные CidrMatcher и DomainTrie,
+ * так что поиск - один проход по нескольким группам с проверкой порта и обычным
+ * поиском в подходящих. Различных уточнений в списках обычно единицы.
+ *
+ * Правила без уточнения сюда не попадают: они остаются в общих таблицах, и пока
+ * уточнённых правил нет, поиск обходится одной проверкой isEmpty().
+ *
+ * Правила "proxy:имя" для поиска действия - обычные PROXY; какой сервер выбрать,
+ * отдельно отвечают upstreamForIp() / upstreamForHost(), и только для соединений,
+ * которые уже идут через прокси.
+ */
+public final class PortRules {
+    public static final PortRules EMPTY = new PortRules(new Group[0], 0);
+    
+    private static final RouteManager.RouteAction DIRECT = RouteManager.RouteAction.DIRECT;
+    private static final RouteManager.RouteAction PROXY = RouteManager.RouteAction.PROXY;
+    private static final RouteManager.RouteAction BLOCK = RouteManager.RouteAction.BLOCK;
+    private static final RouteManager.RouteAction AUTO = RouteManager.RouteAction.AUTO;
+    
+    // До стольких подсетей в группе проверяем перебором: таблица CidrMatcher
+    // (256 КБ индекса) на каждую группу стоила бы промахов кэша
+    private static final int SCAN_LIMIT = 16;
+    
+    private static final class Group {
+        final PortRange ports;
+        // Либо таблица, либо маски для перебора (сначала BLOCK, потом PROXY)
+        final CidrMatcher ips;
+        final IntBuffer networks;
+        final IntBuffer masks;
+        final int blockCount;
+        final DomainTrie proxyHosts;
+        final DomainTrie blockHosts;
+        // Подсети группы для маршрутов в ядре: записи [длина адреса][префикс][адрес]
+        final ByteBuffer ranges;
+        
+        Group(PortRange ports, List<RouteManager.IpRange> proxyRanges, List<RouteManager.IpRange> blockRanges,
+              DomainTrie proxyHosts, DomainTrie blockHosts) {
+            this.ports = ports;
+            this.proxyHosts = proxyHosts;
+            this.blockHosts = blockHosts;
+            
+            List<RouteManager.IpRange> ranges = new ArrayList<>();
+            for (RouteManager.IpRange range : blockRanges) {
+                if (range.isIpv4()) ranges.add(range);
+            }
+            int blocks = ranges.size();
+            for (RouteManager.IpRange range : proxyRanges) {
+                if (range.isIpv4()) ranges.add(range);
+            }
+            
+            if (ranges.size() > SCAN_LIMIT) {
+                ips = CidrMatcher.build(proxyRanges, blockRanges);
+                networks = IntBuffer.allocate(0);
+                masks = IntBuffer.allocate(0);
+                blockCount = 0;
+            } else {
+                ips = null;
+                int[] networks = new int[ranges.size()];
+                int[] masks = new int[ranges.size()];
+                for (int i = 0; i < networks.length; i++) {
+                    int prefix = ranges.get(i).getPrefixLength();
+                    masks[i] = prefix == 0 ? 0 : -1 << (32 - prefix);
+                    networks[i] = ranges.get(i).getNetworkInt() & masks[i];
+                }
+                this.networks = IntBuffer.wrap(networks);
+                this.masks = IntBuffer.wrap(masks);
+                blockCount = blocks;
+            }
+            this.ranges = encode(proxyRanges, blockRanges);
+        }
+        
+        private Group(RuleDatabase.Reader reader) throws IOException {
+            ports = PortRange.read(reader);
+            blockCount = reader.getInt();
+            boolean table = reader.getInt() != 0;
+            if (table) {
+                ips = CidrMatcher.read(reader);
+                networks = IntBuffer.allocate(0);
+                masks = IntBuffer.allocate(0);
+            } else {
+                ips = null;
+                networks = reader.ints();
+                masks = reader.ints();
+            }
+            proxyHosts = DomainTrie.read(reader);
+            blockHosts = DomainTrie.read(reader);
+            ranges = reader.bytes();
+            if (masks.capacity() != networks.capacity() || blockCount < 0 || blockCount > networks.capacity()) {
+                throw new IOException("Corrupted port rule group");
+            }
+        }
+        
+        void write(RuleDatabase.Writer writer) throws IOException {
+            ports.write(writer);
+            writer.putInt(blockCount);
+            writer.putInt(ips != null ? 1 : 0);
+            if (ips != null) {
+                ips.write(writer);
+            } else {
+                writer.ints(networks);
+                writer.ints(masks);
+            }
+            proxyHosts.write(writer);
+            blockHosts.write(writer);
+            writer.bytes(ranges);
+        }
+        
+        RouteManager.RouteAction lookup(int ip) {
+            if (ips != null) {
+                return ips.lookup(ip);
+            }
+            for (int i = 0; i < networks.capacity(); i++) {
+                if ((ip & masks.get(i)) == networks.get(i)) {
+                    // BLOCK идут первыми: первое совпадение и есть итог
+                    return i < blockCount ? BLOCK : PROXY;
+                }
+            }
+            return DIRECT;
+        }
+        
+        void addRanges(List<RouteManager.IpRange> result) {
+            int position = 0;
+            while (position < ranges.capacity()) {
+                byte[] network = new byte[ranges.get(position)];
+                int prefix = ranges.get(position + 1);
+                for (int i = 0; i < network.length; i++) {
+                    network[i] = ranges.get(position + 2 + i);
+                }
+                result.add(new RouteManager.IpRange(network, prefix, ports));
+                position += 2 + network.length;
+            }
+        }
+        
+        private static ByteBuffer encode(List<RouteManager.IpRange> proxyRanges,
+                                         List<RouteManager.IpRange> blockRanges) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            for (List<RouteManager.IpRange> list : Arrays.asList(proxyRanges, blockRanges)) {
+                for (RouteManager.IpRange range : list) {
+                    byte[] network = range.getNetwork();
+                    out.write(network.length);
+                    out.write(range.getPrefixLength());
+                    out.write(network, 0, network.length);
+                }
+            }
+            return ByteBuffer.wrap(out.toByteArray());
+        }
+    }
+    
+    private final Group[] groups;
+    private final int ruleCount;
+    private final boolean hasUpstreams;
+    
+    private PortRules(Group[] groups, int ruleCount) {
+        this.groups = groups;
+        this.ruleCount = ruleCount;
+        boolean upstreams = false;
+        for (Group group : groups) {
+            upstreams |= group.ports.getUpstream() != null;
+        }
+        this.hasUpstreams = upstreams;
+    }
+    
+    /**
+     * Собирает уточнённые правила из списков; правила без уточнения и неверные пропускаются.
+     * Подсети (в том числе развёрнутые из "geoip:") идут в группы как есть, без разбора строк.
+     */
+    public static PortRules build(Collection<String> proxyHosts, Collection<String> blockHosts,
+                                  Collection<RouteManager.IpRange> proxyRanges,
+                                  Collection<RouteManager.IpRange> blockRanges) {
+        return compile(qualifiedHosts(proxyHosts), qualifiedHosts(blockHosts),
+                       qualifiedRanges(proxyRanges), qualifiedRanges(blockRanges));
+    }
+    
+    private static List<String> qualifiedHosts(Collection<String> hosts) {
+        List<String> result = new ArrayList<>();
+        for (String host : hosts) {
+            if (PortRange.isQualified(host)) result.add(host);
+        }
+        return result;
+    }
+    
+    private static List<RouteManager.IpRange> qualifiedRanges(Collection<RouteManager.IpRange> ranges) {
+        List<RouteManager.IpRange> result = new ArrayList<>();
+        for (RouteManager.IpRange range : ranges) {
+            if (!range.getPorts().isAny() && !range.isGeoIp()) result.add(range);
+        }
+        return result;
+    }
+    
+    private static PortRules compile(List<String> proxyRules, List<String> blockRules,
+                                     List<RouteManager.IpRange> proxyRanges,
+                                     List<RouteManager.IpRange> blockRanges) {
+        if (proxyRules.isEmpty() && blockRules.isEmpty() && proxyRanges.isEmpty() && blockRanges.isEmpty()) {
+            return EMPTY;
+        }
+        
+        Map<PortRange, GroupBuilder> builders = new LinkedHashMap<>();
+        addHosts(builders, proxyRules, false);
+        addHosts(builders, blockRules, true);
+        addRanges(builders, proxyRanges, false);
+        addRanges(builders, blockRanges, true);
+        
+        Group[] groups = new Group[builders.size()];
+        int i = 0;
+        for (Map.Entry<PortRange, GroupBuilder> entry : builders.entrySet()) {
+            GroupBuilder b = entry.getValue();
+            groups[i++] = new Group(entry.getKey(), b.proxyRanges, b.blockRanges,
+                                    DomainTrie.build(b.proxyHosts), DomainTrie.build(b.blockHosts));
+        }
+        return new PortRules(groups, proxyRules.size() + blockRules.size() + proxyRanges.size() + blockRanges.size());
+    }
+    
+    private static final class GroupBuilder {
+        final List<RouteManager.IpRange> proxyRanges = new ArrayList<>();
+        final List<RouteManager.IpRange> blockRanges = new ArrayList<>();
+        final List<String> proxyHosts = new ArrayList<>();
+        final List<String> blockHosts = new ArrayList<>();
+    }
+    
+    private static GroupBuilder builder(Map<PortRange, GroupBuilder> builders, PortRange ports) {
+        GroupBuilder builder = builders.get(ports);
+        if (builder == null) {
+            builder = new GroupBuilder();
+            builders.put(ports, builder);
+        }
+        return builder;
+    }
+    
+    private static void addHosts(Map<PortRange, GroupBuilder> builders, List<String> rules, boolean block) {
+        for (String rule : rules) {
+            PortRange ports = PortRange.of(rule);
+            if (ports == null || ports.isAny()) continue;
+            GroupBuilder builder = builder(builders, ports);
+            (block ? builder.blockHosts : builder.proxyHosts).add(PortRange.target(rule).toLowerCase());
+        }
+    }
+    
+    private static void addRanges(Map<PortRange, GroupBuilder> builders, List<RouteManager.IpRange> ranges,
+                                  boolean block) {
+        for (RouteManager.IpRange range : ranges) {
+            GroupBuilder builder = builder(builders, range.getPorts());
+            (block ? builder.blockRanges : builder.proxyRanges).add(range);
+        }
+    }
+    
+    static PortRules read(RuleDatabase.Reader reader) throws IOException {
+        int count = reader.getInt();
+        int ruleCount = reader.getInt();
+        if (count < 0 || ruleCount < 0) {
+            throw new IOException("Corrupted port rules");
+        }
+        if (count == 0) {
+            return EMPTY;
+        }
+        Group[] groups = new Group[count];
+        for (int i = 0; i < count; i++) {
+            groups[i] = new Group(reader);
+        }
+        return new PortRules(groups, ruleCount);
+    }
+    
+    void write(RuleDatabase.Writer writer) throws IOException {
+        writer.putInt(groups.length);
+        writer.putInt(ruleCount);
+        for (Group group : groups) {
+            group.write(writer);
+        }
+    }
+    
+    public boolean isEmpty() {
+        return groups.length == 0;
+    }
+    
+    /**
+     * Действие уточнённых правил для адреса; BLOCK перекрывает PROXY, как в общих
+     * таблицах, PROXY перекрывает AUTO
+     */
+    public RouteManager.RouteAction lookupIp(int ip, int port, int protocol) {
+        RouteManager.RouteAction result = DIRECT;
+        for (Group group : groups) {
+            if (!group.ports.matches(port, protocol)) continue;
+            RouteManager.RouteAction action = group.lookup(ip);
+            if (action == BLOCK) {
+                return BLOCK;
+            }
+            if (action == PROXY) {
+                result = RouteManager.stronger(result, group.ports.isAuto() ? AUTO : PROXY);
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * Действие уточнённых правил для хоста (в нижнем регистре)
+     */
+    public RouteManager.RouteAction lookupHost(String host, int port, int protocol) {
+        RouteManager.RouteAction result = DIRECT;
+        for (Group group : groups) {
+            if (!group.ports.matches(port, protocol)) continue;
+            if (group.blockHosts.match(host) != DomainTrie.NONE) {
+                return BLOCK;
+            }
+            if (group.proxyHosts.match(host) != DomainTrie.NONE) {
+                result = RouteManager.stronger(result, group.ports.isAuto() ? AUTO : PROXY);
+            }
+        }
+        return result;
+    }
+    
+    public boolean hasUpstreams() {
+        return hasUpstreams;
+    }
+    
+    /**
+     * Имя сервера из первого подходящего правила "proxy:имя" для адреса; null - основной
+     */
+    public String upstreamForIp(int ip, int port, int protocol) {
+        for (Group group : groups) {
+            if (group.ports.getUpstream() == null || !group.ports.matches(port, protocol)) continue;
+            if (group.lookup(ip) == PROXY) {
+                return group.ports.getUpstream();
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * Имя сервера из первого подходящего правила "proxy:имя" для хоста (в нижнем регистре)
+     */
+    public String upstreamForHost(String host, int port, int protocol) {
+        for (Group group : groups) {
+            if (group.ports.getUpstream() == null || !group.ports.matches(port, protocol)) continue;
+            if (group.proxyHosts.match(host) != DomainTrie.NONE) {
+                return group.ports.getUpstream();
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * Есть ли для хоста уточнённые правила хоть на каком-то порту
+     */
+    public boolean hasHostRules(String host) {
+        for (Group group : groups) {
+            if (group.blockHosts.match(host) != DomainTrie.NONE || group.proxyHosts.match(host) != DomainTrie.NONE) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Подсети уточнённых правил - для маршрутов в ядре
+     */
+    public List<RouteManager.IpRange> getIpRanges() {
+        List<RouteManager.IpRange> result = new ArrayList<>();
+        for (Group group : groups) {
+            group.addRanges(result);
+        }
+        return result;
+    }
+    
+    public int getRuleCount() {
+        return ruleCount;
+    }
+}
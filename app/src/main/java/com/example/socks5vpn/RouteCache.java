@@ -0,0 +1,99 @@
+package com.example.socks5vpn;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Кэш решений маршрутизации по IPv4 адресу назначения: поток QUIC датаграмм или
+ * серия SYN к одним и тем же адресам CDN не пересчитывает одно и то же.
+ *
+ * Без блокировок: каждая запись - один long (адрес, поколение, действие), читается
+ * и пишется атомарно; при гонке в худшем случае теряется запись, но не появляется
+ * чужое решение. Два пути: адрес может лежать в одной из двух соседних ячеек,
+ * новая запись встаёт в первую, прежняя сдвигается во вторую.
+ * При любом изменении правил поколение увеличивается, и все старые записи разом
+ * перестают совпадать.
+ */
+public class RouteCache {
+    private static final int DEFAULT_SIZE = 4096;
+    // Поколение занимает 30 бит записи, действие - 2 бита
+    private static final int GENERATION_MASK = 0x3FFFFFFF;
+    
+    private static final RouteManager.RouteAction[] ACTIONS = RouteManager.RouteAction.values();
+    
+    private final AtomicLongArray entries;
+    private final int mask;
+    private final TrafficStats trafficStats;
+    // 0 не бывает у действительной записи, так что пустая ячейка никогда не совпадёт
+    private volatile int generation = 1;
+    
+    public RouteCache() {
+        this(DEFAULT_SIZE);
+    }
+    
+    public RouteCache(int size) {
+        int capacity = Integer.highestOneBit(Math.max(size - 1, 1)) << 1;
+        this.entries = new AtomicLongArray(capacity);
+        this.mask = capacity - 1;
+        this.trafficStats = TrafficStats.getInstance();
+    }
+    
+    /**
+     * Решение для адреса или null при промахе
+     */
+    public RouteManager.RouteAction get(int ip) {
+        int slot = slot(ip);
+        int current = generation;
+        long entry = entries.get(slot);
+        if (!matches(entry, ip, current)) {
+            entry = entries.get(slot + 1);
+            if (!matches(entry, ip, current)) {
+                trafficStats.addRouteCacheMiss();
+                return null;
+            }
+        }
+        trafficStats.addRouteCacheHit();
+        return ACTIONS[(int) (entry & 3)];
+    }
+    
+    private static boolean matches(long entry, int ip, int generation) {
+        return (int) (entry >>> 32) == ip && (int) ((entry >>> 2) & GENERATION_MASK) == generation;
+    }
+    
+    /**
+     * Запоминает решение, посчитанное при поколении generation (см. getGeneration):
+     * если правила успели смениться, запись сразу окажется устаревшей
+     */
+    public void put(int ip, int generation, RouteManager.RouteAction action) {
+        long entry = ((long) ip << 32) | ((long) generation << 2) | action.ordinal();
+        int slot = slot(ip);
+        long first = entries.get(slot);
+        if ((int) (first >>> 32) != ip) {
+            entries.lazySet(slot + 1, first);
+        }
+        entries.lazySet(slot, entry);
+    }
+    
+    public int getGeneration() {
+        return generation;
+    }
+    
+    /**
+     * Сбрасывает все записи; вызывать после любого изменения правил
+     */
+    public synchronized void invalidate() {
+        int next = (generation + 1) & GENERATION_MASK;
+        generation = next == 0 ? 1 : next;
+    }
+    
+    public int getCapacity() {
+        return entries.length();
+    }
+    
+    /**
+     * Первая ячейка пары (всегда чётная)
+     */
+    private int slot(int ip) {
+        int h = ip * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask & ~1;
+    }
+}
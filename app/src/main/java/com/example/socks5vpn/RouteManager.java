@@ -4,11 +4,24 @@ import android.content.Context;
 import android.content.SharedPreferences;
 import android.util.Log;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.InetAddress;
+import java.net.UnknownHostException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Pattern;
 
 public class RouteManager {
@@ -18,21 +31,57 @@ public class RouteManager {
     private static final String KEY_BLOCK_HOSTS = "block_hosts";
     private static final String KEY_PROXY_IPS = "proxy_ips";
     private static final String KEY_BLOCK_IPS = "block_ips";
+    private static final String KEY_APP_MODE = "app_mode";
+    private static final String KEY_APPS = "apps";
+    private static final String BLOCKLIST_FILE = "blocklist.bin";
+    private static final String GEOIP_FILE = "geoip.bin";
+    private static final String RULES_DB_FILE = "rules.db";
+    // Имя, под которым срабатывания большого списка попадают в счётчики правил
+    public static final String BLOCKLIST_RULE = "@blocklist";
+    public static final String SUBSCRIPTION_RULE = "@subscriptions";
+    
+    /**
+     * Какие приложения идут через VPN. Приложения вне VPN ядро маршрутизирует
+     * напрямую - их трафик не проходит через сервис вообще.
+     */
+    public enum AppMode {
+        ALL,        // Все, кроме нас самих
+        ONLY,       // Только перечисленные
+        EXCEPT      // Все, кроме перечисленных
+    }
     
     public enum RouteAction {
         PROXY,      // Через SOCKS5
         BLOCK,      // Заблокировать
-        DIRECT      // Напрямую
+        DIRECT,     // Напрямую
+        AUTO        // Напрямую или через SOCKS5 - что быстрее (см. AutoRouteCache)
+    }
+    
+    /**
+     * Списки правил - для постраничного редактора (getRules / editRules)
+     */
+    public enum RuleList {
+        PROXY_HOSTS,
+        PROXY_IPS,
+        BLOCK_HOSTS,
+        BLOCK_IPS;
+        
+        public boolean isHosts() {
+            return this == PROXY_HOSTS || this == BLOCK_HOSTS;
+        }
     }
     
-    // Хосты для проксирования (поддомены)
-    private final Set<String> proxyHosts = new HashSet<>();
-    // Хосты для блокировки
-    private final Set<String> blockHosts = new HashSet<>();
-    // IP/подсети для проксирования
-    private final List<IpRange> proxyIpRanges = new ArrayList<>();
-    // IP/подсети для блокировки
-    private final List<IpRange> blockIpRanges = new ArrayList<>();
+    // Текущие правила: неизменяемый набор, подменяется целиком
+    private volatile RuleSnapshot snapshot = RuleSnapshot.EMPTY;
+    // Сколько раз сработало каждое правило блокировки хостов
+    private final Map<String, AtomicLong> blockHostHits = new ConcurrentHashMap<>();
+    // Решения по IP адресу; сбрасывается при каждой подмене набора правил
+    private final RouteCache routeCache = new RouteCache();
+    // Компиляция правок и запись на диск - по очереди и вне UI потока
+    private final ExecutorService compileExecutor = Executors.newSingleThreadExecutor();
+    // Правила для приложений применяются только при подключении, поиск их не читает
+    private volatile AppMode appMode = AppMode.ALL;
+    private volatile Set<String> apps = new HashSet<>();
     
     private static RouteManager instance;
     
@@ -58,87 +107,405 @@ public class RouteManager {
         // blockIpRanges.add(new IpRange("10.0.0.0", 8));
     }
     
+    /**
+     * Подменяет набор правил. Все подмены идут под одной блокировкой, чтобы правка,
+     * собранная из текущего набора, не затёрла параллельную; поиск блокировку не берёт.
+     */
+    private void publish(RuleSnapshot next) {
+        synchronized (this) {
+            snapshot = next;
+        }
+        routeCache.invalidate();
+    }
+    
+    /**
+     * Правка правил: новый набор собирается из текущего в фоне и подменяет его.
+     * Правки выполняются строго по очереди вызовов.
+     */
+    private void update(final RuleEdit edit) {
+        compileExecutor.execute(() -> {
+            long start = System.nanoTime();
+            RuleSnapshot next;
+            synchronized (this) {
+                next = edit.apply(snapshot);
+                snapshot = next;
+            }
+            routeCache.invalidate();
+            Log.d(TAG, "Rules updated (" + next.getRuleCount() + " rules) in " +
+                  (System.nanoTime() - start) / 1000000 + " ms");
+        });
+    }
+    
+    private interface RuleEdit {
+        RuleSnapshot apply(RuleSnapshot current);
+    }
+    
+    /**
+     * Загружает исходные списки из настроек (для редактора). Если действующие правила
+     * собраны из тех же списков, они остаются как есть; иначе пересобираются в фоне.
+     */
     public void load(Context context) {
         SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
         
-        proxyHosts.clear();
-        blockHosts.clear();
-        proxyIpRanges.clear();
-        blockIpRanges.clear();
-        
         Set<String> proxyHostsSet = prefs.getStringSet(KEY_PROXY_HOSTS, new HashSet<>());
         Set<String> blockHostsSet = prefs.getStringSet(KEY_BLOCK_HOSTS, new HashSet<>());
         Set<String> proxyIpsSet = prefs.getStringSet(KEY_PROXY_IPS, new HashSet<>());
         Set<String> blockIpsSet = prefs.getStringSet(KEY_BLOCK_IPS, new HashSet<>());
         
-        proxyHosts.addAll(proxyHostsSet);
-        blockHosts.addAll(blockHostsSet);
+        final Set<String> proxyHosts = new HashSet<>(proxyHostsSet);
+        final Set<String> blockHosts = new HashSet<>(blockHostsSet);
+        final List<IpRange> proxyIpRanges = parseRanges(proxyIpsSet);
+        final List<IpRange> blockIpRanges = parseRanges(blockIpsSet);
         
-        for (String ip : proxyIpsSet) {
-            IpRange range = IpRange.parse(ip);
-            if (range != null) {
-                proxyIpRanges.add(range);
-            }
-        }
+        final BlocklistFilter blocklist = openBlocklist(context);
+        final GeoIpDatabase geoIp = openGeoIp(context);
+        final BlocklistFilter subscribedBlock = openSubscriptions(context, RuleSubscription.Target.BLOCK);
+        final BlocklistFilter subscribedProxy = openSubscriptions(context, RuleSubscription.Target.PROXY);
+        loadApps(prefs);
         
-        for (String ip : blockIpsSet) {
-            IpRange range = IpRange.parse(ip);
-            if (range != null) {
-                blockIpRanges.add(range);
+        synchronized (this) {
+            RuleSnapshot current = snapshot;
+            if (!current.hasSources()) {
+                // Набор из базы правил - она записана из этих же настроек и этой базы стран
+                snapshot = current.withGeoIp(geoIp)
+                                  .withSources(proxyHosts, blockHosts, proxyIpRanges, blockIpRanges)
+                                  .withBlocklist(blocklist)
+                                  .withSubscriptions(subscribedBlock, subscribedProxy);
+            } else if (current.getProxyHosts().equals(proxyHosts) && current.getBlockHosts().equals(blockHosts) &&
+                       sameRanges(current.getProxyIpRanges(), proxyIpRanges) &&
+                       sameRanges(current.getBlockIpRanges(), blockIpRanges)) {
+                snapshot = current.withBlocklist(blocklist)
+                                  .withSubscriptions(subscribedBlock, subscribedProxy);
+                if (current.getGeoIp() == null && geoIp != null) {
+                    // База стран появилась после сборки правил
+                    update(rules -> rules.withGeoIp(geoIp));
+                }
+            } else {
+                // Списки для редактора видны сразу, структуры пока прежние
+                snapshot = current.withSources(proxyHosts, blockHosts, proxyIpRanges, blockIpRanges)
+                                  .withBlocklist(blocklist)
+                                  .withSubscriptions(subscribedBlock, subscribedProxy);
+                update(rules -> RuleSnapshot.compile(proxyHosts, blockHosts, proxyIpRanges, blockIpRanges,
+                                                     rules.getBlocklist(), geoIp)
+                                            .withSubscriptions(rules.getSubscribedBlock(),
+                                                               rules.getSubscribedProxy()));
             }
         }
+        routeCache.invalidate();
         
-        Log.d(TAG, "Loaded rules: proxyHosts=" + proxyHosts.size() + 
+        Log.d(TAG, "Loaded rules: proxyHosts=" + proxyHosts.size() +
               ", blockHosts=" + blockHosts.size() +
               ", proxyIps=" + proxyIpRanges.size() +
               ", blockIps=" + blockIpRanges.size());
     }
     
-    public void save(Context context) {
-        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
-        
-        Set<String> proxyIpsSet = new HashSet<>();
-        for (IpRange range : proxyIpRanges) {
-            proxyIpsSet.add(range.toString());
+    private void loadApps(SharedPreferences prefs) {
+        try {
+            appMode = AppMode.valueOf(prefs.getString(KEY_APP_MODE, AppMode.ALL.name()));
+        } catch (IllegalArgumentException e) {
+            appMode = AppMode.ALL;
+        }
+        apps = new HashSet<>(prefs.getStringSet(KEY_APPS, new HashSet<>()));
+    }
+    
+    private static List<IpRange> parseRanges(Collection<String> values) {
+        List<IpRange> result = new ArrayList<>();
+        for (String value : values) {
+            IpRange range = IpRange.parse(value.trim());
+            if (range != null) {
+                result.add(range);
+            }
+        }
+        return result;
+    }
+    
+    private static boolean sameRanges(List<IpRange> a, List<IpRange> b) {
+        if (a.size() != b.size()) {
+            return false;
+        }
+        Set<String> strings = new HashSet<>();
+        for (IpRange range : a) {
+            strings.add(range.toString());
+        }
+        for (IpRange range : b) {
+            if (!strings.contains(range.toString())) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Быстрый старт сервиса: отображает скомпилированные правила из файла за время,
+     * не зависящее от их числа. Исходные списки для редактора при этом не читаются -
+     * их загружает load(). Если файла нет или он старого формата, правила один раз
+     * собираются из настроек в фоне, и туннель работает без них эти мгновения.
+     */
+    public void loadCompiled(Context context) {
+        long start = System.nanoTime();
+        loadApps(context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE));
+        File file = new File(context.getFilesDir(), RULES_DB_FILE);
+        try {
+            RuleDatabase database = RuleDatabase.open(file);
+            publish(RuleSnapshot.fromDatabase(database, openBlocklist(context), openGeoIp(context))
+                                .withSubscriptions(openSubscriptions(context, RuleSubscription.Target.BLOCK),
+                                                   openSubscriptions(context, RuleSubscription.Target.PROXY)));
+            Log.d(TAG, "Mapped " + database.getRuleCount() + " compiled rules (" +
+                  TrafficStats.formatBytes(database.getSize()) + ") in " +
+                  (System.nanoTime() - start) / 1000000 + " ms");
+            return;
+        } catch (IOException e) {
+            Log.w(TAG, "Compiled rules unavailable (" + e.getMessage() + "), compiling from preferences");
         }
         
-        Set<String> blockIpsSet = new HashSet<>();
-        for (IpRange range : blockIpRanges) {
-            blockIpsSet.add(range.toString());
+        final Context appContext = context.getApplicationContext();
+        compileExecutor.execute(() -> {
+            load(appContext);
+            // Компиляция, поставленная load(), уже в очереди перед записью
+            compileExecutor.execute(() -> writeDatabase(appContext));
+        });
+    }
+    
+    private void writeDatabase(Context context) {
+        File file = new File(context.getFilesDir(), RULES_DB_FILE);
+        RuleSnapshot rules = snapshot;
+        long start = System.nanoTime();
+        try {
+            RuleDatabase.write(file, rules.getIpMatcher(), rules.getProxyHostTrie(), rules.getBlockHostTrie(),
+                               rules.getPortRules(), rules.getRuleCount());
+            Log.d(TAG, "Wrote compiled rules in " + (System.nanoTime() - start) / 1000000 + " ms");
+        } catch (IOException e) {
+            // Устаревший файл хуже отсутствующего: при следующем старте правила соберутся из настроек
+            Log.e(TAG, "Cannot write compiled rules: " + e.getMessage());
+            file.delete();
         }
+    }
+    
+    /**
+     * Сохраняет правила в настройки и базу правил. Выполняется в очереди правок,
+     * поэтому сохраняет результат всех сделанных до вызова изменений.
+     */
+    public void save(Context context) {
+        // Старый файл убираем сразу: если процесс умрёт до записи нового, сервис
+        // соберёт правила из настроек, а не поднимет устаревшие
+        new File(context.getFilesDir(), RULES_DB_FILE).delete();
         
-        prefs.edit()
-            .putStringSet(KEY_PROXY_HOSTS, new HashSet<>(proxyHosts))
-            .putStringSet(KEY_BLOCK_HOSTS, new HashSet<>(blockHosts))
-            .putStringSet(KEY_PROXY_IPS, proxyIpsSet)
-            .putStringSet(KEY_BLOCK_IPS, blockIpsSet)
-            .apply();
+        final Context appContext = context.getApplicationContext();
+        compileExecutor.execute(() -> {
+            RuleSnapshot rules = snapshot;
+            if (!rules.hasSources()) {
+                // Без исходных списков сохранять нечего - load() не вызывался
+                Log.w(TAG, "Rule sources not loaded, skipping save");
+                writeDatabase(appContext);
+                return;
+            }
+            
+            Set<String> proxyIpsSet = new HashSet<>();
+            for (IpRange range : rules.getProxyIpRanges()) {
+                proxyIpsSet.add(range.toString());
+            }
+            
+            Set<String> blockIpsSet = new HashSet<>();
+            for (IpRange range : rules.getBlockIpRanges()) {
+                blockIpsSet.add(range.toString());
+            }
+            
+            SharedPreferences prefs = appContext.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+            prefs.edit()
+                .putStringSet(KEY_PROXY_HOSTS, new HashSet<>(rules.getProxyHosts()))
+                .putStringSet(KEY_BLOCK_HOSTS, new HashSet<>(rules.getBlockHosts()))
+                .putStringSet(KEY_PROXY_IPS, proxyIpsSet)
+                .putStringSet(KEY_BLOCK_IPS, blockIpsSet)
+                .putString(KEY_APP_MODE, appMode.name())
+                .putStringSet(KEY_APPS, new HashSet<>(apps))
+                .apply();
+            
+            writeDatabase(appContext);
+        });
+    }
+    
+    private BlocklistFilter openBlocklist(Context context) {
+        File file = new File(context.getFilesDir(), BLOCKLIST_FILE);
+        if (!file.exists()) {
+            return null;
+        }
+        try {
+            BlocklistFilter filter = BlocklistFilter.open(file);
+            Log.d(TAG, "Blocklist: " + filter.getSummary());
+            return filter;
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot open blocklist: " + e.getMessage());
+            return null;
+        }
+    }
+    
+    /**
+     * Компилирует большой список блокировки из потока и сразу подключает его.
+     * Долгая операция - вызывать не из UI потока.
+     */
+    public BlocklistFilter importBlocklist(Context context, InputStream input) throws IOException {
+        File file = new File(context.getFilesDir(), BLOCKLIST_FILE);
+        long start = System.nanoTime();
+        BlocklistFilter.compile(input, file);
+        final BlocklistFilter filter = BlocklistFilter.open(file);
+        update(rules -> rules.withBlocklist(filter));
+        Log.d(TAG, "Imported blocklist in " + (System.nanoTime() - start) / 1000000 + " ms: " + filter.getSummary());
+        return filter;
+    }
+    
+    public void clearBlocklist(Context context) {
+        update(rules -> rules.withBlocklist(null));
+        new File(context.getFilesDir(), BLOCKLIST_FILE).delete();
+    }
+    
+    public BlocklistFilter getBlocklist() {
+        return snapshot.getBlocklist();
+    }
+    
+    private BlocklistFilter openSubscriptions(Context context, RuleSubscription.Target target) {
+        File file = SubscriptionManager.combinedFile(context, target);
+        if (!file.exists()) {
+            return null;
+        }
+        try {
+            return BlocklistFilter.open(file);
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot open " + target + " subscriptions: " + e.getMessage());
+            return null;
+        }
+    }
+    
+    /**
+     * Подключает новый слитый список подписок цели (null - подписок нет)
+     */
+    public void setSubscriptionFilter(RuleSubscription.Target target, final BlocklistFilter filter) {
+        if (target == RuleSubscription.Target.BLOCK) {
+            update(rules -> rules.withSubscriptions(filter, rules.getSubscribedProxy()));
+        } else {
+            update(rules -> rules.withSubscriptions(rules.getSubscribedBlock(), filter));
+        }
+    }
+    
+    private GeoIpDatabase openGeoIp(Context context) {
+        File file = new File(context.getFilesDir(), GEOIP_FILE);
+        if (!file.exists()) {
+            return null;
+        }
+        try {
+            GeoIpDatabase database = GeoIpDatabase.open(file);
+            Log.d(TAG, "GeoIP: " + database.getSummary());
+            return database;
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot open GeoIP database: " + e.getMessage());
+            return null;
+        }
+    }
+    
+    /**
+     * Компилирует базу стран из CSV и пересобирает правила "geoip:" с ней.
+     * Долгая операция - вызывать не из UI потока, после load().
+     */
+    public GeoIpDatabase importGeoIp(Context context, InputStream input) throws IOException {
+        File file = new File(context.getFilesDir(), GEOIP_FILE);
+        long start = System.nanoTime();
+        GeoIpDatabase.compile(input, file);
+        final GeoIpDatabase database = GeoIpDatabase.open(file);
+        final Context appContext = context.getApplicationContext();
+        update(rules -> rules.withGeoIp(database));
+        // Страны развёрнуты в таблицы базы правил - переписываем её
+        compileExecutor.execute(() -> writeDatabase(appContext));
+        Log.d(TAG, "Imported GeoIP in " + (System.nanoTime() - start) / 1000000 + " ms: " + database.getSummary());
+        return database;
+    }
+    
+    public void clearGeoIp(Context context) {
+        final Context appContext = context.getApplicationContext();
+        update(rules -> rules.withGeoIp(null));
+        compileExecutor.execute(() -> writeDatabase(appContext));
+        new File(context.getFilesDir(), GEOIP_FILE).delete();
+    }
+    
+    public GeoIpDatabase getGeoIp() {
+        return snapshot.getGeoIp();
+    }
+    
+    /**
+     * Действующий набор правил
+     */
+    public RuleSnapshot getSnapshot() {
+        return snapshot;
+    }
+    
+    /**
+     * Набор правил после всех правок, поставленных до вызова (в том числе компиляции,
+     * которую ставит первый старт без базы правил). Блокирует поток - не из UI.
+     */
+    public RuleSnapshot awaitSnapshot() throws InterruptedException {
+        try {
+            // Вторая пустая задача встаёт за правками, которые поставила задача перед первой
+            compileExecutor.submit(() -> { }).get();
+            compileExecutor.submit(() -> { }).get();
+        } catch (ExecutionException e) {
+            // Пустая задача не бросает
+        }
+        return snapshot;
     }
     
     /**
      * Определяет действие для IP адреса
      */
     public RouteAction getActionForIp(InetAddress address) {
-        String ip = address.getHostAddress();
-        
-        // Проверяем блокировку по IP
-        for (IpRange range : blockIpRanges) {
-            if (range.contains(address)) {
-                Log.d(TAG, "BLOCK (IP range): " + ip);
-                return RouteAction.BLOCK;
-            }
+        byte[] addr = address.getAddress();
+        if (addr.length != 4) {
+            return RouteAction.DIRECT;
         }
-        
-        // Проверяем проксирование по IP
-        for (IpRange range : proxyIpRanges) {
-            if (range.contains(address)) {
-                Log.d(TAG, "PROXY (IP range): " + ip);
-                return RouteAction.PROXY;
-            }
+        return getActionForIp(((addr[0] & 0xFF) << 24) | ((addr[1] & 0xFF) << 16) |
+                              ((addr[2] & 0xFF) << 8) | (addr[3] & 0xFF));
+    }
+    
+    /**
+     * Определяет действие для IPv4 адреса в виде int (горячий путь: без объектов и логов)
+     */
+    public RouteAction getActionForIp(int ip) {
+        // Поколение берём до вычисления: если правила сменятся в процессе, запись не совпадёт
+        int generation = routeCache.getGeneration();
+        RouteAction cached = routeCache.get(ip);
+        if (cached != null) {
+            return cached;
         }
-        
-        // Если нет совпадений - DIRECT
-        return RouteAction.DIRECT;
+        RouteAction action = lookupIp(snapshot, ip);
+        routeCache.put(ip, generation, action);
+        return action;
+    }
+    
+    /**
+     * Действие для адреса с учётом порта назначения и протокола (PortRange.TCP / UDP).
+     * Без уточнённых правил - то же, что getActionForIp(ip).
+     */
+    public RouteAction getActionForIp(int ip, int port, int protocol) {
+        RouteAction action = getActionForIp(ip);
+        PortRules portRules = snapshot.getPortRules();
+        if (action == RouteAction.BLOCK || portRules.isEmpty()) {
+            return action;
+        }
+        return stronger(action, portRules.lookupIp(ip, port, protocol));
+    }
+    
+    private static RouteAction lookupIp(RuleSnapshot rules, int ip) {
+        RouteAction action = rules.getIpMatcher().lookup(ip);
+        BlocklistFilter filter = rules.getBlocklist();
+        if (action != RouteAction.BLOCK && filter != null && filter.containsIp(ip)) {
+            return RouteAction.BLOCK;
+        }
+        BlocklistFilter block = rules.getSubscribedBlock();
+        if (action != RouteAction.BLOCK && block != null && block.containsIp(ip)) {
+            return RouteAction.BLOCK;
+        }
+        BlocklistFilter proxy = rules.getSubscribedProxy();
+        if (action != RouteAction.BLOCK && action != RouteAction.PROXY && proxy != null && proxy.containsIp(ip)) {
+            return RouteAction.PROXY;
+        }
+        return action;
     }
     
     /**
@@ -150,159 +517,542 @@ public class RouteManager {
         }
         
         String host = hostname.toLowerCase();
+        RuleSnapshot rules = snapshot;
         
-        // Проверяем блокировку
-        if (matchesHost(host, blockHosts)) {
-            Log.d(TAG, "BLOCK (host): " + hostname);
+        // Проверяем блокировку; счётчики правил здесь не трогаем - их ведёт только
+        // DNS (matchBlockHost), иначе SYN и sniffing считали бы одно имя по нескольку раз
+        if (findBlockRule(rules, host) != null) {
             return RouteAction.BLOCK;
         }
         
         // Проверяем проксирование
-        if (matchesHost(host, proxyHosts)) {
-            Log.d(TAG, "PROXY (host): " + hostname);
+        if (rules.getProxyHostTrie().match(host) != DomainTrie.NONE) {
+            return RouteAction.PROXY;
+        }
+        BlocklistFilter proxy = rules.getSubscribedProxy();
+        if (proxy != null && proxy.containsHost(host)) {
             return RouteAction.PROXY;
         }
         
         return RouteAction.DIRECT;
     }
     
-    private boolean matchesHost(String hostname, Set<String> patterns) {
-        for (String pattern : patterns) {
-            // Точное совпадение
-            if (hostname.equals(pattern)) {
-                return true;
-            }
-            // Совпадение поддомена
-            if (hostname.endsWith("." + pattern)) {
-                return true;
-            }
-            // Wildcard pattern
-            if (pattern.startsWith("*.") && hostname.endsWith(pattern.substring(1))) {
-                return true;
+    /**
+     * Дополняет действие для хоста (в нижнем регистре) уточнёнными правилами на этом порту
+     */
+    public RouteAction getActionForHost(String host, int port, int protocol, RouteAction action) {
+        PortRules portRules = snapshot.getPortRules();
+        if (action == RouteAction.BLOCK || portRules.isEmpty()) {
+            return action;
+        }
+        return stronger(action, portRules.lookupHost(host, port, protocol));
+    }
+    
+    /**
+     * Имя сервера для соединения через прокси к адресу (правило "proxy:имя"); null - основной
+     */
+    public String getUpstreamForIp(int ip, int port, int protocol) {
+        PortRules portRules = snapshot.getPortRules();
+        return portRules.hasUpstreams() ? portRules.upstreamForIp(ip, port, protocol) : null;
+    }
+    
+    /**
+     * Имя сервера для соединения через прокси к хосту; null - основной
+     */
+    public String getUpstreamForHost(String host, int port, int protocol) {
+        PortRules portRules = snapshot.getPortRules();
+        return portRules.hasUpstreams() ? portRules.upstreamForHost(host.toLowerCase(), port, protocol) : null;
+    }
+    
+    /**
+     * Есть ли для хоста правила с уточнением по порту: такому имени нужен фиктивный
+     * адрес, даже если без порта действие DIRECT
+     */
+    public boolean hasPortRules(String host) {
+        PortRules portRules = snapshot.getPortRules();
+        return !portRules.isEmpty() && portRules.hasHostRules(host.toLowerCase());
+    }
+    
+    /**
+     * Приоритет действий: BLOCK, PROXY, AUTO, DIRECT
+     */
+    public static RouteAction stronger(RouteAction a, RouteAction b) {
+        if (a == RouteAction.BLOCK || b == RouteAction.BLOCK) {
+            return RouteAction.BLOCK;
+        }
+        if (a == RouteAction.PROXY || b == RouteAction.PROXY) {
+            return RouteAction.PROXY;
+        }
+        return a == RouteAction.AUTO ? a : b;
+    }
+    
+    /**
+     * Правило блокировки, под которое попадает хост (в нижнем регистре), или null.
+     * Срабатывание учитывается в счётчике правила, поэтому вызывается только для
+     * DNS запросов; маршрутизация соединений смотрит правила без учёта.
+     */
+    public String matchBlockHost(String hostname) {
+        String rule = findBlockRule(snapshot, hostname);
+        if (rule != null) {
+            AtomicLong hits = blockHostHits.get(rule);
+            if (hits == null) {
+                AtomicLong created = new AtomicLong();
+                hits = blockHostHits.putIfAbsent(rule, created);
+                if (hits == null) {
+                    hits = created;
+                }
             }
+            hits.incrementAndGet();
+        }
+        return rule;
+    }
+    
+    private static String findBlockRule(RuleSnapshot rules, String hostname) {
+        String rule = rules.getBlockHostTrie().matchRule(hostname);
+        BlocklistFilter filter = rules.getBlocklist();
+        if (rule == null && filter != null && filter.containsHost(hostname)) {
+            rule = BLOCKLIST_RULE;
+        }
+        BlocklistFilter subscribed = rules.getSubscribedBlock();
+        if (rule == null && subscribed != null && subscribed.containsHost(hostname)) {
+            rule = SUBSCRIPTION_RULE;
         }
-        return false;
+        return rule;
     }
     
-    // Геттеры и сеттеры для UI
+    /**
+     * Счётчики срабатываний правил блокировки хостов
+     */
+    public Map<String, Long> getBlockHostHits() {
+        Map<String, Long> result = new HashMap<>();
+        for (Map.Entry<String, AtomicLong> entry : blockHostHits.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().get());
+        }
+        return result;
+    }
+    
+    // Геттеры и сеттеры для UI. Сеттеры только ставят правку в очередь:
+    // геттеры вернут новые значения, когда она применится
     public Set<String> getProxyHosts() {
-        return new HashSet<>(proxyHosts);
+        return new HashSet<>(snapshot.getProxyHosts());
     }
     
     public void setProxyHosts(Set<String> hosts) {
-        proxyHosts.clear();
-        for (String h : hosts) {
-            proxyHosts.add(h.toLowerCase().trim());
-        }
+        final Set<String> normalized = normalizeHosts(hosts);
+        update(rules -> rules.withProxyHosts(normalized));
     }
     
     public Set<String> getBlockHosts() {
-        return new HashSet<>(blockHosts);
+        return new HashSet<>(snapshot.getBlockHosts());
     }
     
     public void setBlockHosts(Set<String> hosts) {
-        blockHosts.clear();
+        final Set<String> normalized = normalizeHosts(hosts);
+        update(rules -> rules.withBlockHosts(normalized));
+    }
+    
+    private static Set<String> normalizeHosts(Set<String> hosts) {
+        Set<String> result = new HashSet<>();
         for (String h : hosts) {
-            blockHosts.add(h.toLowerCase().trim());
+            String host = normalizeHost(h);
+            if (host == null) {
+                Log.e(TAG, "Bad port or protocol: " + h);
+                continue;
+            }
+            result.add(host);
         }
+        return result;
     }
     
-    public List<String> getProxyIpRangesAsStrings() {
-        List<String> result = new ArrayList<>();
-        for (IpRange range : proxyIpRanges) {
-            result.add(range.toString());
+    /**
+     * Запись правила для хоста или null, если порт / протокол неверные
+     */
+    private static String normalizeHost(String h) {
+        String host = h.toLowerCase().trim();
+        if (host.isEmpty()) {
+            return null;
         }
+        if (PortRange.isQualified(host)) {
+            PortRange ports = PortRange.of(host);
+            if (ports == null) {
+                return null;
+            }
+            // Одна запись на правило: "host 443 tcp" независимо от пробелов
+            host = ports.isAny() ? PortRange.target(host) : PortRange.target(host) + " " + ports;
+        }
+        return host;
+    }
+    
+    /**
+     * Правило в том виде, в каком оно хранится в списке, или null, если оно неверное
+     */
+    public static String normalizeRule(RuleList list, String rule) {
+        if (list.isHosts()) {
+            return normalizeHost(rule);
+        }
+        IpRange range = IpRange.parse(rule.trim());
+        return range != null ? range.toString() : null;
+    }
+    
+    /**
+     * Правила списка, отсортированные, с учётом всех поставленных правок. Ждёт
+     * очередь правок - вызывать не из UI потока.
+     */
+    public List<String> getRules(RuleList list) throws InterruptedException {
+        RuleSnapshot rules = awaitSnapshot();
+        List<String> result;
+        switch (list) {
+            case PROXY_HOSTS:
+                result = new ArrayList<>(rules.getProxyHosts());
+                break;
+            case BLOCK_HOSTS:
+                result = new ArrayList<>(rules.getBlockHosts());
+                break;
+            case PROXY_IPS:
+                result = toStrings(rules.getProxyIpRanges());
+                break;
+            default:
+                result = toStrings(rules.getBlockIpRanges());
+                break;
+        }
+        Collections.sort(result);
         return result;
     }
     
-    public void setProxyIpRanges(List<String> ranges) {
-        proxyIpRanges.clear();
-        for (String r : ranges) {
-            IpRange range = IpRange.parse(r.trim());
-            if (range != null) {
-                proxyIpRanges.add(range);
+    /**
+     * Добавляет и удаляет правила списка одной правкой, так что таблицы списка
+     * собираются один раз на пачку. Правила - записи из normalizeRule(); неверные
+     * пропускаются.
+     */
+    public void editRules(final RuleList list, Collection<String> added, Collection<String> removed) {
+        final Set<String> add = new HashSet<>();
+        for (String rule : added) {
+            String normalized = normalizeRule(list, rule);
+            if (normalized != null) {
+                add.add(normalized);
+            }
+        }
+        final Set<String> remove = new HashSet<>(removed);
+        if (add.isEmpty() && remove.isEmpty()) {
+            return;
+        }
+        
+        update(rules -> {
+            switch (list) {
+                case PROXY_HOSTS:
+                    return rules.withProxyHosts(edited(rules.getProxyHosts(), add, remove));
+                case BLOCK_HOSTS:
+                    return rules.withBlockHosts(edited(rules.getBlockHosts(), add, remove));
+                case PROXY_IPS:
+                    return rules.withIpRanges(edited(rules.getProxyIpRanges(), add, remove), rules.getBlockIpRanges());
+                default:
+                    return rules.withIpRanges(rules.getProxyIpRanges(), edited(rules.getBlockIpRanges(), add, remove));
+            }
+        });
+    }
+    
+    private static Set<String> edited(Set<String> hosts, Set<String> add, Set<String> remove) {
+        Set<String> result = new HashSet<>(hosts);
+        result.removeAll(remove);
+        result.addAll(add);
+        return result;
+    }
+    
+    private static List<IpRange> edited(List<IpRange> ranges, Set<String> add, Set<String> remove) {
+        List<IpRange> result = new ArrayList<>(ranges.size() + add.size());
+        Set<String> present = new HashSet<>();
+        for (IpRange range : ranges) {
+            String key = range.toString();
+            if (!remove.contains(key) && present.add(key)) {
+                result.add(range);
+            }
+        }
+        for (String rule : add) {
+            if (present.add(rule)) {
+                result.add(IpRange.parse(rule));
             }
         }
+        return result;
+    }
+    
+    public List<String> getProxyIpRangesAsStrings() {
+        return toStrings(snapshot.getProxyIpRanges());
+    }
+    
+    public void setProxyIpRanges(List<String> ranges) {
+        final List<IpRange> parsed = parseRanges(ranges);
+        update(rules -> rules.withIpRanges(parsed, rules.getBlockIpRanges()));
     }
     
     public List<String> getBlockIpRangesAsStrings() {
+        return toStrings(snapshot.getBlockIpRanges());
+    }
+    
+    public void setBlockIpRanges(List<String> ranges) {
+        final List<IpRange> parsed = parseRanges(ranges);
+        update(rules -> rules.withIpRanges(rules.getProxyIpRanges(), parsed));
+    }
+    
+    private static List<String> toStrings(List<IpRange> ranges) {
         List<String> result = new ArrayList<>();
-        for (IpRange range : blockIpRanges) {
+        for (IpRange range : ranges) {
             result.add(range.toString());
         }
         return result;
     }
     
-    public void setBlockIpRanges(List<String> ranges) {
-        blockIpRanges.clear();
-        for (String r : ranges) {
-            IpRange range = IpRange.parse(r.trim());
-            if (range != null) {
-                blockIpRanges.add(range);
-            }
+    public AppMode getAppMode() {
+        return appMode;
+    }
+    
+    public Set<String> getApps() {
+        return new HashSet<>(apps);
+    }
+    
+    /**
+     * Пакеты приложений для режима ONLY / EXCEPT. Применяются при следующем подключении.
+     */
+    public void setAppRules(AppMode mode, Set<String> packages) {
+        Set<String> normalized = new HashSet<>();
+        for (String p : packages) {
+            normalized.add(p.trim());
         }
+        apps = normalized;
+        appMode = mode;
     }
     
     public void addProxyHost(String host) {
-        proxyHosts.add(host.toLowerCase().trim());
+        final String normalized = host.toLowerCase().trim();
+        update(rules -> rules.withProxyHosts(with(rules.getProxyHosts(), normalized, true)));
     }
     
     public void addBlockHost(String host) {
-        blockHosts.add(host.toLowerCase().trim());
+        final String normalized = host.toLowerCase().trim();
+        update(rules -> rules.withBlockHosts(with(rules.getBlockHosts(), normalized, true)));
     }
     
     public void addProxyIpRange(String cidr) {
-        IpRange range = IpRange.parse(cidr);
+        final IpRange range = IpRange.parse(cidr);
         if (range != null) {
-            proxyIpRanges.add(range);
+            update(rules -> {
+                List<IpRange> ranges = new ArrayList<>(rules.getProxyIpRanges());
+                ranges.add(range);
+                return rules.withIpRanges(ranges, rules.getBlockIpRanges());
+            });
         }
     }
     
     public void addBlockIpRange(String cidr) {
-        IpRange range = IpRange.parse(cidr);
+        final IpRange range = IpRange.parse(cidr);
         if (range != null) {
-            blockIpRanges.add(range);
+            update(rules -> {
+                List<IpRange> ranges = new ArrayList<>(rules.getBlockIpRanges());
+                ranges.add(range);
+                return rules.withIpRanges(rules.getProxyIpRanges(), ranges);
+            });
         }
     }
     
     public void removeProxyHost(String host) {
-        proxyHosts.remove(host.toLowerCase().trim());
+        final String normalized = host.toLowerCase().trim();
+        update(rules -> rules.withProxyHosts(with(rules.getProxyHosts(), normalized, false)));
     }
     
     public void removeBlockHost(String host) {
-        blockHosts.remove(host.toLowerCase().trim());
+        final String normalized = host.toLowerCase().trim();
+        update(rules -> rules.withBlockHosts(with(rules.getBlockHosts(), normalized, false)));
+    }
+    
+    private static Set<String> with(Set<String> hosts, String host, boolean present) {
+        Set<String> result = new HashSet<>(hosts);
+        if (present) {
+            result.add(host);
+        } else {
+            result.remove(host);
+        }
+        return result;
     }
     
     /**
-     * Представляет IP адрес или подсеть (CIDR)
+     * Представляет IP адрес или подсеть (CIDR), либо страну из GeoIpDatabase
+     * ("geoip:cn", "geoip:!cn" - все известные страны, кроме неё). Страна при
+     * компиляции правил разворачивается в подсети, см. RuleSnapshot.
      */
     public static class IpRange {
+        private static final String GEOIP_PREFIX = "geoip:";
+        
         private final byte[] network;
         private final int prefixLength;
+        private final PortRange ports;
+        // Код страны в нижнем регистре (null - обычная подсеть)
+        private final String country;
+        private final boolean countryNegated;
         
         public IpRange(byte[] network, int prefixLength) {
+            this(network, prefixLength, PortRange.ANY);
+        }
+        
+        public IpRange(byte[] network, int prefixLength, PortRange ports) {
             this.network = network;
             this.prefixLength = prefixLength;
+            this.ports = ports;
+            this.country = null;
+            this.countryNegated = false;
         }
         
+        private IpRange(String country, boolean negated, PortRange ports) {
+            this.network = null;
+            this.prefixLength = 0;
+            this.ports = ports;
+            this.country = country;
+            this.countryNegated = negated;
+        }
+        
+        /**
+         * Подсеть с необязательным уточнением: "8.8.8.0/24 443 tcp", "geoip:cn"
+         */
         public static IpRange parse(String cidr) {
             try {
-                String[] parts = cidr.split("/");
+                String[] tokens = cidr.trim().split("\\s+");
+                PortRange ports = PortRange.parse(tokens, 1);
+                if (ports == null) {
+                    Log.e(TAG, "Bad port or protocol: " + cidr);
+                    return null;
+                }
+                
+                String target = tokens[0].toLowerCase();
+                if (target.startsWith(GEOIP_PREFIX)) {
+                    String code = target.substring(GEOIP_PREFIX.length());
+                    boolean negated = code.startsWith("!");
+                    if (negated) {
+                        code = code.substring(1);
+                    }
+                    if (!GeoIpDatabase.isCountryCode(code)) {
+                        Log.e(TAG, "Bad country code: " + cidr);
+                        return null;
+                    }
+                    return new IpRange(code, negated, ports);
+                }
+                
+                String[] parts = tokens[0].split("/");
                 String ip = parts[0];
                 int prefix = parts.length > 1 ? Integer.parseInt(parts[1]) : 32;
                 
+                byte[] ipv4 = parseIpv4(ip);
+                if (ipv4 != null) {
+                    return new IpRange(ipv4, prefix, ports);
+                }
+                if (ip.indexOf(':') < 0) {
+                    // Не адрес: getByName пошёл бы в DNS
+                    Log.e(TAG, "Not an IP range: " + cidr);
+                    return null;
+                }
                 InetAddress addr = InetAddress.getByName(ip);
-                return new IpRange(addr.getAddress(), prefix);
+                return new IpRange(addr.getAddress(), prefix, ports);
             } catch (Exception e) {
                 Log.e(TAG, "Failed to parse IP range: " + cidr, e);
                 return null;
             }
         }
         
+        /**
+         * Разбор IPv4 без InetAddress; null, если строка - не четыре десятичных октета
+         */
+        private static byte[] parseIpv4(String ip) {
+            String[] octets = ip.split("\\.", -1);
+            if (octets.length != 4) {
+                return null;
+            }
+            byte[] result = new byte[4];
+            for (int i = 0; i < 4; i++) {
+                String octet = octets[i];
+                if (octet.isEmpty() || octet.length() > 3) {
+                    return null;
+                }
+                int value = 0;
+                for (int j = 0; j < octet.length(); j++) {
+                    char c = octet.charAt(j);
+                    if (c < '0' || c > '9') {
+                        return null;
+                    }
+                    value = value * 10 + (c - '0');
+                }
+                if (value > 255) {
+                    return null;
+                }
+                result[i] = (byte) value;
+            }
+            return result;
+        }
+        
+        /**
+         * Подсети [start, end) из отсортированных непересекающихся интервалов, каждый
+         * интервал режется на наибольшие выровненные блоки
+         */
+        static List<IpRange> fromIntervals(long[] intervals, int length, PortRange ports) {
+            List<IpRange> result = new ArrayList<>();
+            for (int i = 0; i < length; i += 2) {
+                long start = intervals[i];
+                long end = intervals[i + 1];
+                while (start < end) {
+                    // Наибольший блок, выровненный по start и не выходящий за end
+                    long size = start == 0 ? 1L << 32 : Long.lowestOneBit(start);
+                    while (start + size > end) {
+                        size >>>= 1;
+                    }
+                    int address = (int) start;
+                    byte[] network = {
+                        (byte) (address >>> 24), (byte) (address >>> 16), (byte) (address >>> 8), (byte) address
+                    };
+                    result.add(new IpRange(network, 32 - Long.numberOfTrailingZeros(size), ports));
+                    start += size;
+                }
+            }
+            return result;
+        }
+        
+        public boolean isIpv4() {
+            return network != null && network.length == 4;
+        }
+        
+        public boolean isGeoIp() {
+            return country != null;
+        }
+        
+        public String getCountry() {
+            return country;
+        }
+        
+        public boolean isCountryNegated() {
+            return countryNegated;
+        }
+        
+        public int getPrefixLength() {
+            return prefixLength;
+        }
+        
+        public PortRange getPorts() {
+            return ports;
+        }
+        
+        public InetAddress getAddress() throws UnknownHostException {
+            return InetAddress.getByAddress(network);
+        }
+        
+        // Без копирования - для записи в базу правил
+        byte[] getNetwork() {
+            return network;
+        }
+        
+        public int getNetworkInt() {
+            return ((network[0] & 0xFF) << 24) | ((network[1] & 0xFF) << 16) |
+                   ((network[2] & 0xFF) << 8) | (network[3] & 0xFF);
+        }
+        
         public boolean contains(InetAddress address) {
             byte[] addrBytes = address.getAddress();
             
-            if (addrBytes.length != network.length) {
+            if (network == null || addrBytes.length != network.length) {
                 return false;
             }
             
@@ -329,9 +1079,14 @@ public class RouteManager {
         
         @Override
         public String toString() {
+            if (country != null) {
+                String geo = GEOIP_PREFIX + (countryNegated ? "!" : "") + country;
+                return ports.isAny() ? geo : geo + " " + ports;
+            }
             try {
                 InetAddress addr = InetAddress.getByAddress(network);
-                return addr.getHostAddress() + "/" + prefixLength;
+                String cidr = addr.getHostAddress() + "/" + prefixLength;
+                return ports.isAny() ? cidr : cidr + " " + ports;
             } catch (Exception e) {
                 return "invalid";
             }
@@ -1,28 +1,106 @@
 package com.example.socks5vpn;
 
+import android.content.Context;
+import android.content.Intent;
+import android.net.Uri;
 import android.os.Bundle;
+import android.text.Editable;
+import android.text.TextWatcher;
+import android.view.View;
+import android.widget.AdapterView;
+import android.widget.ArrayAdapter;
 import android.widget.EditText;
+import android.widget.RadioGroup;
+import android.widget.Spinner;
+import android.widget.TextView;
 import android.widget.Toast;
 
 import androidx.appcompat.app.AppCompatActivity;
+import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
 
 import com.google.android.material.appbar.MaterialToolbar;
 import com.google.android.material.button.MaterialButton;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
+/**
+ * Редактор правил. Списки правил показываются постранично (RuleListAdapter), а
+ * загрузка, поиск, проверка и импорт / экспорт идут в фоновом потоке: UI поток
+ * не трогает списки целиком, сколько бы в них ни было правил. Добавление и
+ * удаление сразу ставятся правкой в RouteManager; Save сохраняет их, выход без
+ * сохранения возвращает правила из настроек.
+ */
 public class RoutesActivity extends AppCompatActivity {
     
-    private EditText proxyHostsEdit;
-    private EditText proxyIpsEdit;
-    private EditText blockHostsEdit;
-    private EditText blockIpsEdit;
+    private static final int REQUEST_IMPORT_BLOCKLIST = 1;
+    private static final int REQUEST_IMPORT_GEOIP = 2;
+    private static final int REQUEST_IMPORT_RULES = 3;
+    private static final int REQUEST_EXPORT_RULES = 4;
+    
+    private static final RouteManager.RuleList[] RULE_LISTS = {
+        RouteManager.RuleList.PROXY_HOSTS, RouteManager.RuleList.PROXY_IPS,
+        RouteManager.RuleList.BLOCK_HOSTS, RouteManager.RuleList.BLOCK_IPS
+    };
+    private static final String[] RULE_LIST_NAMES = {
+        "Proxy Hosts (через SOCKS5)", "Proxy IPs/Subnets (через SOCKS5)",
+        "Block Hosts (блокировка)", "Block IPs/Subnets (блокировка)"
+    };
+    private static final String[] RULE_LIST_HINTS = {
+        "Хост, можно с портом и протоколом. Пример: google.com, youtube.com 443 tcp. Слово auto - напрямую или через прокси, что быстрее; proxy:имя - через именованный сервер",
+        "CIDR формат, можно с портом и протоколом. Пример: 8.8.8.0/24, 1.2.3.0/24 443 tcp, geoip:!ru. Слово auto - напрямую или через прокси, что быстрее; proxy:имя - через именованный сервер",
+        "Хост, можно с портом и протоколом. Пример: ads.example.com, youtube.com 443 udp",
+        "CIDR формат, можно с портом и протоколом. Пример: 10.0.0.0/8, 0.0.0.0/0 443 udp, geoip:cn"
+    };
+    
+    private Spinner ruleListSpinner;
+    private TextView ruleHintText;
+    private EditText ruleInputEdit;
+    private EditText ruleSearchEdit;
+    private TextView ruleCountText;
+    private RuleListAdapter ruleAdapter;
+    private EditText appsEdit;
+    private RadioGroup appModeGroup;
+    private TextView blocklistStatusText;
+    private MaterialButton importBlocklistButton;
+    private TextView geoIpStatusText;
+    private MaterialButton importGeoIpButton;
+    private EditText subscriptionsEdit;
+    private TextView subscriptionStatusText;
+    private MaterialButton updateSubscriptionsButton;
     
     private RouteManager routeManager;
+    private SubscriptionManager subscriptionManager;
+    
+    // Фоновые операции со списками - по очереди, в порядке действий пользователя
+    private final ExecutorService worker = Executors.newSingleThreadExecutor();
+    // Только в потоке worker: правила открытого списка, отсортированные
+    private RouteManager.RuleList loadedList;
+    private List<String> loadedRules = new ArrayList<>();
+    // Поиск: устаревшие результаты отбрасываются
+    private volatile int searchGeneration;
+    
+    private RouteManager.RuleList currentList = RouteManager.RuleList.PROXY_HOSTS;
+    private boolean loaded;
+    private boolean edited;
+    private boolean saved;
     
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -30,67 +108,469 @@ public class RoutesActivity extends AppCompatActivity {
         setContentView(R.layout.activity_routes);
         
         routeManager = RouteManager.getInstance();
-        routeManager.load(this);
+        subscriptionManager = SubscriptionManager.getInstance();
         
         initViews();
-        loadCurrentRules();
+        
+        // Разбор больших списков из настроек - не в UI потоке
+        worker.execute(() -> {
+            routeManager.load(this);
+            subscriptionManager.load(this);
+            runOnUiThread(() -> {
+                loaded = true;
+                loadCurrentRules();
+                showList(currentList);
+            });
+        });
+    }
+    
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if (isFinishing() && edited && !saved) {
+            // Несохранённые правки уже в RouteManager - возвращаем правила из настроек,
+            // после правок, которые ещё в очереди
+            final Context appContext = getApplicationContext();
+            worker.execute(() -> routeManager.load(appContext));
+        }
+        worker.shutdown();
     }
     
     private void initViews() {
         MaterialToolbar toolbar = findViewById(R.id.toolbar);
         toolbar.setNavigationOnClickListener(v -> finish());
         
-        proxyHostsEdit = findViewById(R.id.proxyHostsEdit);
-        proxyIpsEdit = findViewById(R.id.proxyIpsEdit);
-        blockHostsEdit = findViewById(R.id.blockHostsEdit);
-        blockIpsEdit = findViewById(R.id.blockIpsEdit);
+        ruleHintText = findViewById(R.id.ruleHintText);
+        ruleInputEdit = findViewById(R.id.ruleInputEdit);
+        ruleCountText = findViewById(R.id.ruleCountText);
+        
+        ruleListSpinner = findViewById(R.id.ruleListSpinner);
+        ArrayAdapter<String> names = new ArrayAdapter<>(this, android.R.layout.simple_spinner_item, RULE_LIST_NAMES);
+        names.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
+        ruleListSpinner.setAdapter(names);
+        ruleListSpinner.setOnItemSelectedListener(new AdapterView.OnItemSelectedListener() {
+            @Override
+            public void onItemSelected(AdapterView<?> parent, View view, int position, long id) {
+                ruleHintText.setText(RULE_LIST_HINTS[position]);
+                if (loaded && RULE_LISTS[position] != currentList) {
+                    showList(RULE_LISTS[position]);
+                }
+            }
+            
+            @Override
+            public void onNothingSelected(AdapterView<?> parent) {
+            }
+        });
+        
+        ruleSearchEdit = findViewById(R.id.ruleSearchEdit);
+        ruleSearchEdit.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            }
+            
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+            }
+            
+            @Override
+            public void afterTextChanged(Editable s) {
+                if (loaded) {
+                    search();
+                }
+            }
+        });
+        
+        RecyclerView rulesRecycler = findViewById(R.id.rulesRecycler);
+        rulesRecycler.setLayoutManager(new LinearLayoutManager(this));
+        ruleAdapter = new RuleListAdapter(this::removeRule);
+        rulesRecycler.setAdapter(ruleAdapter);
+        
+        MaterialButton addRuleButton = findViewById(R.id.addRuleButton);
+        addRuleButton.setOnClickListener(v -> addRule());
+        MaterialButton importRulesButton = findViewById(R.id.importRulesButton);
+        importRulesButton.setOnClickListener(v -> pickFile(REQUEST_IMPORT_RULES));
+        MaterialButton exportRulesButton = findViewById(R.id.exportRulesButton);
+        exportRulesButton.setOnClickListener(v -> {
+            Intent intent = new Intent(Intent.ACTION_CREATE_DOCUMENT);
+            intent.addCategory(Intent.CATEGORY_OPENABLE);
+            intent.setType("text/plain");
+            intent.putExtra(Intent.EXTRA_TITLE, currentList.name().toLowerCase() + ".txt");
+            startActivityForResult(intent, REQUEST_EXPORT_RULES);
+        });
+        
+        appsEdit = findViewById(R.id.appsEdit);
+        appModeGroup = findViewById(R.id.appModeGroup);
+        
+        blocklistStatusText = findViewById(R.id.blocklistStatusText);
+        importBlocklistButton = findViewById(R.id.importBlocklistButton);
+        importBlocklistButton.setOnClickListener(v -> pickFile(REQUEST_IMPORT_BLOCKLIST));
+        MaterialButton clearBlocklistButton = findViewById(R.id.clearBlocklistButton);
+        clearBlocklistButton.setOnClickListener(v -> {
+            routeManager.clearBlocklist(this);
+            updateBlocklistStatus();
+        });
+        
+        geoIpStatusText = findViewById(R.id.geoIpStatusText);
+        importGeoIpButton = findViewById(R.id.importGeoIpButton);
+        importGeoIpButton.setOnClickListener(v -> pickFile(REQUEST_IMPORT_GEOIP));
+        MaterialButton clearGeoIpButton = findViewById(R.id.clearGeoIpButton);
+        clearGeoIpButton.setOnClickListener(v -> {
+            routeManager.clearGeoIp(this);
+            geoIpStatusText.setText("Не загружен");
+        });
+        
+        subscriptionsEdit = findViewById(R.id.subscriptionsEdit);
+        subscriptionStatusText = findViewById(R.id.subscriptionStatusText);
+        updateSubscriptionsButton = findViewById(R.id.updateSubscriptionsButton);
+        updateSubscriptionsButton.setOnClickListener(v -> updateSubscriptions());
         
         MaterialButton saveButton = findViewById(R.id.saveButton);
         saveButton.setOnClickListener(v -> saveRules());
     }
     
-    private void loadCurrentRules() {
-        // Proxy hosts
-        Set<String> proxyHosts = routeManager.getProxyHosts();
-        proxyHostsEdit.setText(String.join("\n", proxyHosts));
+    private void pickFile(int requestCode) {
+        Intent intent = new Intent(Intent.ACTION_OPEN_DOCUMENT);
+        intent.addCategory(Intent.CATEGORY_OPENABLE);
+        intent.setType("*/*");
+        startActivityForResult(intent, requestCode);
+    }
+    
+    @Override
+    protected void onActivityResult(int requestCode, int resultCode, Intent data) {
+        super.onActivityResult(requestCode, resultCode, data);
+        if (resultCode != RESULT_OK || data == null || data.getData() == null) {
+            return;
+        }
+        if (requestCode == REQUEST_IMPORT_BLOCKLIST) {
+            importBlocklist(data.getData());
+        } else if (requestCode == REQUEST_IMPORT_GEOIP) {
+            importGeoIp(data.getData());
+        } else if (requestCode == REQUEST_IMPORT_RULES) {
+            importRules(currentList, data.getData());
+        } else if (requestCode == REQUEST_EXPORT_RULES) {
+            exportRules(currentList, data.getData());
+        }
+    }
+    
+    /**
+     * Открывает список: правила читаются из RouteManager в фоне, затем поиск
+     */
+    private void showList(final RouteManager.RuleList list) {
+        currentList = list;
+        ruleCountText.setText("Загрузка...");
+        ruleAdapter.setRules(new ArrayList<>());
+        worker.execute(() -> {
+            try {
+                loadedRules = routeManager.getRules(list);
+                loadedList = list;
+            } catch (InterruptedException e) {
+                return;
+            }
+            runOnUiThread(this::search);
+        });
+    }
+    
+    private void search() {
+        if (worker.isShutdown()) {
+            return;
+        }
+        final String query = ruleSearchEdit.getText().toString();
+        final int generation = ++searchGeneration;
+        worker.execute(() -> filter(query, generation));
+    }
+    
+    /**
+     * В потоке worker: правила открытого списка, содержащие строку поиска
+     */
+    private void filter(String query, final int generation) {
+        String needle = query.trim().toLowerCase();
+        final List<String> result;
+        if (needle.isEmpty()) {
+            result = new ArrayList<>(loadedRules);
+        } else {
+            result = new ArrayList<>();
+            for (String rule : loadedRules) {
+                if (rule.contains(needle)) {
+                    result.add(rule);
+                }
+            }
+        }
+        final int total = loadedRules.size();
+        runOnUiThread(() -> {
+            if (generation != searchGeneration) {
+                return;
+            }
+            ruleAdapter.setRules(result);
+            updateRuleCount(total);
+        });
+    }
+    
+    private void updateRuleCount(int total) {
+        int found = ruleAdapter.getRuleCount();
+        ruleCountText.setText(found == total ? total + " правил" : found + " из " + total);
+    }
+    
+    /**
+     * Правило из поля ввода: проверка и правка в фоне, неверное подсвечивается
+     */
+    private void addRule() {
+        final String text = ruleInputEdit.getText().toString();
+        final RouteManager.RuleList list = currentList;
+        worker.execute(() -> {
+            final String rule = RouteManager.normalizeRule(list, text);
+            if (rule == null) {
+                runOnUiThread(() -> ruleInputEdit.setError("Неверное правило"));
+                return;
+            }
+            routeManager.editRules(list, Collections.singleton(rule), Collections.<String>emptyList());
+            if (loadedList == list) {
+                int index = Collections.binarySearch(loadedRules, rule);
+                if (index < 0) {
+                    loadedRules.add(-index - 1, rule);
+                }
+            }
+            runOnUiThread(() -> {
+                edited = true;
+                ruleInputEdit.setText("");
+            });
+            runOnUiThread(this::search);
+        });
+    }
+    
+    private void removeRule(final String rule) {
+        final RouteManager.RuleList list = currentList;
+        edited = true;
+        ruleAdapter.remove(rule);
+        worker.execute(() -> {
+            routeManager.editRules(list, Collections.<String>emptyList(), Collections.singleton(rule));
+            if (loadedList == list) {
+                int index = Collections.binarySearch(loadedRules, rule);
+                if (index >= 0) {
+                    loadedRules.remove(index);
+                }
+            }
+            final int total = loadedRules.size();
+            runOnUiThread(() -> updateRuleCount(total));
+        });
+    }
+    
+    /**
+     * Импорт правил из файла построчно: файл не читается в память целиком, неверные
+     * строки и комментарии (#) пропускаются, все правила добавляются одной правкой
+     */
+    private void importRules(final RouteManager.RuleList list, final Uri uri) {
+        ruleCountText.setText("Импорт...");
+        worker.execute(() -> {
+            Set<String> rules = new LinkedHashSet<>();
+            int skipped = 0;
+            String error = null;
+            try (InputStream input = getContentResolver().openInputStream(uri)) {
+                if (input == null) {
+                    throw new IOException("Cannot open " + uri);
+                }
+                BufferedReader reader = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8));
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    line = line.trim();
+                    if (line.isEmpty() || line.startsWith("#")) continue;
+                    String rule = RouteManager.normalizeRule(list, line);
+                    if (rule != null) {
+                        rules.add(rule);
+                    } else {
+                        skipped++;
+                    }
+                }
+            } catch (IOException e) {
+                error = e.getMessage();
+            }
+            
+            if (error == null) {
+                routeManager.editRules(list, rules, Collections.<String>emptyList());
+                if (loadedList == list) {
+                    Set<String> merged = new HashSet<>(loadedRules);
+                    merged.addAll(rules);
+                    loadedRules = new ArrayList<>(merged);
+                    Collections.sort(loadedRules);
+                }
+            }
+            final String message = error != null
+                ? "Import failed: " + error
+                : "Imported " + rules.size() + " rules, skipped " + skipped;
+            runOnUiThread(() -> {
+                edited = true;
+                Toast.makeText(this, message, Toast.LENGTH_LONG).show();
+            });
+            runOnUiThread(this::search);
+        });
+    }
+    
+    /**
+     * Экспорт списка в файл, по правилу на строку
+     */
+    private void exportRules(final RouteManager.RuleList list, final Uri uri) {
+        worker.execute(() -> {
+            String message;
+            try (OutputStream output = getContentResolver().openOutputStream(uri)) {
+                if (output == null) {
+                    throw new IOException("Cannot open " + uri);
+                }
+                List<String> rules = routeManager.getRules(list);
+                Writer writer = new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8));
+                for (String rule : rules) {
+                    writer.write(rule);
+                    writer.write('\n');
+                }
+                writer.flush();
+                message = "Exported " + rules.size() + " rules";
+            } catch (IOException e) {
+                message = "Export failed: " + e.getMessage();
+            } catch (InterruptedException e) {
+                return;
+            }
+            final String result = message;
+            runOnUiThread(() -> Toast.makeText(this, result, Toast.LENGTH_SHORT).show());
+        });
+    }
+    
+    private void importBlocklist(Uri uri) {
+        importBlocklistButton.setEnabled(false);
+        blocklistStatusText.setText("Компиляция...");
         
-        // Proxy IPs
-        List<String> proxyIps = routeManager.getProxyIpRangesAsStrings();
-        proxyIpsEdit.setText(String.join("\n", proxyIps));
+        // Миллионы строк компилируются секунды - не в UI потоке
+        new Thread(() -> {
+            String error = null;
+            try (InputStream input = getContentResolver().openInputStream(uri)) {
+                if (input == null) {
+                    throw new IOException("Cannot open " + uri);
+                }
+                routeManager.importBlocklist(this, input);
+            } catch (Exception e) {
+                error = e.getMessage();
+            }
+            
+            String message = error;
+            runOnUiThread(() -> {
+                importBlocklistButton.setEnabled(true);
+                updateBlocklistStatus();
+                if (message != null) {
+                    Toast.makeText(this, "Blocklist import failed: " + message, Toast.LENGTH_LONG).show();
+                }
+            });
+        }, "blocklist-import").start();
+    }
+    
+    private void importGeoIp(Uri uri) {
+        importGeoIpButton.setEnabled(false);
+        geoIpStatusText.setText("Компиляция...");
         
-        // Block hosts
-        Set<String> blockHosts = routeManager.getBlockHosts();
-        blockHostsEdit.setText(String.join("\n", blockHosts));
+        new Thread(() -> {
+            String error = null;
+            try (InputStream input = getContentResolver().openInputStream(uri)) {
+                if (input == null) {
+                    throw new IOException("Cannot open " + uri);
+                }
+                routeManager.importGeoIp(this, input);
+            } catch (Exception e) {
+                error = e.getMessage();
+            }
+            
+            String message = error;
+            runOnUiThread(() -> {
+                importGeoIpButton.setEnabled(true);
+                updateGeoIpStatus();
+                if (message != null) {
+                    Toast.makeText(this, "GeoIP import failed: " + message, Toast.LENGTH_LONG).show();
+                }
+            });
+        }, "geoip-import").start();
+    }
+    
+    private void updateSubscriptions() {
+        updateSubscriptionsButton.setEnabled(false);
+        subscriptionStatusText.setText("Обновление...");
         
-        // Block IPs
-        List<String> blockIps = routeManager.getBlockIpRangesAsStrings();
-        blockIpsEdit.setText(String.join("\n", blockIps));
+        final List<String> lines = parseLinesList(subscriptionsEdit.getText().toString());
+        new Thread(() -> {
+            String error = null;
+            try {
+                subscriptionManager.setSubscriptions(this, lines);
+                subscriptionManager.refresh(this, true).get();
+            } catch (Exception e) {
+                error = e.getMessage();
+            }
+            final String message = error;
+            runOnUiThread(() -> {
+                updateSubscriptionsButton.setEnabled(true);
+                updateSubscriptionStatus();
+                if (message != null) {
+                    Toast.makeText(this, "Update failed: " + message, Toast.LENGTH_LONG).show();
+                }
+            });
+        }).start();
+    }
+    
+    private void updateSubscriptionStatus() {
+        String status = subscriptionManager.getStatus();
+        subscriptionStatusText.setText(status.isEmpty() ? "Нет подписок" : status);
+    }
+    
+    private void updateGeoIpStatus() {
+        GeoIpDatabase geoIp = routeManager.getGeoIp();
+        geoIpStatusText.setText(geoIp == null ? "Не загружен" : geoIp.getSummary());
+    }
+    
+    private void updateBlocklistStatus() {
+        BlocklistFilter blocklist = routeManager.getBlocklist();
+        blocklistStatusText.setText(blocklist == null ? "Не загружен" : blocklist.getSummary());
+    }
+    
+    private void loadCurrentRules() {
+        // Apps
+        switch (routeManager.getAppMode()) {
+            case ONLY:
+                appModeGroup.check(R.id.appModeOnly);
+                break;
+            case EXCEPT:
+                appModeGroup.check(R.id.appModeExcept);
+                break;
+            default:
+                appModeGroup.check(R.id.appModeAll);
+                break;
+        }
+        appsEdit.setText(String.join("\n", routeManager.getApps()));
+        
+        // Subscriptions
+        List<String> subscriptions = new ArrayList<>();
+        for (RuleSubscription subscription : subscriptionManager.getSubscriptions()) {
+            subscriptions.add(subscription.toString());
+        }
+        subscriptionsEdit.setText(String.join("\n", subscriptions));
+        
+        updateBlocklistStatus();
+        updateGeoIpStatus();
+        updateSubscriptionStatus();
     }
     
     private void saveRules() {
+        if (!loaded) {
+            // Правила ещё не загружены - сохранять нечего
+            return;
+        }
         try {
-            // Parse proxy hosts
-            String proxyHostsText = proxyHostsEdit.getText().toString();
-            Set<String> proxyHosts = parseLines(proxyHostsText);
-            routeManager.setProxyHosts(proxyHosts);
-            
-            // Parse proxy IPs
-            String proxyIpsText = proxyIpsEdit.getText().toString();
-            List<String> proxyIps = parseLinesList(proxyIpsText);
-            routeManager.setProxyIpRanges(proxyIps);
-            
-            // Parse block hosts
-            String blockHostsText = blockHostsEdit.getText().toString();
-            Set<String> blockHosts = parseLines(blockHostsText);
-            routeManager.setBlockHosts(blockHosts);
+            // Списки правил уже в RouteManager: правки ставились сразу
+            // Apps
+            int modeId = appModeGroup.getCheckedRadioButtonId();
+            RouteManager.AppMode appMode = modeId == R.id.appModeOnly ? RouteManager.AppMode.ONLY
+                : modeId == R.id.appModeExcept ? RouteManager.AppMode.EXCEPT : RouteManager.AppMode.ALL;
+            routeManager.setAppRules(appMode, parseLines(appsEdit.getText().toString()));
             
-            // Parse block IPs
-            String blockIpsText = blockIpsEdit.getText().toString();
-            List<String> blockIps = parseLinesList(blockIpsText);
-            routeManager.setBlockIpRanges(blockIps);
+            // Subscriptions: новые скачиваются в фоне
+            subscriptionManager.setSubscriptions(this, parseLinesList(subscriptionsEdit.getText().toString()));
             
-            // Save
-            routeManager.save(this);
+            // Save - после правок списков, которые ещё в очереди
+            final Context appContext = getApplicationContext();
+            worker.execute(() -> routeManager.save(appContext));
+            saved = true;
             
             Toast.makeText(this, "Routes saved successfully!", Toast.LENGTH_SHORT).show();
             finish();
@@ -0,0 +1,259 @@
+package com.example.socks5vpn;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Скомпилированные правила в одном файле: таблица IP интервалов и деревья хостов
+ * для прокси и блокировки. Файл отображается в память, и структуры работают прямо
+ * поверх него, поэтому открытие не зависит от числа правил: ни разбора строк, ни
+ * копирования массивов.
+ *
+ * Формат: заголовок (magic, версия формата, время компиляции, число правил), затем
+ * секции массивов. Секция - длина (long) и данные, выровненные на 8 байт.
+ * Порядок байт little-endian, как у ARM и x86, чтобы чтение не переставляло байты.
+ * Правила с уточнением по порту хранятся так же, по группам уточнений: таблицы
+ * и деревья каждой группы - секции того же файла (см. PortRules).
+ */
+public final class RuleDatabase {
+    private static final int MAGIC = 0x42445253; // "SRDB"
+    private static final int VERSION = 3;
+    private static final ByteOrder ORDER = ByteOrder.LITTLE_ENDIAN;
+    
+    private final CidrMatcher ipMatcher;
+    private final DomainTrie proxyHosts;
+    private final DomainTrie blockHosts;
+    private final PortRules portRules;
+    private final long compiledAt;
+    private final int ruleCount;
+    private final long size;
+    
+    private RuleDatabase(File file, MappedByteBuffer buffer) throws IOException {
+        Reader reader = new Reader(buffer);
+        if (buffer.capacity() < 24 || reader.getInt() != MAGIC) {
+            throw new IOException("Not a rule database: " + file);
+        }
+        int version = reader.getInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported rule database version " + version);
+        }
+        compiledAt = reader.getLong();
+        ruleCount = reader.getInt();
+        reader.getInt();
+        
+        ipMatcher = CidrMatcher.read(reader);
+        proxyHosts = DomainTrie.read(reader);
+        blockHosts = DomainTrie.read(reader);
+        portRules = PortRules.read(reader);
+        size = buffer.capacity();
+    }
+    
+    /**
+     * Отображает файл в память; IOException, если файла нет, он повреждён или старого формата
+     */
+    public static RuleDatabase open(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            return new RuleDatabase(file, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } catch (RuntimeException e) {
+            // Обрезанный файл: секция выходит за конец буфера
+            throw new IOException("Corrupted rule database: " + file, e);
+        } finally {
+            raf.close();
+        }
+    }
+    
+    /**
+     * Записывает скомпилированные структуры. Пишет во временный файл и переименовывает,
+     * так что уже отображённая старая версия остаётся целой.
+     */
+    public static void write(File file, CidrMatcher ipMatcher, DomainTrie proxyHosts,
+                             DomainTrie blockHosts, PortRules portRules, int ruleCount) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        Writer writer = new Writer(new FileOutputStream(temp).getChannel());
+        try {
+            writer.putInt(MAGIC);
+            writer.putInt(VERSION);
+            writer.putLong(System.currentTimeMillis());
+            writer.putInt(ruleCount);
+            writer.putInt(0);
+            
+            ipMatcher.write(writer);
+            proxyHosts.write(writer);
+            blockHosts.write(writer);
+            portRules.write(writer);
+        } finally {
+            writer.close();
+        }
+        
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Cannot replace " + file);
+        }
+    }
+    
+    public CidrMatcher getIpMatcher() {
+        return ipMatcher;
+    }
+    
+    public DomainTrie getProxyHosts() {
+        return proxyHosts;
+    }
+    
+    public DomainTrie getBlockHosts() {
+        return blockHosts;
+    }
+    
+    public PortRules getPortRules() {
+        return portRules;
+    }
+    
+    public long getCompiledAt() {
+        return compiledAt;
+    }
+    
+    public int getRuleCount() {
+        return ruleCount;
+    }
+    
+    public long getSize() {
+        return size;
+    }
+    
+    /**
+     * Последовательная запись секций через буфер
+     */
+    static final class Writer {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 16).order(ORDER);
+        private long position;
+        
+        Writer(FileChannel channel) {
+            this.channel = channel;
+        }
+        
+        void putInt(int value) throws IOException {
+            ensure(4);
+            buffer.putInt(value);
+            position += 4;
+        }
+        
+        void putLong(long value) throws IOException {
+            ensure(8);
+            buffer.putLong(value);
+            position += 8;
+        }
+        
+        void ints(IntBuffer values) throws IOException {
+            putLong(values.capacity());
+            for (int i = 0; i < values.capacity(); i++) {
+                putInt(values.get(i));
+            }
+            align();
+        }
+        
+        void longs(LongBuffer values) throws IOException {
+            putLong(values.capacity());
+            for (int i = 0; i < values.capacity(); i++) {
+                putLong(values.get(i));
+            }
+        }
+        
+        void bytes(ByteBuffer values) throws IOException {
+            putLong(values.capacity());
+            for (int i = 0; i < values.capacity(); i++) {
+                ensure(1);
+                buffer.put(values.get(i));
+                position++;
+            }
+            align();
+        }
+        
+        private void align() throws IOException {
+            while ((position & 7) != 0) {
+                ensure(1);
+                buffer.put((byte) 0);
+                position++;
+            }
+        }
+        
+        private void ensure(int bytes) throws IOException {
+            if (buffer.remaining() < bytes) {
+                flush();
+            }
+        }
+        
+        private void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+        
+        void close() throws IOException {
+            try {
+                flush();
+                channel.force(false);
+            } finally {
+                channel.close();
+            }
+        }
+    }
+    
+    /**
+     * Последовательное чтение секций: каждая секция отдаётся видом на отображённый буфер
+     */
+    static final class Reader {
+        private final ByteBuffer buffer;
+        
+        Reader(ByteBuffer buffer) {
+            this.buffer = buffer.duplicate().order(ORDER);
+        }
+        
+        int getInt() {
+            return buffer.getInt();
+        }
+        
+        long getLong() {
+            return buffer.getLong();
+        }
+        
+        IntBuffer ints() throws IOException {
+            return section(4).asIntBuffer();
+        }
+        
+        LongBuffer longs() throws IOException {
+            return section(8).asLongBuffer();
+        }
+        
+        ByteBuffer bytes() throws IOException {
+            return section(1);
+        }
+        
+        private ByteBuffer section(int elementSize) throws IOException {
+            long count = buffer.getLong();
+            long length = count * elementSize;
+            if (count < 0 || length > buffer.remaining()) {
+                throw new IOException("Corrupted rule database section");
+            }
+            ByteBuffer slice = buffer.slice();
+            slice.limit((int) length);
+            // slice() сбрасывает порядок байт в big-endian
+            slice = slice.slice().order(ORDER);
+            
+            int padded = (int) ((length + 7) & ~7L);
+            buffer.position(buffer.position() + Math.min(padded, buffer.remaining()));
+            return slice;
+        }
+    }
+}
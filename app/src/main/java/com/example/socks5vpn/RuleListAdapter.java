@@ -0,0 +1,105 @@
+package com.example.socks5vpn;
+
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.ImageButton;
+import android.widget.TextView;
+
+import androidx.annotation.NonNull;
+import androidx.recyclerview.widget.RecyclerView;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Правила списка в редакторе. Список отдаётся страницами: сначала PAGE_SIZE строк,
+ * следующая страница подключается, когда прокрутка подходит к концу, так что
+ * обновление на 100k правил не пересчитывает раскладку всего списка.
+ */
+public class RuleListAdapter extends RecyclerView.Adapter<RuleListAdapter.RuleViewHolder> {
+    
+    private static final int PAGE_SIZE = 200;
+    
+    public interface OnRemoveListener {
+        void onRemove(String rule);
+    }
+    
+    private final OnRemoveListener listener;
+    private List<String> rules = new ArrayList<>();
+    private int shown;
+    
+    public RuleListAdapter(OnRemoveListener listener) {
+        this.listener = listener;
+    }
+    
+    @NonNull
+    @Override
+    public RuleViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
+        View view = LayoutInflater.from(parent.getContext())
+            .inflate(R.layout.item_rule, parent, false);
+        return new RuleViewHolder(view);
+    }
+    
+    @Override
+    public void onBindViewHolder(@NonNull RuleViewHolder holder, int position) {
+        final String rule = rules.get(position);
+        holder.ruleText.setText(rule);
+        holder.removeButton.setOnClickListener(v -> listener.onRemove(rule));
+        
+        // Подгружаем следующую страницу заранее; менять список во время привязки нельзя
+        if (position >= shown - PAGE_SIZE / 4 && shown < rules.size()) {
+            holder.itemView.post(this::showNextPage);
+        }
+    }
+    
+    private void showNextPage() {
+        int old = shown;
+        shown = Math.min(rules.size(), shown + PAGE_SIZE);
+        if (shown > old) {
+            notifyItemRangeInserted(old, shown - old);
+        }
+    }
+    
+    @Override
+    public int getItemCount() {
+        return shown;
+    }
+    
+    /**
+     * Новый результат поиска: отсортированный список, который вызывающий больше не меняет
+     */
+    public void setRules(List<String> newRules) {
+        rules = newRules;
+        shown = Math.min(rules.size(), PAGE_SIZE);
+        notifyDataSetChanged();
+    }
+    
+    public void remove(String rule) {
+        int index = Collections.binarySearch(rules, rule);
+        if (index < 0) {
+            return;
+        }
+        rules.remove(index);
+        if (index < shown) {
+            shown--;
+            notifyItemRemoved(index);
+        }
+    }
+    
+    public int getRuleCount() {
+        return rules.size();
+    }
+    
+    static class RuleViewHolder extends RecyclerView.ViewHolder {
+        TextView ruleText;
+        ImageButton removeButton;
+        
+        RuleViewHolder(View itemView) {
+            super(itemView);
+            ruleText = itemView.findViewById(R.id.ruleText);
+            removeButton = itemView.findViewById(R.id.removeRuleButton);
+        }
+    }
+}
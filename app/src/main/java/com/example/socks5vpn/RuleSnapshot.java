@@ -0,0 +1,301 @@
+package com.example.socks5vpn;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Неизменяемый набор правил: исходные списки и скомпилированные из них структуры.
+ * RouteManager держит текущий набор в одной volatile ссылке; поиск читает её один
+ * раз и работает с согласованным набором без блокировок, а правка собирает новый
+ * набор и подменяет ссылку целиком.
+ *
+ * Набор из RuleDatabase не содержит исходных списков (hasSources() == false):
+ * сервису они не нужны, редактор подгружает их через RouteManager.load().
+ *
+ * Правила "geoip:" разворачиваются в подсети страны из GeoIpDatabase при сборке
+ * таблиц, поэтому после замены базы стран таблицы собираются заново (withGeoIp).
+ *
+ * Списки подписок (SubscriptionManager) подключаются готовыми фильтрами, как
+ * большой список блокировки: обновление подписки меняет только ссылку на фильтр.
+ */
+public final class RuleSnapshot {
+    private static final String TAG = "RuleSnapshot";
+    
+    public static final RuleSnapshot EMPTY = new RuleSnapshot(
+        Collections.<String>emptySet(), Collections.<String>emptySet(),
+        Collections.<RouteManager.IpRange>emptyList(), Collections.<RouteManager.IpRange>emptyList(),
+        true, CidrMatcher.EMPTY, DomainTrie.EMPTY, DomainTrie.EMPTY, PortRules.EMPTY, null, null, null, null, 0);
+    
+    private final Set<String> proxyHosts;
+    private final Set<String> blockHosts;
+    private final List<RouteManager.IpRange> proxyIpRanges;
+    private final List<RouteManager.IpRange> blockIpRanges;
+    private final boolean hasSources;
+    
+    private final CidrMatcher ipMatcher;
+    private final DomainTrie proxyHostTrie;
+    private final DomainTrie blockHostTrie;
+    // Правила с уточнением по порту / протоколу - отдельно от общих таблиц
+    private final PortRules portRules;
+    private final BlocklistFilter blocklist;
+    // Для разворачивания правил "geoip:" в подсети; null - базы нет
+    private final GeoIpDatabase geoIp;
+    // Слитые списки подписок; null - подписок этой цели нет
+    private final BlocklistFilter subscribedBlock;
+    private final BlocklistFilter subscribedProxy;
+    private final int ruleCount;
+    
+    private RuleSnapshot(Set<String> proxyHosts, Set<String> blockHosts,
+                         List<RouteManager.IpRange> proxyIpRanges, List<RouteManager.IpRange> blockIpRanges,
+                         boolean hasSources, CidrMatcher ipMatcher, DomainTrie proxyHostTrie,
+                         DomainTrie blockHostTrie, PortRules portRules, BlocklistFilter blocklist,
+                         GeoIpDatabase geoIp, BlocklistFilter subscribedBlock,
+                         BlocklistFilter subscribedProxy, int ruleCount) {
+        this.proxyHosts = proxyHosts;
+        this.blockHosts = blockHosts;
+        this.proxyIpRanges = proxyIpRanges;
+        this.blockIpRanges = blockIpRanges;
+        this.hasSources = hasSources;
+        this.ipMatcher = ipMatcher;
+        this.proxyHostTrie = proxyHostTrie;
+        this.blockHostTrie = blockHostTrie;
+        this.portRules = portRules;
+        this.blocklist = blocklist;
+        this.geoIp = geoIp;
+        this.subscribedBlock = subscribedBlock;
+        this.subscribedProxy = subscribedProxy;
+        this.ruleCount = ruleCount;
+    }
+    
+    /**
+     * Полная компиляция из исходных списков
+     */
+    public static RuleSnapshot compile(Set<String> proxyHosts, Set<String> blockHosts,
+                                       List<RouteManager.IpRange> proxyIpRanges,
+                                       List<RouteManager.IpRange> blockIpRanges, BlocklistFilter blocklist,
+                                       GeoIpDatabase geoIp) {
+        return EMPTY.withBlocklist(blocklist)
+            .withGeoIp(geoIp)
+            .withProxyHosts(proxyHosts)
+            .withBlockHosts(blockHosts)
+            .withIpRanges(proxyIpRanges, blockIpRanges);
+    }
+    
+    /**
+     * Набор поверх отображённой базы правил, без исходных списков
+     */
+    public static RuleSnapshot fromDatabase(RuleDatabase database, BlocklistFilter blocklist, GeoIpDatabase geoIp) {
+        return new RuleSnapshot(
+            Collections.<String>emptySet(), Collections.<String>emptySet(),
+            Collections.<RouteManager.IpRange>emptyList(), Collections.<RouteManager.IpRange>emptyList(),
+            false, database.getIpMatcher(), database.getProxyHosts(), database.getBlockHosts(),
+            database.getPortRules(), blocklist, geoIp, null, null, database.getRuleCount());
+    }
+    
+    /**
+     * Подставляет исходные списки, не трогая скомпилированные структуры. Только для
+     * списков, из которых эти структуры и были собраны.
+     */
+    public RuleSnapshot withSources(Set<String> proxyHosts, Set<String> blockHosts,
+                                    List<RouteManager.IpRange> proxyIpRanges,
+                                    List<RouteManager.IpRange> blockIpRanges) {
+        return new RuleSnapshot(freeze(proxyHosts), freeze(blockHosts), freeze(proxyIpRanges),
+                                freeze(blockIpRanges), true, ipMatcher, proxyHostTrie, blockHostTrie,
+                                portRules, blocklist, geoIp, subscribedBlock, subscribedProxy,
+                                countRules(proxyHosts, blockHosts, proxyIpRanges, blockIpRanges));
+    }
+    
+    public RuleSnapshot withProxyHosts(Set<String> hosts) {
+        Set<String> frozen = freeze(hosts);
+        return new RuleSnapshot(frozen, blockHosts, proxyIpRanges, blockIpRanges, true, ipMatcher,
+                                DomainTrie.build(unqualified(frozen)), blockHostTrie,
+                                buildPortRules(frozen, blockHosts, proxyIpRanges, blockIpRanges, geoIp), blocklist,
+                                geoIp, subscribedBlock, subscribedProxy,
+                                countRules(frozen, blockHosts, proxyIpRanges, blockIpRanges));
+    }
+    
+    public RuleSnapshot withBlockHosts(Set<String> hosts) {
+        Set<String> frozen = freeze(hosts);
+        return new RuleSnapshot(proxyHosts, frozen, proxyIpRanges, blockIpRanges, true, ipMatcher,
+                                proxyHostTrie, DomainTrie.build(unqualified(frozen)),
+                                buildPortRules(proxyHosts, frozen, proxyIpRanges, blockIpRanges, geoIp), blocklist,
+                                geoIp, subscribedBlock, subscribedProxy,
+                                countRules(proxyHosts, frozen, proxyIpRanges, blockIpRanges));
+    }
+    
+    public RuleSnapshot withIpRanges(List<RouteManager.IpRange> proxyRanges, List<RouteManager.IpRange> blockRanges) {
+        return withIpRanges(freeze(proxyRanges), freeze(blockRanges), geoIp);
+    }
+    
+    private RuleSnapshot withIpRanges(List<RouteManager.IpRange> proxy, List<RouteManager.IpRange> block,
+                                      GeoIpDatabase geo) {
+        return new RuleSnapshot(proxyHosts, blockHosts, proxy, block, true,
+                                CidrMatcher.build(expand(unqualifiedRanges(proxy), geo),
+                                                  expand(unqualifiedRanges(block), geo)),
+                                proxyHostTrie, blockHostTrie, buildPortRules(proxyHosts, blockHosts, proxy, block, geo),
+                                blocklist, geo, subscribedBlock, subscribedProxy,
+                                countRules(proxyHosts, blockHosts, proxy, block));
+    }
+    
+    public RuleSnapshot withBlocklist(BlocklistFilter filter) {
+        return new RuleSnapshot(proxyHosts, blockHosts, proxyIpRanges, blockIpRanges, hasSources, ipMatcher,
+                                proxyHostTrie, blockHostTrie, portRules, filter, geoIp, subscribedBlock,
+                                subscribedProxy, ruleCount);
+    }
+    
+    public RuleSnapshot withSubscriptions(BlocklistFilter block, BlocklistFilter proxy) {
+        return new RuleSnapshot(proxyHosts, blockHosts, proxyIpRanges, blockIpRanges, hasSources, ipMatcher,
+                                proxyHostTrie, blockHostTrie, portRules, blocklist, geoIp, block, proxy, ruleCount);
+    }
+    
+    /**
+     * Подключает базу стран. Если среди исходных списков есть правила "geoip:",
+     * таблицы адресов собираются заново; набор без исходных списков (из RuleDatabase)
+     * остаётся со странами, развёрнутыми при записи базы правил.
+     */
+    public RuleSnapshot withGeoIp(GeoIpDatabase database) {
+        if (hasSources && (hasGeoIp(proxyIpRanges) || hasGeoIp(blockIpRanges))) {
+            return withIpRanges(proxyIpRanges, blockIpRanges, database);
+        }
+        return new RuleSnapshot(proxyHosts, blockHosts, proxyIpRanges, blockIpRanges, hasSources, ipMatcher,
+                                proxyHostTrie, blockHostTrie, portRules, blocklist, database, subscribedBlock,
+                                subscribedProxy, ruleCount);
+    }
+    
+    private static boolean hasGeoIp(List<RouteManager.IpRange> ranges) {
+        for (RouteManager.IpRange range : ranges) {
+            if (range.isGeoIp()) return true;
+        }
+        return false;
+    }
+    
+    /**
+     * Заменяет правила "geoip:" подсетями страны с тем же уточнением
+     */
+    private static List<RouteManager.IpRange> expand(List<RouteManager.IpRange> ranges, GeoIpDatabase geo) {
+        if (!hasGeoIp(ranges)) {
+            return ranges;
+        }
+        List<RouteManager.IpRange> result = new ArrayList<>();
+        for (RouteManager.IpRange range : ranges) {
+            if (!range.isGeoIp()) {
+                result.add(range);
+            } else if (geo == null) {
+                Log.w(TAG, "No GeoIP database, skipping " + range);
+            } else {
+                List<RouteManager.IpRange> country = geo.getRanges(range.getCountry(), range.isCountryNegated(),
+                                                                   range.getPorts());
+                if (country.isEmpty()) {
+                    Log.w(TAG, "No ranges for " + range);
+                }
+                result.addAll(country);
+            }
+        }
+        return result;
+    }
+    
+    private static PortRules buildPortRules(Set<String> proxyHosts, Set<String> blockHosts,
+                                            List<RouteManager.IpRange> proxyRanges,
+                                            List<RouteManager.IpRange> blockRanges, GeoIpDatabase geo) {
+        return PortRules.build(proxyHosts, blockHosts, expand(qualifiedRanges(proxyRanges), geo),
+                               expand(qualifiedRanges(blockRanges), geo));
+    }
+    
+    private static List<String> unqualified(Set<String> hosts) {
+        List<String> result = new ArrayList<>();
+        for (String host : hosts) {
+            if (!PortRange.isQualified(host)) result.add(host);
+        }
+        return result;
+    }
+    
+    private static List<RouteManager.IpRange> unqualifiedRanges(List<RouteManager.IpRange> ranges) {
+        List<RouteManager.IpRange> result = new ArrayList<>();
+        for (RouteManager.IpRange range : ranges) {
+            if (range.getPorts().isAny()) result.add(range);
+        }
+        return result;
+    }
+    
+    private static List<RouteManager.IpRange> qualifiedRanges(List<RouteManager.IpRange> ranges) {
+        List<RouteManager.IpRange> result = new ArrayList<>();
+        for (RouteManager.IpRange range : ranges) {
+            if (!range.getPorts().isAny()) result.add(range);
+        }
+        return result;
+    }
+    
+    private static <T> Set<T> freeze(Set<T> values) {
+        return Collections.unmodifiableSet(new HashSet<>(values));
+    }
+    
+    private static <T> List<T> freeze(List<T> values) {
+        return Collections.unmodifiableList(new ArrayList<>(values));
+    }
+    
+    private static int countRules(Set<String> proxyHosts, Set<String> blockHosts,
+                                  List<RouteManager.IpRange> proxyIpRanges, List<RouteManager.IpRange> blockIpRanges) {
+        return proxyHosts.size() + blockHosts.size() + proxyIpRanges.size() + blockIpRanges.size();
+    }
+    
+    public Set<String> getProxyHosts() {
+        return proxyHosts;
+    }
+    
+    public Set<String> getBlockHosts() {
+        return blockHosts;
+    }
+    
+    public List<RouteManager.IpRange> getProxyIpRanges() {
+        return proxyIpRanges;
+    }
+    
+    public List<RouteManager.IpRange> getBlockIpRanges() {
+        return blockIpRanges;
+    }
+    
+    public boolean hasSources() {
+        return hasSources;
+    }
+    
+    public CidrMatcher getIpMatcher() {
+        return ipMatcher;
+    }
+    
+    public DomainTrie getProxyHostTrie() {
+        return proxyHostTrie;
+    }
+    
+    public DomainTrie getBlockHostTrie() {
+        return blockHostTrie;
+    }
+    
+    public PortRules getPortRules() {
+        return portRules;
+    }
+    
+    public BlocklistFilter getBlocklist() {
+        return blocklist;
+    }
+    
+    public GeoIpDatabase getGeoIp() {
+        return geoIp;
+    }
+    
+    public BlocklistFilter getSubscribedBlock() {
+        return subscribedBlock;
+    }
+    
+    public BlocklistFilter getSubscribedProxy() {
+        return subscribedProxy;
+    }
+    
+    public int getRuleCount() {
+        return ruleCount;
+    }
+}
@@ -0,0 +1,130 @@
+package com.example.socks5vpn;
+
+/**
+ * Подписка на список правил по URL (http(s):// или file://). Список в формате
+ * большого списка блокировки (hosts, adblock, домен/CIDR на строку) и пополняет
+ * блокировку или прокси, см. SubscriptionManager.
+ *
+ * В редакторе подписка - строка "block URL" или "proxy URL"; в настройках к ней
+ * добавляется состояние последнего обновления.
+ */
+public final class RuleSubscription {
+    public enum Target { BLOCK, PROXY }
+    
+    private final Target target;
+    private final String url;
+    
+    // Для условного запроса: сервер ответит 304, если список не менялся
+    private String etag = "";
+    private String lastModified = "";
+    private long checkedAt;
+    private long updatedAt;
+    private int entryCount;
+    private String lastError = "";
+    
+    public RuleSubscription(Target target, String url) {
+        this.target = target;
+        this.url = url;
+    }
+    
+    /**
+     * Подписка из строки редактора; null, если строка неверная
+     */
+    public static RuleSubscription parse(String line) {
+        String[] tokens = line.trim().split("\\s+");
+        if (tokens.length != 2) {
+            return null;
+        }
+        Target target;
+        try {
+            target = Target.valueOf(tokens[0].toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        String url = tokens[1];
+        if (!url.startsWith("http://") && !url.startsWith("https://") && !url.startsWith("file:")) {
+            return null;
+        }
+        return new RuleSubscription(target, url);
+    }
+    
+    /**
+     * Подписка с состоянием из настроек; null, если запись повреждена
+     */
+    static RuleSubscription deserialize(String value) {
+        String[] fields = value.split("\t", -1);
+        if (fields.length != 8) {
+            return null;
+        }
+        RuleSubscription subscription = parse(fields[0] + " " + fields[1]);
+        if (subscription == null) {
+            return null;
+        }
+        try {
+            subscription.etag = fields[2];
+            subscription.lastModified = fields[3];
+            subscription.checkedAt = Long.parseLong(fields[4]);
+            subscription.updatedAt = Long.parseLong(fields[5]);
+            subscription.entryCount = Integer.parseInt(fields[6]);
+            subscription.lastError = fields[7];
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return subscription;
+    }
+    
+    String serialize() {
+        return target.name().toLowerCase() + "\t" + url + "\t" + etag + "\t" + lastModified + "\t" +
+               checkedAt + "\t" + updatedAt + "\t" + entryCount + "\t" + lastError.replace('\t', ' ');
+    }
+    
+    /**
+     * Имя файла скомпилированного списка: от цели и URL
+     */
+    String getId() {
+        long h = 0xCBF29CE484222325L;
+        String key = target + " " + url;
+        for (int i = 0; i < key.length(); i++) {
+            h = (h ^ key.charAt(i)) * 0x100000001B3L;
+        }
+        return target.name().toLowerCase() + "-" + Long.toHexString(h);
+    }
+    
+    void copyStateFrom(RuleSubscription other) {
+        etag = other.etag;
+        lastModified = other.lastModified;
+        checkedAt = other.checkedAt;
+        updatedAt = other.updatedAt;
+        entryCount = other.entryCount;
+        lastError = other.lastError;
+    }
+    
+    void setValidators(String etag, String lastModified) {
+        this.etag = etag != null ? etag : "";
+        this.lastModified = lastModified != null ? lastModified : "";
+    }
+    
+    void setChecked(long time, String error) {
+        this.checkedAt = time;
+        this.lastError = error != null ? error : "";
+    }
+    
+    void setUpdated(long time, int entries) {
+        this.updatedAt = time;
+        this.entryCount = entries;
+    }
+    
+    public Target getTarget() { return target; }
+    public String getUrl() { return url; }
+    public String getEtag() { return etag; }
+    public String getLastModified() { return lastModified; }
+    public long getCheckedAt() { return checkedAt; }
+    public long getUpdatedAt() { return updatedAt; }
+    public int getEntryCount() { return entryCount; }
+    public String getLastError() { return lastError; }
+    
+    @Override
+    public String toString() {
+        return target.name().toLowerCase() + " " + url;
+    }
+}
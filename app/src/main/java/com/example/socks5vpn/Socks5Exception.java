@@ -0,0 +1,35 @@
+package com.example.socks5vpn;
+
+import java.io.IOException;
+
+/**
+ * Отказ SOCKS5 сервера на команду: код ответа из RFC 1928
+ */
+public class Socks5Exception extends IOException {
+    private static final long serialVersionUID = 1L;
+    
+    public static final int GENERAL_FAILURE = 0x01;
+    public static final int NOT_ALLOWED = 0x02;
+    public static final int NETWORK_UNREACHABLE = 0x03;
+    public static final int HOST_UNREACHABLE = 0x04;
+    public static final int CONNECTION_REFUSED = 0x05;
+    public static final int TTL_EXPIRED = 0x06;
+    
+    private final int replyCode;
+    
+    public Socks5Exception(String message, int replyCode) {
+        super(message);
+        this.replyCode = replyCode;
+    }
+    
+    public int getReplyCode() {
+        return replyCode;
+    }
+    
+    /**
+     * Отказ относится к назначению, а не к серверу: повтор сразу же ответит так же
+     */
+    public boolean isDestinationFailure() {
+        return replyCode >= NOT_ALLOWED && replyCode <= TTL_EXPIRED;
+    }
+}
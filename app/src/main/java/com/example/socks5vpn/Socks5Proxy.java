@@ -3,6 +3,7 @@ package com.example.socks5vpn;
 import android.net.VpnService;
 import android.util.Log;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -20,8 +21,14 @@ public class Socks5Proxy {
     private static final byte AUTH_NO_ACCEPTABLE = (byte) 0xFF;
     
     private static final byte CMD_CONNECT = 0x01;
+    private static final byte CMD_UDP_ASSOCIATE = 0x03;
     
     private static final byte ADDR_TYPE_IPV4 = 0x01;
+    private static final byte ADDR_TYPE_DOMAIN = 0x03;
+    private static final byte ADDR_TYPE_IPV6 = 0x04;
+    
+    // Заголовок UDP датаграммы (RFC 1928, раздел 7) для IPv4: RSV(2) FRAG(1) ATYP(1) ADDR(4) PORT(2)
+    public static final int UDP_HEADER_IPV4_SIZE = 10;
     
     private static final byte REPLY_SUCCEEDED = 0x00;
     
@@ -41,6 +48,64 @@ public class Socks5Proxy {
         Log.d(TAG, "SOCKS5 Server: " + config.getServerAddress() + ":" + config.getServerPort());
         Log.d(TAG, "Destination: " + destAddress.getHostAddress() + ":" + destPort);
         
+        openControlConnection(timeout);
+        
+        // Step 2: Connect request
+        Log.d(TAG, "Sending connect request to " + destAddress.getHostAddress() + ":" + destPort);
+        sendCommand(CMD_CONNECT, ADDR_TYPE_IPV4, destAddress.getAddress(), destPort);
+        
+        Log.d(TAG, "=== SOCKS5 tunnel established successfully ===");
+        
+        return socket;
+    }
+    
+    /**
+     * CONNECT по имени хоста: имя разрешает сам прокси сервер
+     */
+    public Socket connect(String destHost, int destPort, int timeout) throws IOException {
+        Log.d(TAG, "=== Starting SOCKS5 connection ===");
+        Log.d(TAG, "SOCKS5 Server: " + config.getServerAddress() + ":" + config.getServerPort());
+        Log.d(TAG, "Destination: " + destHost + ":" + destPort);
+        
+        openControlConnection(timeout);
+        
+        sendCommand(CMD_CONNECT, ADDR_TYPE_DOMAIN, encodeDomain(destHost), destPort);
+        
+        Log.d(TAG, "=== SOCKS5 tunnel established successfully ===");
+        
+        return socket;
+    }
+    
+    /**
+     * Открывает UDP ассоциацию (UDP ASSOCIATE). Управляющее TCP соединение
+     * остаётся открытым: пока оно живо, сервер держит relay. Возвращает адрес relay,
+     * на который нужно слать инкапсулированные датаграммы.
+     */
+    public InetSocketAddress udpAssociate(int timeout) throws IOException {
+        Log.d(TAG, "=== Starting SOCKS5 UDP association ===");
+        Log.d(TAG, "SOCKS5 Server: " + config.getServerAddress() + ":" + config.getServerPort());
+        
+        openControlConnection(timeout);
+        
+        // Адрес клиента неизвестен заранее (NAT), поэтому отправляем 0.0.0.0:0
+        InetSocketAddress bound = sendCommand(CMD_UDP_ASSOCIATE, ADDR_TYPE_IPV4, new byte[4], 0);
+        
+        // Если сервер вернул 0.0.0.0 - relay находится на адресе самого сервера
+        InetSocketAddress relay;
+        if (bound.getAddress() == null || bound.getAddress().isAnyLocalAddress()) {
+            relay = new InetSocketAddress(socket.getInetAddress(), bound.getPort());
+        } else {
+            relay = bound;
+        }
+        
+        // Управляющее соединение только держит ассоциацию, таймаут чтения не нужен
+        socket.setSoTimeout(0);
+        
+        Log.d(TAG, "=== SOCKS5 UDP relay: " + relay + " ===");
+        return relay;
+    }
+    
+    private void openControlConnection(int timeout) throws IOException {
         socket = new Socket();
         socket.setReuseAddress(true);
         socket.setTcpNoDelay(true);
@@ -73,14 +138,6 @@ public class Socks5Proxy {
         // Step 1: Authentication negotiation
         Log.d(TAG, "Starting authentication negotiation...");
         authenticate();
-        
-        // Step 2: Connect request
-        Log.d(TAG, "Sending connect request to " + destAddress.getHostAddress() + ":" + destPort);
-        sendConnectRequest(destAddress, destPort);
-        
-        Log.d(TAG, "=== SOCKS5 tunnel established successfully ===");
-        
-        return socket;
     }
     
     private void authenticate() throws IOException {
@@ -136,12 +193,18 @@ public class Socks5Proxy {
     
     private void performUsernamePasswordAuth() throws IOException {
         String username = config.getUsername();
-        String password = config.getPassword();
         
         Log.d(TAG, "Performing username/password auth for user: " + username);
         
-        byte[] usernameBytes = username.getBytes("UTF-8");
-        byte[] passwordBytes = password.getBytes("UTF-8");
+        outputStream.write(buildUsernamePasswordRequest());
+        outputStream.flush();
+        
+        readUsernamePasswordResponse();
+    }
+    
+    private byte[] buildUsernamePasswordRequest() throws IOException {
+        byte[] usernameBytes = config.getUsername().getBytes("UTF-8");
+        byte[] passwordBytes = config.getPassword().getBytes("UTF-8");
         
         ByteBuffer authRequest = ByteBuffer.allocate(3 + usernameBytes.length + passwordBytes.length);
         authRequest.put((byte) 0x01);
@@ -149,10 +212,10 @@ public class Socks5Proxy {
         authRequest.put(usernameBytes);
         authRequest.put((byte) passwordBytes.length);
         authRequest.put(passwordBytes);
-        
-        outputStream.write(authRequest.array());
-        outputStream.flush();
-        
+        return authRequest.array();
+    }
+    
+    private void readUsernamePasswordResponse() throws IOException {
         byte[] response = new byte[2];
         int read = readFully(inputStream, response);
         
@@ -165,21 +228,95 @@ public class Socks5Proxy {
         Log.d(TAG, "Username/password authentication successful");
     }
     
-    private void sendConnectRequest(InetAddress destAddress, int destPort) throws IOException {
-        byte[] addressBytes = destAddress.getAddress();
+    /**
+     * SOCKS5 CONNECT поверх уже открытого потока (например, mux потока).
+     * Приветствие, аутентификация и запрос отправляются одной пачкой без
+     * ожидания ответов, поэтому рукопожатие занимает один round-trip.
+     * Предлагается ровно один метод аутентификации, так что сервер не может
+     * выбрать другой и неверно прочитать следующие за приветствием байты.
+     */
+    public void connectPipelined(InputStream in, OutputStream out,
+                                 InetAddress destAddress, int destPort) throws IOException {
+        connectPipelined(in, out, ADDR_TYPE_IPV4, destAddress.getAddress(), destPort);
+    }
+    
+    public void connectPipelined(InputStream in, OutputStream out,
+                                 String destHost, int destPort) throws IOException {
+        connectPipelined(in, out, ADDR_TYPE_DOMAIN, encodeDomain(destHost), destPort);
+    }
+    
+    private void connectPipelined(InputStream in, OutputStream out, byte addrType,
+                                  byte[] addressBytes, int destPort) throws IOException {
+        inputStream = in;
+        outputStream = out;
+        
+        boolean useAuth = config.hasAuth();
+        byte offeredMethod = useAuth ? AUTH_USERNAME_PASSWORD : AUTH_NONE;
+        
+        ByteArrayOutputStream request = new ByteArrayOutputStream(64);
+        request.write(SOCKS_VERSION);
+        request.write(1);
+        request.write(offeredMethod);
+        if (useAuth) {
+            request.write(buildUsernamePasswordRequest());
+        }
+        request.write(buildCommand(CMD_CONNECT, addrType, addressBytes, destPort));
         
-        ByteBuffer request = ByteBuffer.allocate(10);
+        outputStream.write(request.toByteArray());
+        outputStream.flush();
+        
+        byte[] response = new byte[2];
+        int read = readFully(inputStream, response);
+        if (read != 2 || response[0] != SOCKS_VERSION) {
+            throw new IOException("Invalid SOCKS5 auth response, read " + read + " bytes");
+        }
+        if (response[1] != offeredMethod) {
+            throw new IOException("No acceptable authentication methods");
+        }
+        if (useAuth) {
+            readUsernamePasswordResponse();
+        }
+        
+        readCommandResponse();
+    }
+    
+    /**
+     * DST.ADDR для ATYP домена: байт длины и имя в ASCII
+     */
+    private static byte[] encodeDomain(String host) throws IOException {
+        byte[] name = host.getBytes("US-ASCII");
+        if (name.length == 0 || name.length > 255) {
+            throw new IOException("Invalid domain name: " + host);
+        }
+        byte[] encoded = new byte[name.length + 1];
+        encoded[0] = (byte) name.length;
+        System.arraycopy(name, 0, encoded, 1, name.length);
+        return encoded;
+    }
+    
+    private byte[] buildCommand(byte command, byte addrType, byte[] addressBytes, int destPort) {
+        ByteBuffer request = ByteBuffer.allocate(6 + addressBytes.length);
         request.put(SOCKS_VERSION);
-        request.put(CMD_CONNECT);
+        request.put(command);
         request.put((byte) 0x00);
-        request.put(ADDR_TYPE_IPV4);
+        request.put(addrType);
         request.put(addressBytes);
         request.putShort((short) destPort);
+        return request.array();
+    }
+    
+    private InetSocketAddress sendCommand(byte command, byte addrType, byte[] addressBytes,
+                                          int destPort) throws IOException {
+        byte[] request = buildCommand(command, addrType, addressBytes, destPort);
         
-        Log.d(TAG, "Sending connect request: " + bytesToHex(request.array()));
-        outputStream.write(request.array());
+        Log.d(TAG, "Sending request (cmd " + command + "): " + bytesToHex(request));
+        outputStream.write(request);
         outputStream.flush();
         
+        return readCommandResponse();
+    }
+    
+    private InetSocketAddress readCommandResponse() throws IOException {
         // Read response header first (4 bytes minimum)
         byte[] responseHeader = new byte[4];
         int read = readFully(inputStream, responseHeader);
@@ -196,7 +333,8 @@ public class Socks5Proxy {
         
         if (responseHeader[1] != REPLY_SUCCEEDED) {
             String errorMsg = getSocks5ErrorMessage(responseHeader[1]);
-            throw new IOException("SOCKS5 connect failed: " + errorMsg + " (code: " + (responseHeader[1] & 0xFF) + ")");
+            throw new Socks5Exception("SOCKS5 connect failed: " + errorMsg + " (code: " + (responseHeader[1] & 0xFF) + ")",
+                                      responseHeader[1] & 0xFF);
         }
         
         // Read rest of response based on address type
@@ -207,10 +345,10 @@ public class Socks5Proxy {
             case ADDR_TYPE_IPV4:
                 remainingBytes = 4 + 2; // 4 bytes IP + 2 bytes port
                 break;
-            case 0x04: // IPv6
+            case ADDR_TYPE_IPV6:
                 remainingBytes = 16 + 2; // 16 bytes IP + 2 bytes port
                 break;
-            case 0x03: // Domain name
+            case ADDR_TYPE_DOMAIN:
                 // First byte is length
                 byte[] lenByte = new byte[1];
                 readFully(inputStream, lenByte);
@@ -224,7 +362,60 @@ public class Socks5Proxy {
         readFully(inputStream, remaining);
         Log.d(TAG, "Connect response remaining: " + bytesToHex(remaining));
         
-        Log.d(TAG, "Connect request successful");
+        // BND.ADDR / BND.PORT - для UDP ASSOCIATE это адрес relay
+        int boundPort = ((remaining[remainingBytes - 2] & 0xFF) << 8) | (remaining[remainingBytes - 1] & 0xFF);
+        InetAddress boundAddress = null;
+        if (addrType == ADDR_TYPE_IPV4 || addrType == ADDR_TYPE_IPV6) {
+            byte[] addr = new byte[remainingBytes - 2];
+            System.arraycopy(remaining, 0, addr, 0, addr.length);
+            boundAddress = InetAddress.getByAddress(addr);
+        } else if (addrType == ADDR_TYPE_DOMAIN) {
+            boundAddress = InetAddress.getByName(new String(remaining, 0, remainingBytes - 2, "US-ASCII"));
+        }
+        
+        Log.d(TAG, "Request successful");
+        return new InetSocketAddress(boundAddress, boundPort);
+    }
+    
+    /**
+     * Записывает заголовок UDP датаграммы SOCKS5 для IPv4 адреса назначения.
+     * Возвращает размер заголовка.
+     */
+    public static int writeUdpHeader(byte[] buffer, int offset, byte[] destAddress, int destPort) {
+        buffer[offset] = 0x00;      // RSV
+        buffer[offset + 1] = 0x00;  // RSV
+        buffer[offset + 2] = 0x00;  // FRAG - фрагментация не поддерживается
+        buffer[offset + 3] = ADDR_TYPE_IPV4;
+        System.arraycopy(destAddress, 0, buffer, offset + 4, 4);
+        buffer[offset + 8] = (byte) (destPort >> 8);
+        buffer[offset + 9] = (byte) destPort;
+        return UDP_HEADER_IPV4_SIZE;
+    }
+    
+    /**
+     * Возвращает длину заголовка входящей UDP датаграммы SOCKS5 или -1,
+     * если датаграмма фрагментирована или повреждена.
+     */
+    public static int parseUdpHeaderLength(byte[] buffer, int offset, int length) {
+        if (length < 4 || buffer[offset + 2] != 0x00) {
+            return -1;
+        }
+        int headerLength;
+        switch (buffer[offset + 3]) {
+            case ADDR_TYPE_IPV4:
+                headerLength = 4 + 4 + 2;
+                break;
+            case ADDR_TYPE_IPV6:
+                headerLength = 4 + 16 + 2;
+                break;
+            case ADDR_TYPE_DOMAIN:
+                if (length < 5) return -1;
+                headerLength = 4 + 1 + (buffer[offset + 4] & 0xFF) + 2;
+                break;
+            default:
+                return -1;
+        }
+        return headerLength <= length ? headerLength : -1;
     }
     
     private String getSocks5ErrorMessage(byte code) {
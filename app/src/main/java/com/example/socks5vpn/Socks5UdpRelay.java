@@ -0,0 +1,229 @@
+package com.example.socks5vpn;
+
+import android.net.VpnService;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * UDP через SOCKS5 (UDP ASSOCIATE). Одна ассоциация на upstream сервер
+ * используется всеми UDP потоками; если управляющее TCP соединение рвётся,
+ * ассоциация пересоздаётся при следующей отправке.
+ */
+public class Socks5UdpRelay {
+    private static final String TAG = "UdpRelay";
+    private static final int CONNECT_TIMEOUT = 10000;
+    private static final int RECEIVE_TIMEOUT = 1000;
+    private static final int MAX_DATAGRAM = 65535;
+    private static final int MAX_POOLED_PACKETS = 32;
+    // Не пытаемся пересоздавать ассоциацию чаще, чем раз в этот интервал
+    private static final long RETRY_INTERVAL = 5000;
+    
+    public interface Listener {
+        /**
+         * Ответная датаграмма от srcAddress:srcPort. Данные лежат в data[offset..offset+length)
+         * и действительны только во время вызова.
+         */
+        void onDatagram(InetAddress srcAddress, int srcPort, byte[] data, int offset, int length);
+    }
+    
+    private final VpnConfig config;
+    private final VpnService vpnService;
+    private final Listener listener;
+    private final LogManager logManager;
+    
+    // Пул DatagramPacket с буферами под заголовок SOCKS5 + payload
+    private final ConcurrentLinkedQueue<DatagramPacket> packetPool = new ConcurrentLinkedQueue<>();
+    
+    private final Object associateLock = new Object();
+    private volatile Association association;
+    private volatile boolean closed;
+    private long lastFailureTime;
+    
+    public Socks5UdpRelay(VpnConfig config, VpnService vpnService, Listener listener) {
+        this.config = config;
+        this.vpnService = vpnService;
+        this.listener = listener;
+        this.logManager = LogManager.getInstance();
+    }
+    
+    /**
+     * Есть ли живая ассоциация (отправка не потребует TCP рукопожатия)
+     */
+    public boolean isAssociated() {
+        Association current = association;
+        return current != null && !current.closed;
+    }
+    
+    public void send(InetAddress destAddress, int destPort, byte[] payload, int offset, int length) throws IOException {
+        Association current = ensureAssociated();
+        
+        DatagramPacket packet = packetPool.poll();
+        if (packet == null) {
+            packet = new DatagramPacket(new byte[MAX_DATAGRAM], MAX_DATAGRAM);
+        }
+        
+        try {
+            byte[] buffer = packet.getData();
+            int headerLength = Socks5Proxy.writeUdpHeader(buffer, 0, destAddress.getAddress(), destPort);
+            System.arraycopy(payload, offset, buffer, headerLength, length);
+            packet.setData(buffer, 0, headerLength + length);
+            packet.setSocketAddress(current.relayAddress);
+            current.socket.send(packet);
+        } catch (IOException e) {
+            current.close();
+            throw e;
+        } finally {
+            if (packetPool.size() < MAX_POOLED_PACKETS) {
+                packet.setData(packet.getData(), 0, MAX_DATAGRAM);
+                packetPool.offer(packet);
+            }
+        }
+    }
+    
+    private Association ensureAssociated() throws IOException {
+        Association current = association;
+        if (current != null && !current.closed) {
+            return current;
+        }
+        
+        synchronized (associateLock) {
+            current = association;
+            if (current != null && !current.closed) {
+                return current;
+            }
+            if (closed) {
+                throw new IOException("UDP relay closed");
+            }
+            if (System.currentTimeMillis() - lastFailureTime < RETRY_INTERVAL) {
+                throw new IOException("UDP association unavailable");
+            }
+            
+            try {
+                current = new Association();
+                current.start();
+            } catch (IOException e) {
+                lastFailureTime = System.currentTimeMillis();
+                logManager.w(TAG, "UDP ASSOCIATE failed: " + e.getMessage());
+                throw e;
+            }
+            
+            association = current;
+            logManager.i(TAG, "UDP associated via " + current.relayAddress);
+            return current;
+        }
+    }
+    
+    public void close() {
+        closed = true;
+        Association current = association;
+        if (current != null) {
+            current.close();
+        }
+        packetPool.clear();
+    }
+    
+    /**
+     * Одна UDP ассоциация: управляющее TCP соединение + UDP сокет к relay
+     */
+    private class Association {
+        private final Socks5Proxy control;
+        private DatagramSocket socket;
+        private InetSocketAddress relayAddress;
+        private volatile boolean closed;
+        
+        Association() {
+            this.control = new Socks5Proxy(config, vpnService);
+        }
+        
+        void start() throws IOException {
+            try {
+                relayAddress = control.udpAssociate(CONNECT_TIMEOUT);
+                
+                socket = new DatagramSocket();
+                if (vpnService != null) {
+                    vpnService.protect(socket);
+                }
+                socket.setSoTimeout(RECEIVE_TIMEOUT);
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+            
+            Thread receiver = new Thread(this::receiveLoop, "udp-relay-rx");
+            receiver.setDaemon(true);
+            receiver.start();
+            
+            Thread watcher = new Thread(this::watchControl, "udp-relay-ctl");
+            watcher.setDaemon(true);
+            watcher.start();
+        }
+        
+        private void receiveLoop() {
+            byte[] buffer = new byte[MAX_DATAGRAM];
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            
+            while (!closed) {
+                try {
+                    packet.setData(buffer, 0, buffer.length);
+                    socket.receive(packet);
+                    
+                    int length = packet.getLength();
+                    int headerLength = Socks5Proxy.parseUdpHeaderLength(buffer, 0, length);
+                    // Нам нужны только ответы от IPv4 адресов
+                    if (headerLength != Socks5Proxy.UDP_HEADER_IPV4_SIZE) {
+                        continue;
+                    }
+                    
+                    byte[] addr = new byte[4];
+                    System.arraycopy(buffer, 4, addr, 0, 4);
+                    int port = ((buffer[8] & 0xFF) << 8) | (buffer[9] & 0xFF);
+                    
+                    listener.onDatagram(InetAddress.getByAddress(addr), port,
+                                        buffer, headerLength, length - headerLength);
+                } catch (SocketTimeoutException e) {
+                    // Continue
+                } catch (IOException e) {
+                    if (!closed) {
+                        logManager.w(TAG, "Relay receive error: " + e.getMessage());
+                    }
+                    close();
+                }
+            }
+        }
+        
+        /**
+         * Ассоциация живёт, пока открыто управляющее соединение (RFC 1928).
+         * Ждём его закрытия, чтобы пересоздать ассоциацию.
+         */
+        private void watchControl() {
+            try {
+                InputStream in = control.getInputStream();
+                while (!closed && in.read() != -1) {
+                    // Сервер ничего не должен присылать - игнорируем
+                }
+            } catch (IOException ignored) {
+            }
+            
+            if (!closed) {
+                logManager.w(TAG, "UDP association control connection lost");
+            }
+            close();
+        }
+        
+        void close() {
+            if (closed) return;
+            closed = true;
+            control.close();
+            if (socket != null) {
+                socket.close();
+            }
+        }
+    }
+}
@@ -5,6 +5,8 @@ import android.app.NotificationChannel;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.content.Intent;
+import android.content.pm.PackageManager;
+import android.net.IpPrefix;
 import android.net.VpnService;
 import android.os.Build;
 import android.os.Handler;
@@ -20,6 +22,9 @@ import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
@@ -28,6 +33,7 @@ public class Socks5VpnService extends VpnService {
     private static final String CHANNEL_ID = "vpn_channel";
     private static final int NOTIFICATION_ID = 1;
     private static final int MTU = 1500;
+    private static final String[] DNS_SERVERS = { "8.8.8.8", "8.8.4.4" };
     private static final long STATS_UPDATE_INTERVAL = 1000;
     
     public static final String ACTION_CONNECT = "com.example.socks5vpn.CONNECT";
@@ -38,6 +44,15 @@ public class Socks5VpnService extends VpnService {
     public static final String EXTRA_USERNAME = "username";
     public static final String EXTRA_PASSWORD = "password";
     public static final String EXTRA_BLOCK_UDP = "block_udp";
+    public static final String EXTRA_MUX = "mux";
+    public static final String EXTRA_DNS_OVER_PROXY = "dns_over_proxy";
+    public static final String EXTRA_FAKE_IP = "fake_ip";
+    public static final String EXTRA_SNIFF = "sniff";
+    public static final String EXTRA_SNIFF_TIMEOUT = "sniff_timeout";
+    public static final String EXTRA_SNIFF_PORTS = "sniff_ports";
+    public static final String EXTRA_DNS_BLOCK_ZERO_IP = "dns_block_zero_ip";
+    public static final String EXTRA_KERNEL_ROUTING = "kernel_routing";
+    public static final String EXTRA_UPSTREAMS = "upstreams";
     
     private ParcelFileDescriptor vpnInterface;
     private VpnConfig config;
@@ -70,6 +85,20 @@ public class Socks5VpnService extends VpnService {
         return TrafficStats.getInstance();
     }
     
+    /**
+     * n назначений с наибольшим трафиком за сессию VPN (см. FlowStats)
+     */
+    public static List<FlowStats.Destination> getTopDestinations(int n) {
+        return FlowStats.getInstance().getTopDestinations(n);
+    }
+    
+    /**
+     * n открытых соединений с наибольшим трафиком
+     */
+    public static List<FlowStats.Flow> getTopFlows(int n) {
+        return FlowStats.getInstance().getTopFlows(n);
+    }
+    
     @Override
     public void onCreate() {
         super.onCreate();
@@ -77,7 +106,7 @@ public class Socks5VpnService extends VpnService {
         logManager = LogManager.getInstance();
         createNotificationChannel();
         
-        RouteManager.getInstance().load(this);
+        RouteManager.getInstance().loadCompiled(this);
         
         statsHandler = new Handler(Looper.getMainLooper());
         Log.d(TAG, "VpnService created");
@@ -97,14 +126,40 @@ public class Socks5VpnService extends VpnService {
             String username = intent.getStringExtra(EXTRA_USERNAME);
             String password = intent.getStringExtra(EXTRA_PASSWORD);
             boolean blockUdp = intent.getBooleanExtra(EXTRA_BLOCK_UDP, false);
+            boolean mux = intent.getBooleanExtra(EXTRA_MUX, false);
+            boolean dnsOverProxy = intent.getBooleanExtra(EXTRA_DNS_OVER_PROXY, false);
+            boolean fakeIp = intent.getBooleanExtra(EXTRA_FAKE_IP, false);
+            boolean sniff = intent.getBooleanExtra(EXTRA_SNIFF, false);
             
             config = new VpnConfig(server, port, username, password);
             config.setBlockUdp(blockUdp);
+            config.setMuxEnabled(mux);
+            config.setDnsOverProxy(dnsOverProxy);
+            config.setFakeIpEnabled(fakeIp);
+            config.setSniffEnabled(sniff);
+            config.setSniffTimeout(intent.getIntExtra(EXTRA_SNIFF_TIMEOUT, config.getSniffTimeout()));
+            config.setSniffPorts(VpnConfig.parsePorts(intent.getStringExtra(EXTRA_SNIFF_PORTS)));
+            config.setDnsBlockZeroIp(intent.getBooleanExtra(EXTRA_DNS_BLOCK_ZERO_IP, false));
+            config.setKernelRouting(intent.getBooleanExtra(EXTRA_KERNEL_ROUTING, false));
+            config.setUpstreams(UpstreamProfile.parseAll(intent.getStringExtra(EXTRA_UPSTREAMS)));
             
             logManager.i(TAG, "Connecting to " + server + ":" + port);
             if (blockUdp) {
                 logManager.w(TAG, "UDP traffic will be blocked");
             }
+            if (mux) {
+                logManager.i(TAG, "Proxy connections will be multiplexed (yamux)");
+            }
+            if (dnsOverProxy) {
+                logManager.i(TAG, "DNS queries will go over TCP through the proxy");
+            }
+            if (fakeIp) {
+                logManager.i(TAG, "Host rules will use fake IPs from " + FakeIpPool.getCidr());
+            }
+            if (sniff) {
+                logManager.i(TAG, "Sniffing TLS SNI / HTTP Host for " + config.getSniffTimeout() + " ms on ports 80, 443" +
+                             (config.getSniffPorts().length > 0 ? ", " + VpnConfig.formatPorts(config.getSniffPorts()) : ""));
+            }
             
             startVpn();
         } else if (ACTION_DISCONNECT.equals(action)) {
@@ -121,6 +176,7 @@ public class Socks5VpnService extends VpnService {
         }
         
         TrafficStats.getInstance().reset();
+        FlowStats.getInstance().reset();
         logManager.clear();
         logManager.i(TAG, "=== VPN Starting ===");
         
@@ -151,14 +207,15 @@ public class Socks5VpnService extends VpnService {
                 
                 logManager.i(TAG, "Starting handlers...");
                 tcpHandler = new TcpHandler(config, Socks5VpnService.this);
-                udpHandler = new UdpHandler(Socks5VpnService.this, config.isBlockUdp());
+                udpHandler = new UdpHandler(config, Socks5VpnService.this);
                 
                 notifyStateChanged(true);
                 startStatsUpdater();
+                SubscriptionManager.getInstance().start(Socks5VpnService.this);
                 
                 logManager.i(TAG, "=== VPN Connected ===");
                 processPackets();
-                
+            
             } catch (Exception e) {
                 logManager.e(TAG, "VPN error: " + e.getMessage());
                 notifyStateChanged(false);
@@ -210,17 +267,18 @@ public class Socks5VpnService extends VpnService {
             builder.setSession("SOCKS5 VPN")
                    .setMtu(MTU)
                    .addAddress("10.0.0.2", 32)
-                   .addRoute("0.0.0.0", 0)
-                   .addDnsServer("8.8.8.8")
-                   .addDnsServer("8.8.4.4")
+                   .addDnsServer(DNS_SERVERS[0])
+                   .addDnsServer(DNS_SERVERS[1])
                    .setBlocking(true);
             
-            try {
-                builder.addDisallowedApplication(getPackageName());
-            } catch (Exception e) {
-                logManager.w(TAG, "Could not exclude own package");
+            if (config.isKernelRouting()) {
+                addKernelRoutes(builder);
+            } else {
+                builder.addRoute("0.0.0.0", 0);
             }
             
+            addApplications(builder);
+            
             vpnInterface = builder.establish();
             
             if (vpnInterface == null) {
@@ -228,13 +286,109 @@ public class Socks5VpnService extends VpnService {
             }
             
             return true;
-            
+        
         } catch (Exception e) {
             logManager.e(TAG, "Setup error: " + e.getMessage());
             return false;
         }
     }
     
+    /**
+     * Разделение по приложениям: приложения вне VPN ядро маршрутизирует напрямую,
+     * их пакеты не доходят до processPackets(). Наш пакет всегда вне VPN - иначе
+     * соединения к прокси зациклились бы.
+     */
+    private void addApplications(Builder builder) {
+        RouteManager routeManager = RouteManager.getInstance();
+        RouteManager.AppMode mode = routeManager.getAppMode();
+        Set<String> apps = routeManager.getApps();
+        apps.remove(getPackageName());
+        
+        if (mode == RouteManager.AppMode.ONLY) {
+            // Разрешённые и запрещённые приложения вместе задать нельзя: наш пакет
+            // вне VPN, потому что его нет в списке
+            int allowed = 0;
+            for (String app : apps) {
+                try {
+                    builder.addAllowedApplication(app);
+                    allowed++;
+                } catch (PackageManager.NameNotFoundException e) {
+                    logManager.w(TAG, "App not installed: " + app);
+                }
+            }
+            if (allowed > 0) {
+                logManager.i(TAG, "Only " + allowed + " apps use the VPN");
+                return;
+            }
+            // Пустой список разрешённых означает все приложения
+            logManager.w(TAG, "No listed apps installed, routing all apps");
+        }
+        
+        try {
+            builder.addDisallowedApplication(getPackageName());
+        } catch (Exception e) {
+            logManager.w(TAG, "Could not exclude own package");
+        }
+        
+        if (mode == RouteManager.AppMode.EXCEPT) {
+            int disallowed = 0;
+            for (String app : apps) {
+                try {
+                    builder.addDisallowedApplication(app);
+                    disallowed++;
+                } catch (PackageManager.NameNotFoundException e) {
+                    logManager.w(TAG, "App not installed: " + app);
+                }
+            }
+            logManager.i(TAG, disallowed + " apps bypass the VPN");
+        }
+    }
+    
+    /**
+     * Маршрутизирует в туннель только подсети правил PROXY/BLOCK, DNS серверы и пул
+     * fake-IP: остальной трафик ядро отправляет напрямую, и он не проходит через
+     * userspace стек. Маршруты фиксируются при подключении - изменения IP правил
+     * вступают в силу после переподключения.
+     */
+    private void addKernelRoutes(Builder builder) throws Exception {
+        RuleSnapshot rules = RouteManager.getInstance().awaitSnapshot();
+        
+        List<RouteManager.IpRange> required = new ArrayList<>();
+        for (String dns : DNS_SERVERS) {
+            required.add(RouteManager.IpRange.parse(dns));
+        }
+        // Подсети правил с уточнением по порту: в общей таблице их нет
+        required.addAll(rules.getPortRules().getIpRanges());
+        if (config.isFakeIpEnabled()) {
+            required.add(RouteManager.IpRange.parse(FakeIpPool.getCidr()));
+        } else if (rules.getProxyHostTrie().getRuleCount() > 0) {
+            logManager.w(TAG, "Host rules only apply to tunneled subnets; enable fake-IP to route them");
+        }
+        if (rules.getBlocklist() != null) {
+            logManager.w(TAG, "Blocklist IP entries outside rule subnets are not tunneled");
+        }
+        if (rules.getSubscribedBlock() != null || rules.getSubscribedProxy() != null) {
+            logManager.w(TAG, "Subscription IP entries outside rule subnets are not tunneled");
+        }
+        
+        KernelRoutes routes = KernelRoutes.compute(rules.getIpMatcher(), required);
+        List<RouteManager.IpRange> included = routes.getIncluded();
+        List<RouteManager.IpRange> excluded = routes.getExcluded();
+        
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU && excluded.size() < included.size()) {
+            builder.addRoute("0.0.0.0", 0);
+            for (RouteManager.IpRange range : excluded) {
+                builder.excludeRoute(new IpPrefix(range.getAddress(), range.getPrefixLength()));
+            }
+            logManager.i(TAG, "Kernel routing: " + excluded.size() + " excluded subnets");
+        } else {
+            for (RouteManager.IpRange range : included) {
+                builder.addRoute(range.getAddress(), range.getPrefixLength());
+            }
+            logManager.i(TAG, "Kernel routing: " + included.size() + " tunneled subnets");
+        }
+    }
+    
     private boolean testSocks5Connection() {
         Socket socket = null;
         try {
@@ -277,11 +431,11 @@ public class Socks5VpnService extends VpnService {
                     } else if (packet.isUDP) {
                         udpHandler.handlePacket(packet, vpnOutput);
                     }
-                    
+                
                 } catch (Exception e) {
                     // Ignore parsing errors
                 }
-                
+            
             } catch (IOException e) {
                 if (running) {
                     logManager.e(TAG, "Read error: " + e.getMessage());
@@ -298,6 +452,7 @@ public class Socks5VpnService extends VpnService {
         running = false;
         
         stopStatsUpdater();
+        SubscriptionManager.getInstance().stop();
         
         if (tcpHandler != null) {
             tcpHandler.stop();
@@ -309,6 +464,11 @@ public class Socks5VpnService extends VpnService {
             udpHandler = null;
         }
         
+        List<FlowStats.Destination> top = FlowStats.getInstance().getTopDestinations(5);
+        if (!top.isEmpty()) {
+            logManager.i(TAG, "Top destinations: " + top);
+        }
+        
         if (vpnInterface != null) {
             try {
                 vpnInterface.close();
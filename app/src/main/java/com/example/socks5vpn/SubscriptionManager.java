@@ -0,0 +1,381 @@
+package com.example.socks5vpn;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Подписки на списки правил. Каждая подписка скачивается в фоне, читается потоком
+ * прямо в 8-байтные ключи BlocklistFilter (текст списка целиком в памяти не бывает)
+ * и компилируется в свой файл. Новая версия сравнивается с предыдущей по
+ * отсортированным ключам; если ничего не изменилось (или сервер ответил 304),
+ * правила не трогаются вовсе.
+ *
+ * Изменившиеся подписки одной цели сливаются потоком в общий файл цели, который
+ * отображается в память и подменяет прежний в наборе правил - без разбора текста
+ * остальных подписок и без второй копии списка в куче.
+ */
+public class SubscriptionManager {
+    private static final String TAG = "SubscriptionManager";
+    private static final String PREFS_NAME = "subscriptions";
+    private static final String KEY_LIST = "list";
+    private static final String DIR = "subscriptions";
+    
+    private static final long REFRESH_INTERVAL = 12 * 60 * 60 * 1000L;
+    private static final long CHECK_PERIOD_MINUTES = 30;
+    private static final int CONNECT_TIMEOUT = 15000;
+    private static final int READ_TIMEOUT = 60000;
+    
+    // Обновления по очереди, с низким приоритетом: сервису CPU нужнее
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "subscriptions");
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final LogManager logManager = LogManager.getInstance();
+    private List<RuleSubscription> subscriptions = new ArrayList<>();
+    private boolean loaded;
+    private ScheduledFuture<?> periodic;
+    
+    private static SubscriptionManager instance;
+    
+    public static synchronized SubscriptionManager getInstance() {
+        if (instance == null) {
+            instance = new SubscriptionManager();
+        }
+        return instance;
+    }
+    
+    private SubscriptionManager() {
+    }
+    
+    public synchronized void load(Context context) {
+        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        List<RuleSubscription> result = new ArrayList<>();
+        for (String value : prefs.getStringSet(KEY_LIST, new HashSet<>())) {
+            RuleSubscription subscription = RuleSubscription.deserialize(value);
+            if (subscription != null) {
+                result.add(subscription);
+            }
+        }
+        subscriptions = result;
+        loaded = true;
+    }
+    
+    private synchronized void save(Context context) {
+        Set<String> values = new HashSet<>();
+        for (RuleSubscription subscription : subscriptions) {
+            values.add(subscription.serialize());
+        }
+        context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE)
+            .edit()
+            .putStringSet(KEY_LIST, values)
+            .apply();
+    }
+    
+    public synchronized List<RuleSubscription> getSubscriptions() {
+        return new ArrayList<>(subscriptions);
+    }
+    
+    /**
+     * Новый список подписок из строк редактора. Состояние подписок, оставшихся в
+     * списке, сохраняется; новые скачиваются сразу, файлы удалённых убираются.
+     */
+    public void setSubscriptions(Context context, List<String> lines) {
+        List<RuleSubscription> next = new ArrayList<>();
+        Set<String> ids = new HashSet<>();
+        for (String line : lines) {
+            RuleSubscription subscription = RuleSubscription.parse(line);
+            if (subscription == null) {
+                Log.e(TAG, "Bad subscription: " + line);
+                continue;
+            }
+            if (ids.add(subscription.getId())) {
+                next.add(subscription);
+            }
+        }
+        
+        synchronized (this) {
+            for (RuleSubscription subscription : next) {
+                for (RuleSubscription old : subscriptions) {
+                    if (old.getId().equals(subscription.getId())) {
+                        subscription.copyStateFrom(old);
+                    }
+                }
+            }
+            subscriptions = next;
+            loaded = true;
+            save(context);
+        }
+        refresh(context, false);
+    }
+    
+    /**
+     * Периодическая проверка подписок, пока работает сервис
+     */
+    public synchronized void start(Context context) {
+        if (periodic != null) {
+            return;
+        }
+        final Context appContext = context.getApplicationContext();
+        periodic = executor.scheduleWithFixedDelay(() -> update(appContext, false),
+                                                   0, CHECK_PERIOD_MINUTES, TimeUnit.MINUTES);
+    }
+    
+    public synchronized void stop() {
+        if (periodic != null) {
+            periodic.cancel(false);
+            periodic = null;
+        }
+    }
+    
+    /**
+     * Ставит обновление в очередь; force - скачать все подписки, не глядя на интервал
+     */
+    public Future<?> refresh(Context context, boolean force) {
+        final Context appContext = context.getApplicationContext();
+        return executor.submit(() -> update(appContext, force));
+    }
+    
+    private void update(Context context, boolean force) {
+        synchronized (this) {
+            if (!loaded) {
+                load(context);
+            }
+        }
+        List<RuleSubscription> current = getSubscriptions();
+        EnumSet<RuleSubscription.Target> changed = removeStale(context, current);
+        long now = System.currentTimeMillis();
+        
+        for (RuleSubscription subscription : current) {
+            boolean exists = subscriptionFile(context, subscription).exists();
+            if (!force && exists && now - subscription.getCheckedAt() < REFRESH_INTERVAL) continue;
+            try {
+                if (fetch(context, subscription)) {
+                    changed.add(subscription.getTarget());
+                }
+                subscription.setChecked(now, null);
+            } catch (IOException e) {
+                subscription.setChecked(now, e.getMessage());
+                logManager.w(TAG, subscription.getUrl() + " - " + e.getMessage());
+            }
+        }
+        
+        for (RuleSubscription.Target target : RuleSubscription.Target.values()) {
+            // Общий файл ещё не собран (первый запуск) или пропал
+            if (!combinedFile(context, target).exists() && hasTarget(current, target)) {
+                changed.add(target);
+            }
+        }
+        for (RuleSubscription.Target target : changed) {
+            rebuild(context, target, current);
+        }
+        save(context);
+    }
+    
+    private static boolean hasTarget(List<RuleSubscription> subscriptions, RuleSubscription.Target target) {
+        for (RuleSubscription subscription : subscriptions) {
+            if (subscription.getTarget() == target) return true;
+        }
+        return false;
+    }
+    
+    /**
+     * Удаляет файлы подписок, которых больше нет в списке; возвращает затронутые цели
+     */
+    private EnumSet<RuleSubscription.Target> removeStale(Context context, List<RuleSubscription> current) {
+        EnumSet<RuleSubscription.Target> changed = EnumSet.noneOf(RuleSubscription.Target.class);
+        Set<String> names = new HashSet<>();
+        for (RuleSubscription subscription : current) {
+            names.add(subscriptionFile(context, subscription).getName());
+        }
+        for (RuleSubscription.Target target : RuleSubscription.Target.values()) {
+            names.add(combinedFile(context, target).getName());
+        }
+        
+        File[] files = directory(context).listFiles();
+        if (files == null) {
+            return changed;
+        }
+        for (File file : files) {
+            if (names.contains(file.getName())) continue;
+            for (RuleSubscription.Target target : RuleSubscription.Target.values()) {
+                if (file.getName().startsWith(target.name().toLowerCase() + "-")) {
+                    changed.add(target);
+                }
+            }
+            file.delete();
+        }
+        return changed;
+    }
+    
+    /**
+     * Скачивает подписку и компилирует её, если список изменился. Возвращает true,
+     * если файл подписки заменён.
+     */
+    private boolean fetch(Context context, RuleSubscription subscription) throws IOException {
+        File file = subscriptionFile(context, subscription);
+        long start = System.nanoTime();
+        URLConnection connection = new URL(subscription.getUrl()).openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT);
+        connection.setReadTimeout(READ_TIMEOUT);
+        HttpURLConnection http = connection instanceof HttpURLConnection ? (HttpURLConnection) connection : null;
+        
+        try {
+            if (http != null) {
+                if (file.exists() && !subscription.getEtag().isEmpty()) {
+                    http.setRequestProperty("If-None-Match", subscription.getEtag());
+                }
+                if (file.exists() && !subscription.getLastModified().isEmpty()) {
+                    http.setRequestProperty("If-Modified-Since", subscription.getLastModified());
+                }
+                int code = http.getResponseCode();
+                if (code == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                    Log.d(TAG, subscription + " not modified");
+                    return false;
+                }
+                if (code != HttpURLConnection.HTTP_OK) {
+                    throw new IOException("HTTP " + code);
+                }
+            }
+            
+            BlocklistFilter.KeySet keys;
+            try (InputStream input = connection.getInputStream()) {
+                keys = BlocklistFilter.readKeys(input);
+            }
+            if (http != null) {
+                subscription.setValidators(http.getHeaderField("ETag"), http.getHeaderField("Last-Modified"));
+            }
+            
+            String delta = keys.count + " entries";
+            if (file.exists()) {
+                int[] diff = diff(file, keys);
+                if (diff != null && diff[0] == 0 && diff[1] == 0) {
+                    Log.d(TAG, subscription + " unchanged (" + keys.count + " entries)");
+                    return false;
+                }
+                if (diff != null) {
+                    delta = "+" + diff[0] + " -" + diff[1];
+                }
+            }
+            
+            BlocklistFilter.write(file, keys);
+            subscription.setUpdated(System.currentTimeMillis(), keys.count);
+            logManager.i(TAG, subscription + ": " + delta + " in " + (System.nanoTime() - start) / 1000000 + " ms");
+            return true;
+        } finally {
+            if (http != null) {
+                http.disconnect();
+            }
+        }
+    }
+    
+    /**
+     * {добавлено, удалено} по сравнению с файлом; null, если файл не читается
+     */
+    private static int[] diff(File file, BlocklistFilter.KeySet keys) {
+        try {
+            return BlocklistFilter.open(file).diff(keys);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+    
+    /**
+     * Сливает подписки цели в общий файл и подключает его к правилам
+     */
+    private void rebuild(Context context, RuleSubscription.Target target, List<RuleSubscription> current) {
+        long start = System.nanoTime();
+        List<BlocklistFilter> sources = new ArrayList<>();
+        for (RuleSubscription subscription : current) {
+            if (subscription.getTarget() != target) continue;
+            File file = subscriptionFile(context, subscription);
+            if (!file.exists()) continue;
+            try {
+                sources.add(BlocklistFilter.open(file));
+            } catch (IOException e) {
+                Log.e(TAG, "Cannot open " + file + ": " + e.getMessage());
+            }
+        }
+        
+        File combined = combinedFile(context, target);
+        BlocklistFilter filter = null;
+        try {
+            if (!sources.isEmpty()) {
+                BlocklistFilter.merge(sources, combined);
+                filter = BlocklistFilter.open(combined);
+            } else {
+                combined.delete();
+            }
+        } catch (IOException e) {
+            logManager.e(TAG, "Cannot merge " + target + " subscriptions: " + e.getMessage());
+            return;
+        }
+        
+        RouteManager.getInstance().setSubscriptionFilter(target, filter);
+        logManager.i(TAG, target + " subscriptions: " + (filter != null ? filter.getSummary() : "none") +
+                     ", merged in " + (System.nanoTime() - start) / 1000000 + " ms");
+    }
+    
+    private static File directory(Context context) {
+        File dir = new File(context.getFilesDir(), DIR);
+        if (!dir.exists()) {
+            dir.mkdirs();
+        }
+        return dir;
+    }
+    
+    private static File subscriptionFile(Context context, RuleSubscription subscription) {
+        return new File(directory(context), subscription.getId() + ".bin");
+    }
+    
+    /**
+     * Общий файл всех подписок цели - его отображает RouteManager
+     */
+    static File combinedFile(Context context, RuleSubscription.Target target) {
+        return new File(directory(context), target.name().toLowerCase() + ".bin");
+    }
+    
+    /**
+     * Состояние подписок для редактора, по строке на подписку
+     */
+    public String getStatus() {
+        StringBuilder sb = new StringBuilder();
+        long now = System.currentTimeMillis();
+        for (RuleSubscription subscription : getSubscriptions()) {
+            if (sb.length() > 0) {
+                sb.append('\n');
+            }
+            sb.append(subscription.getTarget().name().toLowerCase()).append(' ')
+              .append(subscription.getUrl()).append(": ");
+            if (subscription.getUpdatedAt() == 0) {
+                sb.append("not loaded");
+            } else {
+                sb.append(subscription.getEntryCount()).append(" entries, updated ")
+                  .append((now - subscription.getUpdatedAt()) / 60000).append(" min ago");
+            }
+            if (!subscription.getLastError().isEmpty()) {
+                sb.append(" (").append(subscription.getLastError()).append(')');
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -12,24 +12,50 @@ import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
 import java.nio.ByteBuffer;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class TcpHandler {
     private static final String TAG = "TCP";
     private static final int BUFFER_SIZE = 16384;
     private static final int CONNECT_TIMEOUT = 10000;
+    // Фора предпочтительного пути в гонке AUTO
+    private static final int AUTO_HEAD_START = 300;
     
     private final VpnConfig config;
     private final VpnService vpnService;
     private final RouteManager routeManager;
     private final TrafficStats trafficStats;
+    private final FlowStats flowStats;
     private final LogManager logManager;
     private final ExecutorService executorService;
     private final Map<String, TcpConnection> connections;
+    // Основной сервер и именованные серверы из UpstreamProfile, у каждого свой mux пул
+    private final Connector defaultConnector;
+    private final Map<String, Connector> connectors;
+    // Имена из правил без профиля - предупреждаем один раз
+    private final Set<String> unknownUpstreams = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    // Fake-IP режим: SYN на адрес из пула маршрутизируется по имени хоста
+    private final FakeIpPool fakeIpPool;
+    private final AutoRouteCache autoRouteCache;
+    // Недавно недоступные назначения: SYN к ним сразу получает RST
+    private final ConnectFailureCache failureCache;
+    // Сколько ждать первые байты клиента для определения имени хоста (0 - не ждём)
+    private final int sniffTimeout;
+    // Порты, где клиент говорит первым (HTTP, TLS и заданные в настройках). На остальных
+    // (SMTP, FTP, SSH) первым говорит сервер, и ожидание лишь задержало бы соединение
+    private final BitSet sniffPorts = new BitSet(65536);
     private volatile boolean running;
     private final AtomicInteger connectionCounter = new AtomicInteger(0);
     
@@ -38,13 +64,29 @@ public class TcpHandler {
         this.vpnService = vpnService;
         this.routeManager = RouteManager.getInstance();
         this.trafficStats = TrafficStats.getInstance();
+        this.flowStats = FlowStats.getInstance();
         this.logManager = LogManager.getInstance();
         this.executorService = Executors.newCachedThreadPool();
         this.connections = new ConcurrentHashMap<>();
+        this.defaultConnector = new Connector(null, config, vpnService);
+        this.connectors = new HashMap<>();
+        for (UpstreamProfile profile : config.getUpstreams()) {
+            connectors.put(profile.getName(), new Connector(profile.getName(), config.forUpstream(profile), vpnService));
+        }
+        this.fakeIpPool = config.isFakeIpEnabled() ? FakeIpPool.getInstance() : null;
+        this.autoRouteCache = AutoRouteCache.getInstance();
+        this.failureCache = ConnectFailureCache.getInstance();
+        this.sniffTimeout = config.isSniffEnabled() ? config.getSniffTimeout() : 0;
+        sniffPorts.set(80);
+        sniffPorts.set(443);
+        for (int port : config.getSniffPorts()) {
+            sniffPorts.set(port);
+        }
         this.running = true;
         
         Log.d(TAG, "TcpHandler initialized");
-        logManager.i(TAG, "TCP Handler started");
+        logManager.i(TAG, "TCP Handler started" + (config.isMuxEnabled() ? " (mux)" : "") +
+                     (connectors.isEmpty() ? "" : ", upstreams: " + connectors.keySet()));
     }
     
     public void handlePacket(Packet packet, FileOutputStream vpnOutput) {
@@ -57,16 +99,33 @@ public class TcpHandler {
                           packet.ip4Header.headerLength - 
                           packet.tcpHeader.headerLength;
         
-        trafficStats.addPacketOut();
-        trafficStats.addBytesOut(packet.ip4Header.totalLength);
+        trafficStats.addPacketOut(packet.ip4Header.totalLength);
         
         if (packet.tcpHeader.isSYN() && !packet.tcpHeader.isACK()) {
             InetAddress destAddr = packet.ip4Header.destinationAddress;
             int destPort = packet.tcpHeader.destinationPort;
             String dest = destAddr.getHostAddress() + ":" + destPort;
+            String destHost = null;
             
             // Определяем действие по правилам маршрутизации
-            RouteManager.RouteAction action = routeManager.getActionForIp(destAddr);
+            RouteManager.RouteAction action;
+            boolean fakeIp = false;
+            if (fakeIpPool != null && FakeIpPool.contains(destAddr)) {
+                // Имя известно по адресу; действие - по текущим правилам, как после sniff:
+                // с ответа на DNS запрос правила могли смениться
+                destHost = fakeIpPool.getHost(destAddr);
+                if (destHost == null) {
+                    logManager.w(TAG, dest + " - unknown fake IP");
+                    sendRstForOrphan(packet, vpnOutput);
+                    return;
+                }
+                action = routeManager.getActionForHost(destHost, destPort, PortRange.TCP,
+                                                       routeManager.getActionForHost(destHost));
+                dest = destHost + ":" + destPort;
+                fakeIp = true;
+            } else {
+                action = routeManager.getActionForIp(packet.ip4Header.destinationIp, destPort, PortRange.TCP);
+            }
             
             if (connection != null) {
                 connection.close();
@@ -80,11 +139,31 @@ public class TcpHandler {
                 return;
             }
             
+            // Сервер из правила "proxy:имя"; фиктивный адрес сопоставляем только по имени
+            String upstream = null;
+            if (action == RouteManager.RouteAction.PROXY || action == RouteManager.RouteAction.AUTO) {
+                upstream = fakeIp
+                    ? routeManager.getUpstreamForHost(destHost, destPort, PortRange.TCP)
+                    : routeManager.getUpstreamForIp(packet.ip4Header.destinationIp, destPort, PortRange.TCP);
+            }
+            
+            // Назначение только что не ответило - не ждём таймаут снова
+            String failureKey = ConnectFailureCache.key(dest, action, upstream);
+            ConnectFailureCache.Failure failure = failureCache.check(failureKey);
+            if (failure != null) {
+                logManager.w(TAG, dest + " - " + failure.getReason() + " (cached, " +
+                             (failure.getExpiresAt() - System.currentTimeMillis()) + " ms left)");
+                sendRstForOrphan(packet, vpnOutput);
+                return;
+            }
+            
             int connId = connectionCounter.incrementAndGet();
-            connection = new TcpConnection(connId, packet, vpnOutput, action);
+            // Имя уже известно по фиктивному адресу - нюхать поток незачем
+            boolean sniff = sniffTimeout > 0 && destHost == null && sniffPorts.get(destPort);
+            connection = new TcpConnection(connId, packet, vpnOutput, action, destHost, upstream, sniff, failureKey);
             connections.put(connectionKey, connection);
             executorService.submit(connection);
-            
+        
         } else if (connection != null) {
             connection.processPacket(packet);
         } else {
@@ -234,8 +313,141 @@ public class TcpHandler {
             connection.close();
         }
         connections.clear();
+        defaultConnector.close();
+        for (Connector connector : connectors.values()) {
+            connector.close();
+        }
         executorService.shutdownNow();
         logManager.i(TAG, "TCP Handler stopped");
+        if (sniffTimeout > 0) {
+            logManager.i(TAG, "Host sniffing: " + trafficStats.getSniffHitRatePercent() + "% of " +
+                         trafficStats.getSniffAttempts() + " flows, avg parse " +
+                         trafficStats.getSniffAvgParseMicros() + " us");
+        }
+        logManager.i(TAG, "Auto routes: " + autoRouteCache.getSummary());
+        logManager.i(TAG, "Connect failure cache: " + trafficStats.getConnectFailureCacheHits() +
+                     " instant RSTs, " + failureCache.size() + " destinations");
+        if (!connectors.isEmpty()) {
+            StringBuilder sb = new StringBuilder(defaultConnector.getSummary());
+            for (Connector connector : connectors.values()) {
+                sb.append("; ").append(connector.getSummary());
+            }
+            logManager.i(TAG, "Upstreams: " + sb);
+        }
+    }
+    
+    /**
+     * Сервер по имени из правила; неизвестное имя - основной сервер
+     */
+    private Connector connector(String upstream) {
+        if (upstream == null) {
+            return defaultConnector;
+        }
+        Connector connector = connectors.get(upstream);
+        if (connector == null) {
+            if (unknownUpstreams.add(upstream)) {
+                logManager.w(TAG, "No upstream profile \"" + upstream + "\", using default server");
+            }
+            return defaultConnector;
+        }
+        return connector;
+    }
+    
+    /**
+     * Сервер SOCKS5: конфигурация, пул mux сессий к нему и время установки соединений
+     */
+    private static class Connector {
+        final String name;
+        final VpnConfig config;
+        // Мультиплексирование потоков к прокси (null - отдельное соединение на поток)
+        final MuxPool muxPool;
+        final AtomicLong connects = new AtomicLong();
+        final AtomicLong connectMillis = new AtomicLong();
+        
+        Connector(String name, VpnConfig config, VpnService vpnService) {
+            this.name = name;
+            this.config = config;
+            this.muxPool = config.isMuxEnabled() ? new MuxPool(config, vpnService) : null;
+        }
+        
+        void recordConnect(long millis) {
+            connects.incrementAndGet();
+            connectMillis.addAndGet(millis);
+        }
+        
+        String getSummary() {
+            long count = connects.get();
+            return (name != null ? name : "default") + " " + config.getServerAddress() + ":" +
+                   config.getServerPort() + " " + count + " conns" +
+                   (count > 0 ? ", avg " + connectMillis.get() / count + " ms" : "");
+        }
+        
+        void close() {
+            if (muxPool != null) {
+                muxPool.close();
+            }
+        }
+    }
+    
+    /**
+     * Установленное соединение к назначению - напрямую или через прокси
+     */
+    private static class Upstream {
+        final RouteManager.RouteAction path;
+        Socket socket;
+        MuxSession.Stream muxStream;
+        Socks5Proxy proxy;
+        InputStream in;
+        OutputStream out;
+        
+        Upstream(RouteManager.RouteAction path) {
+            this.path = path;
+        }
+        
+        void close() {
+            if (proxy != null) {
+                proxy.close();
+            }
+            if (muxStream != null) {
+                muxStream.close();
+            }
+            if (socket != null) {
+                try {
+                    socket.close();
+                } catch (IOException ignored) {}
+            }
+        }
+    }
+    
+    /**
+     * Результаты попыток гонки AUTO: Upstream или IOException. После выбора
+     * победителя опоздавшие соединения закрываются сразу.
+     */
+    private static class Race {
+        final BlockingQueue<Object> results = new LinkedBlockingQueue<>();
+        private boolean finished;
+        
+        synchronized void offer(Object result) {
+            if (finished) {
+                if (result instanceof Upstream) {
+                    ((Upstream) result).close();
+                }
+                return;
+            }
+            results.add(result);
+        }
+        
+        synchronized Upstream finish(Upstream winner) {
+            finished = true;
+            // Соединения, пришедшие одновременно с победителем
+            Object result;
+            while ((result = results.poll()) != null) {
+                if (result instanceof Upstream) {
+                    ((Upstream) result).close();
+                }
+            }
+            return winner;
+        }
     }
     
     private class TcpConnection implements Runnable {
@@ -244,10 +456,29 @@ public class TcpHandler {
         private final int sourcePort;
         private final InetAddress destAddress;
         private final int destPort;
+        // Имя хоста из фиктивного адреса или из первых байт потока (null - соединяемся по IP)
+        private String destHost;
+        // Адрес назначения фиктивный: соединиться напрямую можно только по имени
+        private final boolean fakeIp;
         private final FileOutputStream vpnOutput;
-        private final RouteManager.RouteAction routeAction;
+        private RouteManager.RouteAction routeAction;
+        // Имя сервера из правила "proxy:имя" (null - основной)
+        private String upstream;
+        // Ключ в кэше отказов (назначение и маршрут на момент SYN)
+        private final String failureKey;
+        // Последний отказ, относящийся к назначению (см. ConnectFailureCache.classify)
+        private volatile String failureReason;
+        // Байты и пакеты соединения - для учёта по назначениям
+        private final FlowStats.Flow flow;
+        
+        // Пока маршрут не выбран, данные клиента копятся здесь
+        private final boolean sniffing;
+        private boolean buffering;
+        private byte[] sniffBuffer;
+        private int sniffLength;
         
         private Socket remoteSocket;
+        private MuxSession.Stream muxStream;
         private InputStream remoteIn;
         private OutputStream remoteOut;
         private Socks5Proxy proxy;
@@ -265,14 +496,24 @@ public class TcpHandler {
         private final Object writeLock = new Object();
         
         public TcpConnection(int id, Packet synPacket, FileOutputStream vpnOutput, 
-                            RouteManager.RouteAction action) {
+                            RouteManager.RouteAction action, String destHost, String upstream,
+                            boolean sniffing, String failureKey) {
             this.connectionId = id;
             this.sourceAddress = synPacket.ip4Header.sourceAddress;
             this.sourcePort = synPacket.tcpHeader.sourcePort;
             this.destAddress = synPacket.ip4Header.destinationAddress;
             this.destPort = synPacket.tcpHeader.destinationPort;
+            this.destHost = destHost;
+            // Имя при SYN бывает только из фиктивного адреса; sniffing находит его позже
+            this.fakeIp = destHost != null;
             this.vpnOutput = vpnOutput;
             this.routeAction = action;
+            this.upstream = upstream;
+            this.failureKey = failureKey;
+            this.sniffing = sniffing;
+            this.buffering = sniffing;
+            this.flow = flowStats.open(destHost != null ? destHost : destAddress.getHostAddress(),
+                                       destPort, PortRange.TCP);
             
             this.localSequenceNum = (long) (Math.random() * Integer.MAX_VALUE);
             this.remoteSequenceNum = synPacket.tcpHeader.sequenceNumber;
@@ -280,30 +521,58 @@ public class TcpHandler {
         }
         
         private String dest() {
-            return destAddress.getHostAddress() + ":" + destPort;
+            return (destHost != null ? destHost : destAddress.getHostAddress()) + ":" + destPort;
         }
         
         @Override
         public void run() {
             try {
-                if (routeAction == RouteManager.RouteAction.PROXY) {
-                    connectViaProxy();
+                if (sniffing) {
+                    // SYN-ACK сразу: маршрут выбираем по первым байтам клиента
+                    sendSynAck();
+                    synAckSent = true;
+                    if (!sniffHost()) {
+                        return;
+                    }
+                }
+                
+                if (routeAction == RouteManager.RouteAction.AUTO) {
+                    RouteManager.RouteAction path = connectAuto();
+                    if (path == RouteManager.RouteAction.PROXY) {
+                        trafficStats.addProxyConnection();
+                        logManager.proxy(TAG, "#" + connectionId + " " + dest() + " (auto)");
+                    } else {
+                        trafficStats.addDirectConnection();
+                        logManager.direct(TAG, "#" + connectionId + " " + dest() + " (auto)");
+                    }
+                } else if (routeAction == RouteManager.RouteAction.PROXY) {
+                    adopt(open(RouteManager.RouteAction.PROXY));
                     trafficStats.addProxyConnection();
-                    logManager.proxy(TAG, "#" + connectionId + " " + dest());
+                    logManager.proxy(TAG, "#" + connectionId + " " + dest() + (upstream != null ? " via " + upstream : ""));
                 } else {
-                    connectDirect();
+                    adopt(open(RouteManager.RouteAction.DIRECT));
                     trafficStats.addDirectConnection();
                     logManager.direct(TAG, "#" + connectionId + " " + dest());
                 }
+                failureCache.recordSuccess(failureKey);
                 
-                sendSynAck();
-                synAckSent = true;
+                if (sniffing) {
+                    flushBuffered();
+                } else {
+                    sendSynAck();
+                    synAckSent = true;
+                }
                 
                 startForwarding();
-                
+            
             } catch (Exception e) {
                 logManager.e(TAG, "#" + connectionId + " " + dest() + " - " + e.getMessage());
-                if (!synAckSent) {
+                if (failureReason != null && !closed) {
+                    ConnectFailureCache.Failure failure = failureCache.record(failureKey, failureReason);
+                    logManager.w(TAG, "#" + connectionId + " " + dest() + " - failed " + failure.getConsecutive() +
+                                 "x, new SYNs get RST for " + (failure.getExpiresAt() - System.currentTimeMillis()) + " ms");
+                }
+                if (!synAckSent || sniffing) {
                     sendRst();
                 }
             } finally {
@@ -312,27 +581,275 @@ public class TcpHandler {
             }
         }
         
-        private void connectViaProxy() throws IOException {
-            proxy = new Socks5Proxy(config, vpnService);
-            proxy.connect(destAddress, destPort, CONNECT_TIMEOUT);
-            remoteSocket = proxy.getSocket();
-            remoteIn = proxy.getInputStream();
-            remoteOut = proxy.getOutputStream();
+        /**
+         * Ждёт первые байты клиента до sniffTimeout и ищет в них имя хоста.
+         * Возвращает false, если соединение закрыто или заблокировано по имени.
+         */
+        private boolean sniffHost() throws InterruptedException {
+            HostSniffer sniffer = new HostSniffer();
+            long deadline = System.currentTimeMillis() + sniffTimeout;
+            int result = HostSniffer.INCOMPLETE;
+            String host = null;
+            
+            synchronized (lock) {
+                while (!closed) {
+                    if (sniffLength > 0) {
+                        long start = System.nanoTime();
+                        result = sniffer.parse(sniffBuffer, sniffLength);
+                        trafficStats.addSniffParseTime(System.nanoTime() - start);
+                        if (result != HostSniffer.INCOMPLETE) break;
+                    }
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) break;
+                    lock.wait(remaining);
+                }
+                if (closed) {
+                    return false;
+                }
+                if (result == HostSniffer.FOUND) {
+                    host = sniffer.getHost(sniffBuffer);
+                }
+            }
+            
+            trafficStats.addSniffResult(host != null);
+            if (host == null) {
+                return true;
+            }
+            
+            destHost = host;
+            flow.setDestination(host);
+            RouteManager.RouteAction hostAction = routeManager.getActionForHost(
+                host, destPort, PortRange.TCP, routeManager.getActionForHost(host));
+            if (hostAction == RouteManager.RouteAction.BLOCK) {
+                trafficStats.addBlockedConnection();
+                logManager.block(TAG, "#" + connectionId + " " + dest());
+                sendRst();
+                return false;
+            }
+            routeAction = RouteManager.stronger(routeAction, hostAction);
+            // Правило имени точнее правила адреса
+            String hostUpstream = routeManager.getUpstreamForHost(host, destPort, PortRange.TCP);
+            if (hostUpstream != null) {
+                upstream = hostUpstream;
+            }
+            return true;
+        }
+        
+        /**
+         * Отправляет накопленные при sniffing данные и переключает на обычную пересылку
+         */
+        private void flushBuffered() throws IOException {
+            synchronized (lock) {
+                if (sniffLength > 0) {
+                    remoteOut.write(sniffBuffer, 0, sniffLength);
+                    remoteOut.flush();
+                    trafficStats.addBytesOut(sniffLength);
+                    flow.addOut(sniffLength);
+                }
+                buffering = false;
+                sniffBuffer = null;
+            }
+        }
+        
+        private void bufferPayload(Packet packet, int payloadSize) {
+            // Повторы и сегменты не по порядку не берём - клиент перешлёт их после ACK
+            if ((packet.tcpHeader.sequenceNumber & 0xFFFFFFFFL) == (localAckNum & 0xFFFFFFFFL)) {
+                if (sniffBuffer == null) {
+                    sniffBuffer = new byte[Math.max(2048, payloadSize)];
+                } else if (sniffLength + payloadSize > sniffBuffer.length) {
+                    byte[] grown = new byte[Math.max(sniffBuffer.length * 2, sniffLength + payloadSize)];
+                    System.arraycopy(sniffBuffer, 0, grown, 0, sniffLength);
+                    sniffBuffer = grown;
+                }
+                
+                ByteBuffer buffer = packet.backingBuffer.duplicate();
+                buffer.position(packet.ip4Header.headerLength + packet.tcpHeader.headerLength);
+                buffer.get(sniffBuffer, sniffLength, payloadSize);
+                sniffLength += payloadSize;
+                localAckNum = packet.tcpHeader.sequenceNumber + payloadSize;
+                lock.notifyAll();
+            }
+            sendAck();
+        }
+        
+        /**
+         * Соединение через прокси; поля соединения не трогает - см. adopt()
+         */
+        private Upstream openViaProxy() throws IOException {
+            Connector connector = connector(this.upstream);
+            Upstream upstream = new Upstream(RouteManager.RouteAction.PROXY);
+            upstream.proxy = new Socks5Proxy(connector.config, vpnService);
+            long start = System.nanoTime();
+            
+            try {
+                if (connector.muxPool != null) {
+                    // Новый поток в существующем соединении - без TCP рукопожатия
+                    upstream.muxStream = connector.muxPool.openStream(CONNECT_TIMEOUT);
+                    upstream.muxStream.setReadTimeout(CONNECT_TIMEOUT);
+                    if (destHost != null) {
+                        upstream.proxy.connectPipelined(upstream.muxStream.getInputStream(),
+                                                        upstream.muxStream.getOutputStream(), destHost, destPort);
+                    } else {
+                        upstream.proxy.connectPipelined(upstream.muxStream.getInputStream(),
+                                                        upstream.muxStream.getOutputStream(), destAddress, destPort);
+                    }
+                } else if (destHost != null) {
+                    // Имя разрешает прокси - настоящий DNS запрос с устройства не нужен
+                    upstream.proxy.connect(destHost, destPort, CONNECT_TIMEOUT);
+                    upstream.socket = upstream.proxy.getSocket();
+                } else {
+                    upstream.proxy.connect(destAddress, destPort, CONNECT_TIMEOUT);
+                    upstream.socket = upstream.proxy.getSocket();
+                }
+                
+                upstream.in = upstream.proxy.getInputStream();
+                upstream.out = upstream.proxy.getOutputStream();
+            } catch (IOException e) {
+                upstream.close();
+                throw e;
+            }
+            connector.recordConnect((System.nanoTime() - start) / 1000000);
+            return upstream;
         }
         
-        private void connectDirect() throws IOException {
-            remoteSocket = new Socket();
+        private Upstream openDirect() throws IOException {
+            Upstream upstream = new Upstream(RouteManager.RouteAction.DIRECT);
+            upstream.socket = new Socket();
             
-            if (vpnService != null) {
-                vpnService.protect(remoteSocket);
+            try {
+                if (vpnService != null) {
+                    vpnService.protect(upstream.socket);
+                }
+                
+                upstream.socket.setTcpNoDelay(true);
+                upstream.socket.setSoTimeout(CONNECT_TIMEOUT);
+                // Фиктивный адрес за пределами туннеля не существует - разрешаем имя по-настоящему
+                InetAddress address = fakeIp ? InetAddress.getByName(destHost) : destAddress;
+                upstream.socket.connect(new InetSocketAddress(address, destPort), CONNECT_TIMEOUT);
+                
+                upstream.in = upstream.socket.getInputStream();
+                upstream.out = upstream.socket.getOutputStream();
+            } catch (IOException e) {
+                upstream.close();
+                throw e;
+            }
+            return upstream;
+        }
+        
+        private Upstream open(RouteManager.RouteAction path) throws IOException {
+            try {
+                return path == RouteManager.RouteAction.PROXY ? openViaProxy() : openDirect();
+            } catch (IOException e) {
+                String reason = ConnectFailureCache.classify(e, path);
+                if (reason != null) {
+                    failureReason = reason;
+                }
+                throw e;
+            }
+        }
+        
+        /**
+         * Делает соединение текущим; если клиент уже ушёл, закрывает его
+         */
+        private void adopt(Upstream upstream) throws IOException {
+            synchronized (lock) {
+                if (closed) {
+                    upstream.close();
+                    throw new IOException("closed by client");
+                }
+                proxy = upstream.proxy;
+                muxStream = upstream.muxStream;
+                remoteSocket = upstream.socket;
+                remoteIn = upstream.in;
+                remoteOut = upstream.out;
+            }
+        }
+        
+        /**
+         * AUTO: запомненный путь, пока запись свежая, иначе гонка путей.
+         * Возвращает путь, по которому установлено соединение.
+         */
+        private RouteManager.RouteAction connectAuto() throws IOException, InterruptedException {
+            String key = destHost != null ? destHost : destAddress.getHostAddress();
+            RouteManager.RouteAction remembered = autoRouteCache.get(key);
+            if (remembered != null) {
+                long start = System.nanoTime();
+                try {
+                    adopt(open(remembered));
+                    autoRouteCache.recordSuccess(key, remembered, (System.nanoTime() - start) / 1000000);
+                    return remembered;
+                } catch (IOException e) {
+                    if (closed) throw e;
+                    autoRouteCache.recordFailure(key, remembered);
+                    logManager.w(TAG, "#" + connectionId + " " + dest() + " - " + remembered +
+                                 " path failed, racing both");
+                }
             }
             
-            remoteSocket.setTcpNoDelay(true);
-            remoteSocket.setSoTimeout(CONNECT_TIMEOUT);
-            remoteSocket.connect(new InetSocketAddress(destAddress, destPort), CONNECT_TIMEOUT);
+            Upstream winner = race(key);
+            autoRouteCache.remember(key, winner.path);
+            adopt(winner);
+            return winner.path;
+        }
+        
+        /**
+         * Гонка путей: предпочтительный стартует первым, второй - через AUTO_HEAD_START мс
+         * или сразу после отказа первого. Побеждает первое установленное соединение,
+         * опоздавшее закрывается.
+         */
+        private Upstream race(String key) throws IOException, InterruptedException {
+            RouteManager.RouteAction first = autoRouteCache.getPreferred(key);
+            RouteManager.RouteAction second = first == RouteManager.RouteAction.PROXY
+                ? RouteManager.RouteAction.DIRECT : RouteManager.RouteAction.PROXY;
             
-            remoteIn = remoteSocket.getInputStream();
-            remoteOut = remoteSocket.getOutputStream();
+            Race race = new Race();
+            startAttempt(race, first, key);
+            int started = 1;
+            int finished = 0;
+            IOException error = null;
+            
+            try {
+                Object result = race.results.poll(AUTO_HEAD_START, TimeUnit.MILLISECONDS);
+                if (result == null) {
+                    startAttempt(race, second, key);
+                    started++;
+                }
+                while (true) {
+                    if (result == null) {
+                        result = race.results.poll(CONNECT_TIMEOUT, TimeUnit.MILLISECONDS);
+                        if (result == null) break;
+                    }
+                    finished++;
+                    if (result instanceof Upstream) {
+                        return race.finish((Upstream) result);
+                    }
+                    error = (IOException) result;
+                    if (started == 1) {
+                        startAttempt(race, second, key);
+                        started++;
+                    } else if (finished == started) {
+                        break;
+                    }
+                    result = null;
+                }
+            } finally {
+                race.finish(null);
+            }
+            throw error != null ? error : new SocketTimeoutException("auto connect timed out");
+        }
+        
+        private void startAttempt(final Race race, final RouteManager.RouteAction path, final String key) {
+            executorService.submit(() -> {
+                long start = System.nanoTime();
+                try {
+                    Upstream upstream = open(path);
+                    autoRouteCache.recordSuccess(key, path, (System.nanoTime() - start) / 1000000);
+                    race.offer(upstream);
+                } catch (IOException e) {
+                    autoRouteCache.recordFailure(key, path);
+                    race.offer(e);
+                }
+            });
         }
         
         private String getConnectionKey() {
@@ -364,6 +881,11 @@ public class TcpHandler {
                                   packet.ip4Header.headerLength - 
                                   packet.tcpHeader.headerLength;
                 
+                if (payloadSize > 0 && buffering) {
+                    bufferPayload(packet, payloadSize);
+                    return;
+                }
+                
                 if (payloadSize > 0 && remoteOut != null) {
                     try {
                         ByteBuffer buffer = packet.backingBuffer.duplicate();
@@ -375,10 +897,11 @@ public class TcpHandler {
                         remoteOut.flush();
                         
                         trafficStats.addBytesOut(payloadSize);
+                        flow.addOut(payloadSize);
                         
                         localAckNum = packet.tcpHeader.sequenceNumber + payloadSize;
                         sendAck();
-                        
+                    
                     } catch (IOException e) {
                         logManager.e(TAG, "#" + connectionId + " forward error: " + e.getMessage());
                         close();
@@ -391,7 +914,11 @@ public class TcpHandler {
             byte[] buffer = new byte[BUFFER_SIZE];
             
             try {
-                remoteSocket.setSoTimeout(50);
+                if (muxStream != null) {
+                    muxStream.setReadTimeout(50);
+                } else {
+                    remoteSocket.setSoTimeout(50);
+                }
                 
                 while (!closed && running) {
                     try {
@@ -403,8 +930,8 @@ public class TcpHandler {
                         }
                         
                         if (read > 0) {
-                            trafficStats.addBytesIn(read);
-                            trafficStats.addPacketIn();
+                            trafficStats.addPacketIn(read);
+                            flow.addIn(read);
                             sendData(buffer, read);
                         }
                     } catch (SocketTimeoutException e) {
@@ -479,7 +1006,7 @@ public class TcpHandler {
                     }
                     
                     localSequenceNum += length;
-                    
+                
                 } catch (Exception e) {
                     Log.e(TAG, "Error sending data", e);
                 }
@@ -551,11 +1078,17 @@ public class TcpHandler {
             synchronized (lock) {
                 if (closed) return;
                 closed = true;
+                lock.notifyAll();
+                flowStats.close(flow);
                 
                 if (proxy != null) {
                     proxy.close();
                 }
                 
+                if (muxStream != null) {
+                    muxStream.close();
+                }
+                
                 if (remoteSocket != null && !remoteSocket.isClosed()) {
                     try {
                         remoteSocket.close();
@@ -1,17 +1,40 @@
 package com.example.socks5vpn;
 
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
+/**
+ * Счётчики сервиса. Пакеты и байты считаются на каждом пакете из нескольких потоков
+ * (чтение TUN, селекторы, UDP relay), поэтому все счётчики - LongAdder: запись
+ * из разных потоков не спорит за одну ячейку, а чтение для UI раз в секунду
+ * суммирует ячейки.
+ */
 public class TrafficStats {
     private static TrafficStats instance;
     
-    private final AtomicLong bytesIn = new AtomicLong(0);
-    private final AtomicLong bytesOut = new AtomicLong(0);
-    private final AtomicLong packetsIn = new AtomicLong(0);
-    private final AtomicLong packetsOut = new AtomicLong(0);
-    private final AtomicLong connectionsProxy = new AtomicLong(0);
-    private final AtomicLong connectionsDirect = new AtomicLong(0);
-    private final AtomicLong connectionsBlocked = new AtomicLong(0);
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder packetsIn = new LongAdder();
+    private final LongAdder packetsOut = new LongAdder();
+    private final LongAdder connectionsProxy = new LongAdder();
+    private final LongAdder connectionsDirect = new LongAdder();
+    private final LongAdder connectionsBlocked = new LongAdder();
+    private final LongAdder udpSessionsActive = new LongAdder();
+    private final LongAdder udpSessionsCreated = new LongAdder();
+    private final LongAdder udpSessionsExpired = new LongAdder();
+    private final LongAdder dnsQueries = new LongAdder();
+    private final LongAdder dnsCacheHits = new LongAdder();
+    private final LongAdder dnsCoalesced = new LongAdder();
+    private final LongAdder dnsPrefetches = new LongAdder();
+    private final LongAdder dnsLatencySavedMs = new LongAdder();
+    private final LongAdder dnsFakeIpAnswers = new LongAdder();
+    private final LongAdder dnsBlocked = new LongAdder();
+    private final LongAdder sniffAttempts = new LongAdder();
+    private final LongAdder sniffHits = new LongAdder();
+    private final LongAdder sniffParses = new LongAdder();
+    private final LongAdder sniffParseNanos = new LongAdder();
+    private final LongAdder routeCacheHits = new LongAdder();
+    private final LongAdder routeCacheMisses = new LongAdder();
+    private final LongAdder connectFailureCacheHits = new LongAdder();
     
     public static synchronized TrafficStats getInstance() {
         if (instance == null) {
@@ -23,50 +46,174 @@ public class TrafficStats {
     private TrafficStats() {}
     
     public void reset() {
-        bytesIn.set(0);
-        bytesOut.set(0);
-        packetsIn.set(0);
-        packetsOut.set(0);
-        connectionsProxy.set(0);
-        connectionsDirect.set(0);
-        connectionsBlocked.set(0);
+        bytesIn.reset();
+        bytesOut.reset();
+        packetsIn.reset();
+        packetsOut.reset();
+        connectionsProxy.reset();
+        connectionsDirect.reset();
+        connectionsBlocked.reset();
+        udpSessionsActive.reset();
+        udpSessionsCreated.reset();
+        udpSessionsExpired.reset();
+        dnsQueries.reset();
+        dnsCacheHits.reset();
+        dnsCoalesced.reset();
+        dnsPrefetches.reset();
+        dnsLatencySavedMs.reset();
+        dnsFakeIpAnswers.reset();
+        dnsBlocked.reset();
+        sniffAttempts.reset();
+        sniffHits.reset();
+        sniffParses.reset();
+        sniffParseNanos.reset();
+        routeCacheHits.reset();
+        routeCacheMisses.reset();
+        connectFailureCacheHits.reset();
     }
     
     public void addBytesIn(long bytes) {
-        bytesIn.addAndGet(bytes);
+        bytesIn.add(bytes);
     }
     
     public void addBytesOut(long bytes) {
-        bytesOut.addAndGet(bytes);
+        bytesOut.add(bytes);
     }
     
-    public void addPacketIn() {
-        packetsIn.incrementAndGet();
+    /**
+     * Пакет из сети к приложению и его размер
+     */
+    public void addPacketIn(long bytes) {
+        packetsIn.increment();
+        bytesIn.add(bytes);
     }
     
-    public void addPacketOut() {
-        packetsOut.incrementAndGet();
+    /**
+     * Пакет от приложения и его размер
+     */
+    public void addPacketOut(long bytes) {
+        packetsOut.increment();
+        bytesOut.add(bytes);
     }
     
     public void addProxyConnection() {
-        connectionsProxy.incrementAndGet();
+        connectionsProxy.increment();
     }
     
     public void addDirectConnection() {
-        connectionsDirect.incrementAndGet();
+        connectionsDirect.increment();
     }
     
     public void addBlockedConnection() {
-        connectionsBlocked.incrementAndGet();
+        connectionsBlocked.increment();
     }
     
-    public long getBytesIn() { return bytesIn.get(); }
-    public long getBytesOut() { return bytesOut.get(); }
-    public long getPacketsIn() { return packetsIn.get(); }
-    public long getPacketsOut() { return packetsOut.get(); }
-    public long getConnectionsProxy() { return connectionsProxy.get(); }
-    public long getConnectionsDirect() { return connectionsDirect.get(); }
-    public long getConnectionsBlocked() { return connectionsBlocked.get(); }
+    public void addUdpSessionCreated() {
+        udpSessionsCreated.increment();
+        udpSessionsActive.increment();
+    }
+    
+    public void addUdpSessionClosed(boolean expired) {
+        udpSessionsActive.decrement();
+        if (expired) {
+            udpSessionsExpired.increment();
+        }
+    }
+    
+    public void addDnsQuery() {
+        dnsQueries.increment();
+    }
+    
+    /**
+     * Попадание в DNS кэш; savedMs - задержка upstream, которую удалось сэкономить
+     */
+    public void addDnsCacheHit(long savedMs) {
+        dnsCacheHits.increment();
+        dnsLatencySavedMs.add(savedMs);
+    }
+    
+    public void addDnsCoalesced() {
+        dnsCoalesced.increment();
+    }
+    
+    public void addDnsPrefetch() {
+        dnsPrefetches.increment();
+    }
+    
+    public void addDnsFakeIpAnswer() {
+        dnsFakeIpAnswers.increment();
+    }
+    
+    public void addDnsBlocked() {
+        dnsBlocked.increment();
+    }
+    
+    public void addSniffResult(boolean found) {
+        sniffAttempts.increment();
+        if (found) {
+            sniffHits.increment();
+        }
+    }
+    
+    public void addSniffParseTime(long nanos) {
+        sniffParses.increment();
+        sniffParseNanos.add(nanos);
+    }
+    
+    public void addRouteCacheHit() {
+        routeCacheHits.increment();
+    }
+    
+    public void addRouteCacheMiss() {
+        routeCacheMisses.increment();
+    }
+    
+    public void addConnectFailureCacheHit() {
+        connectFailureCacheHits.increment();
+    }
+    
+    public long getBytesIn() { return bytesIn.sum(); }
+    public long getBytesOut() { return bytesOut.sum(); }
+    public long getPacketsIn() { return packetsIn.sum(); }
+    public long getPacketsOut() { return packetsOut.sum(); }
+    public long getConnectionsProxy() { return connectionsProxy.sum(); }
+    public long getConnectionsDirect() { return connectionsDirect.sum(); }
+    public long getConnectionsBlocked() { return connectionsBlocked.sum(); }
+    public long getUdpSessionsActive() { return udpSessionsActive.sum(); }
+    public long getUdpSessionsCreated() { return udpSessionsCreated.sum(); }
+    public long getUdpSessionsExpired() { return udpSessionsExpired.sum(); }
+    public long getDnsQueries() { return dnsQueries.sum(); }
+    public long getDnsCacheHits() { return dnsCacheHits.sum(); }
+    public long getDnsCoalesced() { return dnsCoalesced.sum(); }
+    public long getDnsPrefetches() { return dnsPrefetches.sum(); }
+    public long getDnsLatencySavedMs() { return dnsLatencySavedMs.sum(); }
+    public long getDnsFakeIpAnswers() { return dnsFakeIpAnswers.sum(); }
+    public long getDnsBlocked() { return dnsBlocked.sum(); }
+    public long getSniffAttempts() { return sniffAttempts.sum(); }
+    public long getSniffHits() { return sniffHits.sum(); }
+    public long getRouteCacheHits() { return routeCacheHits.sum(); }
+    public long getRouteCacheMisses() { return routeCacheMisses.sum(); }
+    public long getConnectFailureCacheHits() { return connectFailureCacheHits.sum(); }
+    
+    public int getSniffHitRatePercent() {
+        long attempts = sniffAttempts.sum();
+        return attempts == 0 ? 0 : (int) (sniffHits.sum() * 100 / attempts);
+    }
+    
+    public long getSniffAvgParseMicros() {
+        long parses = sniffParses.sum();
+        return parses == 0 ? 0 : sniffParseNanos.sum() / parses / 1000;
+    }
+    
+    public int getRouteCacheHitRatePercent() {
+        long lookups = routeCacheHits.sum() + routeCacheMisses.sum();
+        return lookups == 0 ? 0 : (int) (routeCacheHits.sum() * 100 / lookups);
+    }
+    
+    public int getDnsHitRatePercent() {
+        long queries = dnsQueries.sum();
+        return queries == 0 ? 0 : (int) (dnsCacheHits.sum() * 100 / queries);
+    }
     
     public static String formatBytes(long bytes) {
         if (bytes < 1024) return bytes + " B";
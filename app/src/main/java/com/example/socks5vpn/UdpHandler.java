@@ -5,31 +5,78 @@ import android.util.Log;
 
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
-public class UdpHandler {
+public class UdpHandler implements Socks5UdpRelay.Listener, UdpSessionTable.Listener, DnsResolver.Responder {
     private static final String TAG = "UDP";
-    private static final int UDP_TIMEOUT = 10000;
+    private static final int DNS_PORT = 53;
+    // Простаивающие потоки через relay забываем, как сессии в UdpSessionTable
+    private static final long PROXIED_IDLE_TIMEOUT = 60000;
+    private static final long PROXIED_DNS_IDLE_TIMEOUT = 10000;
+    private static final long EXPIRE_CHECK_INTERVAL = 5000;
     
     private final VpnService vpnService;
+    private final Socks5UdpRelay udpRelay;
+    // Именованные серверы из UpstreamProfile, у каждого своя ассоциация, как mux пул у TCP
+    private final Map<String, Socks5UdpRelay> upstreamRelays = new HashMap<>();
+    private final Set<String> unknownUpstreams = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final UdpSessionTable sessionTable;
+    private final DnsResolver dnsResolver;
+    // Потоки через relay по ключу "локальный ip:port|удалённый ip:port";
+    // создаются только в потоке обработки пакетов
+    private final Map<String, ProxiedFlow> proxiedFlows = new ConcurrentHashMap<>();
+    // Удалённый ip:port -> последний активный поток к нему. В ответе relay есть только
+    // удалённый адрес, а ассоциация одна на сервер, так что два локальных сокета к одному
+    // назначению различить нельзя - ответ получает тот, кто писал последним.
+    private final Map<String, ProxiedFlow> proxiedReplies = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService expireExecutor;
+    private volatile FileOutputStream vpnOutput;
     private final RouteManager routeManager;
     private final TrafficStats trafficStats;
     private final LogManager logManager;
     private final ExecutorService executorService;
     private volatile boolean running;
     private volatile boolean blockAllUdp;
+    private final boolean dnsOverProxy;
     
-    public UdpHandler(VpnService vpnService, boolean blockAllUdp) {
+    public UdpHandler(VpnConfig config, VpnService vpnService) throws IOException {
+        boolean blockAllUdp = config.isBlockUdp();
         this.vpnService = vpnService;
+        this.udpRelay = new Socks5UdpRelay(config, vpnService, this);
+        for (UpstreamProfile profile : config.getUpstreams()) {
+            upstreamRelays.put(profile.getName(), new Socks5UdpRelay(config.forUpstream(profile), vpnService, this));
+        }
+        this.sessionTable = new UdpSessionTable(vpnService, this);
+        this.dnsResolver = new DnsResolver(this);
+        this.dnsResolver.setUpstream(new DnsUdpUpstream(vpnService, dnsResolver));
+        this.dnsResolver.setProxyUpstream(new DnsTcpUpstream(config, vpnService, dnsResolver));
+        this.dnsOverProxy = config.isDnsOverProxy();
+        this.dnsResolver.setBlockWithZeroIp(config.isDnsBlockZeroIp());
+        if (config.isFakeIpEnabled()) {
+            this.dnsResolver.setFakeIpPool(FakeIpPool.getInstance());
+        }
         this.routeManager = RouteManager.getInstance();
         this.trafficStats = TrafficStats.getInstance();
         this.logManager = LogManager.getInstance();
         this.executorService = Executors.newCachedThreadPool();
+        this.expireExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "udp-proxied-expire");
+            thread.setDaemon(true);
+            return thread;
+        });
+        expireExecutor.scheduleWithFixedDelay(this::expireProxied, EXPIRE_CHECK_INTERVAL,
+                                              EXPIRE_CHECK_INTERVAL, TimeUnit.MILLISECONDS);
         this.running = true;
         this.blockAllUdp = blockAllUdp;
         
@@ -55,8 +102,7 @@ public class UdpHandler {
         
         if (payloadSize <= 0) return;
         
-        trafficStats.addPacketOut();
-        trafficStats.addBytesOut(packet.ip4Header.totalLength);
+        trafficStats.addPacketOut(packet.ip4Header.totalLength);
         
         String dest = dstAddr.getHostAddress() + ":" + dstPort;
         
@@ -67,8 +113,16 @@ public class UdpHandler {
             return;
         }
         
+        // Фиктивные адреса выдаются только для TCP: QUIC и прочий UDP к ним
+        // отбрасываем, и приложение переходит на TCP
+        if (FakeIpPool.contains(dstAddr)) {
+            logManager.block(TAG, dest + " (" + payloadSize + "B) - fake IP");
+            return;
+        }
+        
         // Проверяем правила маршрутизации
-        RouteManager.RouteAction action = routeManager.getActionForIp(dstAddr);
+        RouteManager.RouteAction action = routeManager.getActionForIp(packet.ip4Header.destinationIp, dstPort,
+                                                                      PortRange.UDP);
         
         if (action == RouteManager.RouteAction.BLOCK) {
             logManager.block(TAG, dest + " (" + payloadSize + "B)");
@@ -76,57 +130,188 @@ public class UdpHandler {
             return;
         }
         
-        // UDP всегда идёт напрямую
-        logManager.direct(TAG, dest + " (" + payloadSize + "B)");
-        
         ByteBuffer buffer = packet.backingBuffer.duplicate();
+        buffer.limit(packet.ip4Header.totalLength);
         buffer.position(headerSize);
-        byte[] payload = new byte[payloadSize];
-        buffer.get(payload);
         
-        executorService.submit(() -> {
-            forwardUdp(srcAddr, srcPort, dstAddr, dstPort, payload, vpnOutput);
-        });
+        // Датаграммы не гоняем: AUTO идёт путём, который победил у TCP к этому адресу
+        if (action == RouteManager.RouteAction.AUTO) {
+            action = AutoRouteCache.getInstance().getPreferred(dstAddr.getHostAddress());
+        }
+        
+        boolean proxied = action == RouteManager.RouteAction.PROXY;
+        this.vpnOutput = vpnOutput;
+        
+        // DNS отвечаем из кэша туннеля, промахи идут upstream (через прокси - по TCP)
+        if (dstPort == DNS_PORT) {
+            boolean viaProxy = proxied || dnsOverProxy;
+            byte[] query = new byte[payloadSize];
+            buffer.get(query);
+            if (dnsResolver.handleQuery(srcAddr, srcPort, dstAddr, dstPort, query, payloadSize, viaProxy)) {
+                if (viaProxy) {
+                    logManager.proxy(TAG, dest + " (" + payloadSize + "B) DNS");
+                } else {
+                    logManager.direct(TAG, dest + " (" + payloadSize + "B) DNS");
+                }
+                return;
+            }
+            buffer.position(headerSize);
+        }
+        
+        if (proxied) {
+            logManager.proxy(TAG, dest + " (" + payloadSize + "B)");
+            byte[] payload = new byte[payloadSize];
+            buffer.get(payload);
+            forwardViaProxy(srcAddr, srcPort, dstAddr, packet.ip4Header.destinationIp, dstPort, payload, vpnOutput);
+            return;
+        }
+        
+        logManager.direct(TAG, dest + " (" + payloadSize + "B)");
+        
+        try {
+            sessionTable.send(srcAddr, srcPort, dstAddr, dstPort, buffer);
+        } catch (IOException e) {
+            logManager.w(TAG, dest + " - " + e.getMessage());
+        }
+    }
+    
+    @Override
+    public void onResponse(UdpSessionTable.UdpSession session, byte[] data, int length) {
+        FileOutputStream output = vpnOutput;
+        if (output == null || !running) {
+            return;
+        }
+        
+        trafficStats.addPacketIn(length);
+        
+        try {
+            sendUdpResponse(session.dstAddress, session.dstPort, session.srcAddress, session.srcPort,
+                           data, length, output);
+        } catch (IOException e) {
+            logManager.w(TAG, "Response error: " + e.getMessage());
+        }
+    }
+    
+    @Override
+    public void sendDnsResponse(InetAddress fromAddr, int fromPort, InetAddress toAddr, int toPort,
+                                byte[] data, int length) {
+        FileOutputStream output = vpnOutput;
+        if (output == null || !running) {
+            return;
+        }
+        
+        trafficStats.addPacketIn(length);
+        
+        try {
+            sendUdpResponse(fromAddr, fromPort, toAddr, toPort, data, length, output);
+        } catch (IOException e) {
+            logManager.w(TAG, "DNS response error: " + e.getMessage());
+        }
+    }
+    
+    private void forwardViaProxy(InetAddress srcAddr, int srcPort,
+                                 InetAddress dstAddr, int dstIp, int dstPort,
+                                 byte[] payload, FileOutputStream vpnOutput) {
+        this.vpnOutput = vpnOutput;
+        
+        String remoteKey = dstAddr.getHostAddress() + ":" + dstPort;
+        String flowKey = srcAddr.getHostAddress() + ":" + srcPort + "|" + remoteKey;
+        ProxiedFlow proxiedFlow = proxiedFlows.get(flowKey);
+        if (proxiedFlow == null) {
+            // Сервер выбирается при открытии потока, как у TCP соединения
+            Socks5UdpRelay relay = relay(routeManager.getUpstreamForIp(dstIp, dstPort, PortRange.UDP));
+            proxiedFlow = new ProxiedFlow(flowKey, remoteKey, new InetSocketAddress(srcAddr, srcPort), dstPort,
+                FlowStats.getInstance().open(dstAddr.getHostAddress(), dstPort, PortRange.UDP), relay);
+            proxiedFlows.put(flowKey, proxiedFlow);
+            trafficStats.addProxyConnection();
+        }
+        proxiedFlow.lastActive = System.currentTimeMillis();
+        if (proxiedReplies.get(remoteKey) != proxiedFlow) {
+            proxiedReplies.put(remoteKey, proxiedFlow);
+        }
+        proxiedFlow.flow.addOut(payload.length);
+        
+        Socks5UdpRelay relay = proxiedFlow.relay;
+        if (relay.isAssociated()) {
+            // Ассоциация уже есть - отправляем прямо из потока обработки пакетов
+            sendViaRelay(relay, dstAddr, dstPort, payload);
+        } else {
+            // UDP ASSOCIATE требует TCP рукопожатия - не блокируем чтение TUN
+            executorService.submit(() -> sendViaRelay(relay, dstAddr, dstPort, payload));
+        }
+    }
+    
+    /**
+     * Relay сервера по имени из правила; неизвестное имя - основной сервер
+     */
+    private Socks5UdpRelay relay(String upstream) {
+        if (upstream == null) {
+            return udpRelay;
+        }
+        Socks5UdpRelay relay = upstreamRelays.get(upstream);
+        if (relay == null) {
+            if (unknownUpstreams.add(upstream)) {
+                logManager.w(TAG, "No upstream profile \"" + upstream + "\", using default server");
+            }
+            return udpRelay;
+        }
+        return relay;
+    }
+    
+    private void sendViaRelay(Socks5UdpRelay relay, InetAddress dstAddr, int dstPort, byte[] payload) {
+        try {
+            relay.send(dstAddr, dstPort, payload, 0, payload.length);
+        } catch (IOException e) {
+            logManager.w(TAG, dstAddr.getHostAddress() + ":" + dstPort + " via proxy - " + e.getMessage());
+        }
     }
     
-    private void forwardUdp(InetAddress srcAddr, int srcPort, 
-                           InetAddress dstAddr, int dstPort,
-                           byte[] payload, FileOutputStream vpnOutput) {
-        DatagramSocket socket = null;
+    @Override
+    public void onDatagram(InetAddress srcAddress, int srcPort, byte[] data, int offset, int length) {
+        ProxiedFlow proxiedFlow = proxiedReplies.get(srcAddress.getHostAddress() + ":" + srcPort);
+        FileOutputStream output = vpnOutput;
+        if (proxiedFlow == null || output == null || !running) {
+            return;
+        }
+        
+        trafficStats.addPacketIn(length);
+        proxiedFlow.lastActive = System.currentTimeMillis();
+        proxiedFlow.flow.addIn(length);
+        InetSocketAddress local = proxiedFlow.local;
+        
         try {
-            socket = new DatagramSocket();
-            socket.setSoTimeout(UDP_TIMEOUT);
-            
-            if (vpnService != null) {
-                vpnService.protect(socket);
+            byte[] payload = new byte[length];
+            System.arraycopy(data, offset, payload, 0, length);
+            sendUdpResponse(srcAddress, srcPort, local.getAddress(), local.getPort(),
+                           payload, length, output);
+        } catch (IOException e) {
+            logManager.w(TAG, "Relay response error: " + e.getMessage());
+        }
+    }
+    
+    private void expireProxied() {
+        long now = System.currentTimeMillis();
+        for (ProxiedFlow proxiedFlow : proxiedFlows.values()) {
+            long timeout = proxiedFlow.remotePort == DNS_PORT ? PROXIED_DNS_IDLE_TIMEOUT : PROXIED_IDLE_TIMEOUT;
+            if (now - proxiedFlow.lastActive > timeout) {
+                closeProxied(proxiedFlow);
             }
-            
-            DatagramPacket outPacket = new DatagramPacket(payload, payload.length, dstAddr, dstPort);
-            socket.send(outPacket);
-            
-            byte[] receiveBuffer = new byte[4096];
-            DatagramPacket inPacket = new DatagramPacket(receiveBuffer, receiveBuffer.length);
-            socket.receive(inPacket);
-            
-            int receivedLength = inPacket.getLength();
-            trafficStats.addBytesIn(receivedLength);
-            trafficStats.addPacketIn();
-            trafficStats.addDirectConnection();
-            
-            logManager.d(TAG, "← " + dstAddr.getHostAddress() + ":" + dstPort + " (" + receivedLength + "B)");
-            
-            sendUdpResponse(dstAddr, dstPort, srcAddr, srcPort, 
-                           receiveBuffer, receivedLength, vpnOutput);
-            
-        } catch (Exception e) {
-            logManager.w(TAG, dstAddr.getHostAddress() + ":" + dstPort + " - " + e.getMessage());
-        } finally {
-            if (socket != null && !socket.isClosed()) {
-                socket.close();
+        }
+        // Поток пакетов мог вернуть в proxiedReplies уже закрытый поток
+        for (ProxiedFlow proxiedFlow : proxiedReplies.values()) {
+            if (proxiedFlow.closed) {
+                proxiedReplies.remove(proxiedFlow.remoteKey, proxiedFlow);
             }
         }
     }
     
+    private void closeProxied(ProxiedFlow proxiedFlow) {
+        if (!proxiedFlows.remove(proxiedFlow.key, proxiedFlow)) return;
+        proxiedFlow.closed = true;
+        proxiedReplies.remove(proxiedFlow.remoteKey, proxiedFlow);
+        FlowStats.getInstance().close(proxiedFlow.flow);
+    }
+    
     private void sendUdpResponse(InetAddress srcAddr, int srcPort,
                                 InetAddress dstAddr, int dstPort,
                                 byte[] payload, int payloadLength,
@@ -174,7 +359,56 @@ public class UdpHandler {
     
     public void stop() {
         running = false;
+        udpRelay.close();
+        for (Socks5UdpRelay relay : upstreamRelays.values()) {
+            relay.close();
+        }
+        sessionTable.close();
+        dnsResolver.close();
+        expireExecutor.shutdownNow();
+        for (ProxiedFlow proxiedFlow : proxiedFlows.values()) {
+            closeProxied(proxiedFlow);
+        }
+        proxiedReplies.clear();
         executorService.shutdownNow();
-        logManager.i(TAG, "UDP Handler stopped");
+        logManager.i(TAG, "UDP Handler stopped (sessions: " + trafficStats.getUdpSessionsCreated() +
+                     " created, " + trafficStats.getUdpSessionsExpired() + " expired)");
+        logManager.i(TAG, "Route cache: " + trafficStats.getRouteCacheHitRatePercent() + "% hits of " +
+                     (trafficStats.getRouteCacheHits() + trafficStats.getRouteCacheMisses()) + " IP lookups");
+        logManager.i(TAG, "DNS cache: " + trafficStats.getDnsHitRatePercent() + "% hits of " +
+                     trafficStats.getDnsQueries() + " queries, " + trafficStats.getDnsCoalesced() +
+                     " coalesced, " + trafficStats.getDnsBlocked() + " blocked, " +
+                     trafficStats.getDnsLatencySavedMs() + " ms saved");
+        
+        BlocklistFilter blocklist = routeManager.getBlocklist();
+        if (blocklist != null) {
+            logManager.i(TAG, "Blocklist: " + blocklist.getMatches() + " of " + blocklist.getLookups() +
+                         " lookups blocked, filter FPR " + String.format("%.3f", blocklist.getMeasuredFalsePositivePercent()) +
+                         "%, avg " + blocklist.getAvgLookupNanos() + " ns");
+        }
+    }
+    
+    /**
+     * Поток локального сокета к удалённому адресу через relay
+     */
+    private static final class ProxiedFlow {
+        final String key;
+        final String remoteKey;
+        final InetSocketAddress local;
+        final int remotePort;
+        final FlowStats.Flow flow;
+        final Socks5UdpRelay relay;
+        volatile long lastActive;
+        volatile boolean closed;
+        
+        ProxiedFlow(String key, String remoteKey, InetSocketAddress local, int remotePort, FlowStats.Flow flow,
+                    Socks5UdpRelay relay) {
+            this.key = key;
+            this.remoteKey = remoteKey;
+            this.local = local;
+            this.remotePort = remotePort;
+            this.flow = flow;
+            this.relay = relay;
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,269 @@
+package com.example.socks5vpn;
+
+import android.net.VpnService;
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * NAT таблица UDP сессий для прямого UDP. На каждый поток (src ip:port -> dst ip:port)
+ * держим один защищённый DatagramChannel, все каналы обслуживает один selector поток.
+ * Каждый ответ отправляется обратно в TUN, простаивающие сессии закрываются.
+ */
+public class UdpSessionTable {
+    private static final String TAG = "UDP";
+    private static final long IDLE_TIMEOUT = 60000;
+    // DNS запрос-ответ - держать сессию долго незачем
+    private static final long DNS_IDLE_TIMEOUT = 10000;
+    private static final long EXPIRE_CHECK_INTERVAL = 5000;
+    // Каждая сессия держит сокет: без предела сканер портов или торрент исчерпают дескрипторы
+    private static final int MAX_SESSIONS = 512;
+    private static final int RECEIVE_BUFFER_SIZE = 65535;
+    
+    public interface Listener {
+        /**
+         * Ответ для сессии. Данные лежат в data[0..length) и действительны только во время вызова.
+         */
+        void onResponse(UdpSession session, byte[] data, int length);
+    }
+    
+    private final VpnService vpnService;
+    private final Listener listener;
+    private final TrafficStats trafficStats;
+    private final FlowStats flowStats;
+    private final Map<SessionKey, UdpSession> sessions = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<UdpSession> pendingRegistrations = new ConcurrentLinkedQueue<>();
+    private final Selector selector;
+    private final Thread selectorThread;
+    private volatile boolean running = true;
+    
+    public UdpSessionTable(VpnService vpnService, Listener listener) throws IOException {
+        this.vpnService = vpnService;
+        this.listener = listener;
+        this.trafficStats = TrafficStats.getInstance();
+        this.flowStats = FlowStats.getInstance();
+        this.selector = Selector.open();
+        
+        selectorThread = new Thread(this::selectLoop, "udp-selector");
+        selectorThread.setDaemon(true);
+        selectorThread.start();
+    }
+    
+    /**
+     * Отправляет payload (position..limit) в сессию, создавая её при необходимости.
+     * Не блокирует: если буфер сокета переполнен, датаграмма отбрасывается, как в сети.
+     */
+    public void send(InetAddress srcAddr, int srcPort, InetAddress dstAddr, int dstPort,
+                     ByteBuffer payload) throws IOException {
+        SessionKey lookupKey = new SessionKey(srcAddr, srcPort, dstAddr, dstPort);
+        UdpSession session = sessions.get(lookupKey);
+        
+        if (session == null) {
+            if (sessions.size() >= MAX_SESSIONS) {
+                evictLeastRecentlyActive();
+            }
+            session = new UdpSession(lookupKey, srcAddr, srcPort, dstAddr, dstPort);
+            sessions.put(lookupKey, session);
+            trafficStats.addUdpSessionCreated();
+            trafficStats.addDirectConnection();
+            
+            pendingRegistrations.add(session);
+            selector.wakeup();
+        }
+        
+        session.lastActive = System.currentTimeMillis();
+        session.flow.addOut(payload.remaining());
+        session.channel.write(payload);
+    }
+    
+    public int getSessionCount() {
+        return sessions.size();
+    }
+    
+    private void selectLoop() {
+        ByteBuffer buffer = ByteBuffer.allocate(RECEIVE_BUFFER_SIZE);
+        long lastExpireCheck = System.currentTimeMillis();
+        
+        while (running) {
+            try {
+                selector.select(EXPIRE_CHECK_INTERVAL);
+                
+                UdpSession pending;
+                while ((pending = pendingRegistrations.poll()) != null) {
+                    if (!pending.closed) {
+                        pending.channel.register(selector, SelectionKey.OP_READ, pending);
+                    }
+                }
+                
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    
+                    if (!key.isValid() || !key.isReadable()) continue;
+                    
+                    UdpSession session = (UdpSession) key.attachment();
+                    readSession(session, buffer);
+                }
+                
+                long now = System.currentTimeMillis();
+                if (now - lastExpireCheck >= EXPIRE_CHECK_INTERVAL) {
+                    lastExpireCheck = now;
+                    expireIdle(now);
+                }
+            } catch (IOException e) {
+                if (running) {
+                    Log.e(TAG, "Selector error: " + e.getMessage());
+                }
+            }
+        }
+        
+        try {
+            selector.close();
+        } catch (IOException ignored) {}
+    }
+    
+    private void readSession(UdpSession session, ByteBuffer buffer) {
+        // Читаем всё, что накопилось: у QUIC/WebRTC ответов много
+        while (true) {
+            buffer.clear();
+            int read;
+            try {
+                read = session.channel.read(buffer);
+            } catch (IOException e) {
+                // ICMP port unreachable и т.п. - сессия больше не нужна
+                closeSession(session, false);
+                return;
+            }
+            if (read <= 0) return;
+            
+            session.lastActive = System.currentTimeMillis();
+            session.flow.addIn(read);
+            listener.onResponse(session, buffer.array(), read);
+        }
+    }
+    
+    private void expireIdle(long now) {
+        for (UdpSession session : sessions.values()) {
+            long timeout = session.dstPort == 53 ? DNS_IDLE_TIMEOUT : IDLE_TIMEOUT;
+            if (now - session.lastActive > timeout) {
+                closeSession(session, true);
+            }
+        }
+    }
+    
+    /**
+     * Таблица заполнена: закрываем сессию, дольше всех не видевшую трафика в обе стороны.
+     * Полный проход, но только при создании сессии сверх предела; вытеснение считается
+     * как истечение. Вызывается только из send(), так что новые сессии не вытесняются.
+     */
+    private void evictLeastRecentlyActive() {
+        UdpSession oldest = null;
+        for (UdpSession session : sessions.values()) {
+            if (oldest == null || session.lastActive < oldest.lastActive) {
+                oldest = session;
+            }
+        }
+        if (oldest != null) {
+            closeSession(oldest, true);
+        }
+    }
+    
+    private void closeSession(UdpSession session, boolean expired) {
+        if (sessions.remove(session.key) == null) return;
+        session.close();
+        trafficStats.addUdpSessionClosed(expired);
+    }
+    
+    public void close() {
+        running = false;
+        selector.wakeup();
+        for (UdpSession session : sessions.values()) {
+            closeSession(session, false);
+        }
+    }
+    
+    /**
+     * Ключ сессии: адреса и порты отправителя и получателя (протокол всегда UDP)
+     */
+    private static final class SessionKey {
+        private final int srcIp;
+        private final int dstIp;
+        private final int ports;
+        
+        SessionKey(InetAddress srcAddr, int srcPort, InetAddress dstAddr, int dstPort) {
+            this.srcIp = toInt(srcAddr.getAddress());
+            this.dstIp = toInt(dstAddr.getAddress());
+            this.ports = (srcPort << 16) | dstPort;
+        }
+        
+        private static int toInt(byte[] addr) {
+            return ((addr[0] & 0xFF) << 24) | ((addr[1] & 0xFF) << 16) |
+                   ((addr[2] & 0xFF) << 8) | (addr[3] & 0xFF);
+        }
+        
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof SessionKey)) return false;
+            SessionKey other = (SessionKey) o;
+            return srcIp == other.srcIp && dstIp == other.dstIp && ports == other.ports;
+        }
+        
+        @Override
+        public int hashCode() {
+            return (srcIp * 31 + dstIp) * 31 + ports;
+        }
+    }
+    
+    public class UdpSession {
+        private final SessionKey key;
+        public final InetAddress srcAddress;
+        public final int srcPort;
+        public final InetAddress dstAddress;
+        public final int dstPort;
+        private final DatagramChannel channel;
+        private final FlowStats.Flow flow;
+        private volatile long lastActive;
+        private volatile boolean closed;
+        
+        UdpSession(SessionKey key, InetAddress srcAddress, int srcPort,
+                   InetAddress dstAddress, int dstPort) throws IOException {
+            this.key = key;
+            this.srcAddress = srcAddress;
+            this.srcPort = srcPort;
+            this.dstAddress = dstAddress;
+            this.dstPort = dstPort;
+            
+            channel = DatagramChannel.open();
+            try {
+                if (vpnService != null) {
+                    vpnService.protect(channel.socket());
+                }
+                channel.configureBlocking(false);
+                channel.connect(new InetSocketAddress(dstAddress, dstPort));
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+            flow = flowStats.open(dstAddress.getHostAddress(), dstPort, PortRange.UDP);
+        }
+        
+        void close() {
+            closed = true;
+            flowStats.close(flow);
+            try {
+                channel.close();
+            } catch (IOException ignored) {}
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package com.example.socks5vpn;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Именованный SOCKS5 сервер. Правило прокси с уточнением "proxy:имя" отправляет
+ * подходящие соединения через этот сервер вместо основного, например
+ * "netflix.com proxy:us" или "1.2.0.0/16 443 proxy:asia".
+ *
+ * В настройках профиль - строка "имя хост:порт [пользователь пароль]".
+ */
+public final class UpstreamProfile {
+    private final String name;
+    private final String serverAddress;
+    private final int serverPort;
+    private final String username;
+    private final String password;
+    
+    public UpstreamProfile(String name, String serverAddress, int serverPort, String username, String password) {
+        this.name = name;
+        this.serverAddress = serverAddress;
+        this.serverPort = serverPort;
+        this.username = username;
+        this.password = password;
+    }
+    
+    /**
+     * Профиль из строки настроек; null, если строка неверная
+     */
+    public static UpstreamProfile parse(String line) {
+        String[] tokens = line.trim().split("\\s+");
+        if (tokens.length != 2 && tokens.length != 4) {
+            return null;
+        }
+        String name = tokens[0].toLowerCase();
+        if (!isValidName(name)) {
+            return null;
+        }
+        
+        String address = tokens[1];
+        int colon = address.lastIndexOf(':');
+        if (colon <= 0) {
+            return null;
+        }
+        int port;
+        try {
+            port = Integer.parseInt(address.substring(colon + 1));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        if (port <= 0 || port > 65535) {
+            return null;
+        }
+        String host = address.substring(0, colon);
+        // IPv6 адрес пишется в скобках: [2001:db8::1]:1080
+        if (host.startsWith("[") && host.endsWith("]")) {
+            host = host.substring(1, host.length() - 1);
+        }
+        
+        return tokens.length == 4
+            ? new UpstreamProfile(name, host, port, tokens[2], tokens[3])
+            : new UpstreamProfile(name, host, port, "", "");
+    }
+    
+    /**
+     * Профили из многострочного текста; пустые и неверные строки пропускаются
+     */
+    public static List<UpstreamProfile> parseAll(String text) {
+        List<UpstreamProfile> result = new ArrayList<>();
+        if (text == null) {
+            return result;
+        }
+        for (String line : text.split("\n")) {
+            if (line.trim().isEmpty()) continue;
+            UpstreamProfile profile = parse(line);
+            if (profile != null) {
+                result.add(profile);
+            }
+        }
+        return result;
+    }
+    
+    public static String formatAll(List<UpstreamProfile> profiles) {
+        StringBuilder sb = new StringBuilder();
+        for (UpstreamProfile profile : profiles) {
+            if (sb.length() > 0) {
+                sb.append('\n');
+            }
+            sb.append(profile);
+        }
+        return sb.toString();
+    }
+    
+    /**
+     * Буквы, цифры, '-' и '_' - имя пишется в правилах одним словом
+     */
+    public static boolean isValidName(String name) {
+        if (name.isEmpty()) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (!Character.isLetterOrDigit(c) && c != '-' && c != '_') {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    public String getName() { return name; }
+    public String getServerAddress() { return serverAddress; }
+    public int getServerPort() { return serverPort; }
+    public String getUsername() { return username; }
+    public String getPassword() { return password; }
+    
+    @Override
+    public String toString() {
+        String host = serverAddress.indexOf(':') >= 0 ? "[" + serverAddress + "]" : serverAddress;
+        StringBuilder sb = new StringBuilder();
+        sb.append(name).append(' ').append(host).append(':').append(serverPort);
+        if (!username.isEmpty()) {
+            sb.append(' ').append(username).append(' ').append(password);
+        }
+        return sb.toString();
+    }
+}
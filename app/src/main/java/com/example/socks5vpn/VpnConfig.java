@@ -3,6 +3,9 @@ package com.example.socks5vpn;
 import android.content.Context;
 import android.content.SharedPreferences;
 
+import java.util.ArrayList;
+import java.util.List;
+
 public class VpnConfig {
     private static final String PREFS_NAME = "vpn_config";
     private static final String KEY_SERVER = "server";
@@ -11,6 +14,17 @@ public class VpnConfig {
     private static final String KEY_PASSWORD = "password";
     private static final String KEY_BLOCK_UDP = "block_udp";
     private static final String KEY_ENABLE_LOGS = "enable_logs";
+    private static final String KEY_MUX = "mux";
+    private static final String KEY_DNS_OVER_PROXY = "dns_over_proxy";
+    private static final String KEY_FAKE_IP = "fake_ip";
+    private static final String KEY_SNIFF = "sniff";
+    private static final String KEY_DNS_BLOCK_ZERO_IP = "dns_block_zero_ip";
+    private static final String KEY_SNIFF_TIMEOUT = "sniff_timeout";
+    private static final String KEY_SNIFF_PORTS = "sniff_ports";
+    private static final String KEY_KERNEL_ROUTING = "kernel_routing";
+    private static final String KEY_UPSTREAMS = "upstreams";
+    
+    public static final int DEFAULT_SNIFF_TIMEOUT = 50;
     
     private String serverAddress;
     private int serverPort;
@@ -18,6 +32,15 @@ public class VpnConfig {
     private String password;
     private boolean blockUdp;
     private boolean enableLogs;
+    private boolean muxEnabled;
+    private boolean dnsOverProxy;
+    private boolean fakeIpEnabled;
+    private boolean sniffEnabled;
+    private boolean dnsBlockZeroIp;
+    private boolean kernelRouting;
+    private int sniffTimeout = DEFAULT_SNIFF_TIMEOUT;
+    private int[] sniffPorts = new int[0];
+    private List<UpstreamProfile> upstreams = new ArrayList<>();
     
     public VpnConfig(String serverAddress, int serverPort, String username, String password) {
         this.serverAddress = serverAddress;
@@ -34,14 +57,60 @@ public class VpnConfig {
     public String getPassword() { return password; }
     public boolean isBlockUdp() { return blockUdp; }
     public boolean isEnableLogs() { return enableLogs; }
+    // Сервер принимает yamux сессии, каждый поток - отдельный SOCKS5 клиент
+    public boolean isMuxEnabled() { return muxEnabled; }
+    // Все DNS запросы идут по TCP через прокси, даже если DNS сервер маршрутизируется напрямую
+    public boolean isDnsOverProxy() { return dnsOverProxy; }
+    // Имена из правил получают фиктивные адреса, и соединения маршрутизируются по имени
+    public boolean isFakeIpEnabled() { return fakeIpEnabled; }
+    // Имя хоста из TLS SNI / HTTP Host для маршрутизации по правилам хостов
+    public boolean isSniffEnabled() { return sniffEnabled; }
+    // Сколько миллисекунд ждать первые байты клиента
+    public int getSniffTimeout() { return sniffTimeout; }
+    // Порты, где кроме 80 и 443 тоже ждём первые байты клиента
+    public int[] getSniffPorts() { return sniffPorts; }
+    // Заблокированные имена получают 0.0.0.0 / :: вместо NXDOMAIN
+    public boolean isDnsBlockZeroIp() { return dnsBlockZeroIp; }
+    // В туннель маршрутизируются только подсети из правил, DIRECT трафик идёт мимо него
+    public boolean isKernelRouting() { return kernelRouting; }
+    // Именованные серверы для правил "proxy:имя"
+    public List<UpstreamProfile> getUpstreams() { return upstreams; }
     
     public void setBlockUdp(boolean blockUdp) { this.blockUdp = blockUdp; }
     public void setEnableLogs(boolean enableLogs) { this.enableLogs = enableLogs; }
+    public void setMuxEnabled(boolean muxEnabled) { this.muxEnabled = muxEnabled; }
+    public void setDnsOverProxy(boolean dnsOverProxy) { this.dnsOverProxy = dnsOverProxy; }
+    public void setFakeIpEnabled(boolean fakeIpEnabled) { this.fakeIpEnabled = fakeIpEnabled; }
+    public void setSniffEnabled(boolean sniffEnabled) { this.sniffEnabled = sniffEnabled; }
+    public void setSniffTimeout(int sniffTimeout) { this.sniffTimeout = Math.max(0, sniffTimeout); }
+    public void setSniffPorts(int[] sniffPorts) { this.sniffPorts = sniffPorts.clone(); }
+    public void setDnsBlockZeroIp(boolean dnsBlockZeroIp) { this.dnsBlockZeroIp = dnsBlockZeroIp; }
+    public void setKernelRouting(boolean kernelRouting) { this.kernelRouting = kernelRouting; }
+    public void setUpstreams(List<UpstreamProfile> upstreams) { this.upstreams = new ArrayList<>(upstreams); }
     
     public boolean hasAuth() {
         return username != null && !username.isEmpty() && password != null && !password.isEmpty();
     }
     
+    /**
+     * Та же конфигурация, но с сервером из профиля - для Socks5Proxy и MuxPool
+     */
+    public VpnConfig forUpstream(UpstreamProfile profile) {
+        VpnConfig config = new VpnConfig(profile.getServerAddress(), profile.getServerPort(),
+                                         profile.getUsername(), profile.getPassword());
+        config.blockUdp = blockUdp;
+        config.enableLogs = enableLogs;
+        config.muxEnabled = muxEnabled;
+        config.dnsOverProxy = dnsOverProxy;
+        config.fakeIpEnabled = fakeIpEnabled;
+        config.sniffEnabled = sniffEnabled;
+        config.dnsBlockZeroIp = dnsBlockZeroIp;
+        config.kernelRouting = kernelRouting;
+        config.sniffTimeout = sniffTimeout;
+        config.sniffPorts = sniffPorts;
+        return config;
+    }
+    
     public void save(Context context) {
         SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
         prefs.edit()
@@ -51,6 +120,15 @@ public class VpnConfig {
             .putString(KEY_PASSWORD, password)
             .putBoolean(KEY_BLOCK_UDP, blockUdp)
             .putBoolean(KEY_ENABLE_LOGS, enableLogs)
+            .putBoolean(KEY_MUX, muxEnabled)
+            .putBoolean(KEY_DNS_OVER_PROXY, dnsOverProxy)
+            .putBoolean(KEY_FAKE_IP, fakeIpEnabled)
+            .putBoolean(KEY_SNIFF, sniffEnabled)
+            .putInt(KEY_SNIFF_TIMEOUT, sniffTimeout)
+            .putString(KEY_SNIFF_PORTS, formatPorts(sniffPorts))
+            .putBoolean(KEY_DNS_BLOCK_ZERO_IP, dnsBlockZeroIp)
+            .putBoolean(KEY_KERNEL_ROUTING, kernelRouting)
+            .putString(KEY_UPSTREAMS, UpstreamProfile.formatAll(upstreams))
             .apply();
     }
     
@@ -64,9 +142,50 @@ public class VpnConfig {
         );
         config.setBlockUdp(prefs.getBoolean(KEY_BLOCK_UDP, false));
         config.setEnableLogs(prefs.getBoolean(KEY_ENABLE_LOGS, true));
+        config.setMuxEnabled(prefs.getBoolean(KEY_MUX, false));
+        config.setDnsOverProxy(prefs.getBoolean(KEY_DNS_OVER_PROXY, false));
+        config.setFakeIpEnabled(prefs.getBoolean(KEY_FAKE_IP, false));
+        config.setSniffEnabled(prefs.getBoolean(KEY_SNIFF, false));
+        config.setSniffTimeout(prefs.getInt(KEY_SNIFF_TIMEOUT, DEFAULT_SNIFF_TIMEOUT));
+        config.setSniffPorts(parsePorts(prefs.getString(KEY_SNIFF_PORTS, "")));
+        config.setDnsBlockZeroIp(prefs.getBoolean(KEY_DNS_BLOCK_ZERO_IP, false));
+        config.setKernelRouting(prefs.getBoolean(KEY_KERNEL_ROUTING, false));
+        config.setUpstreams(UpstreamProfile.parseAll(prefs.getString(KEY_UPSTREAMS, "")));
         return config;
     }
     
+    /**
+     * Список портов через запятую или пробел; неверные значения пропускаются
+     */
+    public static int[] parsePorts(String text) {
+        if (text == null) {
+            return new int[0];
+        }
+        List<Integer> ports = new ArrayList<>();
+        for (String token : text.split("[,\\s]+")) {
+            try {
+                int port = Integer.parseInt(token);
+                if (port > 0 && port <= 65535) {
+                    ports.add(port);
+                }
+            } catch (NumberFormatException ignored) {}
+        }
+        int[] result = new int[ports.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = ports.get(i);
+        }
+        return result;
+    }
+    
+    public static String formatPorts(int[] ports) {
+        StringBuilder sb = new StringBuilder();
+        for (int port : ports) {
+            if (sb.length() > 0) sb.append(", ");
+            sb.append(port);
+        }
+        return sb.toString();
+    }
+    
     public static void saveBlockUdp(Context context, boolean blockUdp) {
         SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
         prefs.edit().putBoolean(KEY_BLOCK_UDP, blockUdp).apply();
@@ -0,0 +1,154 @@
+package com.example.socks5vpn;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * BlocklistFilter: разбор списков, разница для обновления подписок и слияние файлов
+ */
+public class BlocklistFilterTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    
+    @Test
+    public void parsesListFormats() {
+        assertEquals("ads.example.com", BlocklistFilter.parseEntry("0.0.0.0 ads.example.com"));
+        assertEquals("ads.example.com", BlocklistFilter.parseEntry("127.0.0.1\tADS.example.com # tracker"));
+        assertEquals("ads.example.com", BlocklistFilter.parseEntry("||ads.example.com^"));
+        assertEquals("example.com", BlocklistFilter.parseEntry("*.example.com."));
+        assertEquals("10.0.0.0/8", BlocklistFilter.parseEntry("10.0.0.0/8"));
+        assertNull(BlocklistFilter.parseEntry("# comment"));
+        assertNull(BlocklistFilter.parseEntry("! adblock comment"));
+        assertNull(BlocklistFilter.parseEntry("0.0.0.0 localhost"));
+        assertNull(BlocklistFilter.parseEntry("0.0.0.0 0.0.0.0"));
+        assertNull(BlocklistFilter.parseEntry("example.com/path?x"));
+    }
+    
+    @Test
+    public void readKeysDropsDuplicatesAndGarbage() throws IOException {
+        BlocklistFilter.KeySet keys = read("a.com", "A.com", "0.0.0.0 a.com", "||b.com^", "nodot",
+                                           "1.2.3.0/24", "1.2.3.4", "1.2.3.0/33", "");
+        assertEquals(4, keys.count);
+        assertEquals((1L << 24) | (1L << 32), keys.prefixMask);
+        for (int i = 1; i < keys.count; i++) {
+            assertTrue(keys.keys[i - 1] < keys.keys[i]);
+        }
+    }
+    
+    @Test
+    public void compiledFileMatchesHostsAndSubnets() throws IOException {
+        BlocklistFilter filter = compile("list", "ads.example.com", "tracker.net", "10.1.0.0/16", "192.0.2.7");
+        assertEquals(4, filter.getEntryCount());
+        assertTrue(filter.containsHost("ads.example.com"));
+        assertTrue(filter.containsHost("x.y.ads.example.com"));
+        assertTrue(filter.containsHost("tracker.net"));
+        assertFalse(filter.containsHost("example.com"));
+        assertFalse(filter.containsHost("badads.example.com"));
+        assertTrue(filter.containsIp(CidrMatcherTest.ip("10.1.255.1")));
+        assertTrue(filter.containsIp(CidrMatcherTest.ip("192.0.2.7")));
+        assertFalse(filter.containsIp(CidrMatcherTest.ip("10.2.0.1")));
+        assertFalse(filter.containsIp(CidrMatcherTest.ip("192.0.2.8")));
+    }
+    
+    @Test
+    public void compileCountsUniqueEntries() throws IOException {
+        File file = new File(folder.getRoot(), "list");
+        assertEquals(4, BlocklistFilter.compile(text("a.com", "A.com", "0.0.0.0 a.com", "||b.com^", "nodot",
+                                                     "1.2.3.0/24", "1.2.3.4", "1.2.3.0/33", ""), file));
+        assertEquals(4, BlocklistFilter.open(file).getEntryCount());
+    }
+    
+    @Test
+    public void diffCountsAddedAndRemoved() throws IOException {
+        BlocklistFilter old = compile("old", "a.com", "b.com", "c.com", "10.0.0.0/8");
+        
+        assertArrayEquals(new int[] { 0, 0 }, old.diff(read("c.com", "a.com", "10.0.0.0/8", "b.com", "a.com")));
+        assertArrayEquals(new int[] { 2, 1 }, old.diff(read("a.com", "c.com", "10.0.0.0/8", "d.com", "e.com")));
+        assertArrayEquals(new int[] { 0, 4 }, old.diff(read()));
+        assertArrayEquals(new int[] { 3, 0 }, compile("empty").diff(read("a.com", "b.com", "1.1.1.1")));
+    }
+    
+    @Test
+    public void mergeUnionsSourcesWithoutDuplicates() throws IOException {
+        BlocklistFilter first = compile("first", "a.com", "b.com", "10.0.0.0/8");
+        BlocklistFilter second = compile("second", "b.com", "c.com", "192.0.2.1");
+        BlocklistFilter empty = compile("empty");
+        File output = new File(folder.getRoot(), "merged");
+        
+        assertEquals(5, BlocklistFilter.merge(Arrays.asList(first, empty, second), output));
+        BlocklistFilter merged = BlocklistFilter.open(output);
+        assertEquals(5, merged.getEntryCount());
+        for (String host : new String[] { "a.com", "b.com", "www.c.com" }) {
+            assertTrue(host, merged.containsHost(host));
+        }
+        assertFalse(merged.containsHost("d.com"));
+        assertTrue(merged.containsIp(CidrMatcherTest.ip("10.20.30.40")));
+        assertTrue(merged.containsIp(CidrMatcherTest.ip("192.0.2.1")));
+        assertFalse(merged.containsIp(CidrMatcherTest.ip("192.0.2.2")));
+        
+        // Результат слияния совпадает с компиляцией объединённого списка
+        assertArrayEquals(new int[] { 0, 0 },
+                          merged.diff(read("a.com", "b.com", "c.com", "10.0.0.0/8", "192.0.2.1")));
+    }
+    
+    @Test
+    public void mergeOfManySortedSources() throws IOException {
+        String[][] lists = new String[3][];
+        StringBuilder all = new StringBuilder();
+        for (int s = 0; s < lists.length; s++) {
+            lists[s] = new String[2000];
+            for (int i = 0; i < lists[s].length; i++) {
+                // Диапазоны хостов соседних источников пересекаются
+                int host = i * 3 / 2 + s * 1000;
+                lists[s][i] = "host" + host + ".test";
+                all.append(lists[s][i]).append('\n');
+            }
+        }
+        BlocklistFilter merged = BlocklistFilter.open(mergeFiles(lists));
+        BlocklistFilter.KeySet expected = read(all.toString());
+        assertEquals(expected.count, merged.getEntryCount());
+        assertArrayEquals(new int[] { 0, 0 }, merged.diff(expected));
+    }
+    
+    private File mergeFiles(String[][] lists) throws IOException {
+        BlocklistFilter[] sources = new BlocklistFilter[lists.length];
+        for (int i = 0; i < lists.length; i++) {
+            sources[i] = compile("source" + i, lists[i]);
+        }
+        File output = new File(folder.getRoot(), "merged");
+        BlocklistFilter.merge(Arrays.asList(sources), output);
+        return output;
+    }
+    
+    private BlocklistFilter compile(String name, String... lines) throws IOException {
+        File file = new File(folder.getRoot(), name);
+        BlocklistFilter.compile(text(lines), file);
+        return BlocklistFilter.open(file);
+    }
+    
+    private static BlocklistFilter.KeySet read(String... lines) throws IOException {
+        return BlocklistFilter.readKeys(text(lines));
+    }
+    
+    private static InputStream text(String... lines) {
+        StringBuilder text = new StringBuilder();
+        for (String line : lines) {
+            text.append(line).append('\n');
+        }
+        return new ByteArrayInputStream(text.toString().getBytes(StandardCharsets.UTF_8));
+    }
+}
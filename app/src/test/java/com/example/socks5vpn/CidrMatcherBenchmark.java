@@ -0,0 +1,88 @@
+package com.example.socks5vpn;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Сборка и поиск CidrMatcher на 100k и 1M случайных подсетей (каждая десятая - BLOCK).
+ * Запуск: main() из IDE или org.openjdk.jmh.Main с тестовым classpath.
+ */
+@State(Scope.Benchmark)
+@Fork(value = 1, jvmArgs = "-Xmx2g")
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class CidrMatcherBenchmark {
+    private static final int LOOKUPS = 1 << 16;
+    
+    // Число подсетей; длины префиксов - /14-/22 для 100k и /20-/28 для 1M,
+    // чтобы подсети покрывали заметную часть адресов, но не сливались в одну
+    @Param({ "100000", "1000000" })
+    public int prefixes;
+    
+    private List<RouteManager.IpRange> proxy;
+    private List<RouteManager.IpRange> block;
+    private CidrMatcher matcher;
+    private int[] addresses;
+    private int next;
+    
+    @Setup(Level.Trial)
+    public void setUp() {
+        Random random = new Random(42);
+        int minPrefix = prefixes >= 1000000 ? 20 : 14;
+        proxy = new ArrayList<>();
+        block = new ArrayList<>();
+        for (int i = 0; i < prefixes; i++) {
+            int address = random.nextInt();
+            byte[] network = {
+                (byte) (address >>> 24), (byte) (address >>> 16), (byte) (address >>> 8), (byte) address
+            };
+            RouteManager.IpRange range = new RouteManager.IpRange(network, minPrefix + random.nextInt(9));
+            (i % 10 == 0 ? block : proxy).add(range);
+        }
+        matcher = CidrMatcher.build(proxy, block);
+        
+        addresses = new int[LOOKUPS];
+        for (int i = 0; i < LOOKUPS; i++) {
+            addresses[i] = random.nextInt();
+        }
+    }
+    
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public RouteManager.RouteAction lookup() {
+        next = (next + 1) & (LOOKUPS - 1);
+        return matcher.lookup(addresses[next]);
+    }
+    
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 3, batchSize = 1)
+    @Measurement(iterations = 5, batchSize = 1)
+    public CidrMatcher build() {
+        return CidrMatcher.build(proxy, block);
+    }
+    
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(CidrMatcherBenchmark.class.getSimpleName()).build()).run();
+    }
+}
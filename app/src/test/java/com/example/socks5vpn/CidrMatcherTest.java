@@ -0,0 +1,109 @@
+package com.example.socks5vpn;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * CidrMatcher: границы интервалов, вложенные подсети и приоритет BLOCK над PROXY
+ */
+public class CidrMatcherTest {
+    private static final RouteManager.RouteAction DIRECT = RouteManager.RouteAction.DIRECT;
+    private static final RouteManager.RouteAction PROXY = RouteManager.RouteAction.PROXY;
+    private static final RouteManager.RouteAction BLOCK = RouteManager.RouteAction.BLOCK;
+    
+    @Test
+    public void emptyMatcherIsDirectEverywhere() {
+        assertEquals(DIRECT, CidrMatcher.EMPTY.lookup(ip("0.0.0.0")));
+        assertEquals(DIRECT, CidrMatcher.EMPTY.lookup(ip("10.1.2.3")));
+        assertEquals(DIRECT, CidrMatcher.EMPTY.lookup(ip("255.255.255.255")));
+    }
+    
+    @Test
+    public void lookupRespectsRangeBoundaries() {
+        CidrMatcher matcher = CidrMatcher.build(ranges("10.0.0.0/8", "192.168.1.0/24"),
+                                                Collections.<RouteManager.IpRange>emptyList());
+        assertEquals(DIRECT, matcher.lookup(ip("9.255.255.255")));
+        assertEquals(PROXY, matcher.lookup(ip("10.0.0.0")));
+        assertEquals(PROXY, matcher.lookup(ip("10.255.255.255")));
+        assertEquals(DIRECT, matcher.lookup(ip("11.0.0.0")));
+        assertEquals(DIRECT, matcher.lookup(ip("192.168.0.255")));
+        assertEquals(PROXY, matcher.lookup(ip("192.168.1.77")));
+        assertEquals(DIRECT, matcher.lookup(ip("192.168.2.0")));
+    }
+    
+    @Test
+    public void blockOverridesProxyBothWays() {
+        // Блокировка внутри проксируемой подсети и проксируемая подсеть внутри блокировки
+        CidrMatcher matcher = CidrMatcher.build(ranges("10.0.0.0/8", "172.16.5.0/24"),
+                                                ranges("10.1.0.0/16", "172.16.0.0/12"));
+        assertEquals(PROXY, matcher.lookup(ip("10.0.255.255")));
+        assertEquals(BLOCK, matcher.lookup(ip("10.1.0.0")));
+        assertEquals(BLOCK, matcher.lookup(ip("10.1.255.255")));
+        assertEquals(PROXY, matcher.lookup(ip("10.2.0.0")));
+        assertEquals(BLOCK, matcher.lookup(ip("172.16.5.1")));
+        assertEquals(DIRECT, matcher.lookup(ip("172.32.0.0")));
+    }
+    
+    @Test
+    public void highAddressesAndDefaultRoute() {
+        // Адреса со старшим битом сравниваются как беззнаковые
+        CidrMatcher matcher = CidrMatcher.build(ranges("0.0.0.0/0"), ranges("224.0.0.0/3"));
+        assertEquals(PROXY, matcher.lookup(ip("0.0.0.0")));
+        assertEquals(PROXY, matcher.lookup(ip("127.255.255.255")));
+        assertEquals(PROXY, matcher.lookup(ip("128.0.0.0")));
+        assertEquals(PROXY, matcher.lookup(ip("223.255.255.255")));
+        assertEquals(BLOCK, matcher.lookup(ip("224.0.0.0")));
+        assertEquals(BLOCK, matcher.lookup(ip("255.255.255.255")));
+    }
+    
+    @Test
+    public void manyRangesMatchLinearScan() {
+        List<RouteManager.IpRange> proxy = new ArrayList<>();
+        List<RouteManager.IpRange> block = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            proxy.add(RouteManager.IpRange.parse((i * 7 % 256) + "." + i + ".0.0/16"));
+            block.add(RouteManager.IpRange.parse((i * 7 % 256) + "." + i + "." + i + ".0/24"));
+        }
+        CidrMatcher matcher = CidrMatcher.build(proxy, block);
+        
+        Random random = new Random(1);
+        for (int n = 0; n < 20000; n++) {
+            int address = n % 2 == 0 ? random.nextInt() : proxy.get(random.nextInt(200)).getNetworkInt() +
+                                                           random.nextInt(65536);
+            assertEquals(Integer.toHexString(address), scan(proxy, block, address), matcher.lookup(address));
+        }
+    }
+    
+    private static RouteManager.RouteAction scan(List<RouteManager.IpRange> proxy, List<RouteManager.IpRange> block,
+                                                 int address) {
+        if (contains(block, address)) return BLOCK;
+        if (contains(proxy, address)) return PROXY;
+        return DIRECT;
+    }
+    
+    private static boolean contains(List<RouteManager.IpRange> ranges, int address) {
+        for (RouteManager.IpRange range : ranges) {
+            int mask = range.getPrefixLength() == 0 ? 0 : -1 << (32 - range.getPrefixLength());
+            if ((address & mask) == (range.getNetworkInt() & mask)) return true;
+        }
+        return false;
+    }
+    
+    static List<RouteManager.IpRange> ranges(String... cidrs) {
+        List<RouteManager.IpRange> result = new ArrayList<>();
+        for (String cidr : cidrs) {
+            result.add(RouteManager.IpRange.parse(cidr));
+        }
+        return result;
+    }
+    
+    static int ip(String address) {
+        return RouteManager.IpRange.parse(address).getNetworkInt();
+    }
+}
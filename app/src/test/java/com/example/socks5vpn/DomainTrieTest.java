@@ -0,0 +1,104 @@
+package com.example.socks5vpn;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * DomainTrie: домен с поддоменами, "*." только для поддоменов, самое глубокое правило
+ */
+public class DomainTrieTest {
+    
+    @Test
+    public void emptyTrieMatchesNothing() {
+        assertEquals(DomainTrie.NONE, DomainTrie.EMPTY.match("example.com"));
+        assertEquals(0, DomainTrie.EMPTY.getRuleCount());
+    }
+    
+    @Test
+    public void plainRuleMatchesDomainAndSubdomains() {
+        DomainTrie trie = DomainTrie.build(Arrays.asList("example.com"));
+        assertEquals("example.com", trie.matchRule("example.com"));
+        assertEquals("example.com", trie.matchRule("www.example.com"));
+        assertEquals("example.com", trie.matchRule("a.b.example.com"));
+        assertNull(trie.matchRule("com"));
+        assertNull(trie.matchRule("badexample.com"));
+        assertNull(trie.matchRule("example.com.evil.net"));
+        assertNull(trie.matchRule("example.org"));
+    }
+    
+    @Test
+    public void wildcardMatchesOnlySubdomains() {
+        DomainTrie trie = DomainTrie.build(Arrays.asList("*.example.com"));
+        assertNull(trie.matchRule("example.com"));
+        assertEquals("*.example.com", trie.matchRule("www.example.com"));
+        assertEquals("*.example.com", trie.matchRule("a.b.example.com"));
+    }
+    
+    @Test
+    public void deepestRuleWins() {
+        DomainTrie trie = DomainTrie.build(Arrays.asList("com", "example.com", "*.cdn.example.com"));
+        assertEquals("com", trie.matchRule("other.com"));
+        assertEquals("example.com", trie.matchRule("www.example.com"));
+        assertEquals("example.com", trie.matchRule("cdn.example.com"));
+        assertEquals("*.cdn.example.com", trie.matchRule("img.cdn.example.com"));
+    }
+    
+    @Test
+    public void rulesAreCaseInsensitiveAndKeepTheirIndex() {
+        DomainTrie trie = DomainTrie.build(Arrays.asList("a.net", " Example.COM ", "", "b.net"));
+        assertEquals(3, trie.getRuleCount());
+        assertEquals(1, trie.match("www.example.com"));
+        assertEquals(2, trie.match("b.net"));
+        assertEquals(" Example.COM ", trie.matchRule("example.com"));
+    }
+    
+    @Test
+    public void duplicateRuleKeepsFirst() {
+        DomainTrie trie = DomainTrie.build(Arrays.asList("*.example.com", "example.com", "example.com"));
+        assertEquals(1, trie.match("example.com"));
+        assertEquals(0, trie.match("www.example.com"));
+    }
+    
+    @Test
+    public void nationalNamesMatchTheirPunycode() {
+        DomainTrie trie = DomainTrie.build(Arrays.asList("пример.рф", "*.Bücher.de", "a.test"));
+        // DNS и SNI несут имена в punycode
+        assertEquals("пример.рф", trie.matchRule("xn--e1afmkfd.xn--p1ai"));
+        assertEquals("пример.рф", trie.matchRule("www.xn--e1afmkfd.xn--p1ai"));
+        assertEquals("*.Bücher.de", trie.matchRule("shop.xn--bcher-kva.de"));
+        assertNull(trie.matchRule("xn--bcher-kva.de"));
+        // Символ вне ASCII не совпадает с меткой, даже если младший байт такой же
+        assertNull(trie.matchRule("xn--e1afmkfd.xn--p1a\u0169"));
+        assertNull(trie.matchRule("\u0161.test"));
+    }
+    
+    @Test
+    public void emptyLabelsAreIgnoredInRulesAndNames() {
+        DomainTrie trie = DomainTrie.build(Arrays.asList("a..example.com", "other.net.", ".", "*..."));
+        assertEquals(2, trie.getRuleCount());
+        assertEquals("a..example.com", trie.matchRule("a.example.com"));
+        assertEquals("a..example.com", trie.matchRule("x..a.example..com"));
+        assertEquals("other.net.", trie.matchRule("other.net"));
+        assertEquals("other.net.", trie.matchRule("other.net."));
+        assertEquals("other.net.", trie.matchRule(".other.net"));
+        assertNull(trie.matchRule("example.com"));
+        assertNull(trie.matchRule(".."));
+    }
+    
+    @Test
+    public void manyRules() {
+        DomainTrie.Builder builder = new DomainTrie.Builder();
+        for (int i = 0; i < 10000; i++) {
+            builder.add("host" + i + ".zone" + (i % 37) + ".test");
+        }
+        DomainTrie trie = builder.build();
+        for (int i = 0; i < 10000; i += 97) {
+            assertEquals(i, trie.match("x.host" + i + ".zone" + (i % 37) + ".test"));
+            assertEquals(DomainTrie.NONE, trie.match("host" + i + ".zone" + ((i + 1) % 37) + ".test"));
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package com.example.socks5vpn;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static com.example.socks5vpn.CidrMatcherTest.ranges;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * KernelRoutes: слияние интервалов туннеля в минимальный набор выровненных подсетей
+ */
+public class KernelRoutesTest {
+    private static final List<RouteManager.IpRange> NONE = Collections.emptyList();
+    
+    @Test
+    public void noRulesExcludeEverything() {
+        KernelRoutes routes = KernelRoutes.compute(CidrMatcher.EMPTY, NONE);
+        assertEquals(NONE, routes.getIncluded());
+        assertEquals(Arrays.asList("0.0.0.0/0"), strings(routes.getExcluded()));
+    }
+    
+    @Test
+    public void adjacentRangesMergeIntoOneBlock() {
+        CidrMatcher matcher = CidrMatcher.build(ranges("10.0.0.0/9", "10.128.0.0/9"), NONE);
+        KernelRoutes routes = KernelRoutes.compute(matcher, ranges("192.168.0.0/24", "192.168.1.0/24"));
+        assertEquals(Arrays.asList("10.0.0.0/8", "192.168.0.0/23"), strings(routes.getIncluded()));
+    }
+    
+    @Test
+    public void overlappingRangesMerge() {
+        // Блокировка тоже идёт в туннель: её пакеты отбрасывает сам VPN
+        CidrMatcher matcher = CidrMatcher.build(ranges("172.16.5.0/24"), ranges("172.16.0.0/12"));
+        KernelRoutes routes = KernelRoutes.compute(matcher, ranges("172.20.0.0/16", "172.31.255.255/32"));
+        assertEquals(Arrays.asList("172.16.0.0/12"), strings(routes.getIncluded()));
+    }
+    
+    @Test
+    public void unalignedIntervalSplitsIntoAlignedBlocks() {
+        KernelRoutes routes = KernelRoutes.compute(CidrMatcher.EMPTY,
+                                                   ranges("10.0.1.0/24", "10.0.2.0/23", "10.0.4.0/24"));
+        assertEquals(Arrays.asList("10.0.1.0/24", "10.0.2.0/23", "10.0.4.0/24"), strings(routes.getIncluded()));
+    }
+    
+    @Test
+    public void excludedIsComplementOfIncluded() {
+        CidrMatcher matcher = CidrMatcher.build(ranges("0.0.0.0/1"), NONE);
+        KernelRoutes routes = KernelRoutes.compute(matcher, ranges("10.0.0.0/8", "255.255.255.255/32"));
+        assertEquals(Arrays.asList("0.0.0.0/1", "255.255.255.255/32"), strings(routes.getIncluded()));
+        assertEquals(Arrays.asList("128.0.0.0/2", "192.0.0.0/3", "224.0.0.0/4", "240.0.0.0/5", "248.0.0.0/6",
+                                   "252.0.0.0/7", "254.0.0.0/8", "255.0.0.0/9", "255.128.0.0/10",
+                                   "255.192.0.0/11", "255.224.0.0/12", "255.240.0.0/13", "255.248.0.0/14",
+                                   "255.252.0.0/15", "255.254.0.0/16", "255.255.0.0/17", "255.255.128.0/18",
+                                   "255.255.192.0/19", "255.255.224.0/20", "255.255.240.0/21",
+                                   "255.255.248.0/22", "255.255.252.0/23", "255.255.254.0/24",
+                                   "255.255.255.0/25", "255.255.255.128/26", "255.255.255.192/27",
+                                   "255.255.255.224/28", "255.255.255.240/29", "255.255.255.248/30",
+                                   "255.255.255.252/31", "255.255.255.254/32"),
+                     strings(routes.getExcluded()));
+    }
+    
+    private static List<String> strings(List<RouteManager.IpRange> ranges) {
+        String[] result = new String[ranges.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = ranges.get(i).toString();
+        }
+        return Arrays.asList(result);
+    }
+}
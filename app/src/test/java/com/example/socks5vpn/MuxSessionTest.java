@@ -0,0 +1,266 @@
+package com.example.socks5vpn;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * MuxSession и MuxPool против yamux сервера на loopback: окна потока, GoAway и ping
+ */
+public class MuxSessionTest {
+    private static final int TYPE_DATA = 0;
+    private static final int TYPE_WINDOW_UPDATE = 1;
+    private static final int TYPE_PING = 2;
+    private static final int TYPE_GO_AWAY = 3;
+    
+    private static final int FLAG_SYN = 0x1;
+    private static final int FLAG_ACK = 0x2;
+    
+    private static final int INITIAL_WINDOW = 256 * 1024;
+    private static final int TIMEOUT = 5000;
+    
+    private ServerSocket server;
+    private VpnConfig config;
+    
+    @Before
+    public void setUp() throws IOException {
+        server = new ServerSocket(0, 4, InetAddress.getLoopbackAddress());
+        server.setSoTimeout(TIMEOUT);
+        config = new VpnConfig(server.getInetAddress().getHostAddress(), server.getLocalPort(), "", "");
+    }
+    
+    @After
+    public void tearDown() throws IOException {
+        server.close();
+    }
+    
+    @Test
+    public void writerBlocksWhenSendWindowIsExhausted() throws Exception {
+        MuxSession session = new MuxSession(config, null, TIMEOUT);
+        Peer peer = new Peer(server.accept());
+        try {
+            MuxSession.Stream stream = session.openStream();
+            byte[] payload = new byte[INITIAL_WINDOW + 1000];
+            for (int i = 0; i < payload.length; i++) {
+                payload[i] = (byte) i;
+            }
+            
+            CountDownLatch written = new CountDownLatch(1);
+            AtomicReference<Throwable> error = new AtomicReference<>();
+            Thread writer = new Thread(() -> {
+                try {
+                    stream.getOutputStream().write(payload);
+                    written.countDown();
+                } catch (Throwable e) {
+                    error.set(e);
+                }
+            });
+            writer.start();
+            
+            // Сервер получает ровно начальное окно, дальше писатель ждёт WindowUpdate
+            byte[] received = new byte[payload.length];
+            int total = 0;
+            int streamId = 0;
+            while (total < INITIAL_WINDOW) {
+                Frame frame = peer.readFrame();
+                assertEquals(TYPE_DATA, frame.type);
+                if (total == 0) {
+                    assertEquals(FLAG_SYN, frame.flags & FLAG_SYN);
+                    streamId = frame.streamId;
+                }
+                System.arraycopy(frame.data, 0, received, total, frame.data.length);
+                total += frame.data.length;
+            }
+            assertEquals(INITIAL_WINDOW, total);
+            assertFalse(written.await(300, TimeUnit.MILLISECONDS));
+            
+            peer.writeFrame(TYPE_WINDOW_UPDATE, 0, streamId, 1000, null);
+            while (total < payload.length) {
+                Frame frame = peer.readFrame();
+                assertEquals(TYPE_DATA, frame.type);
+                System.arraycopy(frame.data, 0, received, total, frame.data.length);
+                total += frame.data.length;
+            }
+            assertTrue(written.await(TIMEOUT, TimeUnit.MILLISECONDS));
+            assertNull(error.get());
+            assertArrayEquals(payload, received);
+        } finally {
+            session.close();
+            peer.close();
+        }
+    }
+    
+    @Test
+    public void readerReturnsWindowAfterHalfIsConsumed() throws Exception {
+        MuxSession session = new MuxSession(config, null, TIMEOUT);
+        Peer peer = new Peer(server.accept());
+        try {
+            MuxSession.Stream stream = session.openStream();
+            stream.setReadTimeout(TIMEOUT);
+            stream.getOutputStream().write(1);
+            Frame syn = peer.readFrame();
+            int streamId = syn.streamId;
+            
+            // Полное окно данных от сервера
+            int chunk = 16384;
+            for (int sent = 0; sent < INITIAL_WINDOW; sent += chunk) {
+                peer.writeFrame(TYPE_DATA, 0, streamId, chunk, new byte[chunk]);
+            }
+            
+            InputStream input = stream.getInputStream();
+            byte[] buffer = new byte[4096];
+            int read = 0;
+            while (read < INITIAL_WINDOW / 2 - buffer.length) {
+                read += input.read(buffer);
+            }
+            // Меньше половины окна - обновления ещё нет, проверяем ping'ом порядок кадров
+            peer.writeFrame(TYPE_PING, FLAG_SYN, 0, 42, null);
+            Frame pong = peer.readFrame();
+            assertEquals(TYPE_PING, pong.type);
+            assertEquals(FLAG_ACK, pong.flags);
+            assertEquals(42, pong.length);
+            
+            while (read < INITIAL_WINDOW / 2) {
+                read += input.read(buffer);
+            }
+            Frame update = peer.readFrame();
+            assertEquals(TYPE_WINDOW_UPDATE, update.type);
+            assertEquals(streamId, update.streamId);
+            assertEquals(INITIAL_WINDOW / 2, update.length);
+        } finally {
+            session.close();
+            peer.close();
+        }
+    }
+    
+    @Test
+    public void goAwayStopsNewStreams() throws Exception {
+        MuxSession session = new MuxSession(config, null, TIMEOUT);
+        Peer peer = new Peer(server.accept());
+        try {
+            assertTrue(session.isUsable());
+            MuxSession.Stream stream = session.openStream();
+            
+            peer.writeFrame(TYPE_GO_AWAY, 0, 0, 0, null);
+            // Ping после GoAway: ответ на него значит, что GoAway уже разобран
+            peer.writeFrame(TYPE_PING, FLAG_SYN, 0, 7, null);
+            assertEquals(TYPE_PING, peer.readFrame().type);
+            
+            assertFalse(session.isUsable());
+            try {
+                session.openStream();
+                fail("openStream after GoAway");
+            } catch (IOException expected) {
+            }
+            
+            // Уже открытые потоки дорабатывают
+            stream.getOutputStream().write(new byte[] { 1, 2, 3 });
+            Frame frame = peer.readFrame();
+            assertEquals(TYPE_DATA, frame.type);
+            assertArrayEquals(new byte[] { 1, 2, 3 }, frame.data);
+        } finally {
+            session.close();
+            peer.close();
+        }
+    }
+    
+    @Test
+    public void poolOpensNewSessionAfterGoAway() throws Exception {
+        MuxPool pool = new MuxPool(config, null);
+        Peer first = null;
+        Peer second = null;
+        try {
+            MuxSession.Stream a = pool.openStream(TIMEOUT);
+            first = new Peer(server.accept());
+            a.getOutputStream().write(1);
+            first.readFrame();
+            
+            first.writeFrame(TYPE_GO_AWAY, 0, 0, 0, null);
+            first.writeFrame(TYPE_PING, FLAG_SYN, 0, 1, null);
+            assertEquals(TYPE_PING, first.readFrame().type);
+            
+            MuxSession.Stream b = pool.openStream(TIMEOUT);
+            second = new Peer(server.accept());
+            b.getOutputStream().write(2);
+            Frame frame = second.readFrame();
+            assertEquals(TYPE_DATA, frame.type);
+            assertEquals(FLAG_SYN, frame.flags);
+            assertNotSame(a, b);
+        } finally {
+            pool.close();
+            if (first != null) first.close();
+            if (second != null) second.close();
+        }
+    }
+    
+    private static final class Frame {
+        int type;
+        int flags;
+        int streamId;
+        int length;
+        byte[] data;
+    }
+    
+    /**
+     * Серверная сторона yamux: читает и пишет кадры как есть
+     */
+    private static final class Peer {
+        private final Socket socket;
+        private final DataInputStream input;
+        private final DataOutputStream output;
+        
+        Peer(Socket socket) throws IOException {
+            this.socket = socket;
+            socket.setSoTimeout(TIMEOUT);
+            input = new DataInputStream(socket.getInputStream());
+            output = new DataOutputStream(socket.getOutputStream());
+        }
+        
+        Frame readFrame() throws IOException {
+            Frame frame = new Frame();
+            assertEquals(0, input.readUnsignedByte());
+            frame.type = input.readUnsignedByte();
+            frame.flags = input.readUnsignedShort();
+            frame.streamId = input.readInt();
+            frame.length = input.readInt();
+            frame.data = new byte[frame.type == TYPE_DATA ? frame.length : 0];
+            input.readFully(frame.data);
+            return frame;
+        }
+        
+        void writeFrame(int type, int flags, int streamId, int length, byte[] data) throws IOException {
+            output.writeByte(0);
+            output.writeByte(type);
+            output.writeShort(flags);
+            output.writeInt(streamId);
+            output.writeInt(length);
+            if (data != null) {
+                output.write(data);
+            }
+            output.flush();
+        }
+        
+        void close() throws IOException {
+            socket.close();
+        }
+    }
+}
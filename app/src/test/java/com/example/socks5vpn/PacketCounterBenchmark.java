@@ -0,0 +1,69 @@
+package com.example.socks5vpn;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Счётчики пакетов и байт TrafficStats под конкуренцией: общая пара AtomicLong
+ * против LongAdder. Пакет - одно увеличение числа пакетов и одно добавление байт.
+ *
+ * Потоков PACKET_THREADS - столько пишут счётчики постоянно: чтение TUN,
+ * udp-selector, udp-relay-rx и ответы DNS; каждое активное TCP соединение
+ * добавляет свой поток чтения. Другое число потоков - параметром -t.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Threads(PacketCounterBenchmark.PACKET_THREADS)
+public class PacketCounterBenchmark {
+    static final int PACKET_THREADS = 4;
+    private static final int PACKET_SIZE = 1400;
+    
+    private final AtomicLong atomicPackets = new AtomicLong();
+    private final AtomicLong atomicBytes = new AtomicLong();
+    private final LongAdder adderPackets = new LongAdder();
+    private final LongAdder adderBytes = new LongAdder();
+    
+    @Benchmark
+    public void atomicLong() {
+        atomicPackets.incrementAndGet();
+        atomicBytes.addAndGet(PACKET_SIZE);
+    }
+    
+    @Benchmark
+    public void longAdder() {
+        adderPackets.increment();
+        adderBytes.add(PACKET_SIZE);
+    }
+    
+    /**
+     * То, что делает UI раз в секунду, - для сравнения цены чтения
+     */
+    @Benchmark
+    @Threads(1)
+    public long longAdderSum() {
+        return adderPackets.sum() + adderBytes.sum();
+    }
+    
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(PacketCounterBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,127 @@
+package com.example.socks5vpn;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static com.example.socks5vpn.CidrMatcherTest.ip;
+import static com.example.socks5vpn.CidrMatcherTest.ranges;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * PortRules: уточнения по порту и протоколу, приоритеты и выбор сервера "proxy:имя"
+ */
+public class PortRulesTest {
+    private static final RouteManager.RouteAction DIRECT = RouteManager.RouteAction.DIRECT;
+    private static final RouteManager.RouteAction PROXY = RouteManager.RouteAction.PROXY;
+    private static final RouteManager.RouteAction BLOCK = RouteManager.RouteAction.BLOCK;
+    private static final RouteManager.RouteAction AUTO = RouteManager.RouteAction.AUTO;
+    private static final List<String> NO_HOSTS = Collections.emptyList();
+    private static final List<RouteManager.IpRange> NO_RANGES = Collections.emptyList();
+    
+    @Test
+    public void parsesQualifiers() {
+        assertTrue(PortRange.of("example.com").isAny());
+        PortRange range = PortRange.of("example.com 8000-8100 udp");
+        assertTrue(range.matches(8000, PortRange.UDP));
+        assertTrue(range.matches(8100, PortRange.UDP));
+        assertFalse(range.matches(8101, PortRange.UDP));
+        assertFalse(range.matches(8050, PortRange.TCP));
+        assertNull(PortRange.of("example.com 100-50"));
+        assertNull(PortRange.of("example.com 70000"));
+        assertNull(PortRange.of("example.com 443 bogus"));
+        assertNull(PortRange.of("example.com proxy:bad.name"));
+    }
+    
+    @Test
+    public void unqualifiedRulesAreLeftOut() {
+        PortRules rules = PortRules.build(Arrays.asList("example.com"), NO_HOSTS, ranges("10.0.0.0/8"), NO_RANGES);
+        assertTrue(rules.isEmpty());
+        assertEquals(0, rules.getRuleCount());
+    }
+    
+    @Test
+    public void hostRulesMatchPortAndProtocol() {
+        PortRules rules = PortRules.build(Arrays.asList("example.com 443 tcp", "plain.com"),
+                                          Arrays.asList("ads.example.com 443"), NO_RANGES, NO_RANGES);
+        assertEquals(2, rules.getRuleCount());
+        assertEquals(PROXY, rules.lookupHost("www.example.com", 443, PortRange.TCP));
+        assertEquals(DIRECT, rules.lookupHost("www.example.com", 443, PortRange.UDP));
+        assertEquals(DIRECT, rules.lookupHost("www.example.com", 80, PortRange.TCP));
+        assertEquals(BLOCK, rules.lookupHost("ads.example.com", 443, PortRange.TCP));
+        assertEquals(BLOCK, rules.lookupHost("ads.example.com", 443, PortRange.UDP));
+        assertEquals(DIRECT, rules.lookupHost("plain.com", 443, PortRange.TCP));
+        assertTrue(rules.hasHostRules("www.example.com"));
+        assertFalse(rules.hasHostRules("plain.com"));
+    }
+    
+    @Test
+    public void ipRulesMatchPortAndProtocol() {
+        PortRules rules = PortRules.build(NO_HOSTS, NO_HOSTS, ranges("8.8.8.0/24 53 udp", "1.1.1.0/24 auto"),
+                                          ranges("8.8.8.8/32 53"));
+        assertEquals(BLOCK, rules.lookupIp(ip("8.8.8.8"), 53, PortRange.UDP));
+        assertEquals(PROXY, rules.lookupIp(ip("8.8.8.9"), 53, PortRange.UDP));
+        assertEquals(DIRECT, rules.lookupIp(ip("8.8.8.9"), 53, PortRange.TCP));
+        assertEquals(DIRECT, rules.lookupIp(ip("8.8.9.9"), 53, PortRange.UDP));
+        assertEquals(AUTO, rules.lookupIp(ip("1.1.1.1"), 443, PortRange.TCP));
+        assertEquals(3, rules.getIpRanges().size());
+    }
+    
+    @Test
+    public void countryRangesAreGroupedAsIs() {
+        // Подсети страны приходят из GeoIpDatabase объектами с уточнением правила "geoip:"
+        PortRange ports = PortRange.of("geoip:cn 443 tcp");
+        List<RouteManager.IpRange> country = RouteManager.IpRange.fromIntervals(
+            new long[] {ip("1.0.1.0") & 0xFFFFFFFFL, ip("1.0.4.0") & 0xFFFFFFFFL}, 2, ports);
+        List<RouteManager.IpRange> proxy = new ArrayList<>(country);
+        // Неразвёрнутое правило страны в группы не попадает
+        proxy.addAll(ranges("geoip:jp 443 tcp"));
+        PortRules rules = PortRules.build(NO_HOSTS, NO_HOSTS, proxy, NO_RANGES);
+        assertEquals(PROXY, rules.lookupIp(ip("1.0.3.255"), 443, PortRange.TCP));
+        assertEquals(DIRECT, rules.lookupIp(ip("1.0.4.0"), 443, PortRange.TCP));
+        assertEquals(DIRECT, rules.lookupIp(ip("1.0.2.1"), 443, PortRange.UDP));
+        assertEquals(country.size(), rules.getIpRanges().size());
+    }
+    
+    @Test
+    public void proxyOverridesAuto() {
+        PortRules rules = PortRules.build(Arrays.asList("example.com 443 auto", "www.example.com 443"),
+                                          NO_HOSTS, NO_RANGES, NO_RANGES);
+        assertEquals(AUTO, rules.lookupHost("example.com", 443, PortRange.TCP));
+        assertEquals(PROXY, rules.lookupHost("www.example.com", 443, PortRange.TCP));
+    }
+    
+    @Test
+    public void largeGroupUsesTableWithSameResult() {
+        // Больше SCAN_LIMIT подсетей в группе - поиск через CidrMatcher
+        List<RouteManager.IpRange> proxy = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            proxy.add(RouteManager.IpRange.parse("10." + i + ".0.0/16 443"));
+        }
+        List<RouteManager.IpRange> block = ranges("10.5.5.0/24 443");
+        PortRules rules = PortRules.build(NO_HOSTS, NO_HOSTS, proxy, block);
+        assertEquals(PROXY, rules.lookupIp(ip("10.39.1.1"), 443, PortRange.TCP));
+        assertEquals(BLOCK, rules.lookupIp(ip("10.5.5.5"), 443, PortRange.UDP));
+        assertEquals(DIRECT, rules.lookupIp(ip("10.40.0.0"), 443, PortRange.TCP));
+        assertEquals(DIRECT, rules.lookupIp(ip("10.39.1.1"), 80, PortRange.TCP));
+    }
+    
+    @Test
+    public void upstreamComesFromFirstMatchingRule() {
+        PortRules rules = PortRules.build(Arrays.asList("video.com 443 proxy:eu", "video.com proxy:us tcp"),
+                                          NO_HOSTS, ranges("9.9.9.0/24 proxy:eu"), NO_RANGES);
+        assertTrue(rules.hasUpstreams());
+        assertEquals("eu", rules.upstreamForHost("cdn.video.com", 443, PortRange.TCP));
+        assertEquals("us", rules.upstreamForHost("cdn.video.com", 80, PortRange.TCP));
+        assertNull(rules.upstreamForHost("cdn.video.com", 80, PortRange.UDP));
+        assertNull(rules.upstreamForHost("other.com", 443, PortRange.TCP));
+        assertEquals("eu", rules.upstreamForIp(ip("9.9.9.9"), 53, PortRange.UDP));
+        assertEquals(PROXY, rules.lookupIp(ip("9.9.9.9"), 53, PortRange.UDP));
+    }
+}
@@ -0,0 +1,69 @@
+package com.example.socks5vpn;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * RouteCache: попадания, два пути на ячейку и сброс по поколению
+ */
+public class RouteCacheTest {
+    private static final RouteManager.RouteAction PROXY = RouteManager.RouteAction.PROXY;
+    private static final RouteManager.RouteAction BLOCK = RouteManager.RouteAction.BLOCK;
+    private static final RouteManager.RouteAction DIRECT = RouteManager.RouteAction.DIRECT;
+    
+    @Test
+    public void returnsStoredDecision() {
+        RouteCache cache = new RouteCache();
+        assertNull(cache.get(0x0A000001));
+        cache.put(0x0A000001, cache.getGeneration(), PROXY);
+        cache.put(0xC0000201, cache.getGeneration(), BLOCK);
+        assertEquals(PROXY, cache.get(0x0A000001));
+        assertEquals(BLOCK, cache.get(0xC0000201));
+        assertNull(cache.get(0x0A000002));
+    }
+    
+    @Test
+    public void invalidateDropsEverything() {
+        RouteCache cache = new RouteCache();
+        cache.put(0x0A000001, cache.getGeneration(), PROXY);
+        cache.invalidate();
+        assertNull(cache.get(0x0A000001));
+        cache.put(0x0A000001, cache.getGeneration(), DIRECT);
+        assertEquals(DIRECT, cache.get(0x0A000001));
+    }
+    
+    @Test
+    public void decisionFromOldGenerationIsNeverServed() {
+        // Решение посчитано по старым правилам и записано уже после их смены
+        RouteCache cache = new RouteCache();
+        int generation = cache.getGeneration();
+        cache.invalidate();
+        cache.put(0x0A000001, generation, PROXY);
+        assertNull(cache.get(0x0A000001));
+    }
+    
+    @Test
+    public void twoWaysPerSlot() {
+        // Одна пара ячеек: все адреса попадают в неё
+        RouteCache cache = new RouteCache(2);
+        assertEquals(2, cache.getCapacity());
+        int generation = cache.getGeneration();
+        cache.put(1, generation, PROXY);
+        cache.put(2, generation, BLOCK);
+        assertEquals(PROXY, cache.get(1));
+        assertEquals(BLOCK, cache.get(2));
+        
+        // Обновление того же адреса не вытесняет соседа
+        cache.put(2, generation, DIRECT);
+        assertEquals(PROXY, cache.get(1));
+        assertEquals(DIRECT, cache.get(2));
+        
+        // Третий адрес вытесняет самый старый
+        cache.put(3, generation, PROXY);
+        assertNull(cache.get(1));
+        assertEquals(DIRECT, cache.get(2));
+        assertEquals(PROXY, cache.get(3));
+    }
+}
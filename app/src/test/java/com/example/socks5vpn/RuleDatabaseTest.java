@@ -0,0 +1,141 @@
+package com.example.socks5vpn;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static com.example.socks5vpn.CidrMatcherTest.ranges;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * RuleDatabase: отображённый файл отвечает так же, как структуры в куче, а
+ * повреждённый или чужой файл не открывается
+ */
+public class RuleDatabaseTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    
+    @Test
+    public void mappedFileMatchesHeapStructures() throws IOException {
+        CidrMatcher ips = CidrMatcher.build(ranges("10.0.0.0/8", "192.168.0.0/16"), ranges("10.1.0.0/16"));
+        DomainTrie proxy = DomainTrie.build(Arrays.asList("example.com", "*.cdn.net"));
+        DomainTrie block = DomainTrie.build(Arrays.asList("ads.example.com"));
+        PortRules ports = PortRules.build(Arrays.asList("example.com 443 tcp"), Arrays.<String>asList(),
+                                          ranges("8.8.8.0/24 53 udp"), ranges());
+        File file = folder.newFile("rules.db");
+        RuleDatabase.write(file, ips, proxy, block, ports, 8);
+        
+        RuleDatabase database = RuleDatabase.open(file);
+        assertEquals(8, database.getRuleCount());
+        assertEquals(file.length(), database.getSize());
+        assertEquals(ips.getIntervalCount(), database.getIpMatcher().getIntervalCount());
+        
+        Random random = new Random(7);
+        for (int i = 0; i < 10000; i++) {
+            int ip = i % 2 == 0 ? random.nextInt() : 0x0A000000 | random.nextInt(1 << 24);
+            assertEquals(ips.lookup(ip), database.getIpMatcher().lookup(ip));
+        }
+        for (String host : new String[] { "example.com", "www.example.com", "ads.example.com", "cdn.net",
+                                          "img.cdn.net", "other.org" }) {
+            assertEquals(host, proxy.matchRule(host), database.getProxyHosts().matchRule(host));
+            assertEquals(host, block.matchRule(host), database.getBlockHosts().matchRule(host));
+            for (int port : new int[] { 80, 443 }) {
+                assertEquals(host, ports.lookupHost(host, port, PortRange.TCP),
+                             database.getPortRules().lookupHost(host, port, PortRange.TCP));
+            }
+        }
+        assertEquals(ports.getRuleCount(), database.getPortRules().getRuleCount());
+        assertEquals(RouteManager.RouteAction.PROXY,
+                     database.getPortRules().lookupIp(CidrMatcherTest.ip("8.8.8.8"), 53, PortRange.UDP));
+        assertEquals(RouteManager.RouteAction.DIRECT,
+                     database.getPortRules().lookupIp(CidrMatcherTest.ip("8.8.8.8"), 53, PortRange.TCP));
+    }
+    
+    @Test
+    public void portRulesAreStoredCompiled() throws IOException {
+        // Группа больше SCAN_LIMIT хранится таблицей CidrMatcher, маленькая - масками
+        List<RouteManager.IpRange> proxy = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            proxy.add(RouteManager.IpRange.parse("10." + i + ".0.0/16 443"));
+        }
+        proxy.addAll(ranges("9.9.9.0/24 proxy:eu", "2001:db8::/32 443"));
+        PortRules ports = PortRules.build(Arrays.asList("video.com 443 tcp proxy:us"), Arrays.<String>asList(),
+                                          proxy, ranges("10.5.5.0/24 443"));
+        File file = folder.newFile("rules.db");
+        RuleDatabase.write(file, CidrMatcher.EMPTY, DomainTrie.EMPTY, DomainTrie.EMPTY, ports, 0);
+        
+        PortRules mapped = RuleDatabase.open(file).getPortRules();
+        assertEquals(ports.getRuleCount(), mapped.getRuleCount());
+        assertTrue(mapped.hasUpstreams());
+        assertEquals("us", mapped.upstreamForHost("cdn.video.com", 443, PortRange.TCP));
+        assertEquals("eu", mapped.upstreamForIp(CidrMatcherTest.ip("9.9.9.9"), 53, PortRange.UDP));
+        Random random = new Random(7);
+        for (int i = 0; i < 10000; i++) {
+            int ip = 0x0A000000 | random.nextInt(1 << 22);
+            int port = i % 3 == 0 ? 80 : 443;
+            assertEquals(ports.lookupIp(ip, port, PortRange.TCP), mapped.lookupIp(ip, port, PortRange.TCP));
+        }
+        
+        List<String> expected = new ArrayList<>();
+        for (RouteManager.IpRange range : ports.getIpRanges()) {
+            expected.add(range.toString());
+        }
+        List<String> actual = new ArrayList<>();
+        for (RouteManager.IpRange range : mapped.getIpRanges()) {
+            actual.add(range.toString());
+        }
+        assertEquals(43, actual.size());
+        assertEquals(expected, actual);
+    }
+    
+    @Test
+    public void emptyRulesRoundTrip() throws IOException {
+        File file = folder.newFile("rules.db");
+        RuleDatabase.write(file, CidrMatcher.EMPTY, DomainTrie.EMPTY, DomainTrie.EMPTY, PortRules.EMPTY, 0);
+        RuleDatabase database = RuleDatabase.open(file);
+        assertEquals(0, database.getRuleCount());
+        assertEquals(RouteManager.RouteAction.DIRECT, database.getIpMatcher().lookup(0x08080808));
+        assertEquals(DomainTrie.NONE, database.getProxyHosts().match("example.com"));
+        assertTrue(database.getPortRules().isEmpty());
+    }
+    
+    @Test
+    public void truncatedFileIsRejected() throws IOException {
+        File file = folder.newFile("rules.db");
+        RuleDatabase.write(file, CidrMatcher.build(ranges("10.0.0.0/8"), ranges("10.1.0.0/16")),
+                           DomainTrie.build(Arrays.asList("example.com")), DomainTrie.EMPTY, PortRules.EMPTY, 3);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(raf.length() / 2);
+        raf.close();
+        assertNotOpened(file);
+    }
+    
+    @Test
+    public void foreignFileIsRejected() throws IOException {
+        File file = folder.newFile("rules.db");
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(new byte[64]);
+        out.close();
+        assertNotOpened(file);
+        assertNotOpened(new File(folder.getRoot(), "missing.db"));
+    }
+    
+    private static void assertNotOpened(File file) {
+        try {
+            RuleDatabase.open(file);
+            fail("opened " + file);
+        } catch (IOException expected) {
+        }
+    }
+}